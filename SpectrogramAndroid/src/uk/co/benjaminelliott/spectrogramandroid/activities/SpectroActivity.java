@@ -3,6 +3,8 @@ package uk.co.benjaminelliott.spectrogramandroid.activities;
 import java.util.Locale;
 
 import uk.co.benjaminelliott.spectrogramandroid.R;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.AndroidTraceBackend;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 import uk.co.benjaminelliott.spectrogramandroid.ui.LibraryFragment;
 import uk.co.benjaminelliott.spectrogramandroid.ui.SpectroFragment;
 import android.app.ActionBar;
@@ -11,6 +13,7 @@ import android.content.Intent;
 import android.content.IntentSender;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.location.Location;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
@@ -62,6 +65,9 @@ GooglePlayServicesClient.OnConnectionFailedListener {
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		// send trace sections to systrace where the platform supports it:
+		if (AndroidTraceBackend.isSupported())
+			Tracer.setBackend(new AndroidTraceBackend());
 		SharedPreferences prefs = PreferenceManager
 				.getDefaultSharedPreferences(this);
 		boolean landscape = prefs.getBoolean(PREF_LANDSCAPE_KEY, false);
@@ -319,6 +325,13 @@ GooglePlayServicesClient.OnConnectionFailedListener {
 		// TODO -- display connection status
 	}
 
+	/**
+	 * Returns the device's last known location, or null if it is not known.
+	 */
+	public Location getLastLocation() {
+		return lc.isConnected() ? lc.getLastLocation() : null;
+	}
+
 	/**
 	 *  Method that forces an update to the library's file list (called after
 	 *  a new spectrogram capture has been made).
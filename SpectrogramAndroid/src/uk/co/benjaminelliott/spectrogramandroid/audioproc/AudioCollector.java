@@ -1,78 +1,210 @@
 package uk.co.benjaminelliott.spectrogramandroid.audioproc;
 
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
 
-import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.LosslessBlockCodec;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.AudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 
 /**
- * Thread which brings in audio samples from the microphone so they can be 
+ * Thread which brings in audio samples from an {@link AudioSource} (usually the microphone) so they can be 
  * processed into bitmaps and later saved if the user makes a capture.
+ * <p>
+ * Each window is given a position on a timeline of frames that also counts any audio the source lost, so
+ * windows can be timestamped and any window that does not follow on from the one before it is marked as
+ * coming after a gap.
  * @author Ben
  *
  */
 public class AudioCollector extends Thread {
 
-    private short[][] audioWindows; // array of audio windows
+    private static final int READ_FULL = 0; // the window was filled
+    private static final int READ_END = 1; // the source ran out of samples
+    private static final int READ_FAILED = 2; // the source returned an error, so the window was abandoned
+    private static final int ERRORS_BEFORE_RESTART = 3; // consecutive read errors after which the source is restarted
+    private static final long ERROR_BACKOFF_MILLIS = 10; // pause after a read error, rather than spinning
+
+    private BitmapProvider bp; // owner of the window history, which may be replaced when it is resized
+    private Lock historyLock; // shared lock held while a window is being stored, so the history is not resized under it
     private Semaphore audioReady; // semaphore used to indicate when a new window is ready to be processed
-    private AudioRecord mic; // access to the microphone
-    private int audioCurrentIndex = 0; // current index into the window array
+    private short[] samples; // window being read from the source, before it is stored in the history
+    private LosslessBlockCodec codec; // compresses each window if the history's audio is compressed
+    private AudioSource source; // where audio samples come from, e.g. the microphone
+    private PipelineMetrics metrics; // latency and queue statistics for the pipeline
+    private volatile int windowsCollected = 0; // number of windows collected so far, i.e. the number of the next window
     private int samplesPerWindow; // number of audio samples per audio window
+    private int sampleRate; // audio sample rate, used to convert between frames and time
     boolean running = true; // whether or not this thread should be running
+    volatile boolean sourceExhausted = false; // whether a finite source has run out of samples
+    private volatile long timelineStartNanos = 0; // time at which timeline frame 0 was captured
+    private boolean timelineStarted = false; // whether any window has been collected yet
+    private long sourceOffsetFrames = 0; // timeline position of the source's frame 0, which changes if it is restarted
+    private boolean resync = true; // whether the source has been (re)started since the last window
+    private long nextFrame = 0; // timeline position at which the next window should start if there is no gap
+    private int consecutiveErrors = 0; // read errors since the last successful read
 
-    AudioCollector(short[][] audioWindows, DynamicAudioConfig dac, Semaphore audioReady) {
-        this.audioWindows = audioWindows;
-        this.audioReady = audioReady;
-        this.samplesPerWindow = dac.SAMPLES_PER_WINDOW;
-
-        int readSize = AudioRecord.getMinBufferSize(dac.SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-        mic = new AudioRecord(MediaRecorder.AudioSource.MIC,dac.SAMPLE_RATE,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT, readSize*2);
+    AudioCollector(BitmapProvider bp, AudioSource source) {
+        this.bp = bp;
+        this.historyLock = bp.getHistoryLock().readLock();
+        this.audioReady = bp.getAudioSemaphore();
+        this.metrics = bp.getMetrics();
+        this.samplesPerWindow = bp.getDynamicAudioConfig().SAMPLES_PER_WINDOW;
+        this.sampleRate = bp.getDynamicAudioConfig().SAMPLE_RATE;
+        this.samples = new short[samplesPerWindow];
+        this.codec = new LosslessBlockCodec(samplesPerWindow);
+        this.source = source;
     }
 
     @Override
     public void run() {
-    	// start recording from the microphone
-        mic.startRecording();
-        // loop indefinitely, adding data from the microphone to the list of
+    	// start recording from the source (which raises this thread's priority if it is the microphone)
+        source.start();
+        // loop indefinitely, adding data from the source to the list of
         // audio windows
         while (running) {
             fillAudioList();
         }
-        // when running is false, stop bringing data from the microphone and release it
-        mic.stop();
-        mic.release();
-        mic = null;
+        // when running is false, stop bringing data from the source
+        source.stop();
     }
 
     /**
-     * When audio data becomes available from the microphone, store it in a 2D array so
+     * When audio data becomes available from the microphone, store it in the window history so
      * that it remains available in case the user chooses to replay certain sections.
+     * <p>
+     * The window is read into this collector's own buffer without holding the history lock, since
+     * the read blocks until the source has enough samples, and a resize waiting on the lock (e.g. to
+     * free memory from the UI thread) would otherwise stall every reader of the history behind it.
      */
     public void fillAudioList() {
-        //NOTE: no locking on audioWindows
-        //request samplesPerWindow shorts be written into the next free microphone buffer:
-        readUntilFull(audioWindows[audioCurrentIndex], 0, samplesPerWindow); 
-        audioCurrentIndex++;
-        audioReady.release();
-        if (audioCurrentIndex == audioWindows.length) {
-            //if entire array has been filled, loop and start filling from the start:
-            audioCurrentIndex = 0;
+        Tracer.begin("fillAudioList");
+        try {
+            //request samplesPerWindow shorts be written into the collector's buffer:
+            long readStart = System.nanoTime();
+            int result = readUntilFull(samples, 0, samplesPerWindow);
+            if (result == READ_END) {
+                //source has no more samples, so discard the partial window and stop
+                sourceExhausted = true;
+                running = false;
+                return;
+            }
+            if (result == READ_FAILED) {
+                //the partial window is discarded, which will show up as a gap before the next one
+                return;
+            }
+            long readEnd = System.nanoTime();
+            metrics.recordMicRead(readEnd - readStart);
+            storeWindow(readEnd);
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Store the window that has just been read in the next slot of the history, timestamp it and
+     * let BitmapCreator know it is ready.
+     */
+    private void storeWindow(long readEnd) {
+        historyLock.lock();
+        try {
+            WindowHistory history = bp.getHistory();
+            int index = windowsCollected % history.capacity;
+            short[] buffer = history.getAudioForWriting(index, samples);
+            if (buffer != samples) System.arraycopy(samples, 0, buffer, 0, samplesPerWindow);
+            history.audioWritten(index, buffer, codec);
+            timestampWindow(history, index, readEnd);
+            if (audioReady.availablePermits() >= history.capacity) {
+                //BitmapCreator is a whole lap behind, so this window has overwritten one it never processed
+                metrics.windowOverrun();
+            }
+            windowsCollected++;
+            audioReady.release();
+        } finally {
+            historyLock.unlock();
         }
     }
 
+    /**
+     * Place the window that has just been filled on the timeline, marking it if it does not follow
+     * on from the previous window, and record when it was captured.
+     */
+    private void timestampWindow(WindowHistory history, int index, long now) {
+        if (resync) {
+            //the source counts frames from when it was last started:
+            if (!timelineStarted) timelineStartNanos = source.getStartTimeNanos();
+            sourceOffsetFrames = (source.getStartTimeNanos() - timelineStartNanos) * sampleRate / 1000000000L;
+            resync = false;
+        }
+        long endFrame = sourceOffsetFrames + source.getFramePosition() + source.getFramesLost();
+        long startFrame = endFrame - samplesPerWindow;
+        if (!timelineStarted) {
+            nextFrame = startFrame;
+            timelineStarted = true;
+        }
+        boolean afterGap = startFrame > nextFrame;
+        if (afterGap) metrics.gap(startFrame - nextFrame);
+        history.windowFrames[index] = startFrame;
+        history.windowAfterGap[index] = afterGap;
+        nextFrame = endFrame;
+
+        metrics.recordCollectorStall(now - frameToNanos(endFrame - 1));
+    }
+
+    /**
+     * Returns the number of windows collected so far.
+     */
+    int getWindowsCollected() {
+        return windowsCollected;
+    }
+
+    /**
+     * Returns the time at which the frame at the given timeline position was captured.
+     */
+    long frameToNanos(long frame) {
+        return timelineStartNanos + frame * 1000000000L / sampleRate;
+    }
+
     /**
      * The 'read' method supplied by the AudioRecord class will not necessarily fill the destination
      * buffer with samples if there is not enough data available. This method always returns a full array by
-     * repeatedly calling the 'read' method until there is no space left.
+     * repeatedly calling the 'read' method until there is no space left, unless the source comes to an end
+     * or returns an error first.
      */
-    private void readUntilFull(short[] buffer, int offset, int spaceRemaining) {
+    private int readUntilFull(short[] buffer, int offset, int spaceRemaining) {
         while (spaceRemaining > 0) {
-            int samplesRead = mic.read(buffer, offset, spaceRemaining);
+            int samplesRead = source.read(buffer, offset, spaceRemaining);
+            if (samplesRead == AudioSource.END_OF_STREAM) return READ_END;
+            if (samplesRead < 0) {
+                readFailed();
+                return READ_FAILED;
+            }
+            consecutiveErrors = 0;
             spaceRemaining -= samplesRead;
             offset += samplesRead;
         }
+        return READ_FULL;
+    }
+
+    /**
+     * Back off after a read error, restarting the source if it keeps failing (e.g. because another
+     * app has taken the microphone or the audio server has died).
+     */
+    private void readFailed() {
+        metrics.readError();
+        consecutiveErrors++;
+        if (consecutiveErrors >= ERRORS_BEFORE_RESTART) {
+            source.stop();
+            source.start();
+            resync = true;
+            consecutiveErrors = 0;
+        }
+        try {
+            Thread.sleep(ERROR_BACKOFF_MILLIS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
     }
 
 }
@@ -1,12 +1,21 @@
 package uk.co.benjaminelliott.spectrogramandroid.audioproc;
 
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
 
-import org.jtransforms.fft.DoubleFFT_1D;
-
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.LosslessBlockCodec;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.MfccExtractor;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.NoiseFloorTracker;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.FFTFactory;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.RealFFT;
 import uk.co.benjaminelliott.spectrogramandroid.audioproc.windows.HammingWindow;
 import uk.co.benjaminelliott.spectrogramandroid.audioproc.windows.WindowFunction;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.SpectrogramStreamer;
 
 /**
  * A thread which takes audio windows generated by {link AudioCollector} 
@@ -16,59 +25,151 @@ import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
  */
 public class BitmapCreator extends Thread {
 
+    private static final int MAX_BATCH = 32; // most windows transformed together when catching up
+    private static final int MAX_WORKERS = 3; // most helper threads used to share the transforms of a batch
+
     boolean running = true; // whether or not this thread should process data
     private int samplesPerWindow; // number of audio samples per window
+    private int sampleRate; // audio sample rate, used to express lag as a duration
     private int numFreqBins; // number of frequency bins
-    private short[][] audioWindows; // array of audio windows to be processed
-    private int[][] bitmapWindows; // array of bitmap windows, created by processing audio windows
+    private BitmapProvider bp; // owner of the window history, which may be replaced when it is resized
+    private Lock historyLock; // shared lock held while the history is in use, so it is not resized underneath
+    private WindowHistory history; // the history being processed, only valid while historyLock is held
     private Semaphore audioReady; // semaphore that indicates if audio is available for processing
     private Semaphore bitmapsReady; // semaphore that indicates if bitmaps are available for display
     private WindowFunction window; // windowing function to apply to the audio windows
-    private boolean arraysLooped = false; // whether or not the bitmapWindows array has been filled
-    private int bitmapCurrentIndex = 0; // current index into the array of bitmap windows
-    private int lastBitmapRequested = 0; // the most recently requested bitmap window
-    private int oldestBitmapAvailable = 0; // the oldest valid bitmap available (older bitmaps are eventually overwritten)
-    private double maxAmplitude = 1; // maximum amplitude recorded so far (used to determine relative colouring)
+    private RealFFT fft; // FFT engine, chosen to suit the window size
+    private LosslessBlockCodec codec; // decodes audio windows if the history's audio is compressed
+    private short[] samples; // decoded audio window if the history's audio is compressed
+    private volatile int windowsProcessed = 0; // number of windows turned into bitmaps, i.e. the number of the next one
+    private volatile int windowsTaken = 0; // number of bitmap windows handed out for drawing
+    private volatile double maxAmplitude = 1; // maximum amplitude recorded so far (used to determine relative colouring)
     private double contrast; // user's contrast preference
     private int[] colours; // array of spectrogram colours
+    private final boolean floatPrecision; // whether to run the analysis in single rather than double precision
     
     //allocate memory here rather than repeatedly re-allocating in performance-affecting methods:
     private double[] fftSamples;
     private double[] previousWindow; //keep a handle on the previous audio sample window so that values can be averaged across them
     private double[] combinedWindow;
-    private DoubleFFT_1D dfft1d; //DoubleFFT_1D constructor must be supplied with an 'n' value, where n = data size
+    //single-precision equivalents, only allocated if the user has chosen the float pipeline:
+    private float[] fftSamplesF;
+    private float[] previousWindowF;
+    private float[] combinedWindowF;
+    //power of each row of the display when its frequency axis is not the bins themselves:
+    private double[] displayWindow;
+    private float[] displayWindowF;
     private int val = 0; //current value for cappedValue function
+    //power spectra of each window in a catch-up batch, reused from batch to batch:
+    private double[][] batchSpectra;
+    private float[][] batchSpectraF;
+    private BatchWorker[] workers; // helper threads for catch-up batches, or null if the user has not enabled them
+    private Semaphore workersDone = new Semaphore(0); // released by each helper thread when its share of a batch is done
+    private volatile int windowsInFlight = 0; // windows claimed from audioReady but not yet turned into bitmaps
+    private volatile int maxLagWindows = 0; // largest backlog of windows seen so far
+    private PipelineMetrics metrics; // latency and queue statistics for the pipeline
+    private final SpectrogramStreamer streamer; // takes each smoothed spectrum to send to a viewer, or null
+    private final float fullScale; // log of 1 + the power of the top level, see SpectrogramLevels
+    // levels of the last window coloured, for the history's pyramid; its colour indices if coloured by level above background:
+    private byte[] windowLevels;
+    private final FrequencyAxis axis; // maps the frequency bins to the rows of the bitmap windows
+    private final MfccExtractor features; // finds the MFCCs and mel band levels of each window for the history
+    private EventDetector detector; // finds sounds that stand out from the background, or null if nothing wants them
+    // background level of each row, if the display is coloured by level above it rather than by loudness:
+    private NoiseFloorTracker floorTracker;
+    private boolean floorFromDetector; // whether floorTracker is the event detector's, which updates it
+    private float[] snrSteps; // lowest ratio of power to floor drawn in each colour, if coloured by level above background
 
 
-    BitmapCreator(BitmapProvider bp) {
-        this.audioWindows = bp.getAudioWindowArray();
-        this.bitmapWindows = bp.getBitmapWindowArray();
+    BitmapCreator(final BitmapProvider bp) {
+        this.bp = bp;
+        this.historyLock = bp.getHistoryLock().readLock();
         this.audioReady = bp.getAudioSemaphore();
         this.bitmapsReady = bp.getBitmapSemaphore();
         this.colours = bp.getColours();
+        this.metrics = bp.getMetrics();
+        this.streamer = bp.getStreamer();
+        this.axis = bp.getFrequencyAxis();
         
         DynamicAudioConfig dac = bp.getDynamicAudioConfig();
         this.samplesPerWindow = dac.SAMPLES_PER_WINDOW;
+        this.sampleRate = dac.SAMPLE_RATE;
         this.numFreqBins = dac.NUM_FREQ_BINS;
         this.contrast = dac.CONTRAST;
+        this.floatPrecision = dac.FLOAT_PRECISION;
+        this.fullScale = SpectrogramLevels.fullScale(samplesPerWindow);
         
         window = new HammingWindow(samplesPerWindow);
-        fftSamples = new double[samplesPerWindow];
-        previousWindow = new double[samplesPerWindow];
-        combinedWindow = new double[samplesPerWindow];
-        dfft1d = new DoubleFFT_1D(samplesPerWindow);
+        fft = FFTFactory.create(samplesPerWindow);
+        codec = new LosslessBlockCodec(samplesPerWindow);
+        samples = new short[samplesPerWindow];
+        windowLevels = new byte[numFreqBins];
+        features = new MfccExtractor(sampleRate, samplesPerWindow, numFreqBins);
+        if (bp.isDetectingEvents()) {
+            detector = new EventDetector(sampleRate, samplesPerWindow, numFreqBins, new EventDetector.Listener() {
+                @Override
+                public void eventDetected(int startWindow, int endWindow, float bottomFrequency, float topFrequency) {
+                    EventDetector.Listener listener = bp.getEventListener();
+                    if (listener != null) listener.eventDetected(startWindow, endWindow, bottomFrequency, topFrequency);
+                }
+            });
+        }
+        if (dac.DISPLAY_SNR) {
+            // when the rows are the bins, the detector already follows their floor from the same spectrum:
+            floorFromDetector = detector != null && axis.isIdentity();
+            floorTracker = floorFromDetector ? detector.getTracker()
+                    : new NoiseFloorTracker(numFreqBins, (float) sampleRate / samplesPerWindow);
+            snrSteps = new float[colours.length];
+            for (int i = 0; i < snrSteps.length; i++) {
+                // the inverse of the contrast curve that cappedValue applies:
+                double db = DynamicAudioConfig.SNR_FULL_SCALE_DB * Math.pow((double) i / (snrSteps.length - 1), 1 / contrast);
+                snrSteps[i] = (float) Math.pow(10, db / 10);
+            }
+        }
+        if (floatPrecision) {
+            fftSamplesF = new float[samplesPerWindow];
+            previousWindowF = new float[samplesPerWindow];
+            combinedWindowF = new float[samplesPerWindow];
+            batchSpectraF = new float[MAX_BATCH][samplesPerWindow];
+            if (!axis.isIdentity()) displayWindowF = new float[numFreqBins];
+        } else {
+            fftSamples = new double[samplesPerWindow];
+            previousWindow = new double[samplesPerWindow];
+            combinedWindow = new double[samplesPerWindow];
+            batchSpectra = new double[MAX_BATCH][samplesPerWindow];
+            if (!axis.isIdentity()) displayWindow = new double[numFreqBins];
+        }
+
+        if (dac.PARALLEL_CATCH_UP) {
+            // this thread takes a share of each batch too, so leave a core for it:
+            int numWorkers = Math.min(Runtime.getRuntime().availableProcessors() - 1, MAX_WORKERS);
+            if (numWorkers > 0) {
+                workers = new BatchWorker[numWorkers];
+                for (int i = 0; i < numWorkers; i++) {
+                    workers[i] = new BatchWorker();
+                }
+            }
+        }
     }
 
     @Override
     public void run() {
+        if (workers != null) {
+            for (BatchWorker worker : workers) worker.start();
+        }
         while (running) {
             fillBitmapList();
         }
+        if (workers != null) {
+            for (BatchWorker worker : workers) worker.interrupt();
+        }
     }
 
     /**
      * When some audio data is ready, perform the short-time Fourier transform on it and 
      * then convert the results to a bitmap, which is then stored in a 2D array, ready to be displayed.
+     * If this thread has fallen behind the microphone, every pending window is claimed at once and
+     * processed in batches.
      */
     public void fillBitmapList() { 
 
@@ -78,106 +179,317 @@ public class BitmapCreator extends Thread {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        // process audio window into corresponding bitmap window:
-        processAudioWindow(audioWindows[bitmapCurrentIndex], bitmapWindows[bitmapCurrentIndex]);
+        // only trace the work done, not the wait for audio:
+        Tracer.begin("fillBitmapList");
+        historyLock.lock();
+        try {
+            history = bp.getHistory();
+            // claim any other windows that have built up while this thread was busy:
+            int pending = 1 + audioReady.drainPermits();
+            windowsInFlight = pending;
+            if (pending > maxLagWindows) maxLagWindows = pending;
+            metrics.recordAudioQueueDepth(pending);
 
-        // increase bitmap window index:
-        bitmapCurrentIndex++;
+            if (pending == 1) {
+                // process audio window into corresponding bitmap window:
+                int index = windowsProcessed % history.capacity;
+                long start = System.nanoTime();
+                processAudioWindow(history.getAudio(index, codec, samples), history.bitmapWindows[index]);
+                metrics.recordFft(System.nanoTime() - start);
+                windowProcessed();
+                return;
+            }
+            while (pending > 0) {
+                int batchSize = Math.min(pending, MAX_BATCH);
+                long start = System.nanoTime();
+                processBatch(batchSize);
+                metrics.recordFftBatch(System.nanoTime() - start, batchSize);
+                pending -= batchSize;
+            }
+        } finally {
+            historyLock.unlock();
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Advances past the bitmap window that has just been filled, adding its levels to the history's
+     * pyramid and its features to the history, and makes it available for display.
+     */
+    private void windowProcessed() {
+        history.pyramid.add(windowLevels);
+        history.setFeatures(windowsProcessed % history.capacity, features.getMfccs(), features.getBandLevels());
+        windowsInFlight--;
+        windowsProcessed++;
+        int waiting = bitmapsReady.availablePermits();
+        if (waiting >= history.capacity) {
+            // the display is a whole lap behind, so a bitmap it never drew has been overwritten
+            metrics.windowDropped();
+        }
+        metrics.recordBitmapQueueDepth(waiting + 1);
         // release semaphore to indicate a new bitmap window can be displayed:
         bitmapsReady.release();
+    }
+    
+    /**
+     * Processes the next batchSize audio windows into bitmap windows. The transforms do not depend on
+     * each other, so they are all done first (shared with the helper threads if there are any), leaving
+     * only the smoothing and colouring, which depend on the previous window, to be done in order.
+     */
+    private void processBatch(int batchSize) {
+        int first = windowsProcessed;
+        int parts = (workers == null) ? 1 : workers.length + 1;
+        int share = (batchSize + parts - 1) / parts;
+        int workersStarted = 0;
+        // hand each helper thread a contiguous range of the batch, keeping the first range for this thread:
+        for (int from = share; from < batchSize; from += share) {
+            workers[workersStarted++].transform(first, from, Math.min(from + share, batchSize));
+        }
+        transformRange(fft, codec, samples, first, 0, Math.min(share, batchSize));
+        workersDone.acquireUninterruptibly(workersStarted);
 
-        if (bitmapCurrentIndex == bitmapWindows.length) {
-        	// if the end of the array has been reached, loop and start filling from the start again:
-            bitmapCurrentIndex = 0;
-            arraysLooped = true;
+        for (int i = 0; i < batchSize; i++) {
+            int[] bitmapWindow = history.bitmapWindows[windowsProcessed % history.capacity];
+            if (floatPrecision) colourWindow(batchSpectraF[i], bitmapWindow);
+            else colourWindow(batchSpectra[i], bitmapWindow);
+            windowProcessed();
         }
+    }
 
-        if (arraysLooped) {
-        	// once the arrays have looped, the oldest valid bitmap is no longer at index 0 - instead it
-        	// increases each time a new bitmap window is created:
-            oldestBitmapAvailable++;
+    /**
+     * Computes the power spectra of windows from to to-1 of the batch starting at window number first
+     * into the batch buffers, using the given FFT engine, and the given codec and scratch space to decode
+     * the audio if it is compressed.
+     */
+    private void transformRange(RealFFT engine, LosslessBlockCodec decoder, short[] scratch, int first, int from, int to) {
+        for (int i = from; i < to; i++) {
+            short[] windowSamples = history.getAudio((first + i) % history.capacity, decoder, scratch);
+            if (floatPrecision) transformWindow(windowSamples, batchSpectraF[i], engine);
+            else transformWindow(windowSamples, batchSpectra[i], engine);
         }
     }
-    
+
     /**
      * Take the raw audio samples, apply a windowing function, then perform the Short-Time
      * Fourier Transform and square the result. Combine the output with that from the previous window
      * for a smoothing effect. Return the resulting bitmap.
      */
    void processAudioWindow(short[] samples, int[] destArray) {
+        if (floatPrecision) {
+            processAudioWindowFloat(samples, destArray);
+            return;
+        }
 
+        transformWindow(samples, fftSamples, fft);
+        colourWindow(fftSamples, destArray);
+    }
+
+    /**
+     * Copies the raw audio samples into the given array, applies the windowing function and replaces
+     * the first numFreqBins elements with the power spectrum.
+     */
+    private void transformWindow(short[] samples, double[] spectrum, RealFFT engine) {
         for (int i = 0; i < samplesPerWindow; i++) {
-            fftSamples[i] = (double)(samples[i]);
+            spectrum[i] = (double)(samples[i]);
         }
-        window.applyWindow(fftSamples); //apply Hamming window before performing STFT
-        spectroTransform(fftSamples); //do the STFT on the copied data
+        window.applyWindow(spectrum); //apply Hamming window before performing STFT
+        spectroTransform(spectrum, engine); //do the STFT on the copied data
+    }
 
-        for (int i = 0; i < samplesPerWindow; i++) {
-            combinedWindow[i] = fftSamples[i] + previousWindow[i];
+    /**
+     * Combines the power spectrum with that of the previous window, maps it onto the rows of the
+     * display's frequency axis and converts the result to colours, by loudness or by level above
+     * each row's background as the user prefers. The features are extracted from
+     * the combined spectrum, so the mel band levels are on the same scale as the window's levels, and
+     * events are looked for in it.
+     */
+    private void colourWindow(double[] spectrum, int[] destArray) {
+        for (int i = 0; i < numFreqBins; i++) {
+            combinedWindow[i] = spectrum[i] + previousWindow[i];
+        }
+        if (streamer != null) streamer.offer(combinedWindow);
+        features.extract(combinedWindow);
+        if (detector != null) detector.process(windowsProcessed, combinedWindow);
+        double[] rows = combinedWindow;
+        if (displayWindow != null) {
+            axis.remap(combinedWindow, displayWindow);
+            rows = displayWindow;
+        }
+        float[] floor = null;
+        if (floorTracker != null) {
+            if (!floorFromDetector) floorTracker.update(rows);
+            floor = floorTracker.getFloor();
         }
 
+        // the highest power is read once per column and written back once, not for every bin:
+        double max = maxAmplitude;
+        double logMax = Math.log1p(max);
         for (int i = 0; i < numFreqBins; i++) {
-            val = cappedValue(combinedWindow[i]);
+            double d = rows[i];
+            if (d > max) {
+                max = d;
+                logMax = Math.log1p(d);
+            }
+            val = (floor != null) ? snrValue(d, floor[i]) : cappedValue(d, logMax);
             destArray[numFreqBins-i-1] = colours[val]; //fill upside-down because y=0 is at top of screen
+            windowLevels[i] = (byte) ((floor != null) ? val : SpectrogramLevels.toLevel(d, fullScale));
         }
+        if (max > maxAmplitude) maxAmplitude = max;
 
-        //keep samples for next process
-        for (int i = 0; i < samplesPerWindow; i++) previousWindow[i] = fftSamples[i];
+        //keep spectrum for next process
+        System.arraycopy(spectrum, 0, previousWindow, 0, numFreqBins);
+    }
+
+    /**
+     * Single-precision version of {@link #processAudioWindow(short[], int[])}, which halves the
+     * size of the scratch and history buffers touched for every window.
+     */
+    private void processAudioWindowFloat(short[] samples, int[] destArray) {
+        transformWindow(samples, fftSamplesF, fft);
+        colourWindow(fftSamplesF, destArray);
+    }
+
+    /**
+     * Single-precision version of {@link #transformWindow(short[], double[], RealFFT)}.
+     */
+    private void transformWindow(short[] samples, float[] spectrum, RealFFT engine) {
+        for (int i = 0; i < samplesPerWindow; i++) {
+            spectrum[i] = samples[i];
+        }
+        window.applyWindow(spectrum);
+        spectroTransform(spectrum, engine);
+    }
+
+    /**
+     * Single-precision version of {@link #colourWindow(double[], int[])}.
+     */
+    private void colourWindow(float[] spectrum, int[] destArray) {
+        for (int i = 0; i < numFreqBins; i++) {
+            combinedWindowF[i] = spectrum[i] + previousWindowF[i];
+        }
+        if (streamer != null) streamer.offer(combinedWindowF);
+        features.extract(combinedWindowF);
+        if (detector != null) detector.process(windowsProcessed, combinedWindowF);
+        float[] rows = combinedWindowF;
+        if (displayWindowF != null) {
+            axis.remap(combinedWindowF, displayWindowF);
+            rows = displayWindowF;
+        }
+        float[] floor = null;
+        if (floorTracker != null) {
+            if (!floorFromDetector) floorTracker.update(rows);
+            floor = floorTracker.getFloor();
+        }
+
+        double max = maxAmplitude;
+        double logMax = Math.log1p(max);
+        for (int i = 0; i < numFreqBins; i++) {
+            float d = rows[i];
+            if (d > max) {
+                max = d;
+                logMax = Math.log1p(d);
+            }
+            val = (floor != null) ? snrValue(d, floor[i]) : cappedValue(d, logMax);
+            destArray[numFreqBins-i-1] = colours[val];
+            windowLevels[i] = (byte) ((floor != null) ? val : SpectrogramLevels.toLevel(d, fullScale));
+        }
+        if (max > maxAmplitude) maxAmplitude = max;
+
+        //only the first numFreqBins elements hold the power spectrum, so only those need keeping
+        System.arraycopy(spectrum, 0, previousWindowF, 0, numFreqBins);
     }
 
     /**
      * Returns an integer capped at 255 representing the magnitude of the
-     * given double value, d, relative to the highest amplitude seen so far. The amplitude values
+     * given double value, d, relative to the highest amplitude seen so far, whose log1p is given
+     * and which the caller must already have raised to d if d is higher. The amplitude values
      * provided use a logarithmic scale but this method converts these back to a linear scale, 
      * more appropriate for pixel colouring.
      */
-    private int cappedValue(double d) {
-        if (d < 0) return 0;
-        if (d > maxAmplitude) {
-            maxAmplitude = d;
-            return 255;
+    private int cappedValue(double d, double logMax) {
+        if (d <= 0) return 0;
+        return (int)(255*Math.pow((Math.log1p(d)/logMax),contrast));
+    }
+
+    /**
+     * Returns an integer capped at 255 representing how far the given power is above the given
+     * background power, from 0 at or below it to 255 at {@link DynamicAudioConfig#SNR_FULL_SCALE_DB}
+     * above it, on the same contrast curve as {@link #cappedValue(double, double)}. Found by a binary search
+     * of the precomputed steps rather than by taking logs. The caller still records the highest power,
+     * once per column, as captures are stored relative to it.
+     */
+    private int snrValue(double d, float floor) {
+        double ratio = d / floor;
+        int low = 0;
+        int high = snrSteps.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ratio >= snrSteps[mid]) low = mid;
+            else high = mid - 1;
         }
-        return (int)(255*Math.pow((Math.log1p(d)/Math.log1p(maxAmplitude)),contrast));
+        return low;
     }
 
     /**
      * Modifies the provided array of audio samples in-place, replacing them with 
      * the result of the short-time Fourier transform of the samples.
      *
-     * See 'realForward' documentation of JTransforms for more information on the FFT implementation.
+     * See {@link RealFFT} for more information on the FFT output.
      */
-    private void spectroTransform(double[] paddedSamples) {
-        dfft1d.realForward(paddedSamples);
+    private void spectroTransform(double[] paddedSamples, RealFFT engine) {
         //Calculate the STFT by using squared magnitudes. Store these in the first half of the array, and the rest will be discarded:
-        for (int i = 0; i < numFreqBins; i++) {
-            //Note that for frequency k, Re[k] and Im[k] are stored adjacently
-            paddedSamples[i] = paddedSamples[2*i] * paddedSamples[2*i] + paddedSamples[2*i+1] * paddedSamples[2*i+1];
-        }
+        engine.powerSpectrum(paddedSamples, numFreqBins);
+    }
+
+    /**
+     * Single-precision version of {@link #spectroTransform(double[], RealFFT)}.
+     */
+    private void spectroTransform(float[] paddedSamples, RealFFT engine) {
+        engine.powerSpectrum(paddedSamples, numFreqBins);
     }
     
+    /**
+     * Returns the highest combined power seen so far, which is drawn at full colour.
+     */
+    double getMaxAmplitude() {
+        return maxAmplitude;
+    }
+
+    /**
+     * Reports any event still in progress, as if the audio had gone quiet. Only to be called when no
+     * windows are being processed, e.g. once a finite source has been processed to the end.
+     */
+    void finishEvents() {
+        if (detector != null) detector.finish(windowsProcessed);
+    }
+
+    /**
+     * Returns the number of the oldest valid bitmap window available (older bitmaps are eventually overwritten).
+     */
     public int getOldestBitmapIndex() {
-        return oldestBitmapAvailable;
+        return bp.getHistory().getOldestWindow(windowsProcessed);
     }
 
     /**
      * Returns the index of the leftmost chronologically usable bitmap still in memory.
      */
     public int getLeftmostBitmapIndex() {
-        if (!arraysLooped) return 0;
-        return bitmapCurrentIndex + 1; //if array has looped, leftmost window is at current index + 1
+        int oldest = getOldestBitmapIndex();
+        if (oldest == 0) return 0;
+        return oldest % bp.getWindowLimit() + 1; //once history has looped, leftmost window is just after the oldest
     }
 
     /**
      *Returns the index of the rightmost chronologically usable bitmap still in memory.
      */
     public int getRightmostBitmapIndex() {
-        return bitmapCurrentIndex;
+        return windowsProcessed % bp.getWindowLimit();
     }
 
     /**
      * Returns a REFERENCE to the next bitmap window to be drawn, assuming that the caller will draw it before the bitmap 
-     * creating thread overwrites it (the array size is large - drawing thread would have to be thousands of windows behind the 
-     * creator thread). This potentially dangerous behaviour could be fixed with locks at the cost of performance.
+     * creating thread overwrites it (the history is large - drawing thread would have to be thousands of windows behind the 
+     * creator thread). Resizing the history moves windows rather than copying them, so the reference stays valid.
      */
     public int[] getNextBitmap() {
         try {
@@ -185,7 +497,86 @@ public class BitmapCreator extends Thread {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
-        if (lastBitmapRequested == bitmapWindows.length) lastBitmapRequested = 0; //loop if necessary
-        return bitmapWindows[lastBitmapRequested++];
+        historyLock.lock();
+        try {
+            WindowHistory h = bp.getHistory();
+            int index = windowsTaken % h.capacity;
+            metrics.windowHandedOut(bp.windowCapturedNanos(h, index));
+            windowsTaken++;
+            return h.bitmapWindows[index];
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bitmap windows handed out for drawing so far.
+     */
+    int getWindowsTaken() {
+        return windowsTaken;
+    }
+
+    /**
+     * Returns the number of audio windows that have been recorded but not yet turned into bitmaps,
+     * i.e. how far this thread is lagging behind the microphone.
+     */
+    public int getLagWindows() {
+        return windowsInFlight + audioReady.availablePermits();
+    }
+
+    /**
+     * Returns the current lag behind the microphone in milliseconds of audio.
+     */
+    public float getLagMillis() {
+        return getLagWindows() * samplesPerWindow * 1000f / sampleRate;
+    }
+
+    /**
+     * Returns the largest lag behind the microphone seen so far, in windows.
+     */
+    public int getMaxLagWindows() {
+        return maxLagWindows;
+    }
+
+    /**
+     * A helper thread that computes the power spectra for part of a catch-up batch. Each has its own
+     * FFT engine and decoder since they hold scratch space; the window function is read-only so it is shared.
+     */
+    private class BatchWorker extends Thread {
+
+        private final RealFFT engine = FFTFactory.create(samplesPerWindow);
+        private final LosslessBlockCodec decoder = new LosslessBlockCodec(samplesPerWindow);
+        private final short[] scratch = new short[samplesPerWindow];
+        private final Semaphore work = new Semaphore(0); // released when a range of the batch is assigned
+        private int first; // index of the first window of the batch
+        private int from; // range of the batch to transform
+        private int to;
+
+        BatchWorker() {
+            setDaemon(true);
+        }
+
+        /**
+         * Assign windows from to to-1 of the batch starting at index first to this thread.
+         */
+        void transform(int first, int from, int to) {
+            this.first = first;
+            this.from = from;
+            this.to = to;
+            work.release();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    work.acquire();
+                } catch (InterruptedException e) {
+                    return; // the bitmap creator has stopped
+                }
+                transformRange(engine, decoder, scratch, first, from, to);
+                workersDone.release();
+            }
+        }
     }
 }
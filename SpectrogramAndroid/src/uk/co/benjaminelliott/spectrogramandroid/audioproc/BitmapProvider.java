@@ -1,47 +1,138 @@
 package uk.co.benjaminelliott.spectrogramandroid.audioproc;
 
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.LosslessBlockCodec;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.MfccExtractor;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.FFTFactory;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.RealFFT;
 import uk.co.benjaminelliott.spectrogramandroid.audioproc.filters.BandpassButterworth;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.AudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.MicrophoneAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.windows.HammingWindow;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.windows.WindowFunction;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.HeatMap;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Matrix;
-import android.graphics.Paint;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.SpectrogramStreamer;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.StreamProtocol;
+import android.os.Build;
 import android.util.Log;
 
 /**
  * Class that manages the threads responsible for processing and saving audio and bitmaps, 
  * and that supplies other classes with entire "chunks" of the bitmap display and audio history.
+ * <p>
+ * Windows are numbered from 0 in the order they were recorded. The history holds the newest of them
+ * and can be resized while the threads are running, under a read-write lock that the threads hold
+ * (shared) whenever they touch it.
  * @author Ben
  *
  */
 public class BitmapProvider {
 
     private DynamicAudioConfig dac;
-    private short[][] audioWindows;
-    private int[][] bitmapWindows;
+    private volatile WindowHistory history; // the most recent audio and bitmap windows
+    private ReentrantReadWriteLock historyLock = new ReentrantReadWriteLock(); // held exclusively only to resize the history
     private boolean running = false;
+    private AudioSource audioSource; // source of audio samples, the microphone unless another is supplied
     private AudioCollector audioCollector;
     private BitmapCreator bitmapCreator;
     private int[] colours;
     private Semaphore audioReady = new Semaphore(0);
     private Semaphore bitmapsReady = new Semaphore(0);
+    private PipelineMetrics metrics; // per-stage latency and queue statistics
+    private SpectrogramStreamer streamer; // sends the spectrogram live to a viewer, or null if the user has not asked for it
+    private FrequencyAxis axis; // maps the frequency bins to the rows of the bitmap windows
+    private boolean detectEvents; // whether to look for sounds that stand out from the background
+    private volatile EventDetector.Listener eventListener; // receives the sounds found, or null
 
     public BitmapProvider(DynamicAudioConfig dac) {
+        this(dac, new MicrophoneAudioSource(dac.SAMPLE_RATE));
+    }
+
+    /**
+     * Creates a provider that takes its audio from the given source rather than the microphone, e.g.
+     * a file or a synthetic signal, which allows the pipeline to run off-device.
+     */
+    public BitmapProvider(DynamicAudioConfig dac, AudioSource audioSource) {
+        if (audioSource.getChannelCount() != 1 || audioSource.getSampleRate() != dac.SAMPLE_RATE)
+            throw new IllegalArgumentException("Audio source must be mono at "+dac.SAMPLE_RATE+" Hz");
         this.dac = dac;
+        this.audioSource = audioSource;
         
-        audioWindows = new short[DynamicAudioConfig.WINDOW_LIMIT][dac.SAMPLES_PER_WINDOW];
-        bitmapWindows = new int[DynamicAudioConfig.WINDOW_LIMIT][dac.NUM_FREQ_BINS];
+        history = new WindowHistory(dac.WINDOW_LIMIT, dac.SAMPLES_PER_WINDOW, dac.NUM_FREQ_BINS, dac.COMPRESS_HISTORY);
+        metrics = new PipelineMetrics();
                 
-        switch (dac.COLOUR_MAP) {
-        case 0: colours = HeatMap.Greys_ColorBrewer(); break;
-        case 1: colours = HeatMap.YlOrRd_ColorBrewer();break;
-        case 2: colours = HeatMap.PuOr_Backwards_ColorBrewer(); break;
-        default: colours = HeatMap.Greys_ColorBrewer();
+        colours = HeatMap.fromPreference(dac.COLOUR_MAP);
+        axis = new FrequencyAxis(dac.FREQUENCY_AXIS, dac.SAMPLE_RATE, dac.SAMPLES_PER_WINDOW, dac.NUM_FREQ_BINS, dac.NUM_FREQ_BINS);
+        if (dac.STREAM_ENABLED && dac.STREAM_VIEWER.length() > 0) streamer = createStreamer(dac);
+        detectEvents = dac.AUTO_CAPTURE;
+    }
+
+    /**
+     * Returns a streamer to the viewer at the host[:port] given in the user's preferences.
+     */
+    private static SpectrogramStreamer createStreamer(DynamicAudioConfig dac) {
+        String host = dac.STREAM_VIEWER;
+        int port = StreamProtocol.DEFAULT_PORT;
+        int colon = host.lastIndexOf(':');
+        if (colon > 0 && host.indexOf(':') == colon) {
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            } catch (NumberFormatException e) {
+                Log.w("BG", "Ignoring bad port in viewer address "+dac.STREAM_VIEWER);
+            }
         }
+        return new SpectrogramStreamer(host, port, Build.MODEL, dac.SAMPLE_RATE, dac.SAMPLES_PER_WINDOW, dac.NUM_FREQ_BINS,
+                dac.STREAM_DECIMATION, DynamicAudioConfig.STREAM_LEVEL_SHIFT, DynamicAudioConfig.STREAM_QUEUE_COLUMNS);
+    }
+
+    /**
+     * Streams the spectrogram through the given streamer rather than any the user's preferences ask
+     * for, e.g. to measure a stream off-device. Must be called before {@link #start()}.
+     */
+    public void setStreamer(SpectrogramStreamer streamer) {
+        this.streamer = streamer;
+    }
+
+    /**
+     * Returns the streamer sending the spectrogram to a viewer, or null if there is none.
+     */
+    public SpectrogramStreamer getStreamer() {
+        return streamer;
+    }
+
+    /**
+     * Sets the listener that receives the sounds found standing out from the background, on the
+     * thread that processes the audio. Events are looked for if the user's preferences ask for them
+     * to be captured, in which case the listener can be set at any time; otherwise it must be set
+     * before {@link #start()} for them to be looked for at all.
+     */
+    public void setEventListener(EventDetector.Listener listener) {
+        if (!running) detectEvents = true;
+        eventListener = listener;
+    }
+
+    EventDetector.Listener getEventListener() {
+        return eventListener;
+    }
+
+    boolean isDetectingEvents() {
+        return detectEvents;
+    }
+
+    /**
+     * Reports any sound still in progress to the event listener, once a finite audio source has run
+     * out and all of its windows have been processed.
+     */
+    public void finishEvents() {
+        bitmapCreator.finishEvents();
     }
 
     /**
@@ -50,9 +141,10 @@ public class BitmapProvider {
     public void start() {
         running = true;
 
-        audioCollector = new AudioCollector(audioWindows, dac, audioReady);
+        audioCollector = new AudioCollector(this, audioSource);
         bitmapCreator = new BitmapCreator(this);
 
+        if (streamer != null) streamer.start();
         audioCollector.start();
         bitmapCreator.start();
     }
@@ -65,152 +157,91 @@ public class BitmapProvider {
             running = false;
             audioCollector.running = false;
             bitmapCreator.running = false;
+            if (streamer != null) streamer.stop();
         }
     }
 
     /**
-     * Returns a stand-alone bitmap with time from startWindow to endWindow and band-pass-filtered
-     * from bottomFreq to topFreq.
+     * Returns the spectrogram with time from startWindow to endWindow and frequency from bottomFreq
+     * to topFreq (in Hz) as a matrix of levels, analysed from the audio history the same way as for
+     * display. Unlike the bitmap windows, the levels do not depend on the colour map or contrast.
+     * Windows no longer held are left out, so the first column is the later of startWindow and the
+     * oldest window held.
      */
-    public Bitmap createEntireBitmap(int startWindow, int endWindow, int bottomFreq, int topFreq) {
-        //Hold on to string versions of the frequency values to annotate the bitmap later
-        String bottomFreqText = Integer.toString(bottomFreq)+" Hz";
-        String topFreqText = Integer.toString(topFreq)+" Hz";
-
+    public SpectrogramLevels createLevels(int startWindow, int endWindow, int bottomFreq, int topFreq) {
+        Tracer.begin("createLevels");
+        int samplesPerWindow = dac.SAMPLES_PER_WINDOW;
+        int numFreqBins = dac.NUM_FREQ_BINS;
         //convert frequency range into array indices
-        bottomFreq = (int) ((2f*(float)bottomFreq/(float)dac.SAMPLE_RATE)*dac.NUM_FREQ_BINS);
-        topFreq = (int) ((2f*(float)topFreq/(float)dac.SAMPLE_RATE)*dac.NUM_FREQ_BINS);
-
-        //same for windows
-        startWindow %= DynamicAudioConfig.WINDOW_LIMIT;
-        endWindow %= DynamicAudioConfig.WINDOW_LIMIT;
-
-        Bitmap ret;
-        Canvas retCanvas;
-        int bitmapWidth;
-        int bitmapHeight;
-        int[] window = new int[dac.NUM_FREQ_BINS];
-        int[] subsection;
-
-        if (endWindow < startWindow) {
-            //selection crosses a loop boundary
-            bitmapWidth = (DynamicAudioConfig.WINDOW_LIMIT - startWindow) + endWindow + DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH;
-            bitmapHeight = topFreq - bottomFreq;
-
-            subsection = new int[bitmapHeight];
-
-            Log.d("BG", "Start window: "+startWindow+", end window: "+endWindow+", bottom freq as array index: "+bottomFreq+", top freq: "+topFreq);
-            Log.d("BG", "Bitmap width: "+bitmapWidth+" bitmap height: "+bitmapHeight);
-
-            ret = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-            retCanvas = new Canvas(ret);
-            retCanvas.drawColor(Color.BLACK);
-
-
-            for (int i = startWindow; i < DynamicAudioConfig.WINDOW_LIMIT; i++) {
-                window = new int[dac.NUM_FREQ_BINS];
-                bitmapCreator.processAudioWindow(audioWindows[i], window);
-                for (int j = 0; j < topFreq - bottomFreq; j++) {
-                    subsection[bitmapHeight-j-1] = window[dac.NUM_FREQ_BINS-(j+bottomFreq)-1]; //array was filled backwards
-                }
-                retCanvas.drawBitmap(subsection, 0, 1, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH + i - startWindow, 0, 1, bitmapHeight, false, null);
-            }
-
-            for (int i = 0; i < endWindow; i++) {
-                window = new int[dac.NUM_FREQ_BINS];
-                bitmapCreator.processAudioWindow(audioWindows[i], window);
-                for (int j = 0; j < topFreq - bottomFreq; j++) {
-                    subsection[bitmapHeight-j-1] = window[dac.NUM_FREQ_BINS-(j+bottomFreq)-1]; //array was filled backwards
+        int bottomBin = Math.max((int) ((2f*(float)bottomFreq/(float)dac.SAMPLE_RATE)*numFreqBins), 0);
+        int topBin = Math.min((int) ((2f*(float)topFreq/(float)dac.SAMPLE_RATE)*numFreqBins), numFreqBins);
+        int rows = Math.max(topBin - bottomBin, 0);
+        int columns;
+        byte[] levels;
+        float fullScale = SpectrogramLevels.fullScale(samplesPerWindow);
+
+        WindowFunction window = new HammingWindow(samplesPerWindow);
+        RealFFT fft = FFTFactory.create(samplesPerWindow);
+        double[] spectrum = new double[samplesPerWindow];
+        double[] previous = new double[numFreqBins];
+        LosslessBlockCodec codec = new LosslessBlockCodec(samplesPerWindow);
+        short[] samples = new short[samplesPerWindow];
+
+        historyLock.readLock().lock();
+        try {
+            WindowHistory h = history;
+            int oldest = bitmapCreator.getOldestBitmapIndex();
+            // start a window early if it is still held, so the first column is smoothed as it was on screen:
+            int first = (startWindow > oldest) ? startWindow - 1 : oldest;
+            startWindow = Math.max(startWindow, oldest);
+            columns = Math.max(endWindow - startWindow, 0);
+            levels = new byte[columns * rows];
+            for (int w = first; w < endWindow; w++) {
+                short[] audio = h.getAudio(w % h.capacity, codec, samples);
+                for (int i = 0; i < samplesPerWindow; i++) spectrum[i] = audio[i];
+                window.applyWindow(spectrum);
+                fft.powerSpectrum(spectrum, numFreqBins);
+                if (w >= startWindow) {
+                    int column = (w - startWindow) * rows;
+                    for (int r = 0; r < rows; r++) {
+                        int bin = bottomBin + r;
+                        levels[column + r] = (byte) SpectrogramLevels.toLevel(spectrum[bin] + previous[bin], fullScale);
+                    }
                 }
-                retCanvas.drawBitmap(subsection, 0, 1, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH + i - startWindow, 0, 1, bitmapHeight, false, null);
+                System.arraycopy(spectrum, 0, previous, 0, numFreqBins);
             }
-
+        } finally {
+            historyLock.readLock().unlock();
         }
-        else {
-            bitmapWidth = endWindow - startWindow + DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH;
-            bitmapHeight = topFreq - bottomFreq;
-
-            subsection = new int[bitmapHeight];
-
-            ret = Bitmap.createBitmap(bitmapWidth, bitmapHeight, Bitmap.Config.ARGB_8888);
-            retCanvas = new Canvas(ret);
-            retCanvas.drawColor(Color.BLACK);
-
-            for (int i = startWindow; i < endWindow; i++) {
-                window = new int[dac.NUM_FREQ_BINS];
-                bitmapCreator.processAudioWindow(audioWindows[i], window);
-                for (int j = 0; j < topFreq - bottomFreq; j++) {
-                    subsection[bitmapHeight-j-1] = window[dac.NUM_FREQ_BINS-(j+bottomFreq)-1]; //array was filled backwards
-                }
-                retCanvas.drawBitmap(subsection, 0, 1, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH + i - startWindow, 0, 1, bitmapHeight, false, null);
-            }
 
-        }
-
-        Bitmap scaled = scaleBitmap(ret,bitmapWidth*DynamicAudioConfig.BITMAP_STORE_WIDTH_ADJ, bitmapHeight*DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ);
-        Canvas scaledCanvas = new Canvas(scaled);
-
-        //annotate bitmap with frequency range:
-        Paint textStyle = new Paint();
-        textStyle.setColor(Color.WHITE);
-        textStyle.setTextSize(DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/3);
-        scaledCanvas.drawText(bottomFreqText, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, bitmapHeight*DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ-5*DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ, textStyle);
-        Log.d("Bitmap capture","bottomFreqText drawn at x:"+(DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH*DynamicAudioConfig.BITMAP_STORE_WIDTH_ADJ/10)+" y: "+(bitmapHeight*DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ-5*DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ));
-        scaledCanvas.drawText(topFreqText, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, textStyle);
-        return scaled;
-    }
-
-    /**
-     * Returns the provided bitmap, scaled to fit the new width and height parameters.
-     */
-    public Bitmap scaleBitmap(Bitmap bitmapToScale, float newWidth, float newHeight) {
-        if(bitmapToScale == null)
-            return null;
-        //get the original width and height
-        int width = bitmapToScale.getWidth();
-        int height = bitmapToScale.getHeight();
-        // create a matrix for the manipulation
-        Matrix matrix = new Matrix();
-
-        // resize the bit map
-        matrix.postScale(newWidth / width, newHeight / height);
-
-        // recreate the new Bitmap and set it back
-        return Bitmap.createBitmap(bitmapToScale, 0, 0, bitmapToScale.getWidth(), bitmapToScale.getHeight(), matrix, true);
+        float displayMax = getDisplayMax();
+        SpectrogramLevels ret = new SpectrogramLevels(levels, columns, rows, bottomBin, dac.SAMPLE_RATE, samplesPerWindow,
+                fullScale, displayMax, dac.CONTRAST, dac.COLOUR_MAP);
+        Log.d("BG", "Captured "+columns+" x "+rows+" levels in "+ret.getCompressedBytes()+" bytes");
+        Tracer.end();
+        return ret;
     }
 
     /**
      * Returns an array of PCM audio data based on the window interval supplied to the function.
+     * Windows no longer held are left out, so the audio starts at the later of startWindow and the
+     * oldest window held.
      */
     public short[] getAudioChunk(int startWindow, int endWindow, int bottomFreq, int topFreq) {
-        //convert windows into array indices
-        startWindow %= DynamicAudioConfig.WINDOW_LIMIT;
-        endWindow %= DynamicAudioConfig.WINDOW_LIMIT;
-
-
+        Tracer.begin("getAudioChunk");
         short[] toReturn;
-
-        if (endWindow < startWindow) {
-            //selection crosses a loop boundary
-            toReturn = new short[((DynamicAudioConfig.WINDOW_LIMIT - startWindow) + endWindow)*dac.SAMPLES_PER_WINDOW];
-            for (int i = startWindow; i < DynamicAudioConfig.WINDOW_LIMIT; i++) {
-                for (int j = 0; j < dac.SAMPLES_PER_WINDOW; j++) {
-                    toReturn[(i-startWindow)*dac.SAMPLES_PER_WINDOW+j] = audioWindows[i][j];
-                }
-            }
-            for (int i = 0; i < endWindow; i++) {
-                for (int j = 0; j < dac.SAMPLES_PER_WINDOW; j++) {
-                    toReturn[(DynamicAudioConfig.WINDOW_LIMIT-startWindow+i)*dac.SAMPLES_PER_WINDOW+j] = audioWindows[i][j];
-                }
-            }
-        }
-        else {
-            toReturn = new short[(endWindow-startWindow)*dac.SAMPLES_PER_WINDOW];
-            for (int i = startWindow; i < endWindow; i++) {
-                for (int j = 0; j < dac.SAMPLES_PER_WINDOW; j++) {
-                    toReturn[(i-startWindow)*dac.SAMPLES_PER_WINDOW+j] = audioWindows[i][j];
-                }
+        LosslessBlockCodec codec = new LosslessBlockCodec(dac.SAMPLES_PER_WINDOW);
+        short[] samples = new short[dac.SAMPLES_PER_WINDOW];
+        historyLock.readLock().lock();
+        try {
+            WindowHistory h = history;
+            startWindow = Math.max(startWindow, bitmapCreator.getOldestBitmapIndex());
+            toReturn = new short[Math.max(endWindow - startWindow, 0)*dac.SAMPLES_PER_WINDOW];
+            for (int w = startWindow; w < endWindow; w++) {
+                System.arraycopy(h.getAudio(w % h.capacity, codec, samples), 0, toReturn, (w-startWindow)*dac.SAMPLES_PER_WINDOW, dac.SAMPLES_PER_WINDOW);
             }
+        } finally {
+            historyLock.readLock().unlock();
         }
 
         double minFreq = bottomFreq;
@@ -224,11 +255,53 @@ public class BitmapProvider {
         BandpassButterworth butter = new BandpassButterworth(dac.SAMPLE_RATE, 8, minFreq, maxFreq, 1.0);
         butter.applyFilter(toReturn);
 
-        for (int i = 0; i < toReturn.length; i++) toReturn[i] = Short.reverseBytes(toReturn[i]); //must be little-endian for WAV
+        Tracer.end();
         return toReturn;
     }
 
 
+    /**
+     * Returns true if the audio source is finite and all of its samples have been collected.
+     */
+    public boolean isAudioSourceExhausted() {
+        return audioCollector != null && audioCollector.sourceExhausted;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the first sample of the given window was captured.
+     */
+    public long getWindowTimestampNanos(int window) {
+        WindowHistory h = history;
+        return audioCollector.frameToNanos(h.windowFrames[window % h.capacity]);
+    }
+
+    /**
+     * Returns the time at which the last sample of the window at the given index of the given history
+     * was captured.
+     */
+    long windowCapturedNanos(WindowHistory h, int index) {
+        return audioCollector.frameToNanos(h.windowFrames[index] + dac.SAMPLES_PER_WINDOW - 1);
+    }
+
+    /**
+     * Returns true if there is a gap in the audio anywhere between startWindow and endWindow, e.g.
+     * because the microphone's buffer overflowed, so a capture of them would not be continuous.
+     * Only the windows still held are checked, as for {@link #createLevels} and {@link #getAudioChunk}.
+     */
+    public boolean spansGap(int startWindow, int endWindow) {
+        historyLock.readLock().lock();
+        try {
+            WindowHistory h = history;
+            startWindow = Math.max(startWindow, bitmapCreator.getOldestBitmapIndex());
+            for (int i = startWindow + 1; i < endWindow; i++) {
+                if (h.windowAfterGap[i % h.capacity]) return true;
+            }
+            return false;
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
     /**
      * Returns the number of bitmaps ready to be drawn.
      */
@@ -250,11 +323,188 @@ public class BitmapProvider {
         return bitmapCreator.getRightmostBitmapIndex(); //just return the index of the last bitmap to have been processed
     }
 
+    /**
+     * Returns the number of audio windows waiting to be turned into bitmaps.
+     */
+    public int getLagWindows() {
+        return bitmapCreator.getLagWindows();
+    }
+
+    /**
+     * Returns how far bitmap creation is lagging behind the microphone, in milliseconds of audio.
+     */
+    public float getLagMillis() {
+        return bitmapCreator.getLagMillis();
+    }
+
+    public int getMaxLagWindows() {
+        return bitmapCreator.getMaxLagWindows();
+    }
+
     /**
      * Returns the bitmap corresponding to the provided index into the array of bitmaps. No bounds checking.
      */
     public int[] getBitmapWindow(int index) {
-        return bitmapWindows[index];
+        return history.bitmapWindows[index];
+    }
+
+    /**
+     * Returns the log of 1 + the highest combined power seen so far, which is drawn at full colour.
+     */
+    public float getDisplayMax() {
+        return (float) Math.log1p(bitmapCreator.getMaxAmplitude());
+    }
+
+    /**
+     * Returns the colour of each level of the history's pyramid, as the bitmap windows are currently
+     * coloured. If they are coloured by level above the background, the pyramid holds their colour
+     * indices rather than levels of power, so these are just the colours.
+     */
+    public int[] getLevelColours() {
+        if (dac.DISPLAY_SNR) return colours;
+        return SpectrogramLevels.levelColours(colours, SpectrogramLevels.fullScale(dac.SAMPLES_PER_WINDOW), getDisplayMax(),
+                dac.CONTRAST);
+    }
+
+    /**
+     * Returns the number of levels of the history's pyramid of zoomed-out columns, level k having a
+     * column for every 2^k windows.
+     */
+    public int getPyramidLevels() {
+        return history.pyramid.getLevels();
+    }
+
+    /**
+     * Copies the levels of column number column of level k of the history's pyramid into dest,
+     * lowest bin first: the highest of each bin over the column's windows if max is true, otherwise
+     * their mean. Column j covers windows j * 2^k to (j + 1) * 2^k - 1.
+     * @return false, leaving dest untouched, if the column is not complete or no longer held
+     */
+    public boolean getPyramidColumn(int k, int column, boolean max, byte[] dest) {
+        historyLock.readLock().lock();
+        try {
+            return history.pyramid.getColumn(k, column, max, dest);
+        } finally {
+            historyLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the MFCCs of the windows from startWindow to endWindow, {@link MfccExtractor#COEFFICIENTS}
+     * for each window in turn, as found when each window was analysed for display. Windows no longer
+     * held are left out, so the first is the later of startWindow and the oldest window held.
+     */
+    public float[] getMfccs(int startWindow, int endWindow) {
+        float[] ret;
+        historyLock.readLock().lock();
+        try {
+            WindowHistory h = history;
+            startWindow = Math.max(startWindow, bitmapCreator.getOldestBitmapIndex());
+            int columns = Math.max(endWindow - startWindow, 0);
+            ret = new float[columns * MfccExtractor.COEFFICIENTS];
+            for (int w = startWindow; w < endWindow; w++) {
+                System.arraycopy(h.mfccs, (w % h.capacity) * MfccExtractor.COEFFICIENTS, ret,
+                        (w - startWindow) * MfccExtractor.COEFFICIENTS, MfccExtractor.COEFFICIENTS);
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the mel band levels of the windows from startWindow to endWindow,
+     * {@link MfccExtractor#MEL_BANDS} for each window in turn, lowest band first, on the same scale as
+     * {@link SpectrogramLevels}. Windows no longer held are left out, as for {@link #getMfccs}.
+     */
+    public byte[] getMelLevels(int startWindow, int endWindow) {
+        byte[] ret;
+        historyLock.readLock().lock();
+        try {
+            WindowHistory h = history;
+            startWindow = Math.max(startWindow, bitmapCreator.getOldestBitmapIndex());
+            int columns = Math.max(endWindow - startWindow, 0);
+            ret = new byte[columns * MfccExtractor.MEL_BANDS];
+            for (int w = startWindow; w < endWindow; w++) {
+                System.arraycopy(h.melLevels, (w % h.capacity) * MfccExtractor.MEL_BANDS, ret,
+                        (w - startWindow) * MfccExtractor.MEL_BANDS, MfccExtractor.MEL_BANDS);
+            }
+        } finally {
+            historyLock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of windows the history currently holds.
+     */
+    public int getWindowLimit() {
+        return history.capacity;
+    }
+
+    /**
+     * Resizes the history to hold the given number of windows, keeping the newest. The history is
+     * never made smaller than {@link DynamicAudioConfig#MIN_WINDOW_LIMIT} (or than it is, if the heap
+     * budget already held it below that) or than the number of windows that have been recorded but
+     * not yet drawn.
+     * @return the number of windows the history holds afterwards
+     */
+    public int resizeHistory(int windows) {
+        historyLock.writeLock().lock();
+        try {
+            int collected = (audioCollector == null) ? 0 : audioCollector.getWindowsCollected();
+            int taken = (bitmapCreator == null) ? 0 : bitmapCreator.getWindowsTaken();
+            windows = Math.max(windows, Math.max(Math.min(DynamicAudioConfig.MIN_WINDOW_LIMIT, history.capacity), collected - taken));
+            if (windows != history.capacity) {
+                Log.d("BG", "Resizing history from "+history.capacity+" to "+windows+" windows");
+                history = history.resize(windows, collected - 1);
+            }
+            return windows;
+        } finally {
+            historyLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes held by the audio windows in the history.
+     */
+    public long getAudioHistoryBytes() {
+        return history.getAudioBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the bitmap windows in the history.
+     */
+    public long getBitmapHistoryBytes() {
+        return history.getBitmapBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the timeline positions and gap markers of the history.
+     */
+    public long getTimelineBytes() {
+        return history.getTimelineBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the pyramid of zoomed-out columns.
+     */
+    public long getPyramidBytes() {
+        return history.getPyramidBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the MFCCs and mel band levels of the history.
+     */
+    public long getFeatureBytes() {
+        return history.getFeatureBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the whole history.
+     */
+    public long getHistoryBytes() {
+        return history.getTotalBytes();
     }
 
 
@@ -262,12 +512,12 @@ public class BitmapProvider {
         return bitmapCreator.getNextBitmap();
     }
 
-    public short[][] getAudioWindowArray() {
-        return audioWindows;
+    WindowHistory getHistory() {
+        return history;
     }
 
-    public int[][] getBitmapWindowArray() {
-        return bitmapWindows;
+    ReentrantReadWriteLock getHistoryLock() {
+        return historyLock;
     }
 
     public Semaphore getAudioSemaphore() {
@@ -281,8 +531,23 @@ public class BitmapProvider {
     public int[] getColours() {
         return colours;
     }
+
+    /**
+     * Returns the scale of the bitmap windows' frequency axis. The levels of captures and of the
+     * live stream are always of the frequency bins themselves.
+     */
+    public FrequencyAxis getFrequencyAxis() {
+        return axis;
+    }
     
     public DynamicAudioConfig getDynamicAudioConfig() {
         return dac;
     }
+
+    /**
+     * Returns the latency histograms and counters for each stage of the pipeline.
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
 }
\ No newline at end of file
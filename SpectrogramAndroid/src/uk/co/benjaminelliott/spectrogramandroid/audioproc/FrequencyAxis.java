@@ -0,0 +1,197 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+/**
+ * The frequency scale the spectrogram is displayed on: linear, as the frequency bins come out of
+ * the FFT, logarithmic, or the mel scale, which follows the ear's sense of pitch. Each of the rows
+ * of a bitmap window covers an equal distance along the scale, so on the log and mel scales the low
+ * frequencies, where most calls are, take up more of the screen.
+ * <p>
+ * Each row's power is a weighted sum of the power of the bins it covers, or where a row is narrower
+ * than a bin, an interpolation between the two nearest. The weights are worked out once and held
+ * sparsely, a row at a time, so remapping a window costs O(rows + bins).
+ *
+ */
+public class FrequencyAxis {
+
+    public static final int LINEAR = 0;
+    public static final int LOG = 1;
+    public static final int MEL = 2;
+
+    // Lowest frequency shown on the log scale, which cannot start from 0 Hz (Hz):
+    public static final float LOG_MIN_FREQUENCY = 100;
+
+    private final int scale;
+    private final int rows;
+    private final float binWidth; // Hz covered by each bin
+    private final float minFrequency; // frequency at the bottom of the lowest row
+    private final float maxFrequency; // frequency at the top of the highest row
+    // weights of each row in turn, row r's in elements rowStart[r] to rowStart[r + 1] - 1, or null if linear:
+    private final int[] rowStart;
+    private final int[] weightBins;
+    private final float[] weights;
+
+    /**
+     * @param scale - {@link #LINEAR}, {@link #LOG} or {@link #MEL}
+     * @param rows - the number of rows to map the bins to
+     */
+    public FrequencyAxis(int scale, int sampleRate, int samplesPerWindow, int numFreqBins, int rows) {
+        if (scale != LINEAR && scale != LOG && scale != MEL) throw new IllegalArgumentException("Unknown frequency scale "+scale);
+        this.scale = scale;
+        this.rows = rows;
+        binWidth = (float) sampleRate / samplesPerWindow;
+        maxFrequency = numFreqBins * binWidth;
+        minFrequency = (scale == LOG) ? Math.min(LOG_MIN_FREQUENCY, maxFrequency / 2) : 0;
+        if (scale == LINEAR && rows == numFreqBins) {
+            rowStart = null;
+            weightBins = null;
+            weights = null;
+            return;
+        }
+
+        // a bin covers bin widths b to b + 1, and row r the bin widths between the frequencies at its edges:
+        rowStart = new int[rows + 1];
+        int[] bins = new int[rows + numFreqBins + rows];
+        float[] w = new float[bins.length];
+        int n = 0;
+        for (int r = 0; r < rows; r++) {
+            rowStart[r] = n;
+            double from = getFrequency((float) r / rows) / binWidth;
+            double to = getFrequency((float) (r + 1) / rows) / binWidth;
+            if (to - from < 1) {
+                // narrower than a bin, so interpolate between the centres either side of the row's:
+                double centre = (from + to) / 2 - 0.5;
+                int below = (int) Math.floor(centre);
+                float fraction = (float) (centre - below);
+                if (below < 0) {
+                    below = 0;
+                    fraction = 0;
+                } else if (below >= numFreqBins - 1) {
+                    below = numFreqBins - 1;
+                    fraction = 0;
+                }
+                bins[n] = below;
+                w[n++] = 1 - fraction;
+                if (fraction > 0) {
+                    bins[n] = below + 1;
+                    w[n++] = fraction;
+                }
+            } else {
+                // the mean of the bins it covers, each weighted by how much of it is covered:
+                int first = (int) Math.floor(from);
+                int last = Math.min((int) Math.ceil(to) - 1, numFreqBins - 1);
+                for (int b = first; b <= last; b++) {
+                    float covered = (float) ((Math.min(to, b + 1) - Math.max(from, b)) / (to - from));
+                    if (covered <= 0) continue;
+                    bins[n] = b;
+                    w[n++] = covered;
+                }
+            }
+        }
+        rowStart[rows] = n;
+        weightBins = new int[n];
+        weights = new float[n];
+        System.arraycopy(bins, 0, weightBins, 0, n);
+        System.arraycopy(w, 0, weights, 0, n);
+    }
+
+    /**
+     * Returns true if the rows are the bins themselves, so there is nothing to remap.
+     */
+    public boolean isIdentity() {
+        return rowStart == null;
+    }
+
+    /**
+     * Fills the first rows elements of dest, lowest row first, from the power of each bin.
+     */
+    public void remap(double[] power, double[] dest) {
+        if (rowStart == null) {
+            System.arraycopy(power, 0, dest, 0, rows);
+            return;
+        }
+        for (int r = 0; r < rows; r++) {
+            double sum = 0;
+            for (int i = rowStart[r]; i < rowStart[r + 1]; i++) sum += weights[i] * power[weightBins[i]];
+            dest[r] = sum;
+        }
+    }
+
+    /**
+     * Single-precision version of {@link #remap(double[], double[])}.
+     */
+    public void remap(float[] power, float[] dest) {
+        if (rowStart == null) {
+            System.arraycopy(power, 0, dest, 0, rows);
+            return;
+        }
+        for (int r = 0; r < rows; r++) {
+            float sum = 0;
+            for (int i = rowStart[r]; i < rowStart[r + 1]; i++) sum += weights[i] * power[weightBins[i]];
+            dest[r] = sum;
+        }
+    }
+
+    /**
+     * Returns the frequency in Hz at the given fraction of the way up the axis, from 0 at the bottom
+     * of the lowest row to 1 at the top of the highest.
+     */
+    public float getFrequency(float fraction) {
+        switch (scale) {
+        case LOG:
+            return (float) (minFrequency * Math.pow(maxFrequency / minFrequency, fraction));
+        case MEL:
+            return (float) melToHz(fraction * hzToMel(maxFrequency));
+        default:
+            return fraction * maxFrequency;
+        }
+    }
+
+    /**
+     * Returns how far up the axis the given frequency in Hz is, the inverse of {@link #getFrequency(float)},
+     * clamped to between 0 and 1.
+     */
+    public float getFraction(float frequency) {
+        float fraction;
+        if (frequency <= minFrequency) return 0;
+        switch (scale) {
+        case LOG:
+            fraction = (float) (Math.log(frequency / minFrequency) / Math.log(maxFrequency / minFrequency));
+            break;
+        case MEL:
+            fraction = (float) (hzToMel(frequency) / hzToMel(maxFrequency));
+            break;
+        default:
+            fraction = frequency / maxFrequency;
+        }
+        return Math.min(fraction, 1);
+    }
+
+    public float getMinFrequency() {
+        return minFrequency;
+    }
+
+    public float getMaxFrequency() {
+        return maxFrequency;
+    }
+
+    /**
+     * Returns the number of weights held, i.e. the number of multiply-adds it takes to remap a window.
+     */
+    public int getWeightCount() {
+        return (weights == null) ? 0 : weights.length;
+    }
+
+    /**
+     * Returns the pitch in mels of the given frequency in Hz.
+     */
+    public static double hzToMel(double hz) {
+        return 2595 * Math.log10(1 + hz / 700);
+    }
+
+    /**
+     * Returns the frequency in Hz of the given pitch in mels.
+     */
+    public static double melToHz(double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+
+/**
+ * Coarser copies of the spectrogram held alongside a {@link WindowHistory}, so that long stretches
+ * of it can be drawn zoomed out at the same cost per pixel as the newest few seconds. Level k, from 1,
+ * has a column for every 2^k windows, holding for each frequency bin both the highest and the mean of
+ * the windows' levels (see {@link SpectrogramLevels}): the highest keeps short calls visible however
+ * far out, the mean shows the background they stand out from.
+ * <p>
+ * Each level is a ring covering at least as many windows as the history, column j held at
+ * j % columns. Windows are added as they are processed, and whenever one completes a column it is
+ * folded into the level above, so each window costs O(bins) however many levels there are. Only the
+ * thread processing windows adds to the pyramid; others may read the columns completed so far.
+ *
+ */
+public class SpectrogramPyramid {
+
+    public static final int MIN_LEVEL_COLUMNS = 64; // fewest columns a level may have, below which there is no point zooming out further
+
+    final int levels; // number of levels, the coarsest having a column for every 2^levels windows
+    private final int historyCapacity; // windows held by the history the pyramid is for
+    private final int rows;
+    private final int[] columns; // columns held by each level, level k at columns[k - 1]
+    private final byte[][] max; // levels of each column of each level in turn, lowest bin first, max[k - 1]
+    private final byte[][] mean;
+    private final int[] firstColumn; // oldest column of each level ever held, more than 0 if the pyramid was resized
+    private final byte[] pending; // levels of the even window waiting for the next to make a column of level 1
+    private volatile int windowsAdded = 0;
+
+    SpectrogramPyramid(int historyCapacity, int rows) {
+        this.historyCapacity = historyCapacity;
+        this.rows = rows;
+        int n = 0;
+        while ((historyCapacity >> (n + 1)) >= MIN_LEVEL_COLUMNS) n++;
+        levels = n;
+        columns = new int[levels];
+        max = new byte[levels][];
+        mean = new byte[levels][];
+        firstColumn = new int[levels];
+        for (int k = 1; k <= levels; k++) {
+            // enough for the history's windows, plus one spare so that the column being written is never one
+            // a reader may be copying:
+            columns[k - 1] = (historyCapacity >> k) + 2;
+            max[k - 1] = new byte[columns[k - 1] * rows];
+            mean[k - 1] = new byte[columns[k - 1] * rows];
+        }
+        pending = new byte[rows];
+    }
+
+    /**
+     * Adds the levels of the next window, lowest bin first.
+     */
+    void add(byte[] windowLevels) {
+        int window = windowsAdded;
+        if ((window & 1) == 0 || levels == 0) {
+            System.arraycopy(windowLevels, 0, pending, 0, rows);
+        } else {
+            int column = window >> 1;
+            int to = (column % columns[0]) * rows;
+            byte[] levelMax = max[0];
+            byte[] levelMean = mean[0];
+            for (int r = 0; r < rows; r++) {
+                int a = pending[r] & 0xFF;
+                int b = windowLevels[r] & 0xFF;
+                levelMax[to + r] = (byte) Math.max(a, b);
+                levelMean[to + r] = (byte) ((a + b + 1) >> 1);
+            }
+            // each odd column completes a column of the level above:
+            for (int k = 2; k <= levels && (column & 1) == 1; k++) {
+                fold(k, column);
+                column >>= 1;
+            }
+        }
+        windowsAdded = window + 1;
+    }
+
+    /**
+     * Makes the column of level k above the pair of columns of level k-1 ending with the given one.
+     */
+    private void fold(int k, int childColumn) {
+        int from = ((childColumn - 1) % columns[k - 2]) * rows;
+        int from2 = (childColumn % columns[k - 2]) * rows;
+        int to = ((childColumn >> 1) % columns[k - 1]) * rows;
+        byte[] childMax = max[k - 2];
+        byte[] childMean = mean[k - 2];
+        byte[] levelMax = max[k - 1];
+        byte[] levelMean = mean[k - 1];
+        for (int r = 0; r < rows; r++) {
+            levelMax[to + r] = (byte) Math.max(childMax[from + r] & 0xFF, childMax[from2 + r] & 0xFF);
+            levelMean[to + r] = (byte) (((childMean[from + r] & 0xFF) + (childMean[from2 + r] & 0xFF) + 1) >> 1);
+        }
+    }
+
+    /**
+     * Copies the levels of the given column of level k into dest, lowest bin first: the highest level
+     * of each bin over the column's 2^k windows if max is true, otherwise their mean.
+     * @return false, leaving dest untouched, if the column is not complete or no longer held
+     */
+    public boolean getColumn(int k, int column, boolean max, byte[] dest) {
+        if (k < 1 || k > levels) throw new IllegalArgumentException("No level "+k+" in a pyramid of "+levels);
+        int completed = windowsAdded >> k; // columns of level k completed so far
+        if (column < firstColumn[k - 1] || column >= completed || column <= completed - columns[k - 1]) return false;
+        byte[] level = max ? this.max[k - 1] : mean[k - 1];
+        System.arraycopy(level, (column % columns[k - 1]) * rows, dest, 0, rows);
+        return true;
+    }
+
+    /**
+     * Returns a pyramid for a history of the given capacity, holding as many of the newest columns
+     * of each level as will fit. This pyramid must not be added to afterwards.
+     */
+    SpectrogramPyramid resize(int newHistoryCapacity) {
+        SpectrogramPyramid resized = new SpectrogramPyramid(newHistoryCapacity, rows);
+        int window = windowsAdded;
+        for (int k = 1; k <= resized.levels; k++) {
+            int completed = window >> k;
+            int kept = (k <= levels) ? Math.min(columns[k - 1], resized.columns[k - 1]) : 0;
+            int first = Math.max(completed - kept, (k <= levels) ? firstColumn[k - 1] : completed);
+            resized.firstColumn[k - 1] = first;
+            for (int j = first; j < completed; j++) {
+                int from = (j % columns[k - 1]) * rows;
+                int to = (j % resized.columns[k - 1]) * rows;
+                System.arraycopy(max[k - 1], from, resized.max[k - 1], to, rows);
+                System.arraycopy(mean[k - 1], from, resized.mean[k - 1], to, rows);
+            }
+        }
+        System.arraycopy(pending, 0, resized.pending, 0, rows);
+        resized.windowsAdded = window;
+        return resized;
+    }
+
+    /**
+     * Returns the number of windows added so far.
+     */
+    public int getWindowsAdded() {
+        return windowsAdded;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the number of windows the history this pyramid is for holds.
+     */
+    public int getHistoryCapacity() {
+        return historyCapacity;
+    }
+
+    /**
+     * Returns the number of bytes held by the columns of every level.
+     */
+    public long getBytes() {
+        long bytes = rows;
+        for (int k = 1; k <= levels; k++) bytes += 2L * columns[k - 1] * rows;
+        return bytes;
+    }
+
+    /**
+     * Returns roughly the number of bytes a pyramid takes up for each window its history holds: two
+     * levels per bin for every 2, 4, 8... windows.
+     */
+    static long bytesPerWindow(int rows) {
+        return 2L * rows;
+    }
+}
@@ -0,0 +1,214 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.util.Arrays;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.LosslessBlockCodec;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.MfccExtractor;
+
+/**
+ * The most recent audio windows, the bitmap windows created from them, their positions on the
+ * timeline, a {@link SpectrogramPyramid} of coarser columns for drawing them zoomed out and the
+ * features {@link MfccExtractor} finds in each, held in rings of a fixed number of windows. Window n
+ * of the recording is held at index n % capacity, so a window's index follows from its number
+ * whatever the capacity.
+ * <p>
+ * Audio can optionally be held compressed with {@link LosslessBlockCodec}, one independently
+ * decodable block per window, in which case it is read and written through {@link #getAudio} and
+ * {@link #audioWritten} rather than directly.
+ *
+ */
+public class WindowHistory {
+
+    private static final int ARRAY_HEADER_BYTES = 16; // object header and length of an array, rounded up
+    private static final int REFERENCE_BYTES = 4; // size of a reference held in an array of arrays
+    // encoded size of typical microphone audio relative to raw PCM, used to size a compressed history:
+    public static final float EXPECTED_COMPRESSION = 0.5f;
+    private static final int FEATURE_BYTES = 4 * MfccExtractor.COEFFICIENTS + MfccExtractor.MEL_BANDS; // per window
+
+    final int capacity; // number of windows held
+    final short[][] audioWindows; // array of audio windows, or null if the audio is compressed
+    final byte[][] encodedAudio; // array of compressed audio windows, or null if the audio is raw
+    final int[][] bitmapWindows; // array of bitmap windows, created by processing audio windows
+    final long[] windowFrames; // timeline position of the first frame of each audio window
+    final boolean[] windowAfterGap; // whether each audio window follows a gap in the audio
+    SpectrogramPyramid pyramid; // levels of the bitmap windows pooled over 2, 4, 8... windows
+    final float[] mfccs; // MFCCs of each window, MfccExtractor.COEFFICIENTS to a window
+    final byte[] melLevels; // mel band levels of each window, MfccExtractor.MEL_BANDS to a window
+    final int oldestWindow; // number of the oldest window held, which is more than 0 if windows were dropped by a resize
+    private final int samplesPerWindow;
+    private final int numFreqBins;
+    private volatile long encodedBytes = 0; // bytes held by the rows of encodedAudio, including their headers
+
+    WindowHistory(int capacity, int samplesPerWindow, int numFreqBins, boolean compressAudio) {
+        this(capacity, samplesPerWindow, numFreqBins, compressAudio, 0, true);
+    }
+
+    private WindowHistory(int capacity, int samplesPerWindow, int numFreqBins, boolean compressAudio, int oldestWindow, boolean allocateWindows) {
+        this.capacity = capacity;
+        this.oldestWindow = oldestWindow;
+        this.samplesPerWindow = samplesPerWindow;
+        this.numFreqBins = numFreqBins;
+        audioWindows = compressAudio ? null : new short[capacity][];
+        encodedAudio = compressAudio ? new byte[capacity][] : null;
+        bitmapWindows = new int[capacity][];
+        windowFrames = new long[capacity];
+        windowAfterGap = new boolean[capacity];
+        mfccs = new float[capacity * MfccExtractor.COEFFICIENTS];
+        melLevels = new byte[capacity * MfccExtractor.MEL_BANDS];
+        if (allocateWindows) {
+            pyramid = new SpectrogramPyramid(capacity, numFreqBins);
+            for (int i = 0; i < capacity; i++) {
+                if (!compressAudio) audioWindows[i] = new short[samplesPerWindow];
+                bitmapWindows[i] = new int[numFreqBins];
+            }
+        }
+    }
+
+    public boolean isAudioCompressed() {
+        return encodedAudio != null;
+    }
+
+    /**
+     * Returns the samples of the audio window at the given index: the window itself if the audio is
+     * raw, otherwise scratch with the window decoded into it using the given codec.
+     */
+    short[] getAudio(int index, LosslessBlockCodec codec, short[] scratch) {
+        if (encodedAudio == null) return audioWindows[index];
+        byte[] block = encodedAudio[index];
+        if (block == null) Arrays.fill(scratch, (short) 0); // never written
+        else codec.decode(block, 0, scratch);
+        return scratch;
+    }
+
+    /**
+     * Returns the array that the audio window at the given index should be written into: the window
+     * itself if the audio is raw, otherwise scratch, to be compressed by {@link #audioWritten}.
+     */
+    short[] getAudioForWriting(int index, short[] scratch) {
+        if (encodedAudio == null) return audioWindows[index];
+        return scratch;
+    }
+
+    /**
+     * Finish writing the audio window at the given index from the array returned by
+     * {@link #getAudioForWriting}, compressing it with the given codec if necessary. The window's
+     * previous block is reused if the new one fits without wasting more than a quarter of it.
+     */
+    void audioWritten(int index, short[] samples, LosslessBlockCodec codec) {
+        if (encodedAudio == null) return;
+        int length = codec.encode(samples);
+        byte[] block = encodedAudio[index];
+        if (block == null || block.length < length || block.length - length > block.length / 4) {
+            if (block != null) encodedBytes -= ARRAY_HEADER_BYTES + block.length;
+            block = new byte[length];
+            encodedAudio[index] = block;
+            encodedBytes += ARRAY_HEADER_BYTES + length;
+        }
+        System.arraycopy(codec.getEncoded(), 0, block, 0, length);
+    }
+
+    /**
+     * Returns a history that holds newCapacity windows, with as many of the newest windows up to and
+     * including newestWindow as will fit moved into it. Windows are moved rather than copied, so this
+     * history must not be used afterwards.
+     * @param newestWindow - the number of the most recently collected window, or -1 if there is none
+     */
+    WindowHistory resize(int newCapacity, int newestWindow) {
+        int oldestKept = Math.max(oldestWindow, newestWindow - Math.min(capacity, newCapacity) + 1);
+        WindowHistory resized = new WindowHistory(newCapacity, samplesPerWindow, numFreqBins, isAudioCompressed(), oldestKept, false);
+        for (int n = oldestKept; n <= newestWindow; n++) {
+            int from = n % capacity;
+            int to = n % newCapacity;
+            if (encodedAudio == null) {
+                resized.audioWindows[to] = audioWindows[from];
+            } else if (encodedAudio[from] != null) {
+                resized.encodedAudio[to] = encodedAudio[from];
+                resized.encodedBytes += ARRAY_HEADER_BYTES + encodedAudio[from].length;
+            }
+            resized.bitmapWindows[to] = bitmapWindows[from];
+            resized.windowFrames[to] = windowFrames[from];
+            resized.windowAfterGap[to] = windowAfterGap[from];
+            System.arraycopy(mfccs, from * MfccExtractor.COEFFICIENTS, resized.mfccs, to * MfccExtractor.COEFFICIENTS, MfccExtractor.COEFFICIENTS);
+            System.arraycopy(melLevels, from * MfccExtractor.MEL_BANDS, resized.melLevels, to * MfccExtractor.MEL_BANDS, MfccExtractor.MEL_BANDS);
+        }
+        for (int i = 0; i < newCapacity; i++) {
+            if (encodedAudio == null && resized.audioWindows[i] == null) resized.audioWindows[i] = new short[samplesPerWindow];
+            if (resized.bitmapWindows[i] == null) resized.bitmapWindows[i] = new int[numFreqBins];
+        }
+        resized.pyramid = pyramid.resize(newCapacity);
+        return resized;
+    }
+
+    /**
+     * Records the features of the window at the given index.
+     */
+    void setFeatures(int index, float[] windowMfccs, byte[] bandLevels) {
+        System.arraycopy(windowMfccs, 0, mfccs, index * MfccExtractor.COEFFICIENTS, MfccExtractor.COEFFICIENTS);
+        System.arraycopy(bandLevels, 0, melLevels, index * MfccExtractor.MEL_BANDS, MfccExtractor.MEL_BANDS);
+    }
+
+    /**
+     * Returns the number of bytes held by the audio windows, compressed or not.
+     */
+    public long getAudioBytes() {
+        if (encodedAudio != null) return ARRAY_HEADER_BYTES + capacity * REFERENCE_BYTES + encodedBytes;
+        return arrayOfArraysBytes(capacity, 2L * samplesPerWindow);
+    }
+
+    /**
+     * Returns the number of bytes held by the bitmap windows.
+     */
+    public long getBitmapBytes() {
+        return arrayOfArraysBytes(capacity, 4L * numFreqBins);
+    }
+
+    /**
+     * Returns the number of bytes held by the timeline positions and gap markers.
+     */
+    public long getTimelineBytes() {
+        return 2 * ARRAY_HEADER_BYTES + 8L * capacity + capacity;
+    }
+
+    /**
+     * Returns the number of bytes held by the pyramid of zoomed-out columns.
+     */
+    public long getPyramidBytes() {
+        return pyramid.getBytes();
+    }
+
+    /**
+     * Returns the number of bytes held by the MFCCs and mel band levels.
+     */
+    public long getFeatureBytes() {
+        return 2 * ARRAY_HEADER_BYTES + (long) capacity * FEATURE_BYTES;
+    }
+
+    public long getTotalBytes() {
+        return getAudioBytes() + getBitmapBytes() + getTimelineBytes() + getPyramidBytes() + getFeatureBytes();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of the oldest window still held, given how many windows have been written.
+     */
+    public int getOldestWindow(int windowsWritten) {
+        return Math.max(oldestWindow, windowsWritten - capacity);
+    }
+
+    /**
+     * Returns the number of bytes a history will take up for each window it holds, assuming
+     * compressed audio compresses as well as {@link #EXPECTED_COMPRESSION}.
+     */
+    public static long bytesPerWindow(int samplesPerWindow, int numFreqBins, boolean compressAudio) {
+        long audioBytes = compressAudio ? (long) (2L * samplesPerWindow * EXPECTED_COMPRESSION) : 2L * samplesPerWindow;
+        return 2 * (ARRAY_HEADER_BYTES + REFERENCE_BYTES) + audioBytes + 4L * numFreqBins + 8 + 1
+                + SpectrogramPyramid.bytesPerWindow(numFreqBins) + FEATURE_BYTES;
+    }
+
+    private static long arrayOfArraysBytes(int length, long elementBytes) {
+        return ARRAY_HEADER_BYTES + length * (REFERENCE_BYTES + ARRAY_HEADER_BYTES + elementBytes);
+    }
+}
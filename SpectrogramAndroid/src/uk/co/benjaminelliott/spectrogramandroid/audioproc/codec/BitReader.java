@@ -0,0 +1,97 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.codec;
+
+/**
+ * Reads values written by {@link BitWriter} from a byte array, most significant bit first.
+ *
+ */
+public class BitReader {
+
+	private byte[] buffer; // source of the bits
+	private int pos; // next byte of the buffer to be loaded into acc
+	private int end; // offset just past the last byte that may be read
+	private long acc; // bits loaded from the buffer, the unread ones in the low bitCount bits
+	private int bitCount; // number of unread bits in acc
+
+	/**
+	 * Start reading from the given range of the given buffer.
+	 */
+	public void reset(byte[] buffer, int offset, int length) {
+		this.buffer = buffer;
+		pos = offset;
+		end = offset + length;
+		acc = 0;
+		bitCount = 0;
+	}
+
+	/**
+	 * Returns the next n bits as an unsigned value, where n is at most 32.
+	 * @throws IllegalStateException if there are fewer than n bits left
+	 */
+	public int readBits(int n) {
+		if (bitCount < n) {
+			refill();
+			if (bitCount < n) throw new IllegalStateException("Read past the end of the data");
+		}
+		bitCount -= n;
+		return (int) ((acc >>> bitCount) & ((1L << n) - 1));
+	}
+
+	/**
+	 * Returns the next n bits as a two's complement signed value, where n is at most 32.
+	 */
+	public int readSignedBits(int n) {
+		return (readBits(n) << (32 - n)) >> (32 - n);
+	}
+
+	/**
+	 * Returns the number of zeros before the next one, consuming the one as well.
+	 * @throws IllegalStateException if the data ends before a one is found
+	 */
+	public int readUnary() {
+		int q = 0;
+		while (true) {
+			if (bitCount == 0) {
+				refill();
+				if (bitCount == 0) throw new IllegalStateException("Read past the end of the data");
+			}
+			long unread = acc << (64 - bitCount); // unread bits at the top, zeros below
+			if (unread != 0) {
+				int zeros = Long.numberOfLeadingZeros(unread);
+				bitCount -= zeros + 1;
+				return q + zeros;
+			}
+			q += bitCount;
+			bitCount = 0;
+		}
+	}
+
+	/**
+	 * Returns the next Rice code with parameter k.
+	 */
+	public int readRice(int k) {
+		int q = readUnary();
+		if (k == 0) return q;
+		return (q << k) | readBits(k);
+	}
+
+	/**
+	 * Skip to the start of the next byte.
+	 */
+	public void alignToByte() {
+		bitCount -= bitCount % 8;
+	}
+
+	/**
+	 * Returns the offset of the next unread byte, assuming the reader is aligned to a byte.
+	 */
+	public int getBytePosition() {
+		return pos - bitCount / 8;
+	}
+
+	private void refill() {
+		while (bitCount <= 56 && pos < end) {
+			acc = (acc << 8) | (buffer[pos++] & 0xFF);
+			bitCount += 8;
+		}
+	}
+}
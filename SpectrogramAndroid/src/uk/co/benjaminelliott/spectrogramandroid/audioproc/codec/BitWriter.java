@@ -0,0 +1,71 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.codec;
+
+/**
+ * Writes values of up to 32 bits into a byte array, most significant bit first.
+ * The caller is responsible for making sure the array is large enough.
+ *
+ */
+public class BitWriter {
+
+	private byte[] buffer; // destination of the bits
+	private int pos; // next byte of the buffer to be written
+	private long acc; // bits waiting to be written, in the low bitCount bits
+	private int bitCount; // number of bits waiting in acc, always less than 8 between calls
+
+	/**
+	 * Start writing at the given offset of the given buffer, discarding anything not yet flushed.
+	 */
+	public void reset(byte[] buffer, int offset) {
+		this.buffer = buffer;
+		pos = offset;
+		acc = 0;
+		bitCount = 0;
+	}
+
+	/**
+	 * Write the low n bits of value, where n is at most 32.
+	 */
+	public void writeBits(int value, int n) {
+		acc = (acc << n) | (value & ((1L << n) - 1));
+		bitCount += n;
+		while (bitCount >= 8) {
+			bitCount -= 8;
+			buffer[pos++] = (byte) (acc >>> bitCount);
+		}
+	}
+
+	/**
+	 * Write q zeros followed by a one.
+	 */
+	public void writeUnary(int q) {
+		while (q >= 32) {
+			writeBits(0, 32);
+			q -= 32;
+		}
+		writeBits(1, q + 1);
+	}
+
+	/**
+	 * Write a non-negative value as a Rice code with parameter k: the value shifted right by k in
+	 * unary, then its low k bits.
+	 */
+	public void writeRice(int value, int k) {
+		writeUnary(value >>> k);
+		if (k > 0) writeBits(value, k);
+	}
+
+	/**
+	 * Pad the last byte with zeros and return the offset just past it.
+	 */
+	public int flush() {
+		if (bitCount > 0) writeBits(0, 8 - bitCount);
+		return pos;
+	}
+
+	/**
+	 * Returns the number of bits written since the last reset, counting from the buffer's start.
+	 */
+	public long getBitPosition() {
+		return 8L * pos + bitCount;
+	}
+}
@@ -0,0 +1,154 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.codec;
+
+/**
+ * Lossless codec for a stream of spectrogram columns of 8-bit levels, each coded relative to the
+ * one before it, so that a column costs little more than how much it has changed.
+ * <p>
+ * A column is split into partitions of up to {@link #PARTITION_SIZE} rows. Each partition holds
+ * one bit saying what its levels are predicted from - the row below in the same column, or the same
+ * row in the previous column - then a parameter, then the zigzag-coded prediction errors Rice-coded
+ * with that parameter. Two parameter values are kept back: {@link #ALL_ZERO} for a partition that
+ * was predicted exactly, which costs nothing more, and {@link #RAW} for one whose levels are cheaper
+ * sent as they are. The first column after a {@link #reset()} is only ever predicted from within
+ * itself, so it can be decoded on its own. Instances keep the previous column and scratch space, so
+ * the encoding and decoding ends each need their own.
+ *
+ */
+public class ColumnCodec {
+
+	public static final int PARTITION_SIZE = 16; // rows that share a predictor and a Rice parameter
+	private static final int PARAMETER_BITS = 4;
+	private static final int ALL_ZERO = 15; // parameter of a partition whose errors are all zero
+	private static final int RAW = 14; // parameter of a partition whose levels are written as 8 bits each
+	private static final int MAX_RICE_PARAMETER = 7; // zigzag-coded errors of 8-bit levels fit in 9 bits
+	private static final int FROM_BELOW = 0;
+	private static final int FROM_PREVIOUS = 1;
+
+	private final int rows; // number of levels in each column
+	private final int[] previous; // the last column encoded or decoded
+	private final int[] errors; // zigzag-coded prediction errors of the partition being encoded
+	private boolean hasPrevious = false;
+	private final BitWriter writer = new BitWriter();
+	private final BitReader reader = new BitReader();
+
+	public ColumnCodec(int rows) {
+		this.rows = rows;
+		previous = new int[rows];
+		errors = new int[PARTITION_SIZE];
+	}
+
+	/**
+	 * Returns the largest number of bytes a column of the given number of rows can be encoded into.
+	 */
+	public static int maxEncodedBytes(int rows) {
+		int partitions = (rows + PARTITION_SIZE - 1) / PARTITION_SIZE;
+		long bits = partitions * (1 + PARAMETER_BITS) + (long) rows * 8;
+		return (int) ((bits + 7) / 8);
+	}
+
+	/**
+	 * Forget the previous column, so the next one is coded on its own, e.g. when the stream starts
+	 * again for a new receiver.
+	 */
+	public void reset() {
+		hasPrevious = false;
+	}
+
+	/**
+	 * Encode a column of levels, lowest row first, into dest, which must have at least
+	 * {@link #maxEncodedBytes(int)} bytes free after offset.
+	 * @return the number of bytes the column was encoded into
+	 */
+	public int encode(byte[] levels, byte[] dest, int offset) {
+		writer.reset(dest, offset);
+		for (int start = 0; start < rows; start += PARTITION_SIZE) {
+			int end = Math.min(start + PARTITION_SIZE, rows);
+			int n = end - start;
+			int predictor = FROM_BELOW;
+			if (hasPrevious && errorSum(levels, start, end, FROM_PREVIOUS) < errorSum(levels, start, end, FROM_BELOW)) {
+				predictor = FROM_PREVIOUS;
+			}
+			long sum = 0;
+			for (int i = start; i < end; i++) {
+				int error = (levels[i] & 0xff) - predict(levels, i, predictor);
+				errors[i - start] = (error << 1) ^ (error >> 31);
+				sum += errors[i - start];
+			}
+			writer.writeBits(predictor, 1);
+			if (sum == 0) {
+				writer.writeBits(ALL_ZERO, PARAMETER_BITS);
+				continue;
+			}
+			int k = riceParameter(sum, n);
+			long riceBits = (long) n * (k + 1);
+			for (int i = 0; i < n; i++) riceBits += errors[i] >>> k;
+			if (riceBits >= 8L * n) {
+				writer.writeBits(RAW, PARAMETER_BITS);
+				for (int i = start; i < end; i++) writer.writeBits(levels[i], 8);
+				continue;
+			}
+			writer.writeBits(k, PARAMETER_BITS);
+			for (int i = 0; i < n; i++) writer.writeRice(errors[i], k);
+		}
+		for (int i = 0; i < rows; i++) previous[i] = levels[i] & 0xff;
+		hasPrevious = true;
+		return writer.flush() - offset;
+	}
+
+	/**
+	 * Decode a column encoded by {@link #encode(byte[], byte[], int)}, from length bytes starting at
+	 * offset of src, into dest.
+	 * @throws IllegalStateException if the column is cut short or predicted from a previous column
+	 * this codec has not seen
+	 */
+	public void decode(byte[] src, int offset, int length, byte[] dest) {
+		reader.reset(src, offset, length);
+		for (int start = 0; start < rows; start += PARTITION_SIZE) {
+			int end = Math.min(start + PARTITION_SIZE, rows);
+			int predictor = reader.readBits(1);
+			if (predictor == FROM_PREVIOUS && !hasPrevious) throw new IllegalStateException("No previous column to predict from");
+			int k = reader.readBits(PARAMETER_BITS);
+			for (int i = start; i < end; i++) {
+				int level;
+				if (k == RAW) {
+					level = reader.readBits(8);
+				} else {
+					int u = (k == ALL_ZERO) ? 0 : reader.readRice(k);
+					level = ((u >>> 1) ^ -(u & 1)) + predict(dest, i, predictor);
+				}
+				dest[i] = (byte) level;
+			}
+		}
+		for (int i = 0; i < rows; i++) previous[i] = dest[i] & 0xff;
+		hasPrevious = true;
+	}
+
+	/**
+	 * Returns the prediction of row i from the row below it, or from the previous column.
+	 */
+	private int predict(byte[] levels, int i, int predictor) {
+		if (predictor == FROM_PREVIOUS) return previous[i];
+		return (i == 0) ? 0 : levels[i - 1] & 0xff;
+	}
+
+	/**
+	 * Returns the total magnitude of the prediction errors of rows start to end-1 with the given predictor.
+	 */
+	private int errorSum(byte[] levels, int start, int end, int predictor) {
+		int sum = 0;
+		for (int i = start; i < end; i++) {
+			sum += Math.abs((levels[i] & 0xff) - predict(levels, i, predictor));
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the Rice parameter for n errors with the given sum, estimated from their mean as in
+	 * {@link LosslessBlockCodec}.
+	 */
+	private static int riceParameter(long sum, int n) {
+		long scaledMean = sum * 11 / (16L * n);
+		if (scaledMean == 0) return 0;
+		return Math.min(63 - Long.numberOfLeadingZeros(scaledMean), MAX_RICE_PARAMETER);
+	}
+}
@@ -0,0 +1,175 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.codec;
+
+/**
+ * Fast lossless codec for fixed-size blocks of 16-bit mono audio, along the lines of FLAC's fixed
+ * subframes. Each block is coded on its own, so any block can be decoded without the others.
+ * <p>
+ * A block holds the order (0 to {@link #MAX_ORDER}) of the polynomial predictor that gives the
+ * smallest residuals, that many unpredicted warm-up samples, then the residuals in partitions of
+ * up to {@link #PARTITION_SIZE}, each Rice-coded with its own parameter. Instances keep scratch
+ * space, so each thread needs its own.
+ *
+ */
+public class LosslessBlockCodec {
+
+	public static final int MAX_ORDER = 4; // highest order of polynomial predictor tried
+	public static final int PARTITION_SIZE = 64; // residuals that share a Rice parameter
+	private static final int ORDER_BITS = 3;
+	private static final int PARAMETER_BITS = 5;
+	private static final int SAMPLE_BITS = 16;
+	private static final int MAX_BITS_PER_RESIDUAL = 24; // bound on a residual's code given how parameters are chosen
+
+	private final int blockSize; // number of samples in each block
+	private final int[] residuals; // zigzag-coded residuals of the block being encoded
+	private final byte[] encoded; // the most recently encoded block
+	private final BitWriter writer = new BitWriter();
+	private final BitReader reader = new BitReader();
+
+	public LosslessBlockCodec(int blockSize) {
+		this.blockSize = blockSize;
+		residuals = new int[blockSize];
+		encoded = new byte[maxEncodedBytes(blockSize)];
+	}
+
+	/**
+	 * Returns the largest number of bytes a block of the given number of samples can be encoded into.
+	 */
+	public static int maxEncodedBytes(int blockSize) {
+		int partitions = (blockSize + PARTITION_SIZE - 1) / PARTITION_SIZE;
+		long bits = ORDER_BITS + MAX_ORDER * SAMPLE_BITS + partitions * PARAMETER_BITS + (long) blockSize * MAX_BITS_PER_RESIDUAL;
+		return (int) ((bits + 7) / 8);
+	}
+
+	/**
+	 * Encode a block of samples into this codec's own buffer, available from {@link #getEncoded()}.
+	 * @return the number of bytes the block was encoded into
+	 */
+	public int encode(short[] samples) {
+		return encode(samples, encoded, 0);
+	}
+
+	/**
+	 * Returns the buffer that {@link #encode(short[])} writes into.
+	 */
+	public byte[] getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * Encode a block of samples into dest, which must have at least {@link #maxEncodedBytes(int)}
+	 * bytes free after offset.
+	 * @return the number of bytes the block was encoded into
+	 */
+	public int encode(short[] samples, byte[] dest, int offset) {
+		int order = Math.min(bestOrder(samples), blockSize);
+		computeResiduals(samples, order);
+
+		writer.reset(dest, offset);
+		writer.writeBits(order, ORDER_BITS);
+		for (int i = 0; i < order; i++) {
+			writer.writeBits(samples[i], SAMPLE_BITS);
+		}
+		for (int start = order; start < blockSize; start += PARTITION_SIZE) {
+			int end = Math.min(start + PARTITION_SIZE, blockSize);
+			int k = riceParameter(start, end);
+			writer.writeBits(k, PARAMETER_BITS);
+			for (int i = start; i < end; i++) {
+				writer.writeRice(residuals[i], k);
+			}
+		}
+		return writer.flush() - offset;
+	}
+
+	/**
+	 * Decode a block encoded by {@link #encode(short[], byte[], int)} starting at offset of src.
+	 */
+	public void decode(byte[] src, int offset, short[] dest) {
+		reader.reset(src, offset, src.length - offset);
+		int order = reader.readBits(ORDER_BITS);
+		for (int i = 0; i < order; i++) {
+			dest[i] = (short) reader.readSignedBits(SAMPLE_BITS);
+		}
+		for (int start = order; start < blockSize; start += PARTITION_SIZE) {
+			int end = Math.min(start + PARTITION_SIZE, blockSize);
+			int k = reader.readBits(PARAMETER_BITS);
+			for (int i = start; i < end; i++) {
+				int u = reader.readRice(k);
+				int residual = (u >>> 1) ^ -(u & 1);
+				dest[i] = (short) (residual + predict(dest, i, order));
+			}
+		}
+	}
+
+	/**
+	 * Returns the prediction of sample i from the order samples before it.
+	 */
+	private static int predict(short[] x, int i, int order) {
+		switch (order) {
+		case 0: return 0;
+		case 1: return x[i-1];
+		case 2: return 2*x[i-1] - x[i-2];
+		case 3: return 3*x[i-1] - 3*x[i-2] + x[i-3];
+		default: return 4*x[i-1] - 6*x[i-2] + 4*x[i-3] - x[i-4];
+		}
+	}
+
+	/**
+	 * Returns the order of predictor whose residuals have the smallest total magnitude, found in a
+	 * single pass by taking successive differences.
+	 */
+	private int bestOrder(short[] x) {
+		if (blockSize <= MAX_ORDER) return 0;
+		int last0 = x[3];
+		int last1 = x[3] - x[2];
+		int last2 = last1 - (x[2] - x[1]);
+		int last3 = last2 - (x[2] - x[1] - (x[1] - x[0]));
+		long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+		for (int i = MAX_ORDER; i < blockSize; i++) {
+			int e0 = x[i];
+			int e1 = e0 - last0;
+			int e2 = e1 - last1;
+			int e3 = e2 - last2;
+			int e4 = e3 - last3;
+			sum0 += Math.abs(e0);
+			sum1 += Math.abs(e1);
+			sum2 += Math.abs(e2);
+			sum3 += Math.abs(e3);
+			sum4 += Math.abs(e4);
+			last0 = e0;
+			last1 = e1;
+			last2 = e2;
+			last3 = e3;
+		}
+		int order = 0;
+		long best = sum0;
+		if (sum1 < best) { best = sum1; order = 1; }
+		if (sum2 < best) { best = sum2; order = 2; }
+		if (sum3 < best) { best = sum3; order = 3; }
+		if (sum4 < best) { order = 4; }
+		return order;
+	}
+
+	/**
+	 * Fill the residuals array with the zigzag-coded prediction errors of the given order.
+	 */
+	private void computeResiduals(short[] x, int order) {
+		for (int i = order; i < blockSize; i++) {
+			int residual = x[i] - predict(x, i, order);
+			residuals[i] = (residual << 1) ^ (residual >> 31);
+		}
+	}
+
+	/**
+	 * Returns the Rice parameter for residuals start to end-1, estimated from their mean since the
+	 * best parameter is close to log2(mean * ln 2).
+	 */
+	private int riceParameter(int start, int end) {
+		long sum = 0;
+		for (int i = start; i < end; i++) {
+			sum += residuals[i];
+		}
+		long scaledMean = sum * 11 / (16L * (end - start)); // 11/16 is close to ln 2
+		if (scaledMean == 0) return 0;
+		return 63 - Long.numberOfLeadingZeros(scaledMean);
+	}
+}
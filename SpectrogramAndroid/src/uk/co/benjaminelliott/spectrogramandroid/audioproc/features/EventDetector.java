@@ -0,0 +1,182 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+import java.util.Arrays;
+
+/**
+ * Finds sounds that stand out from the background as the spectrogram is analysed, a window at a
+ * time, and reports each as a box of windows and frequencies that can be captured just as a
+ * selection drawn by the user would be.
+ * <p>
+ * A bin is active when its smoothed power is some way above its floor, as followed by a
+ * {@link NoiseFloorTracker}. An event starts at the first window with a run of enough adjacent
+ * active bins and ends once there have been no such runs for a short gap; to avoid flickering at its
+ * edges, bins need to rise less far above the floor to keep an event going than to start one. The
+ * event's frequencies are those of the bins that were active for a good share of it, so a stray bin
+ * does not stretch the box. Sounds that overlap in time are reported as one event covering all of
+ * them.
+ * <p>
+ * Each window costs O(bins) and nothing is allocated, so the detector can run on every window of
+ * the live spectrogram.
+ *
+ */
+public class EventDetector {
+
+	/**
+	 * Receives the events found, on the thread that analyses the windows.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an event has ended.
+		 * @param startWindow - number of the event's first window
+		 * @param endWindow - number of the window after its last
+		 * @param bottomFrequency - bottom of the event's frequencies in Hz
+		 * @param topFrequency - top of the event's frequencies in Hz
+		 */
+		void eventDetected(int startWindow, int endWindow, float bottomFrequency, float topFrequency);
+	}
+
+	// How far a bin's smoothed power must be above its floor to start an event, and to keep one going (dB):
+	public static final float START_DB = 10;
+	public static final float CONTINUE_DB = 6;
+	// Fewest adjacent active bins in a window for it to count towards an event; a sound spreads over
+	// neighbouring bins, while the noise only pushes the odd bin over on its own:
+	public static final int MIN_BINS = 2;
+	// Shortest event reported, longest before it is cut off and reported, and the quiet that ends one (s):
+	public static final float MIN_EVENT_SECONDS = 0.05f;
+	public static final float MAX_EVENT_SECONDS = 10;
+	public static final float END_GAP_SECONDS = 0.15f;
+	// Audio kept either side of an event, as its onset is smoothed and its tail falls below the floor (s):
+	public static final float PADDING_SECONDS = 0.1f;
+	// Time given to the floor to settle before events are looked for (s):
+	public static final float SETTLING_SECONDS = 0.5f;
+	// Share of an event's windows in which a bin must have been active to be inside its frequencies:
+	public static final float BAND_SHARE = 0.25f;
+
+	private final int bins;
+	private final float binWidth; // Hz covered by each bin
+	private final NoiseFloorTracker tracker;
+	private final float startRatio;
+	private final float continueRatio;
+	private final int minWindows;
+	private final int maxWindows;
+	private final int endGap;
+	private final int padding;
+	private final int settling;
+	private final Listener listener;
+	private final int[] hits; // number of windows of the current event in which each bin was active
+	private boolean inEvent = false;
+	private int eventStart; // number of the current event's first window
+	private int lastActive; // number of the current event's last window with enough active bins
+	private int eventsDetected = 0;
+
+	/**
+	 * Creates a detector for power spectra of numFreqBins bins, which reports the events it finds to
+	 * the given listener.
+	 */
+	public EventDetector(int sampleRate, int samplesPerWindow, int numFreqBins, Listener listener) {
+		bins = numFreqBins;
+		binWidth = (float) sampleRate / samplesPerWindow;
+		float windowsPerSecond = (float) sampleRate / samplesPerWindow;
+		tracker = new NoiseFloorTracker(numFreqBins, windowsPerSecond);
+		startRatio = (float) Math.pow(10, START_DB / 10);
+		continueRatio = (float) Math.pow(10, CONTINUE_DB / 10);
+		minWindows = Math.max(1, Math.round(MIN_EVENT_SECONDS * windowsPerSecond));
+		maxWindows = Math.round(MAX_EVENT_SECONDS * windowsPerSecond);
+		endGap = Math.max(1, Math.round(END_GAP_SECONDS * windowsPerSecond));
+		padding = Math.round(PADDING_SECONDS * windowsPerSecond);
+		settling = Math.round(SETTLING_SECONDS * windowsPerSecond);
+		this.listener = listener;
+		hits = new int[numFreqBins];
+	}
+
+	/**
+	 * Looks for events in the power spectrum of the given window. Windows must be given in order.
+	 */
+	public void process(int window, double[] power) {
+		tracker.update(power);
+		detect(window);
+	}
+
+	/**
+	 * Single-precision version of {@link #process(int, double[])}.
+	 */
+	public void process(int window, float[] power) {
+		tracker.update(power);
+		detect(window);
+	}
+
+	private void detect(int window) {
+		if (tracker.getWindows() <= settling) return;
+		float[] smoothed = tracker.getSmoothed();
+		float[] floor = tracker.getFloor();
+		if (inEvent) {
+			int run = 0;
+			boolean active = false;
+			for (int b = 0; b < bins; b++) {
+				if (smoothed[b] > floor[b] * continueRatio) {
+					hits[b]++;
+					if (++run >= MIN_BINS) active = true;
+				} else {
+					run = 0;
+				}
+			}
+			if (active) lastActive = window;
+			if (window - lastActive >= endGap || window + 1 - eventStart >= maxWindows) finish(window + 1);
+			return;
+		}
+		int run = 0;
+		boolean active = false;
+		for (int b = 0; b < bins && !active; b++) {
+			run = (smoothed[b] > floor[b] * startRatio) ? run + 1 : 0;
+			active = run >= MIN_BINS;
+		}
+		if (!active) return;
+		inEvent = true;
+		eventStart = window;
+		lastActive = window;
+		Arrays.fill(hits, 0);
+		for (int b = 0; b < bins; b++) {
+			if (smoothed[b] > floor[b] * startRatio) hits[b]++;
+		}
+	}
+
+	/**
+	 * Ends any event in progress, reporting it if it is long enough, e.g. once a finite source has
+	 * run out.
+	 * @param windows - the number of windows processed so far
+	 */
+	public void finish(int windows) {
+		if (!inEvent) return;
+		inEvent = false;
+		int length = lastActive + 1 - eventStart;
+		if (length < minWindows) return;
+
+		int threshold = Math.max(1, (int) (length * BAND_SHARE));
+		int bottom = -1;
+		int top = -1;
+		for (int b = 0; b < bins; b++) {
+			if (hits[b] >= threshold) {
+				if (bottom < 0) bottom = b;
+				top = b;
+			}
+		}
+		if (bottom < 0) return; // active bins wandered too much to form a band
+		eventsDetected++;
+		listener.eventDetected(Math.max(0, eventStart - padding), Math.min(lastActive + 1 + padding, windows),
+				bottom * binWidth, (top + 1) * binWidth);
+	}
+
+	/**
+	 * Returns the number of events reported so far.
+	 */
+	public int getEventsDetected() {
+		return eventsDetected;
+	}
+
+	/**
+	 * Returns the tracker following the floor of each bin, which {@link #process} updates.
+	 */
+	public NoiseFloorTracker getTracker() {
+		return tracker;
+	}
+}
@@ -0,0 +1,113 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.FrequencyAxis;
+
+/**
+ * A bank of triangular filters spaced evenly in mels, which sums a power spectrum into a few bands
+ * that follow the ear's sense of pitch. Band m rises from the centre of band m-1 to its own centre
+ * and falls to the centre of band m+1, and its weights sum to 1, so its energy is a weighted mean of
+ * the power of the bins under it.
+ * <p>
+ * Each band only covers a few bins, so the weights are held sparsely, a band at a time, and
+ * applying the bank costs O(bins + bands) rather than O(bins x bands).
+ *
+ */
+public class MelFilterbank {
+
+	private final int bands;
+	// weights of each band in turn, band m's in elements bandStart[m] to bandStart[m + 1] - 1:
+	private final int[] bandStart;
+	private final int[] weightBins;
+	private final float[] weights;
+	private final float[] centres; // centre frequency of each band in Hz
+
+	/**
+	 * @param bands - the number of filters
+	 * @param numFreqBins - the number of bins in each power spectrum, bin b centred on b * sampleRate / samplesPerWindow
+	 * @param minFrequency - the frequency at which the lowest filter starts, in Hz
+	 * @param maxFrequency - the frequency at which the highest filter ends, in Hz
+	 */
+	public MelFilterbank(int bands, int sampleRate, int samplesPerWindow, int numFreqBins, float minFrequency, float maxFrequency) {
+		this.bands = bands;
+		double binWidth = (double) sampleRate / samplesPerWindow;
+		double minMel = FrequencyAxis.hzToMel(minFrequency);
+		double melStep = (FrequencyAxis.hzToMel(maxFrequency) - minMel) / (bands + 1);
+		double[] edges = new double[bands + 2]; // in bins
+		for (int i = 0; i < edges.length; i++) {
+			edges[i] = FrequencyAxis.melToHz(minMel + i * melStep) / binWidth;
+		}
+
+		bandStart = new int[bands + 1];
+		centres = new float[bands];
+		int[] bins = new int[2 * numFreqBins + bands];
+		float[] w = new float[bins.length];
+		int n = 0;
+		for (int m = 0; m < bands; m++) {
+			bandStart[m] = n;
+			centres[m] = (float) (edges[m + 1] * binWidth);
+			double lower = edges[m];
+			double centre = edges[m + 1];
+			double upper = edges[m + 2];
+			float sum = 0;
+			for (int b = (int) Math.ceil(lower); b <= Math.min((int) Math.floor(upper), numFreqBins - 1); b++) {
+				double weight = (b <= centre) ? (b - lower) / (centre - lower) : (upper - b) / (upper - centre);
+				if (weight <= 0) continue;
+				bins[n] = b;
+				w[n++] = (float) weight;
+				sum += weight;
+			}
+			if (sum == 0) {
+				// narrower than the spacing of the bins, so take the bin nearest its centre:
+				bins[n] = Math.min((int) Math.round(centre), numFreqBins - 1);
+				w[n++] = 1;
+				sum = 1;
+			}
+			for (int i = bandStart[m]; i < n; i++) w[i] /= sum;
+		}
+		bandStart[bands] = n;
+		weightBins = new int[n];
+		weights = new float[n];
+		System.arraycopy(bins, 0, weightBins, 0, n);
+		System.arraycopy(w, 0, weights, 0, n);
+	}
+
+	/**
+	 * Fills the first bands elements of dest with the energy of each band of the given power spectrum.
+	 */
+	public void apply(double[] power, float[] dest) {
+		for (int m = 0; m < bands; m++) {
+			double sum = 0;
+			for (int i = bandStart[m]; i < bandStart[m + 1]; i++) sum += weights[i] * power[weightBins[i]];
+			dest[m] = (float) sum;
+		}
+	}
+
+	/**
+	 * Single-precision version of {@link #apply(double[], float[])}.
+	 */
+	public void apply(float[] power, float[] dest) {
+		for (int m = 0; m < bands; m++) {
+			float sum = 0;
+			for (int i = bandStart[m]; i < bandStart[m + 1]; i++) sum += weights[i] * power[weightBins[i]];
+			dest[m] = sum;
+		}
+	}
+
+	public int getBands() {
+		return bands;
+	}
+
+	/**
+	 * Returns the centre frequency of the given band in Hz.
+	 */
+	public float getCentreFrequency(int band) {
+		return centres[band];
+	}
+
+	/**
+	 * Returns the number of weights held, i.e. the number of multiply-adds it takes to apply the bank.
+	 */
+	public int getWeightCount() {
+		return weights.length;
+	}
+}
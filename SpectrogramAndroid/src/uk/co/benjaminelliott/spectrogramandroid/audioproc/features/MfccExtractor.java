@@ -0,0 +1,95 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+
+/**
+ * Turns each window's power spectrum into compact features for detection, similarity search and
+ * export: the energy of each band of a {@link MelFilterbank}, as 8-bit levels on the same scale as
+ * {@link SpectrogramLevels}, and the mel-frequency cepstral coefficients (MFCCs), the discrete
+ * cosine transform of the log band energies. The DCT matrix is worked out once, so extracting the
+ * features of a window costs O(bins + bands x coefficients) and allocates nothing.
+ * <p>
+ * Features are left in arrays of this extractor's own, overwritten by each window.
+ *
+ */
+public class MfccExtractor {
+
+	public static final int MEL_BANDS = 26;
+	public static final int COEFFICIENTS = 13; // including the 0th, which follows the window's overall loudness
+
+	private final MelFilterbank filterbank;
+	private final float fullScale; // log of 1 + the power of the top level, see SpectrogramLevels
+	private final float[] dct; // orthonormal DCT-II of the log band energies, a row of MEL_BANDS for each coefficient
+	private final float[] energies = new float[MEL_BANDS];
+	private final float[] logEnergies = new float[MEL_BANDS];
+	private final byte[] bandLevels = new byte[MEL_BANDS];
+	private final float[] mfccs = new float[COEFFICIENTS];
+
+	/**
+	 * Creates an extractor for power spectra of numFreqBins bins, whose filterbank covers 0 Hz up to
+	 * half the sample rate.
+	 */
+	public MfccExtractor(int sampleRate, int samplesPerWindow, int numFreqBins) {
+		filterbank = new MelFilterbank(MEL_BANDS, sampleRate, samplesPerWindow, numFreqBins, 0, sampleRate / 2f);
+		fullScale = SpectrogramLevels.fullScale(samplesPerWindow);
+		dct = new float[COEFFICIENTS * MEL_BANDS];
+		for (int k = 0; k < COEFFICIENTS; k++) {
+			double scale = Math.sqrt(((k == 0) ? 1.0 : 2.0) / MEL_BANDS);
+			for (int m = 0; m < MEL_BANDS; m++) {
+				dct[k * MEL_BANDS + m] = (float) (scale * Math.cos(Math.PI * k * (m + 0.5) / MEL_BANDS));
+			}
+		}
+	}
+
+	/**
+	 * Extracts the features of the given power spectrum.
+	 */
+	public void extract(double[] power) {
+		filterbank.apply(power, energies);
+		transform();
+	}
+
+	/**
+	 * Single-precision version of {@link #extract(double[])}.
+	 */
+	public void extract(float[] power) {
+		filterbank.apply(power, energies);
+		transform();
+	}
+
+	/**
+	 * Works out the band levels and MFCCs from the band energies.
+	 */
+	private void transform() {
+		for (int m = 0; m < MEL_BANDS; m++) {
+			double log = Math.log1p(energies[m]);
+			logEnergies[m] = (float) log;
+			// as SpectrogramLevels.toLevel, without taking the log again:
+			bandLevels[m] = (byte) Math.min((int) (log * SpectrogramLevels.MAX_LEVEL / fullScale + 0.5), SpectrogramLevels.MAX_LEVEL);
+		}
+		for (int k = 0; k < COEFFICIENTS; k++) {
+			float sum = 0;
+			int row = k * MEL_BANDS;
+			for (int m = 0; m < MEL_BANDS; m++) sum += dct[row + m] * logEnergies[m];
+			mfccs[k] = sum;
+		}
+	}
+
+	/**
+	 * Returns the MFCCs of the last window extracted, {@link #COEFFICIENTS} of them.
+	 */
+	public float[] getMfccs() {
+		return mfccs;
+	}
+
+	/**
+	 * Returns the level of each mel band of the last window extracted, lowest band first.
+	 */
+	public byte[] getBandLevels() {
+		return bandLevels;
+	}
+
+	public MelFilterbank getFilterbank() {
+		return filterbank;
+	}
+}
@@ -0,0 +1,115 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+/**
+ * Follows the background level of each frequency bin separately as the spectrogram is analysed, so
+ * that a sound can be judged against the noise at its own frequencies rather than against the
+ * loudest thing heard so far.
+ * <p>
+ * Each bin's power is first smoothed over a few windows. The floor then falls at a fixed rate
+ * while the smoothed power is below it and rises at a slower one while it is above, which settles it
+ * on a low percentile of the smoothed power (the 20th with the default rates): short sounds barely
+ * move it, while a hum or drone that lasts longer than a few seconds becomes part of it. Updating
+ * costs O(bins) per window and allocates nothing.
+ * <p>
+ * Until a few smoothing time constants have passed, the smoothed power is the plain mean of the
+ * windows so far and the floor simply follows it, so that it starts from the background rather than
+ * from one noisy window.
+ *
+ */
+public class NoiseFloorTracker {
+
+	public static final float DEFAULT_SMOOTHING_SECONDS = 0.1f;
+	public static final float DEFAULT_RISE_DB_PER_SECOND = 3;
+	public static final float DEFAULT_FALL_DB_PER_SECOND = 12;
+	// Fewest windows the power is smoothed over, however long they are, so that the noise in each bin
+	// is averaged out enough for the floor to be a steady reference:
+	public static final int MIN_SMOOTHING_WINDOWS = 5;
+	// Lowest the floor may go, so that it can rise again after digital silence (squared 16-bit units):
+	private static final float MIN_FLOOR = 1;
+
+	private final int bins;
+	private final float smoothing; // weight of the previous smoothed power in each update
+	private final float rise; // factor the floor is multiplied by each window it is below the smoothed power
+	private final float fall; // factor the floor is multiplied by each window it is above the smoothed power
+	private final float[] smoothed; // smoothed power of each bin
+	private final float[] floor; // background power of each bin
+	private final int settling; // number of windows for which the floor follows the smoothed power
+	private int windows = 0; // number of windows tracked so far
+
+	/**
+	 * Creates a tracker with the default smoothing and rates.
+	 * @param windowsPerSecond - the rate at which windows will be given to {@link #update}
+	 */
+	public NoiseFloorTracker(int numFreqBins, float windowsPerSecond) {
+		this(numFreqBins, windowsPerSecond, DEFAULT_SMOOTHING_SECONDS, DEFAULT_RISE_DB_PER_SECOND, DEFAULT_FALL_DB_PER_SECOND);
+	}
+
+	/**
+	 * @param windowsPerSecond - the rate at which windows will be given to {@link #update}
+	 * @param smoothingSeconds - time constant of the smoothing of each bin's power, at least {@link #MIN_SMOOTHING_WINDOWS}
+	 * @param riseDbPerSecond - how fast the floor rises to meet a louder background
+	 * @param fallDbPerSecond - how fast the floor falls to meet a quieter background
+	 */
+	public NoiseFloorTracker(int numFreqBins, float windowsPerSecond, float smoothingSeconds, float riseDbPerSecond,
+			float fallDbPerSecond) {
+		bins = numFreqBins;
+		float smoothingWindows = Math.max(smoothingSeconds * windowsPerSecond, MIN_SMOOTHING_WINDOWS);
+		smoothing = (float) Math.exp(-1 / smoothingWindows);
+		rise = (float) Math.pow(10, riseDbPerSecond / 10 / windowsPerSecond);
+		fall = (float) Math.pow(10, -fallDbPerSecond / 10 / windowsPerSecond);
+		settling = (int) Math.ceil(3 * smoothingWindows);
+		smoothed = new float[numFreqBins];
+		floor = new float[numFreqBins];
+	}
+
+	/**
+	 * Updates the smoothed power and floor of each bin from the next window's power spectrum.
+	 */
+	public void update(double[] power) {
+		float previous = Math.min(smoothing, (float) windows / ++windows);
+		for (int b = 0; b < bins; b++) smoothed[b] = previous * smoothed[b] + (1 - previous) * (float) power[b];
+		updateFloor();
+	}
+
+	/**
+	 * Single-precision version of {@link #update(double[])}.
+	 */
+	public void update(float[] power) {
+		float previous = Math.min(smoothing, (float) windows / ++windows);
+		for (int b = 0; b < bins; b++) smoothed[b] = previous * smoothed[b] + (1 - previous) * power[b];
+		updateFloor();
+	}
+
+	private void updateFloor() {
+		if (windows <= settling) {
+			for (int b = 0; b < bins; b++) floor[b] = Math.max(smoothed[b], MIN_FLOOR);
+			return;
+		}
+		for (int b = 0; b < bins; b++) {
+			float f = floor[b];
+			f *= (smoothed[b] > f) ? rise : fall;
+			floor[b] = (f < MIN_FLOOR) ? MIN_FLOOR : f;
+		}
+	}
+
+	/**
+	 * Returns the background power of each bin, as of the last window.
+	 */
+	public float[] getFloor() {
+		return floor;
+	}
+
+	/**
+	 * Returns the smoothed power of each bin, as of the last window.
+	 */
+	public float[] getSmoothed() {
+		return smoothed;
+	}
+
+	/**
+	 * Returns the number of windows tracked so far.
+	 */
+	public int getWindows() {
+		return windows;
+	}
+}
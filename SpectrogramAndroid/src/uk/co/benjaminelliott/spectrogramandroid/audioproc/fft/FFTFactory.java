@@ -0,0 +1,19 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+/**
+ * Class that chooses the fastest available {@link RealFFT} implementation for a given transform size.
+ *
+ */
+public class FFTFactory {
+
+	/**
+	 * Returns a {@link SplitRadixFFT} if the size is a power of two that it supports, or a
+	 * {@link JTransformsFFT} otherwise.
+	 * @param size - the number of samples per transform
+	 */
+	public static RealFFT create(int size) {
+		if (SplitRadixFFT.supportsSize(size)) return new SplitRadixFFT(size);
+		return new JTransformsFFT(size);
+	}
+
+}
@@ -0,0 +1,49 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+import org.jtransforms.fft.DoubleFFT_1D;
+import org.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * A {@link RealFFT} backed by JTransforms, which handles transforms of any size.
+ *
+ */
+public class JTransformsFFT implements RealFFT {
+
+	private final int size;
+	private DoubleFFT_1D dfft1d; // only created once a double-precision transform is requested
+	private FloatFFT_1D ffft1d; // only created once a single-precision transform is requested
+
+	public JTransformsFFT(int size) {
+		this.size = size;
+	}
+
+	@Override
+	public void realForward(double[] samples) {
+		if (dfft1d == null) dfft1d = new DoubleFFT_1D(size);
+		dfft1d.realForward(samples);
+	}
+
+	@Override
+	public void realForward(float[] samples) {
+		if (ffft1d == null) ffft1d = new FloatFFT_1D(size);
+		ffft1d.realForward(samples);
+	}
+
+	@Override
+	public void powerSpectrum(double[] samples, int numBins) {
+		realForward(samples);
+		for (int i = 0; i < numBins; i++) {
+			//Note that for frequency k, Re[k] and Im[k] are stored adjacently
+			samples[i] = samples[2*i] * samples[2*i] + samples[2*i+1] * samples[2*i+1];
+		}
+	}
+
+	@Override
+	public void powerSpectrum(float[] samples, int numBins) {
+		realForward(samples);
+		for (int i = 0; i < numBins; i++) {
+			samples[i] = samples[2*i] * samples[2*i] + samples[2*i+1] * samples[2*i+1];
+		}
+	}
+
+}
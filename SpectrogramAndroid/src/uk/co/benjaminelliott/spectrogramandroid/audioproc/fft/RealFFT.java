@@ -0,0 +1,40 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+/**
+ * Interface that represents forward Fourier transforms of real-valued input
+ * (such as a window of audio samples) of a fixed size.
+ *
+ */
+public interface RealFFT {
+
+	/**
+	 * Replace the provided samples in-place with their Fourier transform, packed in the
+	 * same layout as JTransforms' {@code realForward}: element 0 holds Re[0], element 1 holds
+	 * Re[n/2], and for 0 < k < n/2, elements 2k and 2k+1 hold Re[k] and Im[k].
+	 * @param samples - the array of samples, whose length must be at least the transform size
+	 */
+	void realForward(double[] samples);
+
+	/**
+	 * Single-precision version of {@link #realForward(double[])}.
+	 * @param samples - the array of samples
+	 */
+	void realForward(float[] samples);
+
+	/**
+	 * Replace the first {@code numBins} elements of the provided samples with the squared
+	 * magnitude of each frequency bin of their Fourier transform. To match squaring the packed
+	 * output of {@link #realForward(double[])} pairwise, bin 0 holds Re[0]^2 + Re[n/2]^2.
+	 * The remaining elements are left in an undefined state.
+	 * @param samples - the array of samples
+	 * @param numBins - the number of bins required, at most n/2
+	 */
+	void powerSpectrum(double[] samples, int numBins);
+
+	/**
+	 * Single-precision version of {@link #powerSpectrum(double[], int)}.
+	 * @param samples - the array of samples
+	 * @param numBins - the number of bins required, at most n/2
+	 */
+	void powerSpectrum(float[] samples, int numBins);
+}
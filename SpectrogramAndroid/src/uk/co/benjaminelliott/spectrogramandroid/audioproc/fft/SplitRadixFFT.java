@@ -0,0 +1,495 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+/**
+ * A compact, single-threaded real-input FFT for power-of-two sizes.
+ *
+ * A real transform of size n is computed as a complex transform of size n/2 (even samples
+ * as real parts, odd samples as imaginary parts) using the recursive split-radix algorithm of
+ * Sorensen, Heideman and Burrus, followed by a "post-processing" stage that separates the
+ * spectra of the even and odd samples and combines them into the spectrum of the input.
+ * The bit-reversal reordering and, for {@link #powerSpectrum(double[], int)}, the squared
+ * magnitude calculation are both folded into that final stage, so the complex data is only
+ * read once after the butterflies have finished.
+ *
+ * Real and imaginary parts are held in separate scratch arrays so that each butterfly uses
+ * the same index into both, and sub-transforms of 8 or fewer points are computed with
+ * straight-line code. All twiddle factors are precomputed, so no trigonometric functions are
+ * evaluated and no memory is allocated per transform. Instances are not thread-safe since
+ * they hold scratch space.
+ *
+ */
+public class SplitRadixFFT implements RealFFT {
+
+	private static final int MIN_SIZE = 8; // smallest transform size supported
+	private static final double SQRT_HALF = Math.sqrt(0.5); // twiddle factor of the 8-point kernel
+	private static final float SQRT_HALF_F = (float) SQRT_HALF;
+
+	private final int size; // number of real samples per transform
+	private final int half; // number of complex points in the intermediate transform
+	private final int logHalf; // log2(half)
+	private final int[] bitReverse; // bit-reversed position of each complex output
+	// twiddles for each level of the complex transform, indexed by log2 of the sub-transform
+	// length n2 and stored as four runs of n2/4: cos(a), sin(a), cos(3a), sin(3a) for a = 2*pi*j/n2:
+	private final double[][] levelTwiddles;
+	// twiddles for the post-processing stage: cos and sin of 2*pi*k/size, for k <= half/2:
+	private final double[] postCos;
+	private final double[] postSin;
+	// single-precision copies of the twiddles:
+	private final float[][] levelTwiddlesF;
+	private final float[] postCosF;
+	private final float[] postSinF;
+	// scratch space for the complex transform, allocated on first use:
+	private double[] re;
+	private double[] im;
+	private float[] reF;
+	private float[] imF;
+
+	public SplitRadixFFT(int size) {
+		if (!supportsSize(size))
+			throw new IllegalArgumentException("Split-radix FFT requires a power-of-two size of at least "+MIN_SIZE+", got "+size);
+		this.size = size;
+		half = size / 2;
+		logHalf = Integer.numberOfTrailingZeros(half);
+
+		bitReverse = new int[half];
+		for (int i = 0; i < half; i++) {
+			bitReverse[i] = Integer.reverse(i) >>> (32 - logHalf);
+		}
+
+		// levels of 8 points and fewer use hardcoded kernels, so need no tables:
+		levelTwiddles = new double[logHalf + 1][];
+		levelTwiddlesF = new float[logHalf + 1][];
+		for (int level = 4; level <= logHalf; level++) {
+			int n2 = 1 << level;
+			int n4 = n2 / 4;
+			double[] twiddles = new double[4 * n4];
+			float[] twiddlesF = new float[4 * n4];
+			for (int j = 0; j < n4; j++) {
+				double a = 2 * Math.PI * j / n2;
+				twiddles[j] = Math.cos(a);
+				twiddles[n4 + j] = Math.sin(a);
+				twiddles[2 * n4 + j] = Math.cos(3 * a);
+				twiddles[3 * n4 + j] = Math.sin(3 * a);
+			}
+			for (int i = 0; i < twiddles.length; i++) twiddlesF[i] = (float) twiddles[i];
+			levelTwiddles[level] = twiddles;
+			levelTwiddlesF[level] = twiddlesF;
+		}
+
+		int postSize = half / 2 + 1;
+		postCos = new double[postSize];
+		postSin = new double[postSize];
+		postCosF = new float[postSize];
+		postSinF = new float[postSize];
+		for (int i = 0; i < postSize; i++) {
+			postCos[i] = Math.cos(2 * Math.PI * i / size);
+			postSin[i] = Math.sin(2 * Math.PI * i / size);
+			postCosF[i] = (float) postCos[i];
+			postSinF[i] = (float) postSin[i];
+		}
+	}
+
+	/**
+	 * Returns true if transforms of the given size can be computed by this class.
+	 */
+	public static boolean supportsSize(int size) {
+		return size >= MIN_SIZE && (size & (size - 1)) == 0;
+	}
+
+	@Override
+	public void realForward(double[] samples) {
+		transform(samples);
+		separateSpectra(samples, half, false);
+	}
+
+	@Override
+	public void realForward(float[] samples) {
+		transform(samples);
+		separateSpectra(samples, half, false);
+	}
+
+	@Override
+	public void powerSpectrum(double[] samples, int numBins) {
+		transform(samples);
+		separateSpectra(samples, numBins, true);
+	}
+
+	@Override
+	public void powerSpectrum(float[] samples, int numBins) {
+		transform(samples);
+		separateSpectra(samples, numBins, true);
+	}
+
+	/**
+	 * Splits the samples into the scratch arrays as complex points and transforms them.
+	 */
+	private void transform(double[] samples) {
+		if (re == null) {
+			re = new double[half];
+			im = new double[half];
+		}
+		for (int i = 0; i < half; i++) {
+			re[i] = samples[2 * i];
+			im[i] = samples[2 * i + 1];
+		}
+		complexTransform(re, im, 0, logHalf);
+	}
+
+	/**
+	 * Single-precision version of {@link #transform(double[])}.
+	 */
+	private void transform(float[] samples) {
+		if (reF == null) {
+			reF = new float[half];
+			imF = new float[half];
+		}
+		for (int i = 0; i < half; i++) {
+			reF[i] = samples[2 * i];
+			imF[i] = samples[2 * i + 1];
+		}
+		complexTransform(reF, imF, 0, logHalf);
+	}
+
+	/**
+	 * In-place split-radix decimation-in-frequency transform of the 2^level complex points
+	 * starting at {@code offset}. The output is left in bit-reversed order.
+	 */
+	private void complexTransform(double[] re, double[] im, int offset, int level) {
+		if (level <= 3) {
+			if (level == 3) transform8(re, im, offset);
+			else if (level == 2) transform4(re, im, offset);
+			else if (level == 1) transform2(re, im, offset);
+			return;
+		}
+		int n4 = 1 << (level - 2);
+		double[] twiddles = levelTwiddles[level];
+		// one L-shaped butterfly per twiddle factor:
+		for (int j = 0; j < n4; j++) {
+			int i0 = offset + j;
+			int i1 = i0 + n4;
+			int i2 = i1 + n4;
+			int i3 = i2 + n4;
+			double r1 = re[i0] - re[i2];
+			re[i0] += re[i2];
+			double r2 = re[i1] - re[i3];
+			re[i1] += re[i3];
+			double s1 = im[i0] - im[i2];
+			im[i0] += im[i2];
+			double s2 = im[i1] - im[i3];
+			im[i1] += im[i3];
+			double s3 = r1 - s2;
+			r1 += s2;
+			s2 = r2 - s1;
+			r2 += s1;
+			double cos1 = twiddles[j];
+			double sin1 = twiddles[n4 + j];
+			double cos3 = twiddles[2 * n4 + j];
+			double sin3 = twiddles[3 * n4 + j];
+			re[i2] = r1 * cos1 - s2 * sin1;
+			im[i2] = -s2 * cos1 - r1 * sin1;
+			re[i3] = s3 * cos3 + r2 * sin3;
+			im[i3] = r2 * cos3 - s3 * sin3;
+		}
+		// a half-length transform of the even outputs and two quarter-length ones of the odd:
+		complexTransform(re, im, offset, level - 1);
+		complexTransform(re, im, offset + 2 * n4, level - 2);
+		complexTransform(re, im, offset + 3 * n4, level - 2);
+	}
+
+	private static void transform2(double[] re, double[] im, int o) {
+		double r = re[o];
+		re[o] = r + re[o+1];
+		re[o+1] = r - re[o+1];
+		double i = im[o];
+		im[o] = i + im[o+1];
+		im[o+1] = i - im[o+1];
+	}
+
+	private static void transform4(double[] re, double[] im, int o) {
+		double sumRe02 = re[o] + re[o+2];
+		double sumIm02 = im[o] + im[o+2];
+		double difRe02 = re[o] - re[o+2];
+		double difIm02 = im[o] - im[o+2];
+		double sumRe13 = re[o+1] + re[o+3];
+		double sumIm13 = im[o+1] + im[o+3];
+		double difRe13 = re[o+1] - re[o+3];
+		double difIm13 = im[o+1] - im[o+3];
+		re[o] = sumRe02 + sumRe13;
+		im[o] = sumIm02 + sumIm13;
+		re[o+1] = sumRe02 - sumRe13;
+		im[o+1] = sumIm02 - sumIm13;
+		re[o+2] = difRe02 + difIm13;
+		im[o+2] = difIm02 - difRe13;
+		re[o+3] = difRe02 - difIm13;
+		im[o+3] = difIm02 + difRe13;
+	}
+
+	/**
+	 * Straight-line 8-point transform: the L-shaped butterflies of the first level (whose
+	 * twiddles are 1 and exp(-i*pi/4)) followed by the 4- and 2-point transforms they feed.
+	 */
+	private static void transform8(double[] re, double[] im, int o) {
+		// butterfly j = 0, twiddle 1:
+		double r1 = re[o] - re[o+4];
+		double a0 = re[o] + re[o+4];
+		double r2 = re[o+2] - re[o+6];
+		double a2 = re[o+2] + re[o+6];
+		double s1 = im[o] - im[o+4];
+		double b0 = im[o] + im[o+4];
+		double s2 = im[o+2] - im[o+6];
+		double b2 = im[o+2] + im[o+6];
+		double re4 = r1 + s2;
+		double im4 = s1 - r2;
+		double re6 = r1 - s2;
+		double im6 = r2 + s1;
+		// butterfly j = 1, twiddle exp(-i*pi/4):
+		double q1 = re[o+1] - re[o+5];
+		double a1 = re[o+1] + re[o+5];
+		double q2 = re[o+3] - re[o+7];
+		double a3 = re[o+3] + re[o+7];
+		double u1 = im[o+1] - im[o+5];
+		double b1 = im[o+1] + im[o+5];
+		double u2 = im[o+3] - im[o+7];
+		double b3 = im[o+3] + im[o+7];
+		double u3 = q1 - u2;
+		q1 += u2;
+		u2 = q2 - u1;
+		q2 += u1;
+		double re5 = (q1 - u2) * SQRT_HALF;
+		double im5 = (-u2 - q1) * SQRT_HALF;
+		double re7 = (q2 - u3) * SQRT_HALF;
+		double im7 = (-q2 - u3) * SQRT_HALF;
+		// 4-point transform of the even outputs:
+		double sumRe02 = a0 + a2;
+		double sumIm02 = b0 + b2;
+		double difRe02 = a0 - a2;
+		double difIm02 = b0 - b2;
+		double sumRe13 = a1 + a3;
+		double sumIm13 = b1 + b3;
+		double difRe13 = a1 - a3;
+		double difIm13 = b1 - b3;
+		re[o] = sumRe02 + sumRe13;
+		im[o] = sumIm02 + sumIm13;
+		re[o+1] = sumRe02 - sumRe13;
+		im[o+1] = sumIm02 - sumIm13;
+		re[o+2] = difRe02 + difIm13;
+		im[o+2] = difIm02 - difRe13;
+		re[o+3] = difRe02 - difIm13;
+		im[o+3] = difIm02 + difRe13;
+		// 2-point transforms of the odd outputs:
+		re[o+4] = re4 + re5;
+		im[o+4] = im4 + im5;
+		re[o+5] = re4 - re5;
+		im[o+5] = im4 - im5;
+		re[o+6] = re6 + re7;
+		im[o+6] = im6 + im7;
+		re[o+7] = re6 - re7;
+		im[o+7] = im6 - im7;
+	}
+
+	/**
+	 * Single-precision version of {@link #complexTransform(double[], double[], int, int)}.
+	 */
+	private void complexTransform(float[] re, float[] im, int offset, int level) {
+		if (level <= 3) {
+			if (level == 3) transform8(re, im, offset);
+			else if (level == 2) transform4(re, im, offset);
+			else if (level == 1) transform2(re, im, offset);
+			return;
+		}
+		int n4 = 1 << (level - 2);
+		float[] twiddles = levelTwiddlesF[level];
+		for (int j = 0; j < n4; j++) {
+			int i0 = offset + j;
+			int i1 = i0 + n4;
+			int i2 = i1 + n4;
+			int i3 = i2 + n4;
+			float r1 = re[i0] - re[i2];
+			re[i0] += re[i2];
+			float r2 = re[i1] - re[i3];
+			re[i1] += re[i3];
+			float s1 = im[i0] - im[i2];
+			im[i0] += im[i2];
+			float s2 = im[i1] - im[i3];
+			im[i1] += im[i3];
+			float s3 = r1 - s2;
+			r1 += s2;
+			s2 = r2 - s1;
+			r2 += s1;
+			float cos1 = twiddles[j];
+			float sin1 = twiddles[n4 + j];
+			float cos3 = twiddles[2 * n4 + j];
+			float sin3 = twiddles[3 * n4 + j];
+			re[i2] = r1 * cos1 - s2 * sin1;
+			im[i2] = -s2 * cos1 - r1 * sin1;
+			re[i3] = s3 * cos3 + r2 * sin3;
+			im[i3] = r2 * cos3 - s3 * sin3;
+		}
+		complexTransform(re, im, offset, level - 1);
+		complexTransform(re, im, offset + 2 * n4, level - 2);
+		complexTransform(re, im, offset + 3 * n4, level - 2);
+	}
+
+	private static void transform2(float[] re, float[] im, int o) {
+		float r = re[o];
+		re[o] = r + re[o+1];
+		re[o+1] = r - re[o+1];
+		float i = im[o];
+		im[o] = i + im[o+1];
+		im[o+1] = i - im[o+1];
+	}
+
+	private static void transform4(float[] re, float[] im, int o) {
+		float sumRe02 = re[o] + re[o+2];
+		float sumIm02 = im[o] + im[o+2];
+		float difRe02 = re[o] - re[o+2];
+		float difIm02 = im[o] - im[o+2];
+		float sumRe13 = re[o+1] + re[o+3];
+		float sumIm13 = im[o+1] + im[o+3];
+		float difRe13 = re[o+1] - re[o+3];
+		float difIm13 = im[o+1] - im[o+3];
+		re[o] = sumRe02 + sumRe13;
+		im[o] = sumIm02 + sumIm13;
+		re[o+1] = sumRe02 - sumRe13;
+		im[o+1] = sumIm02 - sumIm13;
+		re[o+2] = difRe02 + difIm13;
+		im[o+2] = difIm02 - difRe13;
+		re[o+3] = difRe02 - difIm13;
+		im[o+3] = difIm02 + difRe13;
+	}
+
+	private static void transform8(float[] re, float[] im, int o) {
+		float r1 = re[o] - re[o+4];
+		float a0 = re[o] + re[o+4];
+		float r2 = re[o+2] - re[o+6];
+		float a2 = re[o+2] + re[o+6];
+		float s1 = im[o] - im[o+4];
+		float b0 = im[o] + im[o+4];
+		float s2 = im[o+2] - im[o+6];
+		float b2 = im[o+2] + im[o+6];
+		float re4 = r1 + s2;
+		float im4 = s1 - r2;
+		float re6 = r1 - s2;
+		float im6 = r2 + s1;
+		float q1 = re[o+1] - re[o+5];
+		float a1 = re[o+1] + re[o+5];
+		float q2 = re[o+3] - re[o+7];
+		float a3 = re[o+3] + re[o+7];
+		float u1 = im[o+1] - im[o+5];
+		float b1 = im[o+1] + im[o+5];
+		float u2 = im[o+3] - im[o+7];
+		float b3 = im[o+3] + im[o+7];
+		float u3 = q1 - u2;
+		q1 += u2;
+		u2 = q2 - u1;
+		q2 += u1;
+		float re5 = (q1 - u2) * SQRT_HALF_F;
+		float im5 = (-u2 - q1) * SQRT_HALF_F;
+		float re7 = (q2 - u3) * SQRT_HALF_F;
+		float im7 = (-q2 - u3) * SQRT_HALF_F;
+		float sumRe02 = a0 + a2;
+		float sumIm02 = b0 + b2;
+		float difRe02 = a0 - a2;
+		float difIm02 = b0 - b2;
+		float sumRe13 = a1 + a3;
+		float sumIm13 = b1 + b3;
+		float difRe13 = a1 - a3;
+		float difIm13 = b1 - b3;
+		re[o] = sumRe02 + sumRe13;
+		im[o] = sumIm02 + sumIm13;
+		re[o+1] = sumRe02 - sumRe13;
+		im[o+1] = sumIm02 - sumIm13;
+		re[o+2] = difRe02 + difIm13;
+		im[o+2] = difIm02 - difRe13;
+		re[o+3] = difRe02 - difIm13;
+		im[o+3] = difIm02 + difRe13;
+		re[o+4] = re4 + re5;
+		im[o+4] = im4 + im5;
+		re[o+5] = re4 - re5;
+		im[o+5] = im4 - im5;
+		re[o+6] = re6 + re7;
+		im[o+6] = im6 + im7;
+		re[o+7] = re6 - re7;
+		im[o+7] = im6 - im7;
+	}
+
+	/**
+	 * Reads the bit-reversed output Z of the complex transform and writes out the spectrum X of
+	 * the real input. Bins k and half-k are produced together since both depend only on Z[k] and
+	 * Z[half-k]: with E and O being the spectra of the even and odd samples,
+	 * E[k] = (Z[k] + conj(Z[half-k]))/2, O[k] = (Z[k] - conj(Z[half-k]))/2i and
+	 * X[k] = E[k] + exp(-2*pi*i*k/size) * O[k].
+	 * @param out - the array to receive either the packed spectrum or the power spectrum
+	 * @param numBins - the number of power spectrum bins required
+	 * @param power - true to write squared magnitudes, false to write the packed spectrum
+	 */
+	private void separateSpectra(double[] out, int numBins, boolean power) {
+		double first = re[0] + im[0]; // X[0]
+		double last = re[0] - im[0]; // X[half]
+		if (power) out[0] = first * first + last * last;
+		else {
+			out[0] = first;
+			out[1] = last;
+		}
+		for (int k = 1; k <= half / 2; k++) {
+			int pk = bitReverse[k];
+			int pm = bitReverse[half - k];
+			double evenRe = 0.5 * (re[pk] + re[pm]);
+			double evenIm = 0.5 * (im[pk] - im[pm]);
+			double oddRe = 0.5 * (im[pk] + im[pm]);
+			double oddIm = -0.5 * (re[pk] - re[pm]);
+			double t1 = postCos[k] * oddRe + postSin[k] * oddIm;
+			double t2 = postCos[k] * oddIm - postSin[k] * oddRe;
+			double xRe = evenRe + t1; // X[k]
+			double xIm = evenIm + t2;
+			double yRe = evenRe - t1; // X[half-k]
+			double yIm = t2 - evenIm;
+			if (power) {
+				if (k < numBins) out[k] = xRe * xRe + xIm * xIm;
+				if (half - k < numBins) out[half-k] = yRe * yRe + yIm * yIm;
+			} else {
+				out[2*k] = xRe;
+				out[2*k+1] = xIm;
+				out[2*(half-k)] = yRe;
+				out[2*(half-k)+1] = yIm;
+			}
+		}
+	}
+
+	/**
+	 * Single-precision version of {@link #separateSpectra(double[], int, boolean)}.
+	 */
+	private void separateSpectra(float[] out, int numBins, boolean power) {
+		float first = reF[0] + imF[0];
+		float last = reF[0] - imF[0];
+		if (power) out[0] = first * first + last * last;
+		else {
+			out[0] = first;
+			out[1] = last;
+		}
+		for (int k = 1; k <= half / 2; k++) {
+			int pk = bitReverse[k];
+			int pm = bitReverse[half - k];
+			float evenRe = 0.5f * (reF[pk] + reF[pm]);
+			float evenIm = 0.5f * (imF[pk] - imF[pm]);
+			float oddRe = 0.5f * (imF[pk] + imF[pm]);
+			float oddIm = -0.5f * (reF[pk] - reF[pm]);
+			float t1 = postCosF[k] * oddRe + postSinF[k] * oddIm;
+			float t2 = postCosF[k] * oddIm - postSinF[k] * oddRe;
+			float xRe = evenRe + t1;
+			float xIm = evenIm + t2;
+			float yRe = evenRe - t1;
+			float yIm = t2 - evenIm;
+			if (power) {
+				if (k < numBins) out[k] = xRe * xRe + xIm * xIm;
+				if (half - k < numBins) out[half-k] = yRe * yRe + yIm * yIm;
+			} else {
+				out[2*k] = xRe;
+				out[2*k+1] = xIm;
+				out[2*(half-k)] = yRe;
+				out[2*(half-k)+1] = yIm;
+			}
+		}
+	}
+
+}
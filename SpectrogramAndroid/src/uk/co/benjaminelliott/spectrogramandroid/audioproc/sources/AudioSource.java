@@ -0,0 +1,70 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.sources;
+
+/**
+ * Interface that represents a source of 16-bit PCM audio, such as the microphone, a file or a
+ * signal generator, which can be read from in blocks of samples. Samples from sources with more
+ * than one channel are interleaved.
+ *
+ */
+public interface AudioSource {
+
+	/**
+	 * Returned by the read methods once a finite source has no more samples. Distinct from the
+	 * negative error codes that {@code AudioRecord} may return.
+	 */
+	int END_OF_STREAM = Integer.MIN_VALUE;
+
+	/**
+	 * Begin (or resume) producing samples. Must be called before reading, on the thread that
+	 * will read.
+	 */
+	void start();
+
+	/**
+	 * Stop producing samples and release any resources held while started.
+	 */
+	void stop();
+
+	/**
+	 * Read up to {@code length} samples into the buffer, blocking until at least some are available.
+	 * @param buffer - the array to read samples into
+	 * @param offset - the index in the buffer of the first sample to write
+	 * @param length - the maximum number of samples to read
+	 * @return the number of samples read, {@link #END_OF_STREAM}, or a negative error code
+	 */
+	int read(short[] buffer, int offset, int length);
+
+	/**
+	 * Single-precision version of {@link #read(short[], int, int)}. Samples keep the range of
+	 * 16-bit PCM rather than being normalised.
+	 */
+	int read(float[] buffer, int offset, int length);
+
+	/**
+	 * Returns the number of samples per second per channel.
+	 */
+	int getSampleRate();
+
+	/**
+	 * Returns the number of interleaved channels.
+	 */
+	int getChannelCount();
+
+	/**
+	 * Returns the number of frames (samples per channel) read from the source so far.
+	 */
+	long getFramePosition();
+
+	/**
+	 * Returns the number of frames that were captured but never delivered since the source was
+	 * started, e.g. because reads fell so far behind that the source's buffer overflowed.
+	 */
+	long getFramesLost();
+
+	/**
+	 * Returns the {@link System#nanoTime()} at which the first frame was captured. Lost frames
+	 * take up time too, so the most recently read frame was captured at
+	 * {@code getStartTimeNanos() + (getFramePosition() + getFramesLost() - 1) * 1e9 / getSampleRate()}.
+	 */
+	long getStartTimeNanos();
+}
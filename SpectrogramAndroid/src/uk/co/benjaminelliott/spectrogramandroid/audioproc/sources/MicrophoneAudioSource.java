@@ -0,0 +1,124 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.sources;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+/**
+ * An {@link AudioSource} that records mono audio from the device's microphone.
+ * <p>
+ * AudioRecord silently discards audio when its buffer overflows, so frames lost that way are
+ * estimated by comparing how much audio has been read with how much time has passed.
+ *
+ */
+public class MicrophoneAudioSource implements AudioSource {
+
+	private final int sampleRate; // sample rate to record at
+	private AudioRecord mic; // access to the microphone, only held while started
+	private short[] conversionBuffer; // AudioRecord can only read floats from API 23, so read shorts and convert
+	private long framePosition = 0; // frames read since start
+	private long framesLost = 0; // frames estimated to have been discarded by AudioRecord since start
+	private long startTimeNanos = 0; // time at which recording started
+	private boolean firstRead = true; // whether the start time is still a guess made before any audio arrived
+	private long bufferNanos; // duration of audio AudioRecord can hold before it overflows
+
+	public MicrophoneAudioSource(int sampleRate) {
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public void start() {
+		// the reading thread must keep up with the microphone, so give it priority over other work:
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		int readSize = AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+		mic = new AudioRecord(MediaRecorder.AudioSource.MIC,sampleRate,AudioFormat.CHANNEL_IN_MONO,AudioFormat.ENCODING_PCM_16BIT, readSize*2);
+		mic.startRecording();
+		startTimeNanos = System.nanoTime();
+		firstRead = true;
+		framePosition = 0;
+		framesLost = 0;
+		bufferNanos = framesToNanos(readSize); // buffer is readSize*2 bytes of 16-bit samples
+	}
+
+	@Override
+	public void stop() {
+		// stop bringing data from the microphone and release it
+		if (mic != null) {
+			mic.stop();
+			mic.release();
+			mic = null;
+		}
+	}
+
+	@Override
+	public int read(short[] buffer, int offset, int length) {
+		int samplesRead = mic.read(buffer, offset, length);
+		if (samplesRead > 0) {
+			framePosition += samplesRead;
+			trackOverflow(System.nanoTime());
+		}
+		return samplesRead;
+	}
+
+	/**
+	 * Update the estimates of when recording started and of how many frames have been lost, given
+	 * that every frame read so far must have been captured by the time now.
+	 */
+	private void trackOverflow(long now) {
+		long captured = framePosition + framesLost;
+		long lateness = now - (startTimeNanos + framesToNanos(captured));
+		if (firstRead || lateness < 0) {
+			// recording started later than assumed (reads return as soon as audio arrives, so the
+			// earliest consistent start time is the best estimate):
+			startTimeNanos = now - framesToNanos(captured);
+			firstRead = false;
+			return;
+		}
+		// AudioRecord can only be a buffer behind, so any more than that (allowing for scheduling
+		// jitter) must have been discarded:
+		if (lateness > bufferNanos + bufferNanos / 2) {
+			framesLost += (lateness - bufferNanos) * sampleRate / 1000000000L;
+		}
+	}
+
+	private long framesToNanos(long frames) {
+		return frames * 1000000000L / sampleRate;
+	}
+
+	@Override
+	public int read(float[] buffer, int offset, int length) {
+		if (conversionBuffer == null || conversionBuffer.length < length) conversionBuffer = new short[length];
+		int samplesRead = read(conversionBuffer, 0, length);
+		for (int i = 0; i < samplesRead; i++) {
+			buffer[offset + i] = conversionBuffer[i];
+		}
+		return samplesRead;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int getChannelCount() {
+		return 1;
+	}
+
+	@Override
+	public long getFramePosition() {
+		return framePosition;
+	}
+
+	@Override
+	public long getFramesLost() {
+		return framesLost;
+	}
+
+	@Override
+	public long getStartTimeNanos() {
+		return startTimeNanos;
+	}
+
+}
@@ -0,0 +1,136 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.sources;
+
+/**
+ * Base class for {@link AudioSource}s whose samples are available immediately, such as files and
+ * generated signals. Such sources can either be paced so that samples are delivered no faster than
+ * they would be recorded, or be read as fast as possible. Paced sources can also imitate the
+ * microphone's limited buffer, discarding audio if reads fall too far behind.
+ *
+ */
+public abstract class PacedAudioSource implements AudioSource {
+
+	private final int sampleRate;
+	private final int channelCount;
+	private final boolean realTime; // whether reads should block until the samples would have been recorded
+	private float[] conversionBuffer; // samples are produced as floats and converted for short reads
+	private long framePosition = 0; // frames produced so far
+	private long framesLost = 0; // frames discarded because reads fell more than a buffer behind
+	private int bufferFrames = 0; // frames that can be held before audio is discarded, or 0 for no limit
+	private float[] discardBuffer; // destination for discarded samples
+	private long startTimeNanos = 0; // nominal time at which frame 0 was produced
+
+	protected PacedAudioSource(int sampleRate, int channelCount, boolean realTime) {
+		this.sampleRate = sampleRate;
+		this.channelCount = channelCount;
+		this.realTime = realTime;
+	}
+
+	/**
+	 * When paced, discard audio that would have overflowed a buffer of the given number of frames,
+	 * like the microphone does if it is not read often enough.
+	 * @param bufferFrames - the number of frames in the buffer, or 0 to never discard audio
+	 */
+	public void setBufferFrames(int bufferFrames) {
+		this.bufferFrames = bufferFrames;
+	}
+
+	/**
+	 * Write up to {@code length} samples (a whole number of frames) into the buffer.
+	 * @return the number of samples written, or {@link #END_OF_STREAM}
+	 */
+	protected abstract int produce(float[] buffer, int offset, int length);
+
+	@Override
+	public void start() {
+		// carry on from the current position, as though it had just been recorded:
+		startTimeNanos = System.nanoTime() - framesToNanos(framePosition + framesLost);
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public int read(float[] buffer, int offset, int length) {
+		if (realTime && bufferFrames > 0) discardOverflow();
+		int samplesRead = produce(buffer, offset, length - length % channelCount);
+		if (samplesRead == END_OF_STREAM) return END_OF_STREAM;
+		framePosition += samplesRead / channelCount;
+		if (realTime) waitUntilRecorded();
+		return samplesRead;
+	}
+
+	@Override
+	public int read(short[] buffer, int offset, int length) {
+		if (conversionBuffer == null || conversionBuffer.length < length) conversionBuffer = new float[length];
+		int samplesRead = read(conversionBuffer, 0, length);
+		for (int i = 0; i < samplesRead; i++) {
+			float sample = conversionBuffer[i];
+			// clip rather than wrap around if the sample is out of range:
+			if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+			else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+			buffer[offset + i] = (short) sample;
+		}
+		return samplesRead;
+	}
+
+	/**
+	 * Discard any audio that would have been recorded more than a buffer ago.
+	 */
+	private void discardOverflow() {
+		long recorded = (System.nanoTime() - startTimeNanos) * sampleRate / 1000000000L;
+		long overflow = recorded - (framePosition + framesLost) - bufferFrames;
+		if (overflow <= 0) return;
+		if (discardBuffer == null) discardBuffer = new float[bufferFrames * channelCount];
+		while (overflow > 0) {
+			int frames = (int) Math.min(overflow, bufferFrames);
+			int samplesDiscarded = produce(discardBuffer, 0, frames * channelCount);
+			if (samplesDiscarded <= 0) return; // end of stream
+			framesLost += samplesDiscarded / channelCount;
+			overflow -= samplesDiscarded / channelCount;
+		}
+	}
+
+	/**
+	 * Sleep until the most recently produced frame would have been recorded by a real device.
+	 */
+	private void waitUntilRecorded() {
+		long wait = startTimeNanos + framesToNanos(framePosition + framesLost) - System.nanoTime();
+		if (wait <= 0) return;
+		try {
+			Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long framesToNanos(long frames) {
+		return frames * 1000000000L / sampleRate;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	@Override
+	public long getFramePosition() {
+		return framePosition;
+	}
+
+	@Override
+	public long getFramesLost() {
+		return framesLost;
+	}
+
+	@Override
+	public long getStartTimeNanos() {
+		return startTimeNanos;
+	}
+
+}
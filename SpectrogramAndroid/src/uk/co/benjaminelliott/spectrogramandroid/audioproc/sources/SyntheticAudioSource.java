@@ -0,0 +1,166 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.sources;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * A mono {@link AudioSource} that generates a test signal made up of any combination of tones,
+ * chirps, noise and bursts loud enough to clip. Output is clipped to the range of 16-bit PCM.
+ * Signals should be added before the source is started.
+ *
+ */
+public class SyntheticAudioSource extends PacedAudioSource {
+
+	private final ArrayList<Signal> signals = new ArrayList<Signal>(); // components summed to make the output
+	private final Random random; // source of noise, seeded so that runs are repeatable
+	private final long numFrames; // length of the stream, or -1 for an endless stream
+	private long frame = 0; // index of the next frame to generate
+
+	/**
+	 * @param sampleRate - sample rate of the generated signal
+	 * @param durationSeconds - length of the stream, or 0 for an endless stream
+	 * @param realTime - true to deliver samples no faster than they would be recorded
+	 * @param seed - seed for the noise generator
+	 */
+	public SyntheticAudioSource(int sampleRate, double durationSeconds, boolean realTime, long seed) {
+		super(sampleRate, 1, realTime);
+		numFrames = (durationSeconds > 0) ? (long) (durationSeconds * sampleRate) : -1;
+		random = new Random(seed);
+	}
+
+	/**
+	 * Add a constant sine tone.
+	 * @param frequency - frequency in Hz
+	 * @param amplitude - peak amplitude, where 32767 is full scale
+	 */
+	public void addTone(double frequency, double amplitude) {
+		signals.add(new Tone(frequency, amplitude));
+	}
+
+	/**
+	 * Add a sine tone whose frequency sweeps linearly from startFrequency to endFrequency, then
+	 * jumps back and sweeps again.
+	 * @param sweepSeconds - duration of each sweep
+	 */
+	public void addChirp(double startFrequency, double endFrequency, double sweepSeconds, double amplitude) {
+		signals.add(new Chirp(startFrequency, endFrequency, sweepSeconds, amplitude));
+	}
+
+	/**
+	 * Add Gaussian white noise.
+	 * @param amplitude - standard deviation of the noise
+	 */
+	public void addNoise(double amplitude) {
+		signals.add(new Noise(amplitude));
+	}
+
+	/**
+	 * Add bursts of a sine tone, which will be clipped if their amplitude exceeds full scale.
+	 * @param burstSeconds - duration of each burst
+	 * @param periodSeconds - time from the start of one burst to the start of the next
+	 */
+	public void addClippedBursts(double frequency, double amplitude, double burstSeconds, double periodSeconds) {
+		signals.add(new Bursts(frequency, amplitude, burstSeconds, periodSeconds));
+	}
+
+	@Override
+	protected int produce(float[] buffer, int offset, int length) {
+		if (numFrames >= 0) {
+			if (frame == numFrames) return END_OF_STREAM;
+			length = (int) Math.min(length, numFrames - frame);
+		}
+		int numSignals = signals.size();
+		for (int i = 0; i < length; i++) {
+			double sample = 0;
+			for (int s = 0; s < numSignals; s++) {
+				sample += signals.get(s).valueAt(frame);
+			}
+			if (sample > Short.MAX_VALUE) sample = Short.MAX_VALUE;
+			else if (sample < Short.MIN_VALUE) sample = Short.MIN_VALUE;
+			buffer[offset + i] = (float) sample;
+			frame++;
+		}
+		return length;
+	}
+
+	/**
+	 * A component of the generated signal.
+	 */
+	private abstract class Signal {
+		abstract double valueAt(long frame);
+
+		double seconds(long frame) {
+			return (double) frame / getSampleRate();
+		}
+	}
+
+	private class Tone extends Signal {
+		private final double frequency;
+		private final double amplitude;
+
+		Tone(double frequency, double amplitude) {
+			this.frequency = frequency;
+			this.amplitude = amplitude;
+		}
+
+		@Override
+		double valueAt(long frame) {
+			return amplitude * Math.sin(2 * Math.PI * frequency * seconds(frame));
+		}
+	}
+
+	private class Chirp extends Signal {
+		private final double startFrequency;
+		private final double sweepRate; // change in frequency per second
+		private final long sweepFrames;
+		private final double amplitude;
+
+		Chirp(double startFrequency, double endFrequency, double sweepSeconds, double amplitude) {
+			this.startFrequency = startFrequency;
+			this.sweepRate = (endFrequency - startFrequency) / sweepSeconds;
+			this.sweepFrames = Math.max(1, (long) (sweepSeconds * getSampleRate()));
+			this.amplitude = amplitude;
+		}
+
+		@Override
+		double valueAt(long frame) {
+			double t = seconds(frame % sweepFrames);
+			// phase is the integral of the instantaneous frequency:
+			return amplitude * Math.sin(2 * Math.PI * (startFrequency * t + 0.5 * sweepRate * t * t));
+		}
+	}
+
+	private class Noise extends Signal {
+		private final double amplitude;
+
+		Noise(double amplitude) {
+			this.amplitude = amplitude;
+		}
+
+		@Override
+		double valueAt(long frame) {
+			return amplitude * random.nextGaussian();
+		}
+	}
+
+	private class Bursts extends Signal {
+		private final double frequency;
+		private final double amplitude;
+		private final long burstFrames;
+		private final long periodFrames;
+
+		Bursts(double frequency, double amplitude, double burstSeconds, double periodSeconds) {
+			this.frequency = frequency;
+			this.amplitude = amplitude;
+			this.burstFrames = (long) (burstSeconds * getSampleRate());
+			this.periodFrames = Math.max(1, (long) (periodSeconds * getSampleRate()));
+		}
+
+		@Override
+		double valueAt(long frame) {
+			if (frame % periodFrames >= burstFrames) return 0;
+			return amplitude * Math.sin(2 * Math.PI * frequency * seconds(frame));
+		}
+	}
+
+}
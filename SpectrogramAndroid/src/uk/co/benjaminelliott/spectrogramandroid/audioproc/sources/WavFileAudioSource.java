@@ -0,0 +1,78 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.sources;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import uk.co.benjaminelliott.spectrogramandroid.storage.WAVExplorer;
+
+/**
+ * An {@link AudioSource} that plays back the samples of a 16-bit PCM WAV file, either at the
+ * rate they would have been recorded or as fast as they can be read.
+ *
+ */
+public class WavFileAudioSource extends PacedAudioSource {
+
+	private final float[][] channels; // samples of each channel of the file
+	private final boolean loop; // whether to start again from the beginning once the end is reached
+	private int position = 0; // index of the next frame to play
+
+	/**
+	 * @param filepath - path of the WAV file to play
+	 * @param realTime - true to deliver samples no faster than they would be recorded
+	 * @param loop - true to repeat the file indefinitely rather than ending the stream
+	 * @param mixToMono - true to average the channels of a stereo file into one
+	 */
+	public WavFileAudioSource(String filepath, boolean realTime, boolean loop, boolean mixToMono) throws FileNotFoundException {
+		this(new WAVExplorer(checkExists(filepath)), realTime, loop, mixToMono);
+	}
+
+	private WavFileAudioSource(WAVExplorer wav, boolean realTime, boolean loop, boolean mixToMono) {
+		super(wav.getSampleRate(), (wav.isMono() || mixToMono) ? 1 : 2, realTime);
+		this.loop = loop;
+		if (wav.isMono()) {
+			channels = new float[][] { wav.getFirstChannelDataAsFloat() };
+		}
+		else if (mixToMono) {
+			float[] mixed = wav.getFirstChannelDataAsFloat();
+			float[] second = wav.getSecondChannelDataAsFloat();
+			for (int i = 0; i < mixed.length; i++) {
+				mixed[i] = 0.5f * (mixed[i] + second[i]);
+			}
+			channels = new float[][] { mixed };
+		}
+		else {
+			channels = new float[][] { wav.getFirstChannelDataAsFloat(), wav.getSecondChannelDataAsFloat() };
+		}
+	}
+
+	private static String checkExists(String filepath) throws FileNotFoundException {
+		if (!new File(filepath).isFile()) throw new FileNotFoundException(filepath);
+		return filepath;
+	}
+
+	@Override
+	protected int produce(float[] buffer, int offset, int length) {
+		int numFrames = channels[0].length;
+		if (position == numFrames) {
+			if (!loop || numFrames == 0) return END_OF_STREAM;
+			position = 0;
+		}
+		int numChannels = channels.length;
+		int frames = Math.min(length / numChannels, numFrames - position);
+		for (int i = 0; i < frames; i++) {
+			for (int c = 0; c < numChannels; c++) {
+				buffer[offset++] = channels[c][position];
+			}
+			position++;
+		}
+		return frames * numChannels;
+	}
+
+	/**
+	 * Returns the number of frames in the file.
+	 */
+	public int getNumFrames() {
+		return channels[0].length;
+	}
+
+}
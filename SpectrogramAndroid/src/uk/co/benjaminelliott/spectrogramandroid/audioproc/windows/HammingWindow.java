@@ -8,9 +8,16 @@ package uk.co.benjaminelliott.spectrogramandroid.audioproc.windows;
 public class HammingWindow implements WindowFunction {
 	
 	private final int windowSize;
+	private final double[] hammingWindow; // window coefficients, generated once since they never change
+	private final float[] hammingWindowFloat; // single-precision copy of the coefficients
 	
 	public HammingWindow(int windowSize) {
 		this.windowSize = windowSize;
+		hammingWindow = generateHammingWindow(windowSize);
+		hammingWindowFloat = new float[windowSize];
+		for (int i = 0; i < windowSize; i++) {
+			hammingWindowFloat[i] = (float) hammingWindow[i];
+		}
 	}
 
 
@@ -34,11 +41,17 @@ public class HammingWindow implements WindowFunction {
 	
 	@Override
 	public void applyWindow(double[] samples) {
-		double[] hammingWindow = generateHammingWindow(windowSize);
 		//apply windowing function through multiplication with time-domain samples
 		for (int i = 0; i < windowSize; i++) {
 			samples[i] *= hammingWindow[i]; 
 		}
 	}
 
+	@Override
+	public void applyWindow(float[] samples) {
+		for (int i = 0; i < windowSize; i++) {
+			samples[i] *= hammingWindowFloat[i];
+		}
+	}
+
 }
@@ -13,4 +13,10 @@ public interface WindowFunction {
 	 * @param samples - the array of audio samples
 	 */
 	void applyWindow(double[] samples);
+
+	/**
+	 * Apply the windowing function to the provided single-precision input data in-place.
+	 * @param samples - the array of audio samples
+	 */
+	void applyWindow(float[] samples);
 }
@@ -0,0 +1,32 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Sends trace sections to the platform's systrace buffer, where they appear alongside the system's
+ * own rendering, audio and garbage collection events. The platform discards them unless a trace is
+ * being captured, so this can be left installed. Requires API level 18.
+ *
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AndroidTraceBackend implements TraceBackend {
+
+	/**
+	 * Returns true if the device's platform version supports this backend.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+	}
+
+	@Override
+	public void beginSection(String name) {
+		Trace.beginSection(name);
+	}
+
+	@Override
+	public void endSection() {
+		Trace.endSection();
+	}
+}
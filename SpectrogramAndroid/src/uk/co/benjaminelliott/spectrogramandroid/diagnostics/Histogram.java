@@ -0,0 +1,109 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (such as latencies in nanoseconds or queue depths) with
+ * fixed log-linear buckets, in the style of HdrHistogram: values below 64 are counted exactly, and
+ * larger values fall into one of 32 equal-width buckets per power of two, so any recorded value is
+ * reported to within about 3%. Recording never allocates, and is safe to do from one thread while
+ * others read.
+ *
+ */
+public class Histogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // buckets per power of two
+	private static final long MAX_VALUE = (1L << 40) - 1; // larger values are clamped (about 18 minutes in ns)
+
+	private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Returns the index of the bucket that holds the given value.
+	 */
+	private static int bucketIndex(long value) {
+		if (value < 2 * SUB_BUCKET_COUNT) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKET_COUNT;
+	}
+
+	/**
+	 * Returns the largest value that falls into the bucket with the given index.
+	 */
+	private static long bucketUpperBound(int index) {
+		if (index < 2 * SUB_BUCKET_COUNT) return index;
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long top = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a single occurrence of the given value.
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Record several occurrences of the same value, e.g. the average cost of each item in a batch.
+	 */
+	public void record(long value, int occurrences) {
+		if (value < 0) value = 0;
+		else if (value > MAX_VALUE) value = MAX_VALUE;
+		counts.addAndGet(bucketIndex(value), occurrences);
+		totalCount.addAndGet(occurrences);
+		sum.addAndGet(value * occurrences);
+		long currentMax = max.get();
+		while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+			currentMax = max.get();
+		}
+	}
+
+	public long getTotalCount() {
+		return totalCount.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = totalCount.get();
+		return (count == 0) ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values fall, or 0 if
+	 * nothing has been recorded.
+	 * @param percentile - between 0 and 100
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= target) return Math.min(bucketUpperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Discard all recorded values.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+}
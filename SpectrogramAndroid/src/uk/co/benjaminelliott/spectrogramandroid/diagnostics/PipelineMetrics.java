@@ -0,0 +1,215 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters for each stage of the audio pipeline: reading from the microphone
+ * ({@code AudioCollector}), turning windows into bitmaps ({@code BitmapCreator}) and drawing them
+ * ({@code SpectrogramDrawer}), plus the depth of the queues between the stages and the end-to-end
+ * latency from a window being recorded to it appearing on screen. All recording methods are
+ * allocation-free, so they can be called on every window.
+ *
+ */
+public class PipelineMetrics {
+
+	private final Histogram micRead = new Histogram(); // ns blocked reading each window from the source
+	private final Histogram collectorStall = new Histogram(); // ns the collector was behind real time as each window completed
+	private final Histogram fft = new Histogram(); // ns to turn each audio window into a bitmap window
+	private final Histogram draw = new Histogram(); // ns to draw each frame of the scrolling display
+	private final Histogram micToPixel = new Histogram(); // ns from a window being recorded to it being displayed
+	private final Histogram audioQueueDepth = new Histogram(); // windows waiting for BitmapCreator each time it wakes
+	private final Histogram bitmapQueueDepth = new Histogram(); // bitmaps waiting to be drawn each time one is made
+	private final AtomicLong overrunWindows = new AtomicLong(); // audio windows overwritten before being processed
+	private final AtomicLong droppedWindows = new AtomicLong(); // bitmap windows overwritten before being drawn
+	private final AtomicLong gaps = new AtomicLong(); // discontinuities in the audio
+	private final AtomicLong framesLost = new AtomicLong(); // frames missing from the audio across all gaps
+	private final AtomicLong readErrors = new AtomicLong(); // error codes returned by the audio source
+
+	private volatile long newestHandedOutNanos = 0; // recording time of the newest window handed to the drawer
+
+	public void recordMicRead(long nanos) {
+		micRead.record(nanos);
+	}
+
+	public void recordCollectorStall(long nanos) {
+		collectorStall.record(nanos);
+	}
+
+	/**
+	 * Record a discontinuity in the audio, with the given number of frames missing.
+	 */
+	public void gap(long frames) {
+		gaps.incrementAndGet();
+		framesLost.addAndGet(frames);
+	}
+
+	public void readError() {
+		readErrors.incrementAndGet();
+	}
+
+	public void recordFft(long nanos) {
+		fft.record(nanos);
+	}
+
+	/**
+	 * Record the cost of each window of a batch that took batchNanos in total.
+	 */
+	public void recordFftBatch(long batchNanos, int batchSize) {
+		fft.record(batchNanos / batchSize, batchSize);
+	}
+
+	public void recordAudioQueueDepth(int windows) {
+		audioQueueDepth.record(windows);
+	}
+
+	public void recordBitmapQueueDepth(int windows) {
+		bitmapQueueDepth.record(windows);
+	}
+
+	public void windowOverrun() {
+		overrunWindows.incrementAndGet();
+	}
+
+	public void windowDropped() {
+		droppedWindows.incrementAndGet();
+	}
+
+	/**
+	 * Record that a bitmap window whose audio was captured at the given time has been handed to the
+	 * drawer, so that its end-to-end latency can be measured once it is drawn.
+	 */
+	public void windowHandedOut(long capturedNanos) {
+		newestHandedOutNanos = capturedNanos;
+	}
+
+	/**
+	 * Record that a frame taking drawNanos to draw has just been posted to the display, showing
+	 * every window handed out so far.
+	 */
+	public void framePresented(long drawNanos, long nanoTime) {
+		draw.record(drawNanos);
+		long recorded = newestHandedOutNanos;
+		if (recorded != 0) {
+			micToPixel.record(nanoTime - recorded);
+			newestHandedOutNanos = 0; // only measure each window once
+		}
+	}
+
+	public Histogram getMicReadLatency() {
+		return micRead;
+	}
+
+	public Histogram getCollectorStall() {
+		return collectorStall;
+	}
+
+	public Histogram getFftLatency() {
+		return fft;
+	}
+
+	public Histogram getDrawLatency() {
+		return draw;
+	}
+
+	public Histogram getMicToPixelLatency() {
+		return micToPixel;
+	}
+
+	public Histogram getAudioQueueDepth() {
+		return audioQueueDepth;
+	}
+
+	public Histogram getBitmapQueueDepth() {
+		return bitmapQueueDepth;
+	}
+
+	public long getOverrunWindows() {
+		return overrunWindows.get();
+	}
+
+	public long getDroppedWindows() {
+		return droppedWindows.get();
+	}
+
+	public long getGaps() {
+		return gaps.get();
+	}
+
+	public long getFramesLost() {
+		return framesLost.get();
+	}
+
+	public long getReadErrors() {
+		return readErrors.get();
+	}
+
+	/**
+	 * Discard everything recorded so far.
+	 */
+	public void reset() {
+		micRead.reset();
+		collectorStall.reset();
+		fft.reset();
+		draw.reset();
+		micToPixel.reset();
+		audioQueueDepth.reset();
+		bitmapQueueDepth.reset();
+		overrunWindows.set(0);
+		droppedWindows.set(0);
+		gaps.set(0);
+		framesLost.set(0);
+		readErrors.set(0);
+	}
+
+	/**
+	 * Write a plain-text report of all metrics, with latencies in milliseconds.
+	 */
+	public void writeReport(PrintWriter out) {
+		out.println("stage\tcount\tmean\tp50\tp90\tp99\tp99.9\tmax");
+		writeLatency(out, "mic_read_ms", micRead);
+		writeLatency(out, "collector_stall_ms", collectorStall);
+		writeLatency(out, "fft_ms", fft);
+		writeLatency(out, "draw_ms", draw);
+		writeLatency(out, "mic_to_pixel_ms", micToPixel);
+		writeDepth(out, "audio_queue_windows", audioQueueDepth);
+		writeDepth(out, "bitmap_queue_windows", bitmapQueueDepth);
+		out.println("overrun_windows\t"+overrunWindows.get());
+		out.println("dropped_windows\t"+droppedWindows.get());
+		out.println("gaps\t"+gaps.get());
+		out.println("frames_lost\t"+framesLost.get());
+		out.println("read_errors\t"+readErrors.get());
+	}
+
+	/**
+	 * Write a report of all metrics to the given file, replacing its contents.
+	 */
+	public void dumpToFile(File file) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			writeReport(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeLatency(PrintWriter out, String name, Histogram h) {
+		out.println(name+"\t"+h.getTotalCount()+"\t"+millis(h.getMean())+"\t"+millis(h.getValueAtPercentile(50))+"\t"
+				+millis(h.getValueAtPercentile(90))+"\t"+millis(h.getValueAtPercentile(99))+"\t"
+				+millis(h.getValueAtPercentile(99.9))+"\t"+millis(h.getMax()));
+	}
+
+	private static void writeDepth(PrintWriter out, String name, Histogram h) {
+		out.println(name+"\t"+h.getTotalCount()+"\t"+h.getMean()+"\t"+h.getValueAtPercentile(50)+"\t"
+				+h.getValueAtPercentile(90)+"\t"+h.getValueAtPercentile(99)+"\t"
+				+h.getValueAtPercentile(99.9)+"\t"+h.getMax());
+	}
+
+	private static double millis(double nanos) {
+		return Math.round(nanos / 1000) / 1000.0;
+	}
+
+}
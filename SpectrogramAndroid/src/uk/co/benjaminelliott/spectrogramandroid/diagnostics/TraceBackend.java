@@ -0,0 +1,21 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+/**
+ * Interface that represents somewhere trace sections can be sent, e.g. the platform's
+ * systrace buffer on a device or the flight recorder on a desktop JVM.
+ *
+ */
+public interface TraceBackend {
+
+	/**
+	 * Start a section with the given name on the calling thread. Sections nest, so every call
+	 * must be matched by a call to {@link #endSection()} on the same thread.
+	 * @param name - the name of the section, e.g. the method being traced
+	 */
+	void beginSection(String name);
+
+	/**
+	 * End the section most recently begun on the calling thread.
+	 */
+	void endSection();
+}
@@ -0,0 +1,42 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+/**
+ * Marks named sections of work on the audio, processing and drawing threads so they can be lined up
+ * on one timeline with garbage collections, blocked reads and dropped frames. Sections are sent to a
+ * {@link TraceBackend} chosen once at startup; with no backend installed, beginning or ending a
+ * section is a single field check.
+ *
+ */
+public class Tracer {
+
+	private static TraceBackend backend = null; // where sections are sent, or null if tracing is off
+
+	/**
+	 * Choose where trace sections are sent. This should be called once at startup, before any of the
+	 * pipeline's threads start, since a section begun with one backend cannot be ended with another.
+	 * @param traceBackend - the backend to use, or null to turn tracing off
+	 */
+	public static void setBackend(TraceBackend traceBackend) {
+		backend = traceBackend;
+	}
+
+	public static boolean isEnabled() {
+		return backend != null;
+	}
+
+	/**
+	 * Start a section with the given name on the calling thread.
+	 */
+	public static void begin(String name) {
+		TraceBackend b = backend;
+		if (b != null) b.beginSection(name);
+	}
+
+	/**
+	 * End the section most recently begun on the calling thread.
+	 */
+	public static void end() {
+		TraceBackend b = backend;
+		if (b != null) b.endSection();
+	}
+}
@@ -1,6 +1,8 @@
 package uk.co.benjaminelliott.spectrogramandroid.preferences;
 
 import uk.co.benjaminelliott.spectrogramandroid.R;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.FrequencyAxis;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.WindowHistory;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
@@ -16,18 +18,38 @@ public class DynamicAudioConfig {
     
 	// Preference keys:
     public static final String PREF_COLOURMAP_KEY = "pref_colourmap";
+    public static final String PREF_FREQUENCY_AXIS_KEY = "pref_frequency_axis";
+    public static final String PREF_DISPLAY_SNR_KEY = "pref_display_snr";
     public static final String PREF_CONTRAST_KEY = "pref_contrast";
     public static final String PREF_SAMPLE_RATE_KEY = "pref_sample_rate";
     public static final String PREF_SAMPLES_WINDOW_KEY = "pref_samples_window";
     public static final String PREF_OVERFILTER_KEY = "pref_overfilter";
+    public static final String PREF_AUTO_CAPTURE_KEY = "pref_auto_capture";
     public static final String PREF_AUDIO_KEY = "pref_user_test_audio";
+    public static final String PREF_FLOAT_PRECISION_KEY = "pref_float_precision";
+    public static final String PREF_PARALLEL_CATCH_UP_KEY = "pref_parallel_catch_up";
+    public static final String PREF_DEBUG_OVERLAY_KEY = "pref_debug_overlay";
+    public static final String PREF_HISTORY_SECONDS_KEY = "pref_history_seconds";
+    public static final String PREF_COMPRESS_HISTORY_KEY = "pref_compress_history";
+    public static final String PREF_UPLOAD_UNMETERED_ONLY_KEY = "pref_upload_unmetered_only";
+    public static final String PREF_UPLOAD_CHARGING_ONLY_KEY = "pref_upload_charging_only";
+    public static final String PREF_STREAM_ENABLED_KEY = "pref_stream_enabled";
+    public static final String PREF_STREAM_VIEWER_KEY = "pref_stream_viewer";
+    public static final String PREF_STREAM_DECIMATION_KEY = "pref_stream_decimation";
     
     // Storage directory for captured audio and bitmaps:
     public static final String STORE_DIR_NAME = "Spectrogram captures";
     
-    //number of windows that can be held in the arrays at once before older ones are deleted. Time this represents is
-    // WINDOW_LIMIT*SAMPLES_PER_WINDOW/SAMPLE_RATE, e.g. 10000*300/16000 = 187.5 seconds.
-    public static final int WINDOW_LIMIT = 1000; //usually around 10000 
+    // Default number of seconds of audio that can be scrolled back through:
+    public static final int DEFAULT_HISTORY_SECONDS = 120;
+    // Share of the maximum heap size that the audio and bitmap history may take up:
+    public static final float HISTORY_HEAP_FRACTION = 0.25f;
+    // Fewest windows the history should hold, enough to fill the widest screens, if the heap budget allows:
+    public static final int MIN_WINDOW_LIMIT = 1000;
+    
+    // Level above a frequency's background noise that is drawn at full colour when showing levels above
+    // the background (dB):
+    public static final float SNR_FULL_SCALE_DB = 30;
     
     // Scaling factor for saved bitmaps:
     public static final int BITMAP_STORE_WIDTH_ADJ = 2;
@@ -36,9 +58,29 @@ public class DynamicAudioConfig {
     public static final int BITMAP_STORE_QUALITY = 90;
     // Number of pixels (subject to width adjustment) to use to display frequency axis on stored bitmaps:
     public static final int BITMAP_FREQ_AXIS_WIDTH = 30; 
+    // Size of the previews shown in the library, and their compression quality:
+    public static final int THUMBNAIL_WIDTH = 256;
+    public static final int THUMBNAIL_HEIGHT = 96;
+    public static final int THUMBNAIL_QUALITY = 80;
+    // Share of the maximum heap size that decoded previews may take up:
+    public static final float THUMBNAIL_HEAP_FRACTION = 0.125f;
     
     // Number of bits per sample:
     public static final int BITS_PER_SAMPLE = 16;
+    // Samples per frame of saved FLAC audio, and the highest order of linear predictor tried when encoding it:
+    public static final int FLAC_BLOCK_SIZE = 4096;
+    public static final int FLAC_MAX_LPC_ORDER = 8;
+    
+    // Server that captures are uploaded to:
+    public static final String UPLOAD_HOST = "172.17.156.36"; //TODO hard-coded server IP!
+    // Captures sent per upload session, and the most sessions run at once:
+    public static final int UPLOAD_BATCH_SIZE = 20;
+    public static final int UPLOAD_SESSIONS = 2;
+    
+    // Most columns of the live stream held while its connection catches up (about a second's worth), and the
+    // bits dropped from each streamed level, which leaves steps of about 2 dB:
+    public static final int STREAM_QUEUE_COLUMNS = 64;
+    public static final int STREAM_LEVEL_SHIFT = 2;
     
 	// ---------------- DYNAMIC (influenced by user prefs but constant for the lifetime of the application)
     
@@ -48,7 +90,23 @@ public class DynamicAudioConfig {
 
     public final float CONTRAST;
     public final int COLOUR_MAP;
+    public final int FREQUENCY_AXIS; //scale of the display's frequency axis, one of the FrequencyAxis scales
+    public final boolean DISPLAY_SNR; //colour the display by level above each frequency's background rather than by loudness
     public final boolean OVERFILTER;
+    public final boolean AUTO_CAPTURE; //capture sounds that stand out from the background without waiting for the user
+    public final boolean FLOAT_PRECISION; //analyse audio in single rather than double precision
+    public final boolean PARALLEL_CATCH_UP; //share the work of catching up on a backlog of windows across several threads
+    public final boolean DEBUG_OVERLAY; //draw pipeline latency statistics over the spectrogram
+    public final int HISTORY_SECONDS; //seconds of audio the user wants to be able to scroll back through
+    public final boolean COMPRESS_HISTORY; //hold the audio history losslessly compressed, fitting more of it into the heap budget
+    public final boolean UPLOAD_UNMETERED_ONLY; //only upload captures over networks that are not charged by the byte
+    public final boolean UPLOAD_CHARGING_ONLY; //only upload captures while the device is plugged in
+    public final boolean STREAM_ENABLED; //stream the live spectrogram to a viewer
+    public final String STREAM_VIEWER; //host[:port] of the viewer to stream to
+    public final int STREAM_DECIMATION; //windows that make up each streamed column
+    //number of windows that can be held in the history at once before older ones are deleted, enough for
+    //HISTORY_SECONDS unless that would take more than the heap budget:
+    public final int WINDOW_LIMIT;
 
     
     public DynamicAudioConfig(Context context) {
@@ -56,7 +114,21 @@ public class DynamicAudioConfig {
         SAMPLE_RATE = Integer.parseInt(prefs.getString(PREF_SAMPLE_RATE_KEY, "16000"));
         SAMPLES_PER_WINDOW = Integer.parseInt(prefs.getString(PREF_SAMPLES_WINDOW_KEY, "300"));
         OVERFILTER = prefs.getBoolean(PREF_OVERFILTER_KEY, false);
+        AUTO_CAPTURE = prefs.getBoolean(PREF_AUTO_CAPTURE_KEY, false);
+        FLOAT_PRECISION = prefs.getBoolean(PREF_FLOAT_PRECISION_KEY, false);
+        PARALLEL_CATCH_UP = prefs.getBoolean(PREF_PARALLEL_CATCH_UP_KEY, false);
+        DEBUG_OVERLAY = prefs.getBoolean(PREF_DEBUG_OVERLAY_KEY, false);
         NUM_FREQ_BINS = SAMPLES_PER_WINDOW / 2; //lose half because of symmetry
+        HISTORY_SECONDS = Integer.parseInt(prefs.getString(PREF_HISTORY_SECONDS_KEY, Integer.toString(DEFAULT_HISTORY_SECONDS)));
+        COMPRESS_HISTORY = prefs.getBoolean(PREF_COMPRESS_HISTORY_KEY, false);
+        WINDOW_LIMIT = windowLimit(SAMPLE_RATE, SAMPLES_PER_WINDOW, HISTORY_SECONDS, COMPRESS_HISTORY, historyHeapBudget());
+        UPLOAD_UNMETERED_ONLY = prefs.getBoolean(PREF_UPLOAD_UNMETERED_ONLY_KEY, true);
+        UPLOAD_CHARGING_ONLY = prefs.getBoolean(PREF_UPLOAD_CHARGING_ONLY_KEY, false);
+        STREAM_ENABLED = prefs.getBoolean(PREF_STREAM_ENABLED_KEY, false);
+        STREAM_VIEWER = prefs.getString(PREF_STREAM_VIEWER_KEY, "").trim();
+        STREAM_DECIMATION = Integer.parseInt(prefs.getString(PREF_STREAM_DECIMATION_KEY, "1"));
+        FREQUENCY_AXIS = Integer.parseInt(prefs.getString(PREF_FREQUENCY_AXIS_KEY, Integer.toString(FrequencyAxis.LINEAR)));
+        DISPLAY_SNR = prefs.getBoolean(PREF_DISPLAY_SNR_KEY, false);
         
         String colMapString = prefs.getString(PREF_COLOURMAP_KEY, "NULL");
         if (!colMapString.equals("NULL")) {
@@ -72,4 +144,60 @@ public class DynamicAudioConfig {
         CONTRAST = newContrast * 3.0f + 1.0f;
     }
 
+    /**
+     * Creates a configuration from explicit values rather than the user's preferences, e.g. to run the
+     * audio pipeline off-device. Contrast is given on the same 0-1 scale as the preference slider.
+     */
+    public DynamicAudioConfig(int sampleRate, int samplesPerWindow, float contrast, int colourMap,
+            boolean overfilter, boolean floatPrecision, boolean parallelCatchUp) {
+        this(sampleRate, samplesPerWindow, contrast, colourMap, overfilter, floatPrecision, parallelCatchUp, false);
+    }
+
+    /**
+     * As {@link #DynamicAudioConfig(int, int, float, int, boolean, boolean, boolean)}, optionally
+     * colouring the display by level above the background.
+     */
+    public DynamicAudioConfig(int sampleRate, int samplesPerWindow, float contrast, int colourMap,
+            boolean overfilter, boolean floatPrecision, boolean parallelCatchUp, boolean displaySnr) {
+        SAMPLE_RATE = sampleRate;
+        SAMPLES_PER_WINDOW = samplesPerWindow;
+        OVERFILTER = overfilter;
+        AUTO_CAPTURE = false;
+        FLOAT_PRECISION = floatPrecision;
+        PARALLEL_CATCH_UP = parallelCatchUp;
+        DEBUG_OVERLAY = false;
+        NUM_FREQ_BINS = SAMPLES_PER_WINDOW / 2;
+        HISTORY_SECONDS = DEFAULT_HISTORY_SECONDS;
+        COMPRESS_HISTORY = false;
+        WINDOW_LIMIT = windowLimit(SAMPLE_RATE, SAMPLES_PER_WINDOW, HISTORY_SECONDS, COMPRESS_HISTORY, historyHeapBudget());
+        UPLOAD_UNMETERED_ONLY = false;
+        UPLOAD_CHARGING_ONLY = false;
+        STREAM_ENABLED = false;
+        STREAM_VIEWER = "";
+        STREAM_DECIMATION = 1;
+        FREQUENCY_AXIS = FrequencyAxis.LINEAR;
+        DISPLAY_SNR = displaySnr;
+        COLOUR_MAP = colourMap;
+        CONTRAST = contrast * 3.0f + 1.0f;
+    }
+
+    /**
+     * Returns the number of windows the history should hold to cover the given number of seconds,
+     * but at least {@link #MIN_WINDOW_LIMIT}. The result is then reduced if necessary so that it takes
+     * up no more than the given number of bytes, even if that leaves fewer than MIN_WINDOW_LIMIT.
+     * @param compressAudio - whether the history's audio will be compressed
+     */
+    public static int windowLimit(int sampleRate, int samplesPerWindow, float seconds, boolean compressAudio, long budgetBytes) {
+        long forDuration = Math.max(MIN_WINDOW_LIMIT, (long) Math.ceil(seconds * sampleRate / samplesPerWindow));
+        long forBudget = budgetBytes / WindowHistory.bytesPerWindow(samplesPerWindow, samplesPerWindow / 2, compressAudio);
+        return (int) Math.max(1, Math.min(forDuration, forBudget));
+    }
+
+    /**
+     * Returns the number of bytes the history may take up, a fixed share of the most the heap can grow to.
+     */
+    public static long historyHeapBudget() {
+        return (long) (Runtime.getRuntime().maxMemory() * HISTORY_HEAP_FRACTION);
+    }
+
 }
@@ -10,6 +10,16 @@ package uk.co.benjaminelliott.spectrogramandroid.preferences;
  */
 public class HeatMap {
 
+	/**
+	 * Returns the colour scheme chosen by the given colour map preference.
+	 */
+	public static int[] fromPreference(int colourMap) {
+		switch (colourMap) {
+		case 1: return YlOrRd_ColorBrewer();
+		case 2: return PuOr_Backwards_ColorBrewer();
+		default: return Greys_ColorBrewer();
+		}
+	}
 
 	public static int[] greyscale() {
 		/*
@@ -34,5 +34,8 @@ public class UiConfig {
     
     //Number of horizontal pixels to use for each time window
     public static final int HORIZONTAL_STRETCH_FACTOR = 2;
+    
+    //Whether a zoomed-out spectrogram shows the loudest of the windows behind each column rather than their mean
+    public static final boolean ZOOM_SHOWS_PEAKS = true;
 
 }
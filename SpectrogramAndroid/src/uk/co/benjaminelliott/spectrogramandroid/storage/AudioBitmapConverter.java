@@ -6,35 +6,49 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.HeatMap;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.location.Location;
 import android.media.ExifInterface;
 import android.os.Environment;
 import android.util.Log;
 
 /**
- * Class that helps in writing a capture to disk by saving the bitmap as a geotagged JPEG and the audio as
- * a WAV, as well as serialising all of the captured data as a {@link CapturedBitmapAudio} object.
+ * Class that helps in writing a capture to disk by rendering its spectrogram as a geotagged JPEG and saving
+ * the audio as a FLAC, as well as serialising all of the captured data as a {@link CapturedBitmapAudio} object.
  * @author Ben
  *
  */
 public class AudioBitmapConverter  {
 
 	private static final String TAG = "AudioBitmapConverter";
+    public static final String AUDIO_EXTENSION = ".flac";
     private final double decLatitude;
     private final double decLongitude;
     private final String filename;
-    private final int[] bitmapAsIntArray;
-    private final byte[] wavAudio;
-    private final int width;
-    private final int height;
+    private final SpectrogramLevels levels;
+    private final byte[] flacAudio;
+    private final int sampleRate;
+    private final int numSamples;
+    private final boolean hasLocation;
+    private final boolean spansGap;
     private CapturedBitmapAudio cba;
-    private Bitmap bitmap;
+    private File jpegFile; // files written so far, or null
+    private File flacFile;
+    private File cbaFile;
 
-    public AudioBitmapConverter(String filename, DynamicAudioConfig dac, Bitmap bitmap, short[] rawWavAudio, Location loc) {
+    public AudioBitmapConverter(String filename, DynamicAudioConfig dac, SpectrogramLevels levels, short[] rawWavAudio, Location loc, boolean spansGap) {
         this.filename = filename;
-        this.bitmap = bitmap;
+        this.levels = levels;
+        this.spansGap = spansGap;
+        sampleRate = dac.SAMPLE_RATE;
+        numSamples = rawWavAudio.length;
+        hasLocation = (loc != null);
         if (loc != null) {
             decLatitude = loc.getLatitude();
             decLongitude = loc.getLongitude();
@@ -42,36 +56,84 @@ public class AudioBitmapConverter  {
             decLatitude = 0;
             decLongitude = 0;
         }
-        wavAudio = WavUtils.wavFromAudio(rawWavAudio, dac.SAMPLE_RATE);
-        width = bitmap.getWidth();
-        height = bitmap.getHeight();
-        bitmapAsIntArray = new int[width * height];
-        bitmap.getPixels(bitmapAsIntArray, 0, width, 0, 0, width, height);
-        cba = new CapturedBitmapAudio(filename, bitmapAsIntArray, wavAudio, width, height, decLatitude, decLongitude);
+        // on the calling thread, as a pool per capture would be started and torn down for every detected sound:
+        flacAudio = FlacEncoder.encode(rawWavAudio, dac.SAMPLE_RATE, DynamicAudioConfig.FLAC_BLOCK_SIZE,
+                DynamicAudioConfig.FLAC_MAX_LPC_ORDER, 1);
+        cba = new CapturedBitmapAudio(filename, levels, flacAudio, decLatitude, decLongitude, spansGap);
     }
 
     /**
-     * Write the bitmap to a JPEG file and geotag it, then write the audio to a WAV file.
+     * Render the spectrogram to a JPEG file, geotag it and write its preview for the library, then write
+     * the audio to a FLAC file.
      */
-    public void storeJPEGandWAV() {
-        writeBitmapToJpegFile(bitmap, filename);
-        geotagJpeg(filename, decLatitude, decLongitude);
-        writeWavToFile(wavAudio, filename);
+    public void storeJPEGandFLAC() {
+        Bitmap bitmap = renderBitmap(levels);
+        jpegFile = writeBitmapToJpegFile(bitmap, filename);
+        if (jpegFile != null) ThumbnailCache.writeThumbnail(bitmap, jpegFile);
+        bitmap.recycle();
+        if (jpegFile != null) geotagJpeg(jpegFile, decLatitude, decLongitude);
+        flacFile = writeFlacToFile(flacAudio, filename);
+    }
+
+    /**
+     * Returns the capture's entry for the {@link CaptureCatalog}, naming the files written so far.
+     */
+    public CaptureRecord toCaptureRecord(long timestamp) {
+        return new CaptureRecord(-1, filename, timestamp, (long) numSamples * 1000 / sampleRate,
+                levels.getRowFrequency(0), levels.getRowFrequency(levels.rows), sampleRate,
+                hasLocation ? decLatitude : Double.NaN, hasLocation ? decLongitude : Double.NaN, spansGap,
+                nameOf(jpegFile), nameOf(flacFile), nameOf(cbaFile));
+    }
+
+    private static String nameOf(File file) {
+        return (file == null) ? null : file.getName();
+    }
+
+    /**
+     * Renders the given spectrogram in the colours it was displayed with, enlarged for storage and with
+     * its frequency range written down the left-hand side.
+     */
+    public static Bitmap renderBitmap(SpectrogramLevels levels) {
+        int widthAdj = DynamicAudioConfig.BITMAP_STORE_WIDTH_ADJ;
+        int heightAdj = DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ;
+        int axisWidth = DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH * widthAdj;
+        int spectrogramWidth = levels.columns * widthAdj;
+        int height = Math.max(levels.rows * heightAdj, 1);
+        Bitmap bitmap = Bitmap.createBitmap(axisWidth + spectrogramWidth, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawColor(Color.BLACK);
+        if (levels.columns > 0 && levels.rows > 0) {
+            int[] pixels = levels.render(HeatMap.fromPreference(levels.colourMap), levels.contrast, widthAdj, heightAdj);
+            bitmap.setPixels(pixels, 0, spectrogramWidth, axisWidth, 0, spectrogramWidth, height);
+        }
+
+        //annotate bitmap with frequency range:
+        String bottomFreqText = Math.round(levels.getRowFrequency(0))+" Hz";
+        String topFreqText = Math.round(levels.getRowFrequency(levels.rows))+" Hz";
+        Paint textStyle = new Paint();
+        textStyle.setColor(Color.WHITE);
+        textStyle.setTextSize(DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/3);
+        canvas.drawText(bottomFreqText, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, height-5*heightAdj, textStyle);
+        canvas.drawText(topFreqText, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, DynamicAudioConfig.BITMAP_FREQ_AXIS_WIDTH/2, textStyle);
+        return bitmap;
     }
 
     /**
      * Creates a JPEG from the provided bitmap and saves it under the provided filename.
      * @param bitmap - the bitmap to use to create the JPEG
      * @param filename - the name of the file under which it should be stored
+     * @return the file written, or null if it could not be
      */
-    private static void writeBitmapToJpegFile(Bitmap bitmap, String filename) {
+    private static File writeBitmapToJpegFile(Bitmap bitmap, String filename) {
+        File bmpFile = null;
         if (isExternalStorageWritable()) {
             File dir = getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
             FileOutputStream fos = null;
+            Tracer.begin("writeBitmapToJpegFile");
             try {
             	// keep incrementing filename until one is found that does not clash:
                 int suffix = 0;
-                File bmpFile = new File(dir.getAbsolutePath()+"/"+filename+".jpg");
+                bmpFile = new File(dir.getAbsolutePath()+"/"+filename+".jpg");
                 while (bmpFile.exists()) {
                     bmpFile = new File(dir.getAbsolutePath()+"/"+filename+"_"+suffix+".jpg");
                     suffix++;
@@ -81,27 +143,30 @@ public class AudioBitmapConverter  {
                 bitmap.compress(Bitmap.CompressFormat.JPEG, DynamicAudioConfig.BITMAP_STORE_QUALITY, fos);
             } catch (FileNotFoundException e) {
                 Log.e(TAG,"Unable to create file",e);
+                bmpFile = null;
             } finally {
                 try {
-                    fos.close();
+                    if (fos != null) fos.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                Tracer.end();
             }
         } 
         else
         	Log.e(TAG,"External storage is not writable.");
+        return bmpFile;
     }
 
     /**
-     * Geotag the JPEG at the specified filename with the specified latitude and longitude
-     * @param filename - the filename of the file in the captures directory to geotag
+     * Geotag the specified JPEG with the specified latitude and longitude
+     * @param jpegFile - the file to geotag
      * @param decLatitude - the latitude (in decimal degrees)
      * @param decLongitude - the longitude (in decimal degrees)
      */
-    private static void geotagJpeg(String filename, double decLatitude, double decLongitude) {
-        File dir = getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
-        String jpegFilepath = dir.getAbsolutePath()+"//"+filename+".jpg";
+    private static void geotagJpeg(File jpegFile, double decLatitude, double decLongitude) {
+        String jpegFilepath = jpegFile.getAbsolutePath();
+        Tracer.begin("geotagJpeg");
         try {
             ExifInterface exif = new ExifInterface(jpegFilepath);
             // add latitude and longitude to JPEG's EXIF:
@@ -118,25 +183,30 @@ public class AudioBitmapConverter  {
         } catch (IOException e) {
             Log.e(TAG,"Error finding JPEG file for tagging: "+jpegFilepath);
             e.printStackTrace();
+        } finally {
+            Tracer.end();
         }
     }
 
 
 
     /**
-     * Write the supplied data (header and samples) to a WAV file.
+     * Write the supplied FLAC stream to a file.
      * @param data - the data to write
      * @param filename - the filename under which the audio should be stored
+     * @return the file written, or null if it could not be
      */
-    private static void writeWavToFile(byte[] data, String filename) {
+    private static File writeFlacToFile(byte[] data, String filename) {
         FileOutputStream fos = null;
+        File audioFile = null;
         if (isExternalStorageWritable()) {
             File dir = getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
+            Tracer.begin("writeFlacToFile");
             try {
-                File audioFile = new File(dir.getAbsolutePath()+"/"+filename+".wav");
+                audioFile = new File(dir.getAbsolutePath()+"/"+filename+AUDIO_EXTENSION);
                 int suffix = 0;
                 while (audioFile.exists()) {
-                    audioFile = new File(dir.getAbsolutePath()+"/"+filename+"_"+suffix+".wav");
+                    audioFile = new File(dir.getAbsolutePath()+"/"+filename+"_"+suffix+AUDIO_EXTENSION);
                     suffix++;
                 }
                 fos = new FileOutputStream(audioFile);
@@ -145,16 +215,20 @@ public class AudioBitmapConverter  {
             } catch (FileNotFoundException e) {
                 Log.d(TAG,"Unable to save audio file: "+dir.getAbsolutePath()+"/"+filename);
                 e.printStackTrace();
+                audioFile = null;
             } catch (IOException e) {
                 e.printStackTrace();
+                audioFile = null;
             } finally {
                 try {
-                    fos.close();
+                    if (fos != null) fos.close();
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                Tracer.end();
             }
         }
+        return audioFile;
     }
 
 
@@ -244,16 +318,19 @@ public class AudioBitmapConverter  {
      * @param cba
      * @param filename
      * @param directory
+     * @return the file written, or null if it could not be
      */
-    private static void writeCbaToFile(CapturedBitmapAudio cba, String filename, String directory) {
+    private static File writeCbaToFile(CapturedBitmapAudio cba, String filename, String directory) {
+        File cbaFile = null;
         if (AudioBitmapConverter.isExternalStorageWritable()) {
             File dir = AudioBitmapConverter.getAlbumStorageDir(directory);
             FileOutputStream fos = null;
             ObjectOutputStream oos = null;
+            Tracer.begin("writeCbaToFile");
             try {
             	// keep incrementing file suffix until file does not clash:
                 int suffix = 0;
-                File cbaFile = new File(dir.getAbsolutePath()+"/"+filename+CapturedBitmapAudio.EXTENSION);
+                cbaFile = new File(dir.getAbsolutePath()+"/"+filename+CapturedBitmapAudio.EXTENSION);
                 while (cbaFile.exists()) {
                     cbaFile = new File(dir.getAbsolutePath()+"/"+filename+"_"+suffix+".cba");
                     suffix++;
@@ -263,28 +340,28 @@ public class AudioBitmapConverter  {
                 oos.writeObject(cba);
             } catch (FileNotFoundException e) {
             	Log.e(TAG,"Unable to write to file: "+dir.getAbsolutePath()+"/"+filename, e);
+            	cbaFile = null;
             } catch (IOException e) {
             	Log.e(TAG,"Unable to write to file: "+dir.getAbsolutePath()+"/"+filename, e);
+            	cbaFile = null;
             } finally {
                 try {
-                    fos.close();
+                    if (fos != null) fos.close();
                 } catch (IOException e) {
                 	Log.e(TAG,"Error when closing file output stream");
                 }
+                Tracer.end();
             }
         }
+        return cbaFile;
     }
     
     public void writeThisCbaToFile(String filename, String directory) {
-        writeCbaToFile(cba, filename, directory);
-    }
-
-    public int getWidth() {
-        return width;
+        cbaFile = writeCbaToFile(cba, filename, directory);
     }
 
-    public int getHeight() {
-        return height;
+    public SpectrogramLevels getLevels() {
+        return levels;
     }
 
     public CapturedBitmapAudio getCBA() {
@@ -0,0 +1,402 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.media.ExifInterface;
+import android.util.Log;
+
+/**
+ * SQLite index of the captures on disk, so the library can list and locate captures a page at a time
+ * without scanning the captures directory or reading any capture's files. A capture is added as it is
+ * stored; if the database goes missing it is rebuilt from the captures directory when next opened.
+ * <p>
+ * Each located capture is also indexed by its {@link GeoHash}, so the captures in a box or within a
+ * distance of a point are found by scanning just the index ranges of the few cells covering it.
+ *
+ */
+public class CaptureCatalog extends SQLiteOpenHelper {
+
+    private static final String TAG = "CaptureCatalog";
+    private static final String DATABASE_NAME = "captures.db";
+    private static final int DATABASE_VERSION = 2; // 2 added the geohash column
+    static final String TABLE = "captures";
+    static final String ID = "_id";
+    static final String NAME = "name";
+    static final String TIMESTAMP = "timestamp";
+    static final String DURATION_MS = "duration_ms";
+    static final String BOTTOM_FREQ = "bottom_freq";
+    static final String TOP_FREQ = "top_freq";
+    static final String SAMPLE_RATE = "sample_rate";
+    static final String LATITUDE = "latitude";
+    static final String LONGITUDE = "longitude";
+    static final String SPANS_GAP = "spans_gap";
+    static final String IMAGE_FILE = "image_file";
+    static final String AUDIO_FILE = "audio_file";
+    static final String CBA_FILE = "cba_file";
+    static final String GEOHASH = "geohash";
+    private static final String[] COLUMNS = { ID, NAME, TIMESTAMP, DURATION_MS, BOTTOM_FREQ, TOP_FREQ, SAMPLE_RATE,
+        LATITUDE, LONGITUDE, SPANS_GAP, IMAGE_FILE, AUDIO_FILE, CBA_FILE };
+    private static final String NEWEST_FIRST = TIMESTAMP+" DESC, "+ID+" DESC";
+    private static final String IMAGE_EXTENSION = ".jpg";
+    private static final String LEGACY_AUDIO_EXTENSION = ".wav"; // captures saved before audio was stored as FLAC
+    private static final int FLAC_HEADER_BYTES = 42; // marker, then the STREAMINFO block's header and body
+    private static final int MAX_QUERY_CELLS = 16; // most geohash cells a spatial query scans
+
+    private static CaptureCatalog instance;
+
+    private CaptureCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static synchronized CaptureCatalog getInstance(Context context) {
+        if (instance == null) instance = new CaptureCatalog(context.getApplicationContext());
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE "+TABLE+" ("
+                +ID+" INTEGER PRIMARY KEY AUTOINCREMENT, "
+                +NAME+" TEXT NOT NULL, "
+                +TIMESTAMP+" INTEGER NOT NULL, "
+                +DURATION_MS+" INTEGER NOT NULL, "
+                +BOTTOM_FREQ+" REAL NOT NULL, "
+                +TOP_FREQ+" REAL NOT NULL, "
+                +SAMPLE_RATE+" INTEGER NOT NULL, "
+                +LATITUDE+" REAL, "
+                +LONGITUDE+" REAL, "
+                +SPANS_GAP+" INTEGER NOT NULL, "
+                +IMAGE_FILE+" TEXT, "
+                +AUDIO_FILE+" TEXT, "
+                +CBA_FILE+" TEXT, "
+                +GEOHASH+" TEXT)");
+        db.execSQL("CREATE INDEX "+TABLE+"_"+TIMESTAMP+" ON "+TABLE+" ("+TIMESTAMP+", "+ID+")");
+        db.execSQL("CREATE INDEX "+TABLE+"_"+IMAGE_FILE+" ON "+TABLE+" ("+IMAGE_FILE+")");
+        createGeohashIndex(db);
+        // the database is new, so either this is the first run or it went missing:
+        addCapturesOnDisk(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE "+TABLE+" ADD COLUMN "+GEOHASH+" TEXT");
+            createGeohashIndex(db);
+            Cursor cursor = db.query(TABLE, new String[] { ID, LATITUDE, LONGITUDE }, LATITUDE+" IS NOT NULL", null, null, null, null);
+            try {
+                ContentValues values = new ContentValues();
+                while (cursor.moveToNext()) {
+                    values.put(GEOHASH, GeoHash.encode(cursor.getDouble(1), cursor.getDouble(2), GeoHash.MAX_PRECISION));
+                    db.update(TABLE, values, ID+" = ?", new String[] { Long.toString(cursor.getLong(0)) });
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void createGeohashIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX "+TABLE+"_"+GEOHASH+" ON "+TABLE+" ("+GEOHASH+")");
+    }
+
+    /**
+     * Adds the given capture to the catalog, replacing any entry for the same image. There will be
+     * one if the catalog was rebuilt from disk after the capture's files were written.
+     * @return the record with its new row id
+     */
+    public CaptureRecord add(CaptureRecord record) {
+        SQLiteDatabase db = getWritableDatabase();
+        long id;
+        db.beginTransaction();
+        try {
+            if (record.imageFile != null) db.delete(TABLE, IMAGE_FILE+" = ?", new String[] { record.imageFile });
+            id = db.insert(TABLE, null, toValues(record));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (id < 0) Log.e(TAG, "Unable to add capture "+record.name+" to the catalog");
+        return record.withId(id);
+    }
+
+    /**
+     * Returns up to limit captures, newest first, starting with the one after the given capture, or
+     * with the newest if it is null. Pages are found through the timestamp index however far into the
+     * catalog they are.
+     */
+    public List<CaptureRecord> getPage(CaptureRecord after, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (after != null) {
+            selection = TIMESTAMP+" < ? OR ("+TIMESTAMP+" = ? AND "+ID+" < ?)";
+            String timestamp = Long.toString(after.timestamp);
+            selectionArgs = new String[] { timestamp, timestamp, Long.toString(after.id) };
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, selection, selectionArgs, null, null,
+                NEWEST_FIRST, Integer.toString(limit));
+        try {
+            return readRecords(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the captures in the given box, given as {minLat, minLon, maxLat, maxLon} in degrees
+     * with minLon greater than maxLon if it crosses the 180th meridian, newest first.
+     */
+    public List<CaptureRecord> findInBox(double[] box) {
+        List<CaptureRecord> found = new ArrayList<CaptureRecord>();
+        for (CaptureRecord record : queryCells(GeoHash.cover(box, MAX_QUERY_CELLS))) {
+            if (GeoHash.contains(box, record.latitude, record.longitude)) found.add(record);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the captures within the given distance of the given point, nearest first.
+     */
+    public List<CaptureRecord> findWithin(final double latitude, final double longitude, double radiusMeters) {
+        List<CaptureRecord> found = new ArrayList<CaptureRecord>();
+        final Map<CaptureRecord, Double> distances = new HashMap<CaptureRecord, Double>();
+        for (CaptureRecord record : findInBox(GeoHash.boundingBox(latitude, longitude, radiusMeters))) {
+            double distance = GeoHash.distanceMeters(latitude, longitude, record.latitude, record.longitude);
+            if (distance <= radiusMeters) {
+                found.add(record);
+                distances.put(record, distance);
+            }
+        }
+        Collections.sort(found, new Comparator<CaptureRecord>() {
+            @Override
+            public int compare(CaptureRecord a, CaptureRecord b) {
+                return Double.compare(distances.get(a), distances.get(b));
+            }
+        });
+        return found;
+    }
+
+    /**
+     * Returns the captures whose geohashes start with any of the given prefixes, newest first.
+     */
+    private List<CaptureRecord> queryCells(List<String> prefixes) {
+        StringBuilder selection = new StringBuilder();
+        String[] selectionArgs = new String[2 * prefixes.size()];
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (i > 0) selection.append(" OR ");
+            selection.append("(").append(GEOHASH).append(" >= ? AND ").append(GEOHASH).append(" < ?)");
+            selectionArgs[2*i] = prefixes.get(i);
+            selectionArgs[2*i+1] = GeoHash.upperBound(prefixes.get(i));
+        }
+        Cursor cursor = getReadableDatabase().query(TABLE, COLUMNS, selection.toString(), selectionArgs, null, null, NEWEST_FIRST);
+        try {
+            return readRecords(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public long count() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE);
+    }
+
+    /**
+     * Discards the catalog and builds it again from the captures directory.
+     */
+    public void rebuild() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE, null, null);
+            addCapturesOnDisk(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    static List<CaptureRecord> readRecords(Cursor cursor) {
+        List<CaptureRecord> records = new ArrayList<CaptureRecord>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            records.add(new CaptureRecord(
+                    cursor.getLong(0),
+                    cursor.getString(1),
+                    cursor.getLong(2),
+                    cursor.getLong(3),
+                    cursor.getFloat(4),
+                    cursor.getFloat(5),
+                    cursor.getInt(6),
+                    cursor.isNull(7) ? Double.NaN : cursor.getDouble(7),
+                    cursor.isNull(8) ? Double.NaN : cursor.getDouble(8),
+                    cursor.getInt(9) != 0,
+                    cursor.getString(10),
+                    cursor.getString(11),
+                    cursor.getString(12)));
+        }
+        return records;
+    }
+
+    private static ContentValues toValues(CaptureRecord record) {
+        ContentValues values = new ContentValues();
+        values.put(NAME, record.name);
+        values.put(TIMESTAMP, record.timestamp);
+        values.put(DURATION_MS, record.durationMs);
+        values.put(BOTTOM_FREQ, record.bottomFreq);
+        values.put(TOP_FREQ, record.topFreq);
+        values.put(SAMPLE_RATE, record.sampleRate);
+        if (record.hasLocation()) {
+            values.put(LATITUDE, record.latitude);
+            values.put(LONGITUDE, record.longitude);
+            values.put(GEOHASH, GeoHash.encode(record.latitude, record.longitude, GeoHash.MAX_PRECISION));
+        } else {
+            values.putNull(LATITUDE);
+            values.putNull(LONGITUDE);
+            values.putNull(GEOHASH);
+        }
+        values.put(SPANS_GAP, record.spansGap ? 1 : 0);
+        values.put(IMAGE_FILE, record.imageFile);
+        values.put(AUDIO_FILE, record.audioFile);
+        values.put(CBA_FILE, record.cbaFile);
+        return values;
+    }
+
+    /**
+     * Lists the captures directory once, groups its files by capture and adds a record for each
+     * capture that has an image or a .cba file.
+     */
+    private static void addCapturesOnDisk(SQLiteDatabase db) {
+        File dir = AudioBitmapConverter.getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Tracer.begin("rebuildCatalog");
+        try {
+            // image, audio and .cba file of each capture, by capture name:
+            Map<String, File[]> captures = new HashMap<String, File[]>();
+            for (File file : files) {
+                String name = file.getName();
+                int slot;
+                String extension;
+                if (name.endsWith(IMAGE_EXTENSION)) { slot = 0; extension = IMAGE_EXTENSION; }
+                else if (name.endsWith(AudioBitmapConverter.AUDIO_EXTENSION)) { slot = 1; extension = AudioBitmapConverter.AUDIO_EXTENSION; }
+                else if (name.endsWith(LEGACY_AUDIO_EXTENSION)) { slot = 1; extension = LEGACY_AUDIO_EXTENSION; }
+                else if (name.endsWith(CapturedBitmapAudio.EXTENSION)) { slot = 2; extension = CapturedBitmapAudio.EXTENSION; }
+                else continue;
+                String captureName = name.substring(0, name.length() - extension.length());
+                File[] captureFiles = captures.get(captureName);
+                if (captureFiles == null) {
+                    captureFiles = new File[3];
+                    captures.put(captureName, captureFiles);
+                }
+                // prefer FLAC to a WAV left over from before the switch:
+                if (slot != 1 || captureFiles[1] == null || extension.equals(AudioBitmapConverter.AUDIO_EXTENSION)) {
+                    captureFiles[slot] = file;
+                }
+            }
+            for (Map.Entry<String, File[]> capture : captures.entrySet()) {
+                File[] captureFiles = capture.getValue();
+                if (captureFiles[0] == null && captureFiles[2] == null) continue;
+                try {
+                    db.insert(TABLE, null, toValues(readRecord(capture.getKey(), captureFiles[0], captureFiles[1], captureFiles[2])));
+                } catch (RuntimeException e) {
+                    // one damaged capture should not keep the rest out of the catalog:
+                    Log.e(TAG, "Skipping capture "+capture.getKey()+", whose files could not be read", e);
+                }
+            }
+            Log.d(TAG, "Rebuilt catalog of "+captures.size()+" captures from "+files.length+" files");
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Works out a capture's record from its files, any of which may be null. Everything is read from
+     * the header fields of the .cba file if it can be; otherwise the location comes from the image's
+     * geotag and the length from the FLAC header, and the frequency band is taken to be all of it.
+     * Lengths are left at 0 if a header gives no sample rate, as a truncated or corrupt one may.
+     */
+    private static CaptureRecord readRecord(String name, File image, File audio, File cba) {
+        long timestamp = Long.MAX_VALUE;
+        for (File file : new File[] { image, audio, cba }) {
+            if (file != null && file.lastModified() > 0) timestamp = Math.min(timestamp, file.lastModified());
+        }
+        if (timestamp == Long.MAX_VALUE) timestamp = 0;
+        String imageFile = (image == null) ? null : image.getName();
+        String audioFile = (audio == null) ? null : audio.getName();
+        String cbaFile = (cba == null) ? null : cba.getName();
+
+        CaptureHeader captured = (cba == null) ? null : readCbaHeader(cba);
+        if (captured != null) {
+            long durationMs = (captured.sampleRate <= 0) ? 0
+                    : (long) captured.columns * captured.samplesPerWindow * 1000 / captured.sampleRate;
+            // captures made without a location were given 0, 0:
+            boolean located = captured.decLatitude != 0 || captured.decLongitude != 0;
+            return new CaptureRecord(-1, name, timestamp, durationMs, captured.getRowFrequency(0), captured.getRowFrequency(captured.rows),
+                    captured.sampleRate, located ? captured.decLatitude : Double.NaN, located ? captured.decLongitude : Double.NaN,
+                    captured.spansGap, imageFile, audioFile, cbaFile);
+        }
+
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        if (image != null) {
+            try {
+                float[] latLong = new float[2];
+                if (new ExifInterface(image.getAbsolutePath()).getLatLong(latLong)
+                        && (latLong[0] != 0 || latLong[1] != 0)) {
+                    latitude = latLong[0];
+                    longitude = latLong[1];
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the geotag of "+image.getAbsolutePath(), e);
+            }
+        }
+        int sampleRate = 0;
+        long durationMs = 0;
+        if (audio != null && audio.getName().endsWith(AudioBitmapConverter.AUDIO_EXTENSION)) {
+            try {
+                FlacDecoder header = new FlacDecoder(readStart(audio, FLAC_HEADER_BYTES));
+                sampleRate = header.getSampleRate();
+                if (sampleRate > 0) durationMs = header.getTotalSamples() * 1000 / sampleRate;
+                else Log.e(TAG, "No sample rate in the header of "+audio.getAbsolutePath());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read the header of "+audio.getAbsolutePath(), e);
+            }
+        }
+        return new CaptureRecord(-1, name, timestamp, durationMs, 0, sampleRate / 2f, sampleRate,
+                latitude, longitude, false, imageFile, audioFile, cbaFile);
+    }
+
+    private static CaptureHeader readCbaHeader(File file) {
+        try {
+            return CaptureHeader.read(file);
+        } catch (IOException e) {
+            Log.d(TAG, "Unable to read "+file.getAbsolutePath()+", possibly saved by an older version: "+e);
+        }
+        return null;
+    }
+
+    private static byte[] readStart(File file, int length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) Math.min(length, in.length())];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metadata of a capture's .cba file, read without deserialising it. A .cba holds a serialised
+ * {@link CapturedBitmapAudio}, most of which is its FLAC audio and its deflated levels, so rather than
+ * reading the whole object this walks the serialisation stream, keeping the primitive and string
+ * fields and skipping over the contents of arrays. Only the stream format written for plain
+ * {@link java.io.Serializable} classes is understood, which is all a .cba contains.
+ *
+ */
+final class CaptureHeader {
+
+    final double decLatitude;
+    final double decLongitude;
+    final boolean spansGap;
+    final int columns; // as in SpectrogramLevels
+    final int rows;
+    final int bottomBin;
+    final int sampleRate;
+    final int samplesPerWindow;
+
+    private CaptureHeader(Map<String, Object> capture, Map<String, Object> spectrogram) throws IOException {
+        decLatitude = (Double) field(capture, "decLatitude");
+        decLongitude = (Double) field(capture, "decLongitude");
+        spansGap = (Boolean) field(capture, "spansGap");
+        columns = (Integer) field(spectrogram, "columns");
+        rows = (Integer) field(spectrogram, "rows");
+        bottomBin = (Integer) field(spectrogram, "bottomBin");
+        sampleRate = (Integer) field(spectrogram, "sampleRate");
+        samplesPerWindow = (Integer) field(spectrogram, "samplesPerWindow");
+    }
+
+    private static Object field(Map<String, Object> fields, String name) throws IOException {
+        Object value = fields.get(name);
+        if (value == null) throw new IOException("No "+name+" field");
+        return value;
+    }
+
+    /**
+     * Returns the centre frequency in Hz of the given row, as {@link SpectrogramLevels#getRowFrequency(int)}.
+     */
+    float getRowFrequency(int row) {
+        return (float) (bottomBin + row) * sampleRate / samplesPerWindow;
+    }
+
+    /**
+     * Reads the metadata of the given .cba file.
+     * @throws IOException if the file cannot be read, is truncated or does not hold a capture
+     */
+    @SuppressWarnings("unchecked")
+    static CaptureHeader read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readShort() != ObjectStreamConstants.STREAM_MAGIC || in.readShort() != ObjectStreamConstants.STREAM_VERSION) {
+                throw new IOException("Not a serialisation stream");
+            }
+            Object capture = new StreamWalker(in).readContent();
+            if (!(capture instanceof Map)) throw new IOException("Not a capture");
+            Object spectrogram = ((Map<String, Object>) capture).get("spectrogram");
+            if (!(spectrogram instanceof Map)) throw new IOException("Capture has no spectrogram");
+            return new CaptureHeader((Map<String, Object>) capture, (Map<String, Object>) spectrogram);
+        } catch (ClassCastException e) {
+            throw new IOException("Unexpected field type: "+e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Description of a serialised class: its fields in the order their values are written.
+     */
+    private static class ClassDesc {
+        final String name;
+        final List<Character> types = new ArrayList<Character>();
+        final List<String> names = new ArrayList<String>();
+        ClassDesc superDesc; // null for the topmost serialisable class
+
+        ClassDesc(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Reads the objects of a serialisation stream, each as a map of its field names to their values.
+     * Primitives are boxed, strings are read, arrays are skipped and read as null, and a reference to
+     * an earlier object is read as that object.
+     */
+    private static class StreamWalker {
+        private final DataInputStream in;
+        private final List<Object> handles = new ArrayList<Object>(); // objects in the order they were assigned handles
+
+        StreamWalker(DataInputStream in) {
+            this.in = in;
+        }
+
+        Object readContent() throws IOException {
+            byte tc = in.readByte();
+            switch (tc) {
+            case ObjectStreamConstants.TC_NULL:
+                return null;
+            case ObjectStreamConstants.TC_REFERENCE:
+                return handle(in.readInt());
+            case ObjectStreamConstants.TC_STRING:
+                return newHandle(in.readUTF());
+            case ObjectStreamConstants.TC_LONGSTRING:
+                throw new IOException("Unexpectedly long string");
+            case ObjectStreamConstants.TC_ARRAY:
+                return readArray();
+            case ObjectStreamConstants.TC_OBJECT:
+                return readObject();
+            default:
+                throw new IOException("Unsupported type code "+tc);
+            }
+        }
+
+        private Object readObject() throws IOException {
+            ClassDesc desc = readClassDesc();
+            if (desc == null) throw new IOException("Object without a class");
+            Map<String, Object> fields = new HashMap<String, Object>();
+            newHandle(fields);
+            // superclasses' fields come first:
+            List<ClassDesc> hierarchy = new ArrayList<ClassDesc>();
+            for (ClassDesc d = desc; d != null; d = d.superDesc) hierarchy.add(0, d);
+            for (ClassDesc d : hierarchy) {
+                for (int i = 0; i < d.names.size(); i++) fields.put(d.names.get(i), readValue(d.types.get(i)));
+            }
+            return fields;
+        }
+
+        private Object readArray() throws IOException {
+            ClassDesc desc = readClassDesc();
+            if (desc == null) throw new IOException("Array without a class");
+            newHandle(null);
+            int length = in.readInt();
+            if (length < 0) throw new IOException("Negative array length");
+            char type = desc.name.charAt(1);
+            int size = primitiveSize(type);
+            if (size > 0) {
+                skipFully((long) length * size);
+            } else {
+                for (int i = 0; i < length; i++) readContent();
+            }
+            return null;
+        }
+
+        private Object readValue(char type) throws IOException {
+            switch (type) {
+            case 'B': return in.readByte();
+            case 'C': return in.readChar();
+            case 'D': return in.readDouble();
+            case 'F': return in.readFloat();
+            case 'I': return in.readInt();
+            case 'J': return in.readLong();
+            case 'S': return in.readShort();
+            case 'Z': return in.readBoolean();
+            default: return readContent();
+            }
+        }
+
+        private ClassDesc readClassDesc() throws IOException {
+            byte tc = in.readByte();
+            if (tc == ObjectStreamConstants.TC_NULL) return null;
+            if (tc == ObjectStreamConstants.TC_REFERENCE) {
+                Object desc = handle(in.readInt());
+                if (!(desc instanceof ClassDesc)) throw new IOException("Reference to a class expected");
+                return (ClassDesc) desc;
+            }
+            if (tc != ObjectStreamConstants.TC_CLASSDESC) throw new IOException("Unsupported class type code "+tc);
+            ClassDesc desc = new ClassDesc(in.readUTF());
+            in.readLong(); // serialVersionUID
+            newHandle(desc);
+            byte flags = in.readByte();
+            if ((flags & (ObjectStreamConstants.SC_WRITE_METHOD | ObjectStreamConstants.SC_EXTERNALIZABLE)) != 0) {
+                throw new IOException(desc.name+" is not written as plain fields");
+            }
+            int count = in.readShort();
+            for (int i = 0; i < count; i++) {
+                char type = (char) in.readByte();
+                desc.types.add(type);
+                desc.names.add(in.readUTF());
+                if (type == 'L' || type == '[') readContent(); // the field's class name
+            }
+            if (in.readByte() != ObjectStreamConstants.TC_ENDBLOCKDATA) throw new IOException("Unsupported class annotation");
+            desc.superDesc = readClassDesc();
+            return desc;
+        }
+
+        private Object newHandle(Object object) {
+            handles.add(object);
+            return object;
+        }
+
+        private Object handle(int handle) throws IOException {
+            int index = handle - ObjectStreamConstants.baseWireHandle;
+            if (index < 0 || index >= handles.size()) throw new IOException("Bad handle "+handle);
+            return handles.get(index);
+        }
+
+        private void skipFully(long bytes) throws IOException {
+            while (bytes > 0) {
+                long skipped = in.skip(bytes);
+                if (skipped <= 0) {
+                    if (in.read() < 0) throw new EOFException();
+                    skipped = 1;
+                }
+                bytes -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes taken by each element of an array of the given primitive type, or 0
+     * if it is an array of objects.
+     */
+    private static int primitiveSize(char type) {
+        switch (type) {
+        case 'B': case 'Z': return 1;
+        case 'C': case 'S': return 2;
+        case 'F': case 'I': return 4;
+        case 'D': case 'J': return 8;
+        default: return 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+/**
+ * A capture's entry in the {@link CaptureCatalog}: what the library needs to list, locate and open
+ * a capture without reading any of its files. File names are relative to the captures directory
+ * and are null if that file was never written.
+ *
+ */
+public class CaptureRecord {
+
+    public final long id; // row id in the catalog, or -1 if not yet added
+    public final String name; // name the user gave the capture
+    public final long timestamp; // when the capture was made, in ms since the epoch
+    public final long durationMs;
+    public final float bottomFreq; // in Hz
+    public final float topFreq; // in Hz
+    public final int sampleRate;
+    public final double latitude; // NaN if the capture has no location
+    public final double longitude; // NaN if the capture has no location
+    public final boolean spansGap;
+    public final String imageFile;
+    public final String audioFile;
+    public final String cbaFile;
+
+    public CaptureRecord(long id, String name, long timestamp, long durationMs, float bottomFreq, float topFreq, int sampleRate,
+            double latitude, double longitude, boolean spansGap, String imageFile, String audioFile, String cbaFile) {
+        this.id = id;
+        this.name = name;
+        this.timestamp = timestamp;
+        this.durationMs = durationMs;
+        this.bottomFreq = bottomFreq;
+        this.topFreq = topFreq;
+        this.sampleRate = sampleRate;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.spansGap = spansGap;
+        this.imageFile = imageFile;
+        this.audioFile = audioFile;
+        this.cbaFile = cbaFile;
+    }
+
+    /**
+     * Returns a copy of this record with the given row id.
+     */
+    CaptureRecord withId(long id) {
+        return new CaptureRecord(id, name, timestamp, durationMs, bottomFreq, topFreq, sampleRate,
+                latitude, longitude, spansGap, imageFile, audioFile, cbaFile);
+    }
+
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude) && !Double.isNaN(longitude);
+    }
+
+    /**
+     * Returns the capture's name, as shown in the library's list.
+     */
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,10 +1,14 @@
 package uk.co.benjaminelliott.spectrogramandroid.storage;
 
+import java.io.IOException;
 import java.io.Serializable;
 
+import uk.co.benjaminelliott.spectrogramandroid.preferences.HeatMap;
+
 /**
- * A serializable class which allows for the audio data, bitmap data and parameters to be packaged up
- * and unpackaged at the other end by the server.
+ * A serializable class which allows for the audio data, spectrogram and parameters to be packaged up
+ * and unpackaged at the other end by the server. The spectrogram is held as levels rather than pixels,
+ * so the server can render it at whatever scale and in whatever colours it likes.
  * 
  * 
  * TODO: Move away from serialisation, which is notoriously slow on Android.
@@ -12,37 +16,42 @@ import java.io.Serializable;
 
 public class CapturedBitmapAudio implements Serializable {
 
-	public static final long serialVersionUID = 2L;
+	public static final long serialVersionUID = 4L;
 	public static final String EXTENSION = ".cba";
 	public final double decLatitude;
 	public final double decLongitude;
 	public final String filename;
-	public final int[] bitmapAsIntArray;
-	public final byte[] wavAsByteArray;
-	public final int bitmapWidth;
-	public final int bitmapHeight;
+	public final SpectrogramLevels spectrogram;
+	public final byte[] flacAsByteArray; // the audio as a complete FLAC stream
+	public final boolean spansGap; // whether some of the audio is missing, e.g. because the microphone's buffer overflowed
 	
-	CapturedBitmapAudio(String filename, int[] bitmapAsIntArray, byte[] wavAsByteArray, int bitmapWidth, int bitmapHeight, double decLatitude, double decLongitude) {
+	CapturedBitmapAudio(String filename, SpectrogramLevels spectrogram, byte[] flacAsByteArray, double decLatitude, double decLongitude, boolean spansGap) {
 		this.filename = filename;
-		this.bitmapAsIntArray = bitmapAsIntArray;
-		this.wavAsByteArray = wavAsByteArray;
+		this.spectrogram = spectrogram;
+		this.flacAsByteArray = flacAsByteArray;
 		this.decLatitude = decLatitude;
 		this.decLongitude = decLongitude;
-		this.bitmapWidth = bitmapWidth;
-		this.bitmapHeight = bitmapHeight;
+		this.spansGap = spansGap;
 
 	}
 	
 	/**
-	 * Creates and returns new array containing the bitmap's 
-	 * RGB pixel values.
+	 * Renders and returns a new array containing the spectrogram's RGB pixel values, one pixel per
+	 * window and frequency bin, in the colours it was displayed with.
 	 */
 	public int[] getBitmapRGBPixels() {
-		int[] ret = new int[bitmapAsIntArray.length];
-		for (int i = 0; i < bitmapAsIntArray.length; i++) {
-			ret[i] = 0xffffff&bitmapAsIntArray[i];
+		int[] ret = spectrogram.render(HeatMap.fromPreference(spectrogram.colourMap), spectrogram.contrast, 1, 1);
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = 0xffffff&ret[i];
 		}
 		return ret;
 	}
 
+	/**
+	 * Decodes and returns the captured audio samples.
+	 */
+	public short[] decodeAudio() throws IOException {
+		return new FlacDecoder(flacAsByteArray).decodeAll();
+	}
+
 }
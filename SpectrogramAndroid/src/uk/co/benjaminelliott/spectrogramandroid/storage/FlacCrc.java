@@ -0,0 +1,41 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+/**
+ * The two checksums used in FLAC frames: CRC-8 (polynomial x^8 + x^2 + x + 1) over each frame header and
+ * CRC-16 (polynomial x^16 + x^15 + x^2 + 1) over each whole frame, both starting from zero.
+ *
+ */
+class FlacCrc {
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = ((crc8 & 0x80) != 0) ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = ((crc16 & 0x8000) != 0) ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    static int crc8(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = CRC8_TABLE[crc ^ (data[i] & 0xFF)];
+        }
+        return crc;
+    }
+
+    static int crc16(byte[] data, int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc = ((crc << 8) & 0xFFFF) ^ CRC16_TABLE[(crc >>> 8) ^ (data[i] & 0xFF)];
+        }
+        return crc;
+    }
+}
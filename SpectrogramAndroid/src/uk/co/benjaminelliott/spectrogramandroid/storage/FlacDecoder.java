@@ -0,0 +1,290 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.IOException;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.BitReader;
+
+/**
+ * Decodes a FLAC stream held in memory, such as one written by {@link FlacEncoder}, back to 16-bit
+ * samples. Every subframe type and stereo decorrelation mode is supported, so it can also read
+ * FLAC written by other encoders as long as it has 16 bits per sample. Multi-channel frames are
+ * decoded with their samples interleaved.
+ *
+ */
+public class FlacDecoder {
+
+    private static final int STREAMINFO = 0;
+
+    private final byte[] data;
+    private final BitReader reader = new BitReader();
+    private int sampleRate;
+    private int channels;
+    private int bitsPerSample;
+    private int maxBlockSize;
+    private long totalSamples; // per channel, 0 if unknown
+    private int[][] channelSamples; // decoded samples of each channel of the current frame
+    private final int[] coefficients = new int[32]; // quantized coefficients of the current LPC subframe
+    private int channelAssignment; // of the current frame
+
+    public FlacDecoder(byte[] data) throws IOException {
+        this.data = data;
+        if (data.length < 8 || data[0] != 'f' || data[1] != 'L' || data[2] != 'a' || data[3] != 'C') {
+            throw new IOException("Not a FLAC stream");
+        }
+        int pos = 4;
+        boolean last = false;
+        boolean foundStreamInfo = false;
+        while (!last) {
+            if (pos + 4 > data.length) throw new IOException("Truncated metadata");
+            last = (data[pos] & 0x80) != 0;
+            int type = data[pos] & 0x7F;
+            int length = ((data[pos+1] & 0xFF) << 16) | ((data[pos+2] & 0xFF) << 8) | (data[pos+3] & 0xFF);
+            pos += 4;
+            if (pos + length > data.length) throw new IOException("Truncated metadata");
+            if (type == STREAMINFO) {
+                readStreamInfo(pos);
+                foundStreamInfo = true;
+            }
+            pos += length;
+        }
+        if (!foundStreamInfo) throw new IOException("No STREAMINFO block");
+        if (bitsPerSample != 16) throw new IOException("Unsupported bits per sample: "+bitsPerSample);
+        channelSamples = new int[channels][maxBlockSize];
+        reader.reset(data, pos, data.length - pos);
+    }
+
+    private void readStreamInfo(int pos) {
+        reader.reset(data, pos, data.length - pos);
+        reader.readBits(16); // minimum block size
+        maxBlockSize = reader.readBits(16);
+        reader.readBits(24); // minimum and maximum frame size
+        reader.readBits(24);
+        sampleRate = reader.readBits(20);
+        channels = reader.readBits(3) + 1;
+        bitsPerSample = reader.readBits(5) + 1;
+        totalSamples = ((long) reader.readBits(4) << 32) | (reader.readBits(32) & 0xFFFFFFFFL);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns the number of samples in each channel, or 0 if the stream does not say.
+     */
+    public long getTotalSamples() {
+        return totalSamples;
+    }
+
+    /**
+     * Returns the largest number of samples per channel in a frame.
+     */
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    /**
+     * Decode all the remaining frames.
+     * @return the samples, interleaved if there is more than one channel
+     */
+    public short[] decodeAll() throws IOException {
+        short[] samples = new short[(int) (totalSamples > 0 ? totalSamples * channels : maxBlockSize * channels)];
+        int decoded = 0;
+        while (true) {
+            if (samples.length - decoded < maxBlockSize * channels) {
+                short[] larger = new short[Math.max(2 * samples.length, decoded + maxBlockSize * channels)];
+                System.arraycopy(samples, 0, larger, 0, decoded);
+                samples = larger;
+            }
+            int n = decodeFrame(samples, decoded);
+            if (n < 0) break;
+            decoded += n * channels;
+        }
+        if (decoded == samples.length) return samples;
+        short[] trimmed = new short[decoded];
+        System.arraycopy(samples, 0, trimmed, 0, decoded);
+        return trimmed;
+    }
+
+    /**
+     * Decode the next frame into dest from offset, which must have room for
+     * {@link #getMaxBlockSize()} samples of every channel.
+     * @return the number of samples per channel decoded, or -1 if there are no frames left
+     * @throws IOException if the frame is malformed or fails its checksum
+     */
+    public int decodeFrame(short[] dest, int offset) throws IOException {
+        int frameStart = reader.getBytePosition();
+        if (frameStart >= data.length) return -1;
+        try {
+            int blockSize = readFrameHeader(frameStart);
+            if (blockSize > maxBlockSize) throw new IOException("Frame of "+blockSize+" samples exceeds maximum block size");
+            int assignment = channelAssignment;
+            for (int ch = 0; ch < channels; ch++) {
+                boolean side = (assignment == 8 && ch == 1) || (assignment == 9 && ch == 0) || (assignment == 10 && ch == 1);
+                readSubframe(channelSamples[ch], blockSize, bitsPerSample + (side ? 1 : 0));
+            }
+            reader.alignToByte();
+            int frameEnd = reader.getBytePosition();
+            int crc = reader.readBits(16);
+            if (crc != FlacCrc.crc16(data, frameStart, frameEnd)) {
+                throw new IOException("Frame at byte "+frameStart+" fails its CRC");
+            }
+            decorrelate(assignment, blockSize);
+            for (int i = 0; i < blockSize; i++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    dest[offset++] = (short) channelSamples[ch][i];
+                }
+            }
+            return blockSize;
+        } catch (IllegalStateException e) {
+            throw new IOException("Frame at byte "+frameStart+" is truncated");
+        }
+    }
+
+    /**
+     * Read the header of the frame starting at the given offset.
+     * @return the number of samples per channel in the frame
+     */
+    private int readFrameHeader(int frameStart) throws IOException {
+        if (reader.readBits(14) != 0x3FFE) throw new IOException("Lost frame sync at byte "+frameStart);
+        reader.readBits(2); // reserved bit and blocking strategy
+        int blockSizeCode = reader.readBits(4);
+        int sampleRateCode = reader.readBits(4);
+        channelAssignment = reader.readBits(4);
+        int sampleSizeCode = reader.readBits(3);
+        reader.readBits(1);
+        int first = reader.readBits(8); // frame or sample number, UTF-8 coded
+        for (int mask = 0x40; (first & mask) != 0 && (first & 0x80) != 0; mask >>= 1) {
+            reader.readBits(8);
+        }
+
+        int blockSize;
+        if (blockSizeCode == 1) blockSize = 192;
+        else if (blockSizeCode >= 2 && blockSizeCode <= 5) blockSize = 576 << (blockSizeCode - 2);
+        else if (blockSizeCode == 6) blockSize = reader.readBits(8) + 1;
+        else if (blockSizeCode == 7) blockSize = reader.readBits(16) + 1;
+        else if (blockSizeCode >= 8) blockSize = 256 << (blockSizeCode - 8);
+        else throw new IOException("Reserved block size in frame at byte "+frameStart);
+
+        if (sampleRateCode == 12) reader.readBits(8);
+        else if (sampleRateCode == 13 || sampleRateCode == 14) reader.readBits(16);
+        else if (sampleRateCode == 15) throw new IOException("Invalid sample rate in frame at byte "+frameStart);
+
+        if (sampleSizeCode != 0 && sampleSizeCode != 4) {
+            throw new IOException("Unsupported sample size in frame at byte "+frameStart);
+        }
+        int frameChannels = (channelAssignment < 8) ? channelAssignment + 1 : 2;
+        if (channelAssignment > 10 || frameChannels != channels) {
+            throw new IOException("Unexpected channel assignment in frame at byte "+frameStart);
+        }
+
+        int headerEnd = reader.getBytePosition();
+        if (reader.readBits(8) != FlacCrc.crc8(data, frameStart, headerEnd)) {
+            throw new IOException("Header of frame at byte "+frameStart+" fails its CRC");
+        }
+        return blockSize;
+    }
+
+    private void readSubframe(int[] out, int n, int bits) throws IOException {
+        reader.readBits(1);
+        int type = reader.readBits(6);
+        int wasted = 0;
+        if (reader.readBits(1) == 1) {
+            wasted = reader.readUnary() + 1;
+            bits -= wasted;
+        }
+
+        if (type == 0) {
+            int value = reader.readSignedBits(bits);
+            for (int i = 0; i < n; i++) out[i] = value;
+        } else if (type == 1) {
+            for (int i = 0; i < n; i++) out[i] = reader.readSignedBits(bits);
+        } else if (type >= 8 && type <= 12) {
+            int order = type - 8;
+            for (int i = 0; i < order; i++) out[i] = reader.readSignedBits(bits);
+            readResiduals(out, n, order);
+            restoreFixed(out, n, order);
+        } else if (type >= 32) {
+            int order = type - 31;
+            for (int i = 0; i < order; i++) out[i] = reader.readSignedBits(bits);
+            int precision = reader.readBits(4) + 1;
+            if (precision == 16) throw new IOException("Invalid LPC precision");
+            int shift = reader.readSignedBits(5);
+            if (shift < 0) throw new IOException("Negative LPC shift");
+            for (int i = 0; i < order; i++) coefficients[i] = reader.readSignedBits(precision);
+            readResiduals(out, n, order);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) sum += (long) coefficients[j] * out[i-1-j];
+                out[i] += (int) (sum >> shift);
+            }
+        } else {
+            throw new IOException("Reserved subframe type "+type);
+        }
+
+        if (wasted > 0) {
+            for (int i = 0; i < n; i++) out[i] <<= wasted;
+        }
+    }
+
+    /**
+     * Read the residuals into out[order] to out[n-1].
+     */
+    private void readResiduals(int[] out, int n, int order) throws IOException {
+        int method = reader.readBits(2);
+        if (method > 1) throw new IOException("Reserved residual coding method");
+        int parameterBits = (method == 0) ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = reader.readBits(4);
+        int partitions = 1 << partitionOrder;
+        int size = n >> partitionOrder;
+        if (size << partitionOrder != n || size < order) throw new IOException("Invalid partition order");
+        for (int p = 0, i = order; p < partitions; p++) {
+            int end = (p + 1) * size;
+            int k = reader.readBits(parameterBits);
+            if (k == escape) {
+                int rawBits = reader.readBits(5);
+                for (; i < end; i++) out[i] = reader.readSignedBits(rawBits);
+            } else {
+                for (; i < end; i++) {
+                    int u = reader.readRice(k);
+                    out[i] = (u >>> 1) ^ -(u & 1);
+                }
+            }
+        }
+    }
+
+    private static void restoreFixed(int[] x, int n, int order) {
+        for (int i = order; i < n; i++) {
+            switch (order) {
+            case 0: break;
+            case 1: x[i] += x[i-1]; break;
+            case 2: x[i] += 2*x[i-1] - x[i-2]; break;
+            case 3: x[i] += 3*x[i-1] - 3*x[i-2] + x[i-3]; break;
+            default: x[i] += 4*x[i-1] - 6*x[i-2] + 4*x[i-3] - x[i-4]; break;
+            }
+        }
+    }
+
+    private void decorrelate(int assignment, int n) {
+        if (assignment < 8) return;
+        int[] a = channelSamples[0];
+        int[] b = channelSamples[1];
+        for (int i = 0; i < n; i++) {
+            if (assignment == 8) { // left and side
+                b[i] = a[i] - b[i];
+            } else if (assignment == 9) { // side and right
+                a[i] += b[i];
+            } else { // mid and side
+                int side = b[i];
+                int mid = (a[i] << 1) | (side & 1);
+                a[i] = (mid + side) >> 1;
+                b[i] = (mid - side) >> 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Streaming encoder of 16-bit mono audio to FLAC, so captures take around half the space of a WAV
+ * and any FLAC player or library can read them.
+ * <p>
+ * Samples are cut into frames of a fixed block size. Frames are independent, so with more than one
+ * thread they are encoded in parallel while this encoder keeps a few frames in flight and writes
+ * them out in order. The STREAMINFO block is written before any audio, so its frame sizes and MD5
+ * signature are left unset; {@link #completeStreamInfo(byte[])} fills them in when the whole
+ * stream is in memory, as it is for {@link #encode(short[], int, int, int, int)}.
+ *
+ */
+public class FlacEncoder {
+
+    public static final int MIN_BLOCK_SIZE = 16;
+    public static final int MAX_BLOCK_SIZE = 65535;
+    private static final byte[] MARKER = { 'f', 'L', 'a', 'C' };
+    private static final int STREAMINFO_LENGTH = 34;
+    private static final int FRAME_SIZES_OFFSET = 12; // of STREAMINFO's minimum frame size in the stream
+    private static final int MD5_OFFSET = 26; // of STREAMINFO's MD5 signature in the stream
+    private static final int FRAMES_PER_THREAD = 2; // frames in flight per thread, so threads are not left idle while one is written
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final FrameTask[] frames; // ring of frames being filled, encoded or waiting to be written
+    private final ExecutorService executor; // null if frames are encoded on the caller's thread
+    private final MessageDigest md5;
+    private final byte[] sampleBytes = new byte[2 * 1024]; // samples in little-endian order for the MD5 signature
+    private int current = 0; // index into frames of the frame being filled
+    private long framesStarted = 0;
+    private long samplesWritten = 0;
+    private int minFrameBytes = Integer.MAX_VALUE;
+    private int maxFrameBytes = 0;
+    private byte[] signature; // MD5 of the samples, once finished
+
+    /**
+     * Write the stream's header to out, ready for samples.
+     * @param blockSize samples per frame, 4096 suiting most sample rates
+     * @param maxLpcOrder highest order of linear predictor tried, up to 32, or 0 to use only the
+     *      faster fixed predictors
+     * @param threads number of threads encoding frames, 1 to encode them on the caller's thread
+     * @param totalSamples number of samples that will be written, or 0 if not known
+     */
+    public FlacEncoder(OutputStream out, int sampleRate, int blockSize, int maxLpcOrder, int threads, long totalSamples) throws IOException {
+        if (sampleRate <= 0 || sampleRate >= (1 << 20)) throw new IllegalArgumentException("Unsupported sample rate: "+sampleRate);
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) throw new IllegalArgumentException("Block size must be between "+MIN_BLOCK_SIZE+" and "+MAX_BLOCK_SIZE+": "+blockSize);
+        if (maxLpcOrder < 0 || maxLpcOrder > FlacFrameEncoder.MAX_LPC_ORDER) throw new IllegalArgumentException("LPC order must be between 0 and "+FlacFrameEncoder.MAX_LPC_ORDER+": "+maxLpcOrder);
+        if (threads < 1) throw new IllegalArgumentException("Need at least one thread: "+threads);
+        this.out = out;
+        this.blockSize = blockSize;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        frames = new FrameTask[threads == 1 ? 1 : threads * FRAMES_PER_THREAD];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new FrameTask(new FlacFrameEncoder(blockSize, maxLpcOrder, sampleRate), blockSize);
+        }
+        executor = (threads == 1) ? null : Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FlacEncoder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        byte[] header = new byte[MARKER.length + 4 + STREAMINFO_LENGTH];
+        System.arraycopy(MARKER, 0, header, 0, MARKER.length);
+        int i = MARKER.length;
+        header[i++] = (byte) 0x80; // last metadata block, of type STREAMINFO
+        header[i++] = 0;
+        header[i++] = 0;
+        header[i++] = STREAMINFO_LENGTH;
+        header[i++] = (byte) (blockSize >> 8); // minimum and maximum block size
+        header[i++] = (byte) blockSize;
+        header[i++] = (byte) (blockSize >> 8);
+        header[i++] = (byte) blockSize;
+        i += 6; // minimum and maximum frame size, unknown until the end
+        // 20 bits of sample rate, 3 of channels - 1, 5 of bits per sample - 1, 36 of total samples
+        header[i++] = (byte) (sampleRate >> 12);
+        header[i++] = (byte) (sampleRate >> 4);
+        header[i++] = (byte) (((sampleRate & 0xF) << 4) | ((FlacFrameEncoder.BITS_PER_SAMPLE - 1) >> 4));
+        header[i++] = (byte) ((((FlacFrameEncoder.BITS_PER_SAMPLE - 1) & 0xF) << 4) | (int) ((totalSamples >> 32) & 0xF));
+        header[i++] = (byte) (totalSamples >> 24);
+        header[i++] = (byte) (totalSamples >> 16);
+        header[i++] = (byte) (totalSamples >> 8);
+        header[i++] = (byte) totalSamples;
+        out.write(header); // the MD5 signature is left as zeros, meaning unknown
+    }
+
+    /**
+     * Encode length samples starting at offset, writing out any frames that are complete.
+     */
+    public void write(short[] samples, int offset, int length) throws IOException {
+        updateSignature(samples, offset, length);
+        samplesWritten += length;
+        while (length > 0) {
+            FrameTask frame = frames[current];
+            int n = Math.min(length, blockSize - frame.count);
+            System.arraycopy(samples, offset, frame.samples, frame.count, n);
+            frame.count += n;
+            offset += n;
+            length -= n;
+            if (frame.count == blockSize) startFrame();
+        }
+    }
+
+    /**
+     * Encode the last, partial frame and write out every frame still in flight. The stream is
+     * complete once this returns, and the encoder's threads are shut down.
+     */
+    public void finish() throws IOException {
+        try {
+            if (frames[current].count > 0) startFrame();
+            for (int i = 0; i < frames.length; i++) {
+                FrameTask frame = frames[(current + i) % frames.length];
+                if (frame.pending) writeFrame(frame);
+            }
+            out.flush();
+        } finally {
+            if (executor != null) executor.shutdown();
+        }
+        signature = md5.digest();
+    }
+
+    /**
+     * Fill in the frame sizes and MD5 signature, known only once the stream is finished, in the
+     * STREAMINFO block at the start of the given copy of the stream.
+     */
+    public void completeStreamInfo(byte[] stream) {
+        if (signature == null) throw new IllegalStateException("Stream not finished");
+        int i = FRAME_SIZES_OFFSET;
+        int min = (minFrameBytes == Integer.MAX_VALUE) ? 0 : minFrameBytes;
+        stream[i++] = (byte) (min >> 16);
+        stream[i++] = (byte) (min >> 8);
+        stream[i++] = (byte) min;
+        stream[i++] = (byte) (maxFrameBytes >> 16);
+        stream[i++] = (byte) (maxFrameBytes >> 8);
+        stream[i++] = (byte) maxFrameBytes;
+        System.arraycopy(signature, 0, stream, MD5_OFFSET, signature.length);
+    }
+
+    public long getSamplesWritten() {
+        return samplesWritten;
+    }
+
+    /**
+     * Returns the MD5 signature of the samples, or null until the stream is finished.
+     */
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * Encode the given samples into a complete FLAC stream in memory.
+     */
+    public static byte[] encode(short[] samples, int sampleRate, int blockSize, int maxLpcOrder, int threads) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(samples.length + 64);
+        try {
+            FlacEncoder encoder = new FlacEncoder(stream, sampleRate, blockSize, maxLpcOrder, threads, samples.length);
+            encoder.write(samples, 0, samples.length);
+            encoder.finish();
+            byte[] flac = stream.toByteArray();
+            encoder.completeStreamInfo(flac);
+            return flac;
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by a ByteArrayOutputStream
+        }
+    }
+
+    /**
+     * Hand the frame being filled to a thread to encode, then move on to the next frame in the
+     * ring, first writing it out if it is still in flight.
+     */
+    private void startFrame() throws IOException {
+        FrameTask frame = frames[current];
+        frame.frameNumber = framesStarted++;
+        frame.pending = true;
+        if (executor == null) {
+            frame.run();
+        } else {
+            frame.future = executor.submit(frame);
+        }
+        current = (current + 1) % frames.length;
+        if (frames[current].pending) writeFrame(frames[current]);
+    }
+
+    private void writeFrame(FrameTask frame) throws IOException {
+        if (frame.future != null) {
+            try {
+                frame.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while encoding frame "+frame.frameNumber);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to encode frame "+frame.frameNumber+": "+e.getCause());
+            }
+            frame.future = null;
+        }
+        out.write(frame.output, 0, frame.length);
+        minFrameBytes = Math.min(minFrameBytes, frame.length);
+        maxFrameBytes = Math.max(maxFrameBytes, frame.length);
+        frame.count = 0;
+        frame.pending = false;
+    }
+
+    private void updateSignature(short[] samples, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, sampleBytes.length / 2);
+            for (int i = 0; i < n; i++) {
+                short s = samples[offset + i];
+                sampleBytes[2*i] = (byte) s;
+                sampleBytes[2*i+1] = (byte) (s >> 8);
+            }
+            md5.update(sampleBytes, 0, 2 * n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * A frame's samples and encoded bytes, with its own scratch space so frames can be encoded in parallel.
+     */
+    private static class FrameTask implements Runnable {
+        final FlacFrameEncoder encoder;
+        final short[] samples;
+        final byte[] output;
+        int count = 0; // samples filled in so far
+        long frameNumber;
+        int length; // bytes the frame was encoded into
+        boolean pending = false; // started but not yet written out
+        Future<?> future;
+
+        FrameTask(FlacFrameEncoder encoder, int blockSize) {
+            this.encoder = encoder;
+            samples = new short[blockSize];
+            output = new byte[FlacFrameEncoder.maxFrameBytes(blockSize)];
+        }
+
+        @Override
+        public void run() {
+            length = encoder.encodeFrame(samples, count, frameNumber, output);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.BitWriter;
+
+/**
+ * Encodes one block of 16-bit mono samples as a FLAC frame. For each block the constant,
+ * verbatim, fixed polynomial and LPC subframes are costed and the smallest is written, with the
+ * residual split into whichever number of Rice partitions codes it in the fewest bits.
+ * Instances keep scratch space for one frame, so each thread needs its own.
+ *
+ */
+class FlacFrameEncoder {
+
+    static final int BITS_PER_SAMPLE = 16;
+    static final int MAX_LPC_ORDER = 32;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 30; // leaves the escape codes 15 and 31 unused
+    private static final int MAX_LPC_SHIFT = 15;
+    private static final int MAX_RESIDUAL = 1 << 29; // residuals beyond this could overflow once zigzag-coded
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8; // plus the order
+    private static final int SUBFRAME_LPC = 32; // plus the order minus one
+    private static final int SUBFRAME_HEADER_BITS = 8;
+    private static final int FRAME_OVERHEAD_BYTES = 20; // header with the longest frame number, CRCs and padding
+
+    private final int blockSize; // number of samples in every frame but the last
+    private final int maxLpcOrder; // highest order of LPC tried, 0 for fixed predictors only
+    private final int sampleRateCode;
+    private final int sampleRate;
+    private final BitWriter writer = new BitWriter();
+
+    private final double[] window; // Welch window over a full block
+    private final double[] windowed; // windowed samples of the block being analysed
+    private final double[] autocorrelation;
+    private final double[] lpc; // scratch coefficients for the Levinson-Durbin recursion
+    private final double[][] lpcCoefficients; // the predictor of each order, from the recursion
+    private final double[] lpcError; // prediction error of each order
+    private final long[] partitionSums; // residual sums of each partition at the finest partition order
+
+    private int[] residuals; // zigzag-coded residuals of the candidate being costed
+    private int[] riceParameters; // parameter of each partition of the candidate being costed
+    private int[] quantized; // quantized coefficients of the LPC candidate being costed
+    private int partitionOrder; // partition order of the candidate being costed
+
+    private int bestType; // the smallest subframe found so far for the current block
+    private int bestOrder;
+    private long bestBits;
+    private int[] bestResiduals;
+    private int[] bestRiceParameters;
+    private int bestPartitionOrder;
+    private int[] bestQuantized;
+    private int bestPrecision;
+    private int bestShift;
+
+    FlacFrameEncoder(int blockSize, int maxLpcOrder, int sampleRate) {
+        this.blockSize = blockSize;
+        this.maxLpcOrder = maxLpcOrder;
+        this.sampleRate = sampleRate;
+        sampleRateCode = sampleRateCode(sampleRate);
+        window = new double[blockSize];
+        welchWindow(window, blockSize);
+        windowed = new double[blockSize];
+        autocorrelation = new double[maxLpcOrder + 1];
+        lpc = new double[maxLpcOrder];
+        lpcCoefficients = new double[maxLpcOrder][maxLpcOrder];
+        lpcError = new double[maxLpcOrder];
+        partitionSums = new long[1 << MAX_PARTITION_ORDER];
+        residuals = new int[blockSize];
+        bestResiduals = new int[blockSize];
+        riceParameters = new int[1 << MAX_PARTITION_ORDER];
+        bestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+        quantized = new int[maxLpcOrder];
+        bestQuantized = new int[maxLpcOrder];
+    }
+
+    /**
+     * Returns the largest number of bytes a frame of the given number of samples can be encoded into.
+     */
+    static int maxFrameBytes(int blockSize) {
+        return FRAME_OVERHEAD_BYTES + blockSize * BITS_PER_SAMPLE / 8;
+    }
+
+    /**
+     * Encode the first count samples (at most the block size) as the given frame of the stream,
+     * writing into dest, which must hold at least {@link #maxFrameBytes(int)} bytes.
+     * @return the number of bytes the frame was encoded into
+     */
+    int encodeFrame(short[] samples, int count, long frameNumber, byte[] dest) {
+        writer.reset(dest, 0);
+        writeFrameHeader(count, frameNumber);
+        int headerEnd = writer.flush();
+        writer.writeBits(FlacCrc.crc8(dest, 0, headerEnd), 8);
+
+        chooseSubframe(samples, count);
+        writeSubframe(samples, count);
+        int frameEnd = writer.flush();
+        writer.writeBits(FlacCrc.crc16(dest, 0, frameEnd), 16);
+        return writer.flush();
+    }
+
+    private void writeFrameHeader(int count, long frameNumber) {
+        writer.writeBits(0x3FFE, 14); // sync code
+        writer.writeBits(0, 1);
+        writer.writeBits(0, 1); // fixed block size, so frames are numbered rather than their samples
+        writer.writeBits(count <= 256 ? 6 : 7, 4); // block size follows in 8 or 16 bits
+        writer.writeBits(sampleRateCode, 4);
+        writer.writeBits(0, 4); // one channel
+        writer.writeBits(4, 3); // 16 bits per sample
+        writer.writeBits(0, 1);
+        writeUtf8(frameNumber);
+        writer.writeBits(count - 1, count <= 256 ? 8 : 16);
+        switch (sampleRateCode) {
+        case 12: writer.writeBits(sampleRate / 1000, 8); break;
+        case 13: writer.writeBits(sampleRate, 16); break;
+        case 14: writer.writeBits(sampleRate / 10, 16); break;
+        }
+    }
+
+    /**
+     * Write a frame number in the variable-length coding UTF-8 uses for characters.
+     */
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            writer.writeBits((int) value, 8);
+            return;
+        }
+        int continuation = 1;
+        while (continuation < 6 && value >= (1L << (5 * continuation + 6))) {
+            continuation++; // each extra byte adds 6 bits but takes one from the first byte
+        }
+        int firstBits = 6 - continuation;
+        int lead = (0xFF << (7 - continuation)) & 0xFF;
+        writer.writeBits(lead | (int) (value >>> (6 * continuation)) & ((1 << firstBits) - 1), 8);
+        for (int i = continuation - 1; i >= 0; i--) {
+            writer.writeBits(0x80 | (int) (value >>> (6 * i)) & 0x3F, 8);
+        }
+    }
+
+    /**
+     * Returns the header code of the given sample rate: one of the common rates, or a code saying
+     * the rate follows the header, or 0 to take it from the stream's STREAMINFO block.
+     */
+    private static int sampleRateCode(int rate) {
+        switch (rate) {
+        case 88200: return 1;
+        case 176400: return 2;
+        case 192000: return 3;
+        case 8000: return 4;
+        case 16000: return 5;
+        case 22050: return 6;
+        case 24000: return 7;
+        case 32000: return 8;
+        case 44100: return 9;
+        case 48000: return 10;
+        case 96000: return 11;
+        }
+        if (rate % 1000 == 0 && rate / 1000 < 256) return 12;
+        if (rate < 65536) return 13;
+        if (rate % 10 == 0 && rate / 10 < 65536) return 14;
+        return 0;
+    }
+
+    private void chooseSubframe(short[] x, int count) {
+        boolean constant = true;
+        for (int i = 1; i < count && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            bestType = SUBFRAME_CONSTANT;
+            return;
+        }
+        bestType = SUBFRAME_VERBATIM;
+        bestBits = SUBFRAME_HEADER_BITS + (long) BITS_PER_SAMPLE * count;
+
+        int order = Math.min(bestFixedOrder(x, count), count - 1);
+        fixedResiduals(x, count, order);
+        long bits = SUBFRAME_HEADER_BITS + order * BITS_PER_SAMPLE + residualBits(count, order);
+        if (bits < bestBits) keepCandidate(SUBFRAME_FIXED, order, bits);
+
+        if (maxLpcOrder > 0 && count > maxLpcOrder) tryLpc(x, count);
+    }
+
+    /**
+     * Make the candidate just costed the best so far, swapping its scratch arrays with the best's.
+     */
+    private void keepCandidate(int type, int order, long bits) {
+        bestType = type;
+        bestOrder = order;
+        bestBits = bits;
+        bestPartitionOrder = partitionOrder;
+        int[] swap = bestResiduals;
+        bestResiduals = residuals;
+        residuals = swap;
+        swap = bestRiceParameters;
+        bestRiceParameters = riceParameters;
+        riceParameters = swap;
+    }
+
+    /**
+     * Returns the order of fixed predictor whose residuals have the smallest total magnitude, found
+     * in a single pass by taking successive differences.
+     */
+    private static int bestFixedOrder(short[] x, int count) {
+        if (count <= MAX_FIXED_ORDER) return 0;
+        int last0 = x[3];
+        int last1 = x[3] - x[2];
+        int last2 = last1 - (x[2] - x[1]);
+        int last3 = last2 - (x[2] - x[1] - (x[1] - x[0]));
+        long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+        for (int i = MAX_FIXED_ORDER; i < count; i++) {
+            int e0 = x[i];
+            int e1 = e0 - last0;
+            int e2 = e1 - last1;
+            int e3 = e2 - last2;
+            int e4 = e3 - last3;
+            sum0 += Math.abs(e0);
+            sum1 += Math.abs(e1);
+            sum2 += Math.abs(e2);
+            sum3 += Math.abs(e3);
+            sum4 += Math.abs(e4);
+            last0 = e0;
+            last1 = e1;
+            last2 = e2;
+            last3 = e3;
+        }
+        int order = 0;
+        long best = sum0;
+        if (sum1 < best) { best = sum1; order = 1; }
+        if (sum2 < best) { best = sum2; order = 2; }
+        if (sum3 < best) { best = sum3; order = 3; }
+        if (sum4 < best) { order = 4; }
+        return order;
+    }
+
+    private void fixedResiduals(short[] x, int count, int order) {
+        for (int i = order; i < count; i++) {
+            int residual;
+            switch (order) {
+            case 0: residual = x[i]; break;
+            case 1: residual = x[i] - x[i-1]; break;
+            case 2: residual = x[i] - 2*x[i-1] + x[i-2]; break;
+            case 3: residual = x[i] - 3*x[i-1] + 3*x[i-2] - x[i-3]; break;
+            default: residual = x[i] - 4*x[i-1] + 6*x[i-2] - 4*x[i-3] + x[i-4]; break;
+            }
+            residuals[i] = (residual << 1) ^ (residual >> 31);
+        }
+    }
+
+    /**
+     * Fit predictors of every order up to the maximum to the windowed block, then cost the one whose
+     * estimated size is smallest.
+     */
+    private void tryLpc(short[] x, int count) {
+        if (count == blockSize) {
+            for (int i = 0; i < count; i++) windowed[i] = x[i] * window[i];
+        } else {
+            welchWindow(windowed, count);
+            for (int i = 0; i < count; i++) windowed[i] *= x[i];
+        }
+        for (int lag = 0; lag <= maxLpcOrder; lag++) {
+            double sum = 0;
+            for (int i = lag; i < count; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        if (autocorrelation[0] == 0) return;
+        int orders = levinsonDurbin();
+        if (orders == 0) return;
+
+        int order = 1;
+        double bestEstimate = Double.MAX_VALUE;
+        double errorScale = 0.5 / count;
+        for (int o = 1; o <= orders; o++) {
+            double bitsPerResidual = lpcError[o-1] > 0 ? 0.5 * Math.log(errorScale * lpcError[o-1]) / Math.log(2) : 0;
+            double estimate = Math.max(bitsPerResidual, 0) * (count - o) + o * (BITS_PER_SAMPLE + lpcPrecision(count, o));
+            if (estimate < bestEstimate) {
+                bestEstimate = estimate;
+                order = o;
+            }
+        }
+
+        int precision = lpcPrecision(count, order);
+        int shift = quantize(lpcCoefficients[order-1], order, precision);
+        if (shift < 0) return;
+        if (!lpcResiduals(x, count, order, shift)) return;
+        long bits = SUBFRAME_HEADER_BITS + order * BITS_PER_SAMPLE + 4 + 5 + order * precision + residualBits(count, order);
+        if (bits < bestBits) {
+            keepCandidate(SUBFRAME_LPC, order, bits);
+            int[] swap = bestQuantized;
+            bestQuantized = quantized;
+            quantized = swap;
+            bestPrecision = precision;
+            bestShift = shift;
+        }
+    }
+
+    /**
+     * Solve for the predictor of each order from the autocorrelation.
+     * @return the number of orders found, fewer than the maximum if the recursion broke down
+     */
+    private int levinsonDurbin() {
+        double error = autocorrelation[0];
+        for (int i = 0; i < maxLpcOrder; i++) {
+            double r = -autocorrelation[i+1];
+            for (int j = 0; j < i; j++) r -= lpc[j] * autocorrelation[i-j];
+            r /= error;
+            lpc[i] = r;
+            for (int j = 0; j < i / 2; j++) {
+                double tmp = lpc[j];
+                lpc[j] += r * lpc[i-1-j];
+                lpc[i-1-j] += r * tmp;
+            }
+            if (i % 2 == 1) lpc[i/2] += lpc[i/2] * r;
+            error *= 1.0 - r * r;
+            for (int j = 0; j <= i; j++) lpcCoefficients[i][j] = -lpc[j]; // FLAC predicts with the negated coefficients
+            lpcError[i] = error;
+            if (error <= 0) return i + 1;
+        }
+        return maxLpcOrder;
+    }
+
+    /**
+     * Returns the precision of quantized coefficients, finer for longer blocks where it pays for
+     * itself, but coarse enough that predictions fit in 32 bits.
+     */
+    private static int lpcPrecision(int count, int order) {
+        int precision;
+        if (count <= 192) precision = 7;
+        else if (count <= 384) precision = 8;
+        else if (count <= 576) precision = 9;
+        else if (count <= 1152) precision = 10;
+        else if (count <= 2304) precision = 11;
+        else if (count <= 4608) precision = 12;
+        else precision = 13;
+        int orderBits = 32 - Integer.numberOfLeadingZeros(order - 1);
+        return Math.min(precision, 32 - BITS_PER_SAMPLE - orderBits);
+    }
+
+    /**
+     * Quantize the given coefficients into the candidate's quantized array, carrying each rounding
+     * error into the next coefficient.
+     * @return the shift the quantized coefficients are scaled by, or -1 if they cannot be represented
+     */
+    private int quantize(double[] coefficients, int order, int precision) {
+        double max = 0;
+        for (int i = 0; i < order; i++) max = Math.max(max, Math.abs(coefficients[i]));
+        if (max <= 0 || Double.isNaN(max) || Double.isInfinite(max)) return -1;
+        int shift = precision - 2 - Math.getExponent(max);
+        if (shift > MAX_LPC_SHIFT) shift = MAX_LPC_SHIFT;
+        if (shift < 0) return -1;
+        int qMax = (1 << (precision - 1)) - 1;
+        int qMin = -(1 << (precision - 1));
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            error += coefficients[i] * (1 << shift);
+            long q = Math.round(error);
+            if (q > qMax) q = qMax;
+            else if (q < qMin) q = qMin;
+            error -= q;
+            quantized[i] = (int) q;
+        }
+        return shift;
+    }
+
+    /**
+     * Fill the residuals array from the quantized predictor.
+     * @return false if a residual was too large to code
+     */
+    private boolean lpcResiduals(short[] x, int count, int order, int shift) {
+        for (int i = order; i < count; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) quantized[j] * x[i-1-j];
+            }
+            long residual = x[i] - (sum >> shift);
+            if (residual > MAX_RESIDUAL || residual < -MAX_RESIDUAL) return false;
+            residuals[i] = ((int) residual << 1) ^ ((int) residual >> 31);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bits the candidate's residuals take when split into the best number of
+     * partitions, leaving that partition order and the parameters in the candidate's fields.
+     */
+    private long residualBits(int count, int order) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER && (count & ((2 << maxPartitionOrder) - 1)) == 0
+                && (count >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        int partitions = 1 << maxPartitionOrder;
+        int size = count >> maxPartitionOrder;
+        for (int p = 0, start = order; p < partitions; p++) {
+            int end = (p + 1) * size;
+            long sum = 0;
+            for (int i = start; i < end; i++) sum += residuals[i];
+            partitionSums[p] = sum;
+            start = end;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        int bestPartitionOrder = 0;
+        for (int p = maxPartitionOrder; p >= 0; p--) {
+            if (p < maxPartitionOrder) {
+                for (int i = 0; i < (1 << p); i++) {
+                    partitionSums[i] = partitionSums[2*i] + partitionSums[2*i+1];
+                }
+            }
+            long bits = partitionedBits(p, count, order, null);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = p;
+            }
+        }
+
+        // the sums are now those of the coarsest order, so rebuild the chosen order's to pick its parameters
+        partitions = 1 << bestPartitionOrder;
+        size = count >> bestPartitionOrder;
+        for (int p = 0, start = order; p < partitions; p++) {
+            int end = (p + 1) * size;
+            long sum = 0;
+            for (int i = start; i < end; i++) sum += residuals[i];
+            partitionSums[p] = sum;
+            start = end;
+        }
+        partitionOrder = bestPartitionOrder;
+        return partitionedBits(bestPartitionOrder, count, order, riceParameters);
+    }
+
+    /**
+     * Returns an upper bound on the bits the residuals take at the given partition order, using the
+     * sums in partitionSums, and writes each partition's parameter into parameters if it is not null.
+     */
+    private long partitionedBits(int partitionOrder, int count, int order, int[] parameters) {
+        int partitions = 1 << partitionOrder;
+        int size = count >> partitionOrder;
+        long bits = 0;
+        int maxParameter = 0;
+        for (int p = 0; p < partitions; p++) {
+            int n = (p == 0) ? size - order : size;
+            long sum = partitionSums[p];
+            int k = riceEstimate(sum, n);
+            long best = riceBits(sum, n, k);
+            if (k > 0) {
+                long lower = riceBits(sum, n, k - 1);
+                if (lower < best) { best = lower; k--; }
+            }
+            if (k < MAX_RICE_PARAMETER) {
+                long higher = riceBits(sum, n, k + 1);
+                if (higher < best) { best = higher; k++; }
+            }
+            bits += best;
+            if (k > maxParameter) maxParameter = k;
+            if (parameters != null) parameters[p] = k;
+        }
+        int parameterBits = maxParameter > 14 ? 5 : 4;
+        return 2 + 4 + bits + (long) partitions * parameterBits;
+    }
+
+    /**
+     * Returns the Rice parameter estimated from the mean of n zigzag-coded residuals, since the best
+     * parameter is close to log2(mean * ln 2).
+     */
+    private static int riceEstimate(long sum, int n) {
+        long scaledMean = sum * 11 / (16L * n); // 11/16 is close to ln 2
+        if (scaledMean == 0) return 0;
+        return Math.min(63 - Long.numberOfLeadingZeros(scaledMean), MAX_RICE_PARAMETER);
+    }
+
+    /**
+     * Returns an upper bound on the bits n residuals with the given sum take as Rice codes with parameter k.
+     */
+    private static long riceBits(long sum, int n, int k) {
+        return (long) n * (k + 1) + (sum >> k);
+    }
+
+    private void writeSubframe(short[] x, int count) {
+        writer.writeBits(0, 1);
+        switch (bestType) {
+        case SUBFRAME_CONSTANT:
+            writer.writeBits(SUBFRAME_CONSTANT, 6);
+            writer.writeBits(0, 1); // no wasted bits
+            writer.writeBits(x[0], BITS_PER_SAMPLE);
+            break;
+        case SUBFRAME_VERBATIM:
+            writer.writeBits(SUBFRAME_VERBATIM, 6);
+            writer.writeBits(0, 1);
+            for (int i = 0; i < count; i++) writer.writeBits(x[i], BITS_PER_SAMPLE);
+            break;
+        case SUBFRAME_FIXED:
+            writer.writeBits(SUBFRAME_FIXED + bestOrder, 6);
+            writer.writeBits(0, 1);
+            for (int i = 0; i < bestOrder; i++) writer.writeBits(x[i], BITS_PER_SAMPLE);
+            writeResiduals(count);
+            break;
+        default:
+            writer.writeBits(SUBFRAME_LPC + bestOrder - 1, 6);
+            writer.writeBits(0, 1);
+            for (int i = 0; i < bestOrder; i++) writer.writeBits(x[i], BITS_PER_SAMPLE);
+            writer.writeBits(bestPrecision - 1, 4);
+            writer.writeBits(bestShift, 5);
+            for (int i = 0; i < bestOrder; i++) writer.writeBits(bestQuantized[i], bestPrecision);
+            writeResiduals(count);
+            break;
+        }
+    }
+
+    private void writeResiduals(int count) {
+        int partitions = 1 << bestPartitionOrder;
+        int size = count >> bestPartitionOrder;
+        int maxParameter = 0;
+        for (int p = 0; p < partitions; p++) maxParameter = Math.max(maxParameter, bestRiceParameters[p]);
+        int parameterBits = maxParameter > 14 ? 5 : 4;
+        writer.writeBits(parameterBits == 4 ? 0 : 1, 2); // Rice coding with 4 or 5 bit parameters
+        writer.writeBits(bestPartitionOrder, 4);
+        for (int p = 0, start = bestOrder; p < partitions; p++) {
+            int k = bestRiceParameters[p];
+            writer.writeBits(k, parameterBits);
+            int end = (p + 1) * size;
+            for (int i = start; i < end; i++) writer.writeRice(bestResiduals[i], k);
+            start = end;
+        }
+    }
+
+    private static void welchWindow(double[] w, int n) {
+        double half = (n - 1) / 2.0;
+        for (int i = 0; i < n; i++) {
+            double d = (i - half) / half;
+            w[i] = 1.0 - d * d;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Geohashes, which name a cell of the earth's surface with a string whose every prefix names a larger
+ * cell containing it. Points close together mostly share a long prefix, so an index of the points'
+ * geohashes answers "what lies in this box" with a few range scans over the cells covering the box,
+ * rather than by looking at every point.
+ * <p>
+ * Boxes are given as {minLat, minLon, maxLat, maxLon} in degrees; a box with minLon greater than
+ * maxLon crosses the 180th meridian.
+ *
+ */
+public class GeoHash {
+
+    public static final int MAX_PRECISION = 12; // characters, cells of a few cm
+    public static final double EARTH_RADIUS_METERS = 6371008.8; // mean radius
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+    private static final char AFTER_BASE32 = '{'; // sorts after every base-32 character
+
+    /**
+     * Returns the geohash of the given point with the given number of characters.
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        char[] hash = new char[precision];
+        boolean lonBit = true; // bits alternate between longitude and latitude, longitude first
+        for (int c = 0; c < precision; c++) {
+            int value = 0;
+            for (int bit = 0; bit < 5; bit++) {
+                value <<= 1;
+                if (lonBit) {
+                    double mid = (minLon + maxLon) / 2;
+                    if (longitude >= mid) { value |= 1; minLon = mid; } else maxLon = mid;
+                } else {
+                    double mid = (minLat + maxLat) / 2;
+                    if (latitude >= mid) { value |= 1; minLat = mid; } else maxLat = mid;
+                }
+                lonBit = !lonBit;
+            }
+            hash[c] = BASE32[value];
+        }
+        return new String(hash);
+    }
+
+    /**
+     * Returns the least string greater than every geohash that starts with the given prefix, so the
+     * geohashes in the prefix's cell are those from prefix up to but not including it.
+     */
+    public static String upperBound(String prefix) {
+        return prefix + AFTER_BASE32;
+    }
+
+    /**
+     * Returns the width in degrees of longitude of a cell with the given number of characters.
+     */
+    public static double cellWidth(int precision) {
+        return 360.0 / (1L << ((5 * precision + 1) / 2));
+    }
+
+    /**
+     * Returns the height in degrees of latitude of a cell with the given number of characters.
+     */
+    public static double cellHeight(int precision) {
+        return 180.0 / (1L << (5 * precision / 2));
+    }
+
+    /**
+     * Returns the prefixes of the fewest, smallest cells that together cover the given box, using
+     * the longest prefixes that need no more than maxCells of them. The list holds just the empty
+     * prefix, which every geohash starts with, if even single-character cells are too many.
+     */
+    public static List<String> cover(double[] box, int maxCells) {
+        List<String> cells = new ArrayList<String>();
+        double minLat = box[0], minLon = box[1], maxLat = box[2], maxLon = box[3];
+        for (int precision = MAX_PRECISION; precision >= 1; precision--) {
+            double width = cellWidth(precision);
+            double height = cellHeight(precision);
+            int firstRow = cellIndex(minLat + 90, height, 180);
+            int lastRow = cellIndex(maxLat + 90, height, 180);
+            int firstCol = cellIndex(minLon + 180, width, 360);
+            int lastCol = cellIndex(maxLon + 180, width, 360);
+            int cols = (int) Math.round(360 / width);
+            int colCount;
+            if (minLon <= maxLon) colCount = lastCol - firstCol + 1;
+            else if (firstCol > lastCol) colCount = cols - firstCol + lastCol + 1; // across the 180th meridian
+            else { colCount = cols; firstCol = 0; } // across it and back into the same column, so all of them
+            long count = (long) (lastRow - firstRow + 1) * colCount;
+            if (count > maxCells) continue;
+            for (int row = firstRow; row <= lastRow; row++) {
+                double lat = -90 + (row + 0.5) * height;
+                for (int i = 0; i < colCount; i++) {
+                    double lon = -180 + (((firstCol + i) % cols) + 0.5) * width;
+                    cells.add(encode(lat, lon, precision));
+                }
+            }
+            return cells;
+        }
+        cells.add("");
+        return cells;
+    }
+
+    /**
+     * Returns the index of the cell of the given size that the given offset into a range falls in,
+     * the last cell taking in the end of the range.
+     */
+    private static int cellIndex(double offset, double size, double range) {
+        int last = (int) Math.round(range / size) - 1;
+        return Math.max(0, Math.min((int) Math.floor(offset / size), last));
+    }
+
+    /**
+     * Returns the smallest box containing the circle of the given radius around the given point.
+     */
+    public static double[] boundingBox(double latitude, double longitude, double radiusMeters) {
+        double dLat = Math.toDegrees(radiusMeters / EARTH_RADIUS_METERS);
+        double minLat = latitude - dLat;
+        double maxLat = latitude + dLat;
+        if (minLat <= -90 || maxLat >= 90) { // the circle takes in a pole, so every longitude
+            return new double[] { Math.max(minLat, -90), -180, Math.min(maxLat, 90), 180 };
+        }
+        // the widest part of the circle in longitude is nearer the pole than its centre:
+        double dLon = Math.toDegrees(Math.asin(Math.min(1, Math.sin(radiusMeters / EARTH_RADIUS_METERS) / Math.cos(Math.toRadians(latitude)))));
+        if (dLon >= 180) return new double[] { minLat, -180, maxLat, 180 };
+        double minLon = longitude - dLon;
+        double maxLon = longitude + dLon;
+        if (minLon < -180) minLon += 360;
+        if (maxLon > 180) maxLon -= 360;
+        return new double[] { minLat, minLon, maxLat, maxLon };
+    }
+
+    /**
+     * Returns whether the given point lies in the given box.
+     */
+    public static boolean contains(double[] box, double latitude, double longitude) {
+        if (latitude < box[0] || latitude > box[2]) return false;
+        if (box[1] <= box[3]) return longitude >= box[1] && longitude <= box[3];
+        return longitude >= box[1] || longitude <= box[3];
+    }
+
+    /**
+     * Returns the great-circle distance in metres between two points.
+     */
+    public static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,171 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The spectrogram of a capture as a matrix of 8-bit log-magnitude levels, one column per window and
+ * one row per frequency bin, together with the analysis parameters needed to interpret it. Images
+ * are rendered from it on demand, at any scale and with any colour map, so the app and the server
+ * draw a capture the same way.
+ * <p>
+ * Level q stands for a smoothed power p with log(1 + p) = q * fullScale / 255, so levels are evenly
+ * spaced in decibels. The matrix is held deflated, typically in under half a byte per level.
+ *
+ */
+public class SpectrogramLevels implements Serializable {
+
+    public static final long serialVersionUID = 1L;
+    public static final int MAX_LEVEL = 255;
+
+    public final int columns; // number of windows
+    public final int rows; // number of frequency bins
+    public final int bottomBin; // frequency bin of the first row
+    public final int sampleRate;
+    public final int samplesPerWindow;
+    public final float fullScale; // log of 1 + the power that MAX_LEVEL stands for
+    public final float displayMax; // log of 1 + the power drawn at full colour on screen when captured
+    public final float contrast; // contrast the capture was displayed with
+    public final int colourMap; // colour map preference the capture was displayed with
+    private final byte[] compressed; // the levels of each column in turn, lowest bin first, deflated
+
+    /**
+     * @param levels - the levels of each column in turn, lowest frequency bin first; not kept
+     */
+    public SpectrogramLevels(byte[] levels, int columns, int rows, int bottomBin, int sampleRate, int samplesPerWindow,
+            float fullScale, float displayMax, float contrast, int colourMap) {
+        if (levels.length != columns * rows) throw new IllegalArgumentException("Expected "+columns+" x "+rows+" levels, not "+levels.length);
+        this.columns = columns;
+        this.rows = rows;
+        this.bottomBin = bottomBin;
+        this.sampleRate = sampleRate;
+        this.samplesPerWindow = samplesPerWindow;
+        this.fullScale = fullScale;
+        this.displayMax = displayMax;
+        this.contrast = contrast;
+        this.colourMap = colourMap;
+        compressed = compress(levels);
+    }
+
+    /**
+     * Returns the value of log(1 + p) to map to the top level for power spectra of windows of the given
+     * size, which is that of a full-scale 16-bit signal with all its power in one bin, combined with
+     * the previous window's as the display does.
+     */
+    public static float fullScale(int samplesPerWindow) {
+        double maxMagnitude = 32768.0 * samplesPerWindow;
+        return (float) Math.log1p(2 * maxMagnitude * maxMagnitude);
+    }
+
+    /**
+     * Returns the level of the given power on a scale whose top level stands for the given full scale.
+     */
+    public static int toLevel(double power, float fullScale) {
+        if (power <= 0) return 0;
+        int level = (int) (Math.log1p(power) * MAX_LEVEL / fullScale + 0.5);
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    /**
+     * Returns a new array of the levels, each column in turn, lowest frequency bin first.
+     */
+    public byte[] getLevels() {
+        byte[] levels = new byte[columns * rows];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < levels.length) {
+                int inflated = inflater.inflate(levels, n, levels.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+                n += inflated;
+            }
+            if (n != levels.length) throw new IllegalStateException("Level matrix is truncated");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Level matrix is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the number of bytes the levels are held in.
+     */
+    public int getCompressedBytes() {
+        return compressed.length;
+    }
+
+    /**
+     * Returns the centre frequency in Hz of the given row.
+     */
+    public float getRowFrequency(int row) {
+        return (float) (bottomBin + row) * sampleRate / samplesPerWindow;
+    }
+
+    /**
+     * Returns the colour of each level, mapping levels to colours the way the display does: the
+     * fraction of the capture's displayMax a level reaches, raised to the power of the contrast, picks
+     * from the given colour map of 256 colours.
+     */
+    public int[] levelColours(int[] colours, float contrast) {
+        return levelColours(colours, fullScale, displayMax, contrast);
+    }
+
+    /**
+     * Returns the colour of each level on a scale whose top level stands for the given full scale,
+     * drawn as the display would draw it with the given displayMax, e.g. to colour the live
+     * spectrogram's levels.
+     */
+    public static int[] levelColours(int[] colours, float fullScale, float displayMax, float contrast) {
+        int[] levelColours = new int[MAX_LEVEL + 1];
+        for (int q = 0; q <= MAX_LEVEL; q++) {
+            double log = q * (double) fullScale / MAX_LEVEL;
+            int val = (log >= displayMax) ? 255 : (int) (255 * Math.pow(log / displayMax, contrast));
+            levelColours[q] = colours[val];
+        }
+        return levelColours;
+    }
+
+    /**
+     * Renders the spectrogram as ARGB pixels, row by row from the highest frequency down, with each
+     * level drawn as a block of scaleX by scaleY pixels.
+     */
+    public int[] render(int[] colours, float contrast, int scaleX, int scaleY) {
+        int[] levelColours = levelColours(colours, contrast);
+        byte[] levels = getLevels();
+        int width = columns * scaleX;
+        int[] pixels = new int[width * rows * scaleY];
+        for (int c = 0; c < columns; c++) {
+            for (int r = 0; r < rows; r++) {
+                int colour = levelColours[levels[c * rows + r] & 0xFF];
+                int top = (rows - r - 1) * scaleY;
+                for (int y = top; y < top + scaleY; y++) {
+                    int start = y * width + c * scaleX;
+                    for (int x = start; x < start + scaleX; x++) pixels[x] = colour;
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static byte[] compress(byte[] levels) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(levels);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(levels.length / 4 + 64);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Two-level cache of the previews of captures shown in the library. Decoded previews are held in
+ * memory in an LRU cache sized in bytes; below that, each preview is kept on disk as a small JPEG in
+ * a hidden folder of the captures directory, written when the capture is stored or, for older
+ * captures, the first time it is needed.
+ * <p>
+ * Previews are loaded on a background thread, most recently requested first, so the rows on screen
+ * are served before those that were scrolled past. Prefetched previews wait, in the order they were
+ * asked for, until nothing on screen is waiting. Since every preview is the same size, bitmaps pushed
+ * out of the memory cache are decoded into again rather than left to the garbage collector, but only
+ * once no view is showing them: callers {@link #retain} a preview while a view shows it and
+ * {@link #release} it afterwards.
+ *
+ */
+public class ThumbnailCache {
+
+    /**
+     * Told on the UI thread when a requested preview has been loaded.
+     */
+    public interface Listener {
+        void onThumbnailLoaded(String imageFile, Bitmap thumbnail);
+    }
+
+    private static final String TAG = "ThumbnailCache";
+    private static final String THUMBNAIL_DIR_NAME = ".thumbnails";
+    private static final int MAX_QUEUED = 64; // requests beyond this drop the oldest prefetch or request
+    private static final int MAX_REUSABLE = 8; // bitmaps kept to decode into
+
+    private final File captureDir;
+    private final File thumbnailDir;
+    private final LruCache<String, Bitmap> memoryCache;
+    private final Set<SoftReference<Bitmap>> reusable = new HashSet<SoftReference<Bitmap>>();
+    // guarded by reusable: the number of views showing each preview, and those evicted while shown:
+    private final Map<Bitmap, Integer> shown = new IdentityHashMap<Bitmap, Integer>();
+    private final Map<Bitmap, Boolean> evictedWhileShown = new IdentityHashMap<Bitmap, Boolean>();
+    private final LinkedBlockingDeque<String> requests = new LinkedBlockingDeque<String>(); // taken from the end
+    private final Set<String> pending = new HashSet<String>(); // queued or being loaded
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Thread loader;
+    private final Listener listener;
+    private volatile boolean running = true;
+
+    public ThumbnailCache(File captureDir, Listener listener) {
+        this.captureDir = captureDir;
+        this.listener = listener;
+        thumbnailDir = getThumbnailDir(captureDir);
+        int budget = (int) (Runtime.getRuntime().maxMemory() * DynamicAudioConfig.THUMBNAIL_HEAP_FRACTION);
+        memoryCache = new LruCache<String, Bitmap>(budget) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (evicted && oldValue.isMutable()) evicted(oldValue);
+            }
+        };
+        loader = new Thread("ThumbnailLoader") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                while (running) {
+                    try {
+                        loadNext();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Returns the preview of the given image if it is in memory, or null.
+     */
+    public Bitmap get(String imageFile) {
+        return memoryCache.get(imageFile);
+    }
+
+    /**
+     * Records that a view has started showing the given preview, so it is not decoded into while it
+     * is on screen, even if it leaves the memory cache. Must be matched by {@link #release}.
+     */
+    public void retain(Bitmap thumbnail) {
+        synchronized (reusable) {
+            Integer count = shown.get(thumbnail);
+            shown.put(thumbnail, (count == null) ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Records that a view has stopped showing the given preview. Once no view shows it, it may be
+     * decoded into if it has left the memory cache.
+     */
+    public void release(Bitmap thumbnail) {
+        synchronized (reusable) {
+            Integer count = shown.get(thumbnail);
+            if (count == null) return;
+            if (count > 1) {
+                shown.put(thumbnail, count - 1);
+                return;
+            }
+            shown.remove(thumbnail);
+            if (evictedWhileShown.remove(thumbnail) != null) addReusable(thumbnail);
+        }
+    }
+
+    /**
+     * Asks for the preview of the given image to be loaded ahead of anything already waiting, for a
+     * row that is on screen. The listener is told when it is ready.
+     */
+    public synchronized void load(String imageFile) {
+        if (memoryCache.get(imageFile) != null) return;
+        if (pending.contains(imageFile)) requests.remove(imageFile); // re-queued ahead of the rest
+        else pending.add(imageFile);
+        requests.offerLast(imageFile);
+        trimQueue();
+    }
+
+    /**
+     * Asks for the preview of the given image to be loaded once nothing on screen is waiting, for a
+     * row about to be scrolled to.
+     */
+    public synchronized void prefetch(String imageFile) {
+        if (pending.contains(imageFile) || memoryCache.get(imageFile) != null) return;
+        pending.add(imageFile);
+        requests.offerFirst(imageFile);
+        trimQueue();
+    }
+
+    /**
+     * Stops loading previews and empties the memory cache.
+     */
+    public void close() {
+        running = false;
+        loader.interrupt();
+        synchronized (this) {
+            requests.clear();
+            pending.clear();
+        }
+        memoryCache.evictAll();
+        synchronized (reusable) {
+            reusable.clear();
+            shown.clear();
+            evictedWhileShown.clear();
+        }
+    }
+
+    private void trimQueue() {
+        while (requests.size() > MAX_QUEUED) {
+            String dropped = requests.pollFirst();
+            if (dropped != null) pending.remove(dropped);
+        }
+    }
+
+    private void loadNext() throws InterruptedException {
+        final String imageFile = requests.takeLast();
+        final Bitmap thumbnail = loadThumbnail(imageFile);
+        synchronized (this) {
+            if (thumbnail != null && running) memoryCache.put(imageFile, thumbnail);
+            pending.remove(imageFile);
+        }
+        if (thumbnail == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (running) listener.onThumbnailLoaded(imageFile, thumbnail);
+            }
+        });
+    }
+
+    /**
+     * Reads the preview of the given image from disk, making and storing it from the image if it
+     * has not been made yet.
+     */
+    private Bitmap loadThumbnail(String imageFile) {
+        Tracer.begin("loadThumbnail");
+        try {
+            File thumbnailFile = new File(thumbnailDir, imageFile);
+            if (thumbnailFile.exists()) {
+                Bitmap thumbnail = decodeSampled(thumbnailFile.getAbsolutePath(), DynamicAudioConfig.THUMBNAIL_WIDTH,
+                        DynamicAudioConfig.THUMBNAIL_HEIGHT, takeReusable());
+                if (thumbnail != null) return thumbnail;
+            }
+            File image = new File(captureDir, imageFile);
+            if (!image.exists()) return null;
+            Bitmap decoded = decodeSampled(image.getAbsolutePath(), DynamicAudioConfig.THUMBNAIL_WIDTH,
+                    DynamicAudioConfig.THUMBNAIL_HEIGHT, null);
+            if (decoded == null) return null;
+            Bitmap thumbnail = makeThumbnail(decoded);
+            if (thumbnail != decoded) decoded.recycle();
+            writeJpeg(thumbnail, thumbnailFile);
+            return thumbnail;
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Writes the preview of a capture's image as it is stored, so the library never has to decode
+     * the full image to show it.
+     * @param image - the image as written to imageFile
+     * @param imageFile - the file the image was written to, in the captures directory
+     */
+    public static void writeThumbnail(Bitmap image, File imageFile) {
+        Tracer.begin("writeThumbnail");
+        try {
+            Bitmap thumbnail = makeThumbnail(image);
+            writeJpeg(thumbnail, new File(getThumbnailDir(imageFile.getParentFile()), imageFile.getName()));
+            if (thumbnail != image) thumbnail.recycle();
+        } finally {
+            Tracer.end();
+        }
+    }
+
+    /**
+     * Decodes the image at the given path at the smallest power-of-two subsampling that leaves it at
+     * least reqWidth by reqHeight, into the given bitmap if it is not null and can hold the result.
+     * @return the decoded image, or null if it could not be decoded
+     */
+    public static Bitmap decodeSampled(String path, int reqWidth, int reqHeight, Bitmap reuse) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        int sampleSize = 1;
+        while (options.outWidth / (2 * sampleSize) >= reqWidth && options.outHeight / (2 * sampleSize) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        if (reuse != null && canDecodeInto(reuse, options.outWidth / sampleSize, options.outHeight / sampleSize, sampleSize)) {
+            options.inBitmap = reuse;
+        }
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) { // the bitmap could not be reused after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Before KitKat a bitmap can only be decoded into if the image is exactly its size and not
+     * subsampled; since then it only needs to be large enough.
+     */
+    private static boolean canDecodeInto(Bitmap bitmap, int width, int height, int sampleSize) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return width * height * 4 <= bitmap.getAllocationByteCount();
+        }
+        return sampleSize == 1 && bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    /**
+     * Keeps a bitmap pushed out of the memory cache to decode into, or, if a view is still showing
+     * it, once the view lets it go.
+     */
+    private void evicted(Bitmap bitmap) {
+        synchronized (reusable) {
+            if (shown.containsKey(bitmap)) evictedWhileShown.put(bitmap, Boolean.TRUE);
+            else addReusable(bitmap);
+        }
+    }
+
+    private void addReusable(Bitmap bitmap) {
+        synchronized (reusable) {
+            if (reusable.size() < MAX_REUSABLE) reusable.add(new SoftReference<Bitmap>(bitmap));
+        }
+    }
+
+    private Bitmap takeReusable() {
+        synchronized (reusable) {
+            Iterator<SoftReference<Bitmap>> it = reusable.iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next().get();
+                it.remove();
+                if (bitmap != null && bitmap.isMutable() && !bitmap.isRecycled()) return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the image scaled to the preview size, or the image itself if it is that size already.
+     */
+    private static Bitmap makeThumbnail(Bitmap image) {
+        if (image.getWidth() == DynamicAudioConfig.THUMBNAIL_WIDTH && image.getHeight() == DynamicAudioConfig.THUMBNAIL_HEIGHT) {
+            return image;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(image, DynamicAudioConfig.THUMBNAIL_WIDTH, DynamicAudioConfig.THUMBNAIL_HEIGHT, true);
+        // make sure it can be decoded into once it leaves the memory cache:
+        if (scaled.isMutable()) return scaled;
+        Bitmap mutable = scaled.copy(Bitmap.Config.ARGB_8888, true);
+        if (scaled != image) scaled.recycle();
+        return mutable;
+    }
+
+    private static void writeJpeg(Bitmap bitmap, File file) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, DynamicAudioConfig.THUMBNAIL_QUALITY, fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write preview "+file.getAbsolutePath(), e);
+        } finally {
+            try {
+                if (fos != null) fos.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error when closing "+file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Returns the folder holding the previews of the captures in the given directory, hidden from
+     * the gallery.
+     */
+    private static File getThumbnailDir(File captureDir) {
+        File dir = new File(captureDir, THUMBNAIL_DIR_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) Log.e(TAG, "Unable to create "+dir.getAbsolutePath());
+        File noMedia = new File(dir, ".nomedia");
+        if (!noMedia.exists()) {
+            try {
+                noMedia.createNewFile();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to create "+noMedia.getAbsolutePath(), e);
+            }
+        }
+        return dir;
+    }
+}
@@ -5,7 +5,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
-import android.os.Environment;
 import android.util.Log;
 
 /**
@@ -23,14 +22,12 @@ public class WAVExplorer {
 	private int sampleRate; //sampling frequency Fs used to encode the file
 	private int bitsPerSample; //number of bits used to hold each sample
 	private int numSamples; //number of samples in the file
-	private double[] firstChannelArray; //array of samples from first (left) channel
-	private double[] secondChannelArray; //array of samples from second (right) channel, if it exists
+	private float[] firstChannelArray; //array of samples from first (left) channel (float is exact for 8- and 16-bit samples)
+	private float[] secondChannelArray; //array of samples from second (right) channel, if it exists
 	private boolean isMono; // true if there is only one channel, i.e. signal is mono, not stereo
 	private int duration; //duration of WAV file in seconds
 	public WAVExplorer(String filepath) {
-		String loc = null;
 		try {
-			loc = Environment.getExternalStorageDirectory().getAbsolutePath();
 			File f = new File(filepath);
 			wavFile = new RandomAccessFile(f, "r");
 						
@@ -54,7 +51,7 @@ public class WAVExplorer {
 			dataLength = Integer.reverseBytes(dataLength); //little-endian
 			
 			numSamples = (8*dataLength)/(numChannels*bitsPerSample);
-			firstChannelArray = new double[numSamples];
+			firstChannelArray = new float[numSamples];
 
 			if (numChannels == 1) { //mono, only one channel of samples
 				isMono = true;
@@ -70,7 +67,7 @@ public class WAVExplorer {
 			else {
 				if (numChannels == 2) { //stereo, two channels of samples
 					isMono = false;
-					secondChannelArray = new double [numSamples];
+					secondChannelArray = new float[numSamples];
 					for (int i = 0; i < numSamples; i++) {
 						//wavFile already at offset 44, no need to seek
 						if (bitsPerSample == 8) {
@@ -92,7 +89,7 @@ public class WAVExplorer {
 			duration = numSamples * sampleRate;
 			wavFile.close();
 		} catch (FileNotFoundException e) {
-			Log.e("WAVExplorer","Couldn't find file "+loc+"/"+filepath);
+			Log.e("WAVExplorer","Couldn't find file "+filepath);
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -109,6 +106,13 @@ public class WAVExplorer {
 		return toReturn;
 	}
 	
+	public float[] getFirstChannelDataAsFloat() { //get a single-precision copy of the first channel data
+		int length = firstChannelArray.length;
+		float toReturn[] = new float[length];
+		System.arraycopy(firstChannelArray, 0, toReturn, 0, length);
+		return toReturn;
+	}
+	
 	public double[] getSecondChannelData() { //get a copy of the second channel data
 		if (!isMono) {
 			int length = secondChannelArray.length;
@@ -124,6 +128,19 @@ public class WAVExplorer {
 		}
 	}
 	
+	public float[] getSecondChannelDataAsFloat() { //get a single-precision copy of the second channel data
+		if (!isMono) {
+			int length = secondChannelArray.length;
+			float toReturn[] = new float[length];
+			System.arraycopy(secondChannelArray, 0, toReturn, 0, length);
+			return toReturn;
+		}
+		else {
+			Log.e("WAVExplorer","File is not stereo; no second channel available.");
+			return null;
+		}
+	}
+	
 	public long getFileLength() {
 		return fileLength;
 	}	
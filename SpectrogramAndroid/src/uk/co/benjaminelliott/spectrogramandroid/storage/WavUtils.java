@@ -4,6 +4,10 @@ import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
 
 /**
  * Class that provides methods to generate a WAV file from raw audio data.
+ * <p>
+ * Captures are stored as FLAC, so the app no longer writes WAV files itself. This is kept because
+ * the benchmarks module writes its test recordings with it, to be read back through
+ * {@link WAVExplorer} and the WAV file audio source, which still read the captures of older versions.
  * @author Ben
  *
  */
@@ -23,9 +27,9 @@ public class WavUtils {
         }
         int j = 44;
         for (int i = 0; i < rawWavAudio.length; i++) {
-            ret[j] =  (byte)((rawWavAudio[i] >> 8) & 0xff);
+            ret[j] = (byte)(rawWavAudio[i] & 0xff); //samples are little-endian too
             j++;
-            ret[j] = (byte)(rawWavAudio[i] & 0xff);
+            ret[j] =  (byte)((rawWavAudio[i] >> 8) & 0xff);
             j++;
         }
         return ret;
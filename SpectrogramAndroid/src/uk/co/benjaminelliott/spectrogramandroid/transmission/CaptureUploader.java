@@ -0,0 +1,501 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
+
+/**
+ * Uploads a batch of files over one connection using the {@link UploadProtocol}. Each file is
+ * offered to the server as a {@link ChunkManifest}, and only the chunks the server does not already
+ * have are read from disk and sent, so a file sent before costs nothing but its manifest. The next
+ * file is offered while the chunks of the current one are being sent, and replies are read on a
+ * second thread, so the time to upload a batch is that of sending its new bytes rather than a round
+ * trip per file. If the connection is lost, files not yet confirmed are offered again over a new
+ * one, picking up from the chunks that arrived, for as long as each attempt gets more of them there;
+ * if that stops happening each file's result says why.
+ *
+ */
+public class CaptureUploader {
+
+	public enum Status { PENDING, STORED, REJECTED, FAILED }
+
+	/**
+	 * Told as each file's upload finishes, on the thread reading replies or, for files that could
+	 * not be sent at all, on the thread calling {@link CaptureUploader#upload(List, Listener)}.
+	 */
+	public interface Listener {
+		void onItemComplete(Result result);
+	}
+
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+	private static final int REPLY_TIMEOUT_MS = 30000; // after a frame is sent, how long its reply may take
+	private static final int BUFFER_BYTES = 64 * 1024;
+	private static final int QUERIES_AHEAD = 2; // files offered to the server but whose chunks are not yet sent
+	private static final int MAX_ATTEMPTS = 3; // times in a row a file is offered without the server gaining any of it before it is given up on
+	private static final int MAX_FAILED_CONNECTIONS = 3; // in a row, each making no progress, before the batch is given up on
+
+	private final String host;
+	private final int port;
+
+	public CaptureUploader(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Uploads the given files, blocking until each has been stored or given up on.
+	 * @param listener - told as each file finishes, or null
+	 */
+	public Report upload(List<File> files, Listener listener) {
+		Tracer.begin("uploadBatch");
+		long start = System.nanoTime();
+		List<Result> results = new ArrayList<Result>(files.size());
+		LinkedList<Result> toSend = new LinkedList<Result>();
+		for (File file : files) {
+			Result result = new Result(file);
+			results.add(result);
+			toSend.add(result);
+		}
+		int connections = 0;
+		int failedConnections = 0;
+		try {
+			while (!toSend.isEmpty()) {
+				Session session = new Session();
+				connections++;
+				int confirmedBefore = countFinished(results);
+				try {
+					session.run(toSend, listener);
+					failedConnections = 0;
+				} catch (IOException e) {
+					session.close(); // so nothing more is heard from it
+					// offer again whatever was not confirmed, in the original order:
+					List<Result> unconfirmed = session.unconfirmed();
+					for (int i = unconfirmed.size() - 1; i >= 0; i--) {
+						Result result = unconfirmed.get(i);
+						if (result.stalls >= MAX_ATTEMPTS) finish(result, Status.FAILED, "Gave up after "+result.attempts+" attempts: "+e, listener);
+						else toSend.addFirst(result);
+					}
+					boolean progress = session.progress || countFinished(results) > confirmedBefore;
+					failedConnections = progress ? 0 : failedConnections + 1;
+					if (failedConnections >= MAX_FAILED_CONNECTIONS) {
+						for (Result result : toSend) finish(result, Status.FAILED, "Unable to reach server: "+e, listener);
+						toSend.clear();
+					}
+				} finally {
+					session.close();
+				}
+			}
+		} finally {
+			Tracer.end();
+		}
+		return new Report(results, System.nanoTime() - start, connections);
+	}
+
+	private static int countFinished(List<Result> results) {
+		int finished = 0;
+		for (Result result : results) {
+			if (result.status != Status.PENDING) finished++;
+		}
+		return finished;
+	}
+
+	private static void finish(Result result, Status status, String message, Listener listener) {
+		result.status = status;
+		result.message = message;
+		result.nanos = (result.sendStarted == 0) ? 0 : System.nanoTime() - result.sendStarted;
+		if (listener != null) listener.onItemComplete(result);
+	}
+
+	/**
+	 * A frame sent to the server that is waiting for its reply.
+	 */
+	private static class Reply {
+		final Result result;
+		final boolean query; // else a commit
+		volatile long sentAt = 0; // 0 until the whole frame is written
+
+		Reply(Result result, boolean query) {
+			this.result = result;
+			this.query = query;
+		}
+	}
+
+	/**
+	 * One connection, over which files are sent until there are none left or it fails.
+	 */
+	private class Session {
+		private final Reply END = new Reply(null, false); // tells the reply reader that nothing more was sent
+		private final int[] NO_ANSWER = new int[0]; // tells the sender that the reply reader has failed
+		private final LinkedBlockingQueue<Reply> awaitingReply = new LinkedBlockingQueue<Reply>();
+		private final LinkedBlockingQueue<int[]> missingChunks = new LinkedBlockingQueue<int[]>(); // answers to queries, in order
+		private final List<Result> sent = new ArrayList<Result>(); // offered, in order
+		private Socket socket;
+		private Thread replyReader;
+		private volatile IOException replyError;
+		volatile boolean progress = false; // whether the server has gained chunks of any file offered
+
+		/**
+		 * Sends the files in toSend, removing each as it is offered, then waits for the replies.
+		 * @throws IOException if the connection failed, with the files in toSend still to be sent
+		 */
+		void run(LinkedList<Result> toSend, final Listener listener) throws IOException {
+			socket = new Socket();
+			socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+			socket.setSoTimeout(REPLY_TIMEOUT_MS);
+			socket.setTcpNoDelay(true); // queries are small and their answers awaited
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			UploadProtocol.writeHello(out);
+			out.flush();
+			UploadProtocol.readHello(in);
+
+			replyReader = new Thread("UploadReplies") {
+				@Override
+				public void run() {
+					try {
+						readReplies(in, listener);
+					} catch (IOException e) {
+						replyError = e;
+						missingChunks.add(NO_ANSWER);
+						closeQuietly(); // so the sender fails rather than writing into a dead connection
+					}
+				}
+			};
+			replyReader.start();
+
+			byte[] buffer = new byte[UploadProtocol.CHUNK_BYTES];
+			LinkedList<Result> queried = new LinkedList<Result>();
+			try {
+				while (true) {
+					// offer files ahead of the one being sent, so their answers are ready when they are needed:
+					while (queried.size() < QUERIES_AHEAD && !toSend.isEmpty()) {
+						Result result = toSend.removeFirst();
+						if (prepare(result, listener)) {
+							query(result, out);
+							queried.add(result);
+						}
+					}
+					if (queried.isEmpty()) break;
+					Result result = queried.removeFirst();
+					if (!sendChunks(result, takeMissingChunks(), buffer, out, listener)) continue;
+					Reply commit = new Reply(result, false);
+					awaitingReply.add(commit);
+					out.writeByte(UploadProtocol.COMMIT);
+					out.writeUTF(result.manifest.name);
+					if (queried.isEmpty() && toSend.isEmpty()) out.flush();
+					commit.sentAt = System.nanoTime();
+				}
+				out.writeByte(UploadProtocol.BYE);
+				out.flush();
+			} catch (IOException e) {
+				throw (replyError != null) ? replyError : e;
+			} finally {
+				awaitingReply.add(END);
+			}
+			try {
+				replyReader.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for replies");
+			}
+			if (replyError != null) throw replyError;
+		}
+
+		/**
+		 * Hashes the result's file the first time it is offered.
+		 * @return whether it can be sent; if not, it is finished as failed
+		 */
+		private boolean prepare(Result result, Listener listener) {
+			File file = result.file;
+			if (result.manifest == null) {
+				if (!file.isFile() || !file.canRead()) {
+					finish(result, Status.FAILED, "Unable to read "+file.getAbsolutePath(), listener);
+					return false;
+				}
+				if (file.length() > UploadProtocol.MAX_FILE_BYTES) {
+					finish(result, Status.FAILED, "Too large to upload: "+file.length()+" bytes", listener);
+					return false;
+				}
+				Tracer.begin("hashChunks");
+				try {
+					result.manifest = ChunkManifest.of(file, UploadProtocol.CHUNK_BYTES);
+				} catch (IOException e) {
+					finish(result, Status.FAILED, "Unable to read "+file.getAbsolutePath()+": "+e, listener);
+					return false;
+				} finally {
+					Tracer.end();
+				}
+			}
+			return true;
+		}
+
+		private void query(Result result, DataOutputStream out) throws IOException {
+			result.attempts++;
+			result.stalls++;
+			if (result.sendStarted == 0) result.sendStarted = System.nanoTime();
+			sent.add(result);
+			Reply query = new Reply(result, true);
+			awaitingReply.add(query);
+			out.writeByte(UploadProtocol.QUERY);
+			result.manifest.write(out);
+			out.flush(); // the answer is needed before its chunks can be sent
+			query.sentAt = System.nanoTime();
+		}
+
+		private int[] takeMissingChunks() throws IOException {
+			int[] missing;
+			try {
+				missing = missingChunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the server");
+			}
+			if (missing == NO_ANSWER) throw replyError;
+			return missing;
+		}
+
+		/**
+		 * Sends the given chunks of the result's file. Each is read before any of its frame is
+		 * written, so if the file cannot be read the connection is left between frames and can go on
+		 * to the next file.
+		 * @return false if the file could not be read, in which case it is finished as failed, since
+		 * sending it again would fail the same way
+		 * @throws IOException if the connection failed
+		 */
+		private boolean sendChunks(Result result, int[] missing, byte[] buffer, DataOutputStream out, Listener listener)
+				throws IOException {
+			if (missing.length == 0) return true;
+			ChunkManifest manifest = result.manifest;
+			RandomAccessFile raf;
+			try {
+				raf = new RandomAccessFile(result.file, "r");
+			} catch (IOException e) {
+				finish(result, Status.FAILED, "Unable to read "+result.file.getAbsolutePath()+": "+e, listener);
+				return false;
+			}
+			try {
+				for (int chunk : missing) {
+					int size = manifest.getChunkSize(chunk);
+					try {
+						raf.seek((long) chunk * manifest.chunkBytes);
+						raf.readFully(buffer, 0, size);
+					} catch (IOException e) {
+						finish(result, Status.FAILED, "Unable to read "+result.file.getAbsolutePath()+": "+e, listener);
+						return false;
+					}
+					out.writeByte(UploadProtocol.CHUNK);
+					out.write(manifest.getHash(chunk));
+					out.writeInt(size);
+					out.write(buffer, 0, size);
+					result.bytesSent += size;
+				}
+			} finally {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					// only read from, so nothing is lost
+				}
+			}
+			return true;
+		}
+
+		private void readReplies(DataInputStream in, Listener listener) throws IOException {
+			while (true) {
+				Reply reply;
+				try {
+					reply = awaitingReply.take();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while reading replies");
+				}
+				if (reply == END) return;
+				Result result = reply.result;
+				if (reply.query) {
+					awaitReply(in, reply);
+					int count = in.readInt();
+					int chunks = result.manifest.getChunkCount();
+					if (count < 0 || count > chunks) throw new IOException("Bad count of missing chunks "+count);
+					int[] missing = new int[count];
+					for (int i = 0; i < count; i++) {
+						missing[i] = in.readInt();
+						if (missing[i] < 0 || missing[i] >= chunks) throw new IOException("Bad chunk index "+missing[i]);
+					}
+					if (result.lastMissing < 0 || count < result.lastMissing) { // new, or the server has more of it than last time
+						result.stalls = 0;
+						progress = true;
+					}
+					result.lastMissing = count;
+					missingChunks.add(missing);
+				} else {
+					awaitReply(in, reply);
+					byte status = in.readByte();
+					String message = in.readUTF();
+					if (status == UploadProtocol.STORED) finish(result, Status.STORED, message, listener);
+					else if (status == UploadProtocol.REJECTED) finish(result, Status.REJECTED, message, listener);
+					else throw new IOException("Unknown reply status "+status);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the first byte of the reply to the given frame without reading it, timing out
+		 * only once the frame has been sent, since a large one may still be on its way.
+		 */
+		private void awaitReply(DataInputStream in, Reply reply) throws IOException {
+			while (true) {
+				in.mark(1);
+				try {
+					if (in.read() < 0) throw new IOException("Connection closed while waiting for a reply");
+					in.reset();
+					return;
+				} catch (SocketTimeoutException e) {
+					long sentAt = reply.sentAt;
+					if (sentAt != 0 && System.nanoTime() - sentAt > REPLY_TIMEOUT_MS * 1000000L) throw e;
+				}
+			}
+		}
+
+		/**
+		 * Returns the files offered over this connection that the server has not confirmed.
+		 */
+		List<Result> unconfirmed() {
+			List<Result> unconfirmed = new ArrayList<Result>();
+			for (Result result : sent) {
+				if (result.status == Status.PENDING) unconfirmed.add(result);
+			}
+			return unconfirmed;
+		}
+
+		void close() {
+			closeQuietly();
+			if (replyReader != null) {
+				try {
+					replyReader.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void closeQuietly() {
+			try {
+				if (socket != null) socket.close();
+			} catch (IOException e) {
+				// nothing more can be done with it
+			}
+		}
+	}
+
+	/**
+	 * The outcome of uploading one file.
+	 */
+	public static class Result {
+		public final File file;
+		volatile Status status = Status.PENDING;
+		volatile String message;
+		volatile long nanos; // from first offering it to the final reply
+		volatile long sendStarted;
+		ChunkManifest manifest; // null until it is first offered
+		long bytesSent = 0; // of chunks, over every attempt
+		int attempts = 0;
+		int stalls = 0; // attempts since the server last gained any of it
+		int lastMissing = -1; // chunks the server lacked when last asked, or -1 if not yet asked
+
+		Result(File file) {
+			this.file = file;
+		}
+
+		public Status getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns the server's reply, or why the file could not be sent.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		/**
+		 * Returns the length of the file, or 0 if it could not be read.
+		 */
+		public long getLength() {
+			return (manifest == null) ? 0 : manifest.length;
+		}
+
+		/**
+		 * Returns the number of bytes of the file sent, which is less than its length if the
+		 * server already had some of its chunks, or more if some were sent again.
+		 */
+		public long getBytesSent() {
+			return bytesSent;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	/**
+	 * The outcome of uploading a batch.
+	 */
+	public static class Report {
+		public final List<Result> results; // in the order the files were given
+		public final long bytesSent; // of chunks, including those sent again after a lost connection
+		public final long fileBytes; // the total length of the files that could be read
+		public final long elapsedNanos;
+		public final int connections;
+
+		Report(List<Result> results, long elapsedNanos, int connections) {
+			this.results = Collections.unmodifiableList(results);
+			long sent = 0, length = 0;
+			for (Result result : results) {
+				sent += result.getBytesSent();
+				length += result.getLength();
+			}
+			this.bytesSent = sent;
+			this.fileBytes = length;
+			this.elapsedNanos = elapsedNanos;
+			this.connections = connections;
+		}
+
+		public int count(Status status) {
+			int count = 0;
+			for (Result result : results) {
+				if (result.status == status) count++;
+			}
+			return count;
+		}
+
+		/**
+		 * Returns the rate the files' chunks were sent at, in bytes per second.
+		 */
+		public double getThroughput() {
+			return (elapsedNanos == 0) ? 0 : bytesSent * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return results.size()+" files: "+count(Status.STORED)+" stored, "+count(Status.REJECTED)+" rejected, "
+					+count(Status.FAILED)+" failed; "+bytesSent+" of "+fileBytes+" bytes sent in "+(elapsedNanos / 1000000)
+					+" ms ("+String.format("%.1f", getThroughput() / 1e6)+" MB/s) over "+connections+" connection(s)";
+		}
+	}
+}
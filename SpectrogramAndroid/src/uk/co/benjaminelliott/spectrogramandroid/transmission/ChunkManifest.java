@@ -0,0 +1,142 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A file described as a list of fixed-size chunks, each named by the SHA-256 hash of its contents.
+ * A receiver that keeps chunks by hash can say which of a file's chunks it lacks, so an upload cut
+ * short resumes where it stopped and a file sent twice, or sharing chunks with one already sent,
+ * costs only the chunks that are new.
+ *
+ */
+public class ChunkManifest {
+
+	public static final int HASH_BYTES = 32;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	public final String name;
+	public final long length;
+	public final int chunkBytes;
+	private final byte[][] hashes;
+
+	public ChunkManifest(String name, long length, int chunkBytes, byte[][] hashes) {
+		this.name = name;
+		this.length = length;
+		this.chunkBytes = chunkBytes;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Reads the given file through once, hashing each chunk of it.
+	 */
+	public static ChunkManifest of(File file, int chunkBytes) throws IOException {
+		long length = file.length();
+		byte[][] hashes = new byte[chunkCount(length, chunkBytes)][];
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[chunkBytes];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			for (int i = 0; i < hashes.length; i++) {
+				int size = chunkSize(length, chunkBytes, i);
+				readFully(fis, buffer, size, file);
+				digest.update(buffer, 0, size);
+				hashes[i] = digest.digest();
+			}
+		} finally {
+			fis.close();
+		}
+		return new ChunkManifest(file.getName(), length, chunkBytes, hashes);
+	}
+
+	public int getChunkCount() {
+		return hashes.length;
+	}
+
+	public byte[] getHash(int chunk) {
+		return hashes[chunk];
+	}
+
+	/**
+	 * Returns the number of bytes in the given chunk, which is chunkBytes for all but the last.
+	 */
+	public int getChunkSize(int chunk) {
+		return chunkSize(length, chunkBytes, chunk);
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+		out.writeUTF(name);
+		out.writeLong(length);
+		out.writeInt(chunkBytes);
+		for (byte[] hash : hashes) out.write(hash);
+	}
+
+	/**
+	 * Reads a manifest written by {@link #write(DataOutputStream)}.
+	 * @throws IOException if the manifest is malformed, or its file or chunks are larger or its
+	 * chunks smaller than the {@link UploadProtocol} allows
+	 */
+	public static ChunkManifest read(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		long length = in.readLong();
+		int chunkBytes = in.readInt();
+		checkSizes(length, chunkBytes);
+		byte[][] hashes = new byte[chunkCount(length, chunkBytes)][HASH_BYTES];
+		for (byte[] hash : hashes) in.readFully(hash);
+		return new ChunkManifest(name, length, chunkBytes, hashes);
+	}
+
+	/**
+	 * Checks a manifest's file and chunk sizes against the limits of the {@link UploadProtocol},
+	 * before the hashes are read.
+	 * @throws IOException if they are out of bounds
+	 */
+	public static void checkSizes(long length, int chunkBytes) throws IOException {
+		if (length < 0 || length > UploadProtocol.MAX_FILE_BYTES) throw new IOException("Bad length "+length);
+		if (chunkBytes < UploadProtocol.MIN_CHUNK_BYTES || chunkBytes > UploadProtocol.MAX_CHUNK_BYTES) {
+			throw new IOException("Bad chunk size "+chunkBytes);
+		}
+	}
+
+	/**
+	 * Returns the number of chunks a file of the given length is split into.
+	 */
+	public static int chunkCount(long length, int chunkBytes) {
+		return (int) ((length + chunkBytes - 1) / chunkBytes);
+	}
+
+	public static String toHex(byte[] hash) {
+		char[] hex = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[hash[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static int chunkSize(long length, int chunkBytes, int chunk) {
+		return (int) Math.min(chunkBytes, length - (long) chunk * chunkBytes);
+	}
+
+	private static void readFully(FileInputStream fis, byte[] buffer, int size, File file) throws IOException {
+		int read = 0;
+		while (read < size) {
+			int n = fis.read(buffer, read, size - read);
+			if (n < 0) throw new IOException(file.getName()+" shrank while being read");
+			read += n;
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is always available", e);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.ColumnCodec;
+
+/**
+ * The viewer's end of a stream sent by a {@link SpectrogramStreamer}: reads the header, then
+ * decodes each column in turn, counting the bytes and columns it has seen and been told it missed.
+ *
+ */
+public class SpectrogramStreamReader {
+
+	private final CountingInputStream counter;
+	private final DataInputStream in;
+	private final StreamProtocol.Header header;
+	private final ColumnCodec codec;
+	private final byte[] encoded;
+	private volatile long columns = 0;
+	private volatile long skipped = 0;
+
+	public SpectrogramStreamReader(InputStream stream) throws IOException {
+		counter = new CountingInputStream(stream);
+		in = new DataInputStream(counter);
+		header = StreamProtocol.Header.read(in);
+		codec = new ColumnCodec(header.rows);
+		encoded = new byte[ColumnCodec.maxEncodedBytes(header.rows)];
+	}
+
+	public StreamProtocol.Header getHeader() {
+		return header;
+	}
+
+	/**
+	 * Reads the next column into dest, which must hold at least {@link StreamProtocol.Header#rows}
+	 * levels, lowest frequency first, each shifted right by the header's level shift.
+	 * @return the number of columns dropped by the sender just before this one, or -1 if the
+	 * stream has ended
+	 * @throws IOException if the stream is malformed or cut short part way through a column
+	 */
+	public int readColumn(byte[] dest) throws IOException {
+		int skippedBefore;
+		try {
+			skippedBefore = StreamProtocol.readVarint(in);
+		} catch (EOFException e) {
+			return -1;
+		}
+		int length = StreamProtocol.readVarint(in);
+		if (length > encoded.length) throw new IOException("Bad column length "+length);
+		in.readFully(encoded, 0, length);
+		try {
+			codec.decode(encoded, 0, length, dest);
+		} catch (IllegalStateException e) {
+			throw new IOException("Bad column: "+e.getMessage());
+		}
+		columns++;
+		skipped += skippedBefore;
+		return skippedBefore;
+	}
+
+	/**
+	 * Returns the number of bytes read, header included.
+	 */
+	public long getBytesRead() {
+		return counter.count;
+	}
+
+	public long getColumnsRead() {
+		return columns;
+	}
+
+	/**
+	 * Returns the number of columns the sender has said it dropped.
+	 */
+	public long getColumnsSkipped() {
+		return skipped;
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private volatile long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.ColumnCodec;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+
+/**
+ * Streams the live spectrogram to a viewer over the {@link StreamProtocol}, so that someone
+ * elsewhere can watch several devices at once. The analysis thread hands over each window's power
+ * spectrum, which is turned into levels and, every decimation windows, put in a short queue as a
+ * column; a thread of this streamer's own codes the columns and sends them. When the connection
+ * cannot keep up, the queue drops its oldest column rather than make the analysis thread wait, and
+ * the viewer is told how many it missed. A lost connection is tried again, less often the longer it
+ * stays down.
+ *
+ */
+public class SpectrogramStreamer {
+
+	private static final int CONNECT_TIMEOUT_MS = 10000;
+	// small, so that a backlog builds up in the queue, where the oldest columns can be dropped, rather than in the socket:
+	private static final int SEND_BUFFER_BYTES = 4 * 1024;
+	private static final long MIN_RETRY_MILLIS = 1000;
+	private static final long MAX_RETRY_MILLIS = 30000;
+
+	private final String host;
+	private final int port;
+	private final StreamProtocol.Header header;
+	private final int rows;
+	private final Thread sender;
+	private volatile boolean running = false;
+	private volatile Socket socket;
+
+	// used only by the analysis thread:
+	private final byte[] pooled; // highest level of each row over the windows of the column being built
+	private int pooledWindows = 0;
+
+	// columns waiting to be sent, guarded by queue:
+	private final byte[][] queue;
+	private long queued = 0; // columns ever added
+	private long taken = 0; // columns ever sent or dropped
+	private int skipped = 0; // columns dropped since the last one taken
+
+	// used only by the sending thread:
+	private final ColumnCodec codec;
+	private final byte[] column;
+	private final byte[] encoded;
+
+	private volatile long columnsSent = 0;
+	private volatile long columnsDropped = 0;
+	private volatile long bytesSent = 0;
+	private volatile boolean connected = false;
+
+	/**
+	 * @param name - of this device, shown by the viewer
+	 * @param rows - the number of frequency bins in each window's power spectrum
+	 * @param decimation - the number of windows that make up each column sent
+	 * @param levelShift - bits to drop from each level, from 0 to 7
+	 * @param queueColumns - the most columns to hold while the connection catches up
+	 */
+	public SpectrogramStreamer(String host, int port, String name, int sampleRate, int samplesPerWindow, int rows,
+			int decimation, int levelShift, int queueColumns) {
+		this.host = host;
+		this.port = port;
+		this.rows = rows;
+		header = new StreamProtocol.Header(name, sampleRate, samplesPerWindow, rows, decimation, levelShift,
+				SpectrogramLevels.fullScale(samplesPerWindow));
+		pooled = new byte[rows];
+		queue = new byte[queueColumns][rows];
+		codec = new ColumnCodec(rows);
+		column = new byte[rows];
+		encoded = new byte[ColumnCodec.maxEncodedBytes(rows)];
+		sender = new Thread("SpectrogramStreamer") {
+			@Override
+			public void run() {
+				stream();
+			}
+		};
+		sender.setDaemon(true);
+	}
+
+	public void start() {
+		running = true;
+		sender.start();
+	}
+
+	public void stop() {
+		running = false;
+		synchronized (queue) {
+			queue.notifyAll();
+		}
+		sender.interrupt();
+		closeSocket();
+	}
+
+	/**
+	 * Adds a window's smoothed power spectrum to the stream, from the analysis thread. Never waits
+	 * for the connection.
+	 */
+	public void offer(double[] power) {
+		for (int i = 0; i < rows; i++) {
+			pool(i, SpectrogramLevels.toLevel(power[i], header.fullScale));
+		}
+		windowPooled();
+	}
+
+	/**
+	 * Single-precision version of {@link #offer(double[])}.
+	 */
+	public void offer(float[] power) {
+		for (int i = 0; i < rows; i++) {
+			pool(i, SpectrogramLevels.toLevel(power[i], header.fullScale));
+		}
+		windowPooled();
+	}
+
+	private void pool(int row, int level) {
+		level >>= header.levelShift;
+		if (pooledWindows == 0 || level > (pooled[row] & 0xff)) pooled[row] = (byte) level;
+	}
+
+	/**
+	 * Queues the column being built once it covers enough windows, dropping the oldest one queued
+	 * if there is no room.
+	 */
+	private void windowPooled() {
+		if (++pooledWindows < header.decimation) return;
+		pooledWindows = 0;
+		synchronized (queue) {
+			if (queued - taken == queue.length) {
+				taken++;
+				skipped++;
+				columnsDropped++;
+			}
+			System.arraycopy(pooled, 0, queue[(int) (queued % queue.length)], 0, rows);
+			queued++;
+			queue.notify();
+		}
+	}
+
+	/**
+	 * Connects to the viewer and sends it columns until stopped, connecting again whenever the
+	 * connection is lost.
+	 */
+	private void stream() {
+		long retryMillis = MIN_RETRY_MILLIS;
+		while (running) {
+			try {
+				socket = new Socket();
+				socket.setTcpNoDelay(true); // columns are small and should be seen as soon as they are analysed
+				socket.setSendBufferSize(SEND_BUFFER_BYTES);
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+				connected = true;
+				retryMillis = MIN_RETRY_MILLIS;
+				send(new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_BYTES)));
+			} catch (IOException e) {
+				// the viewer is not there or went away; try again in a while
+			} finally {
+				connected = false;
+				closeSocket();
+			}
+			if (!running) return;
+			try {
+				Thread.sleep(retryMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+		}
+	}
+
+	/**
+	 * Sends the header and then each column as it is queued, flushing whenever the queue is empty.
+	 */
+	private void send(DataOutputStream out) throws IOException {
+		codec.reset();
+		header.write(out);
+		out.flush();
+		long written = out.size();
+		bytesSent += written;
+		synchronized (queue) {
+			// the viewer starts from now, not from whatever built up while there was no connection:
+			taken = queued;
+			skipped = 0;
+		}
+		while (running) {
+			int skippedBefore;
+			boolean more;
+			synchronized (queue) {
+				while (queued == taken && running) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (!running) return;
+				System.arraycopy(queue[(int) (taken % queue.length)], 0, column, 0, rows);
+				taken++;
+				skippedBefore = skipped;
+				skipped = 0;
+				more = queued > taken;
+			}
+			int length = codec.encode(column, encoded, 0);
+			StreamProtocol.writeVarint(out, skippedBefore);
+			StreamProtocol.writeVarint(out, length);
+			out.write(encoded, 0, length);
+			if (!more) out.flush();
+			columnsSent++;
+			bytesSent += out.size() - written;
+			written = out.size();
+		}
+	}
+
+	private void closeSocket() {
+		Socket s = socket;
+		if (s == null) return;
+		try {
+			s.close();
+		} catch (IOException e) {
+			// nothing more can be done with it
+		}
+	}
+
+	public StreamProtocol.Header getHeader() {
+		return header;
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public long getColumnsSent() {
+		return columnsSent;
+	}
+
+	/**
+	 * Returns the number of columns dropped because the connection could not keep up with them.
+	 */
+	public long getColumnsDropped() {
+		return columnsDropped;
+	}
+
+	/**
+	 * Returns the number of bytes written to the connection, header included.
+	 */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+}
@@ -0,0 +1,112 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.codec.ColumnCodec;
+
+/**
+ * The protocol live spectrograms are streamed to a viewer with. The device connects to the viewer
+ * and sends a header, then each column as it is analysed, for as long as the display runs:
+ * <pre>
+ * MAGIC (int), VERSION (byte), name (UTF), sample rate (int), samples per window (int), rows (int),
+ *     decimation (byte), level shift (byte), full scale (float)
+ * skipped (varint), length (varint), the column coded by a {@link ColumnCodec}   - for each column
+ * </pre>
+ * Every fixed-size value is big-endian as written by {@link DataOutputStream}, and a varint is 7
+ * bits to a byte, least significant first, with the top bit set on all but the last byte. Each
+ * column is the highest of each row's levels over decimation windows, shifted right by the level
+ * shift, where level is as in {@link uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels};
+ * skipped counts the columns dropped since the last one sent, because the connection could not
+ * keep up with them. Nothing is sent back.
+ *
+ */
+public class StreamProtocol {
+
+	public static final int DEFAULT_PORT = 5354;
+	public static final int MAGIC = 0x53504353; // "SPCS"
+	public static final byte VERSION = 1;
+
+	/**
+	 * What a stream's columns stand for, sent once at its start.
+	 */
+	public static class Header {
+		public final String name; // of the device, to tell streams apart
+		public final int sampleRate;
+		public final int samplesPerWindow;
+		public final int rows; // levels in each column, lowest frequency bin first
+		public final int decimation; // windows each column covers
+		public final int levelShift; // bits dropped from each level
+		public final float fullScale; // log of 1 + the power that the top level stands for
+
+		public Header(String name, int sampleRate, int samplesPerWindow, int rows, int decimation, int levelShift, float fullScale) {
+			this.name = name;
+			this.sampleRate = sampleRate;
+			this.samplesPerWindow = samplesPerWindow;
+			this.rows = rows;
+			this.decimation = decimation;
+			this.levelShift = levelShift;
+			this.fullScale = fullScale;
+		}
+
+		/**
+		 * Returns the number of columns the stream carries each second when none are dropped.
+		 */
+		public float getColumnsPerSecond() {
+			return (float) sampleRate / (samplesPerWindow * decimation);
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(name);
+			out.writeInt(sampleRate);
+			out.writeInt(samplesPerWindow);
+			out.writeInt(rows);
+			out.writeByte(decimation);
+			out.writeByte(levelShift);
+			out.writeFloat(fullScale);
+		}
+
+		/**
+		 * Reads a header written by {@link #write(DataOutputStream)}.
+		 * @throws IOException if it is not a stream of this version, or its sizes are out of bounds
+		 */
+		public static Header read(DataInputStream in) throws IOException {
+			int magic = in.readInt();
+			if (magic != MAGIC) throw new IOException("Not a spectrogram stream: 0x"+Integer.toHexString(magic));
+			byte version = in.readByte();
+			if (version != VERSION) throw new IOException("Unsupported protocol version "+version);
+			String name = in.readUTF();
+			int sampleRate = in.readInt();
+			int samplesPerWindow = in.readInt();
+			int rows = in.readInt();
+			int decimation = in.readUnsignedByte();
+			int levelShift = in.readUnsignedByte();
+			float fullScale = in.readFloat();
+			if (sampleRate <= 0 || samplesPerWindow <= 0 || rows <= 0 || rows > samplesPerWindow || decimation == 0 || levelShift > 7) {
+				throw new IOException("Bad stream header");
+			}
+			return new Header(name, sampleRate, samplesPerWindow, rows, decimation, levelShift, fullScale);
+		}
+	}
+
+	public static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	public static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Varint too long");
+	}
+}
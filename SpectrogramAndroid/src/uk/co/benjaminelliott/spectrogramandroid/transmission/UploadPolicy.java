@@ -0,0 +1,40 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+
+/**
+ * Decides whether captures may be uploaded now, given the user's upload settings and the state of
+ * the network and battery.
+ *
+ */
+public class UploadPolicy {
+
+	public static boolean allowsUpload(Context context, DynamicAudioConfig dac) {
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = cm.getActiveNetworkInfo();
+		if (network == null || !network.isConnected()) return false;
+		if (dac.UPLOAD_UNMETERED_ONLY && isMetered(cm, network)) return false;
+		if (dac.UPLOAD_CHARGING_ONLY && !isCharging(context)) return false;
+		return true;
+	}
+
+	private static boolean isMetered(ConnectivityManager cm, NetworkInfo network) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) return cm.isActiveNetworkMetered();
+		// before Jelly Bean there is no way to ask, so assume only Wi-Fi and Ethernet are free:
+		int type = network.getType();
+		return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+	}
+
+	private static boolean isCharging(Context context) {
+		// the battery's state is a sticky broadcast, so this returns it without registering anything:
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+}
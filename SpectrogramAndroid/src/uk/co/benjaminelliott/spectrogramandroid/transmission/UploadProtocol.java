@@ -0,0 +1,66 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The protocol captures are uploaded with. A session sends any number of files over one connection,
+ * each as the chunks of its {@link ChunkManifest} that the server does not already have:
+ * <pre>
+ * client: MAGIC (int), VERSION (byte)
+ * server: MAGIC (int), VERSION (byte)
+ * client: QUERY (byte), manifest
+ * server: count (int), index of each chunk missing (int)
+ * client: CHUNK (byte), hash (32 bytes), length (int), the chunk's bytes     - for each missing chunk
+ * client: COMMIT (byte), name (UTF)
+ * server: status (byte), message (UTF)
+ * ...
+ * client: BYE (byte)
+ * </pre>
+ * Every value is big-endian as written by {@link DataOutputStream}. The server replies to QUERY and
+ * COMMIT frames in the order they were sent, and the client need not wait for one reply before
+ * sending the next frame. The server keeps each chunk whose contents match its hash as soon as it
+ * arrives, so a session that is cut off loses only what had not yet reached it: the chunk being
+ * received, and whatever the client had written that was still in the socket buffers at either
+ * end, which may be several chunks more. A chunk that does not match is dropped, and the COMMIT of
+ * its file is rejected.
+ *
+ */
+public class UploadProtocol {
+
+	public static final int DEFAULT_PORT = 5353;
+	public static final int MAGIC = 0x53504355; // "SPCU"
+	public static final byte VERSION = 2;
+
+	// frames sent by the client:
+	public static final byte BYE = 0;
+	public static final byte QUERY = 1;
+	public static final byte CHUNK = 2;
+	public static final byte COMMIT = 3;
+
+	// statuses replied by the server to a COMMIT:
+	public static final byte STORED = 0;
+	public static final byte REJECTED = 1; // some chunks are missing or failed their hash; sending it again may succeed
+
+	public static final int CHUNK_BYTES = 64 * 1024; // with the socket buffers, bounds what a dropped connection costs
+	public static final int MIN_CHUNK_BYTES = 4 * 1024; // so a manifest cannot run to more than MAX_FILE_BYTES / MIN_CHUNK_BYTES hashes
+	public static final int MAX_CHUNK_BYTES = 1 << 20; // larger chunks are refused
+	public static final long MAX_FILE_BYTES = 1L << 31; // larger files are refused without being read
+
+	public static void writeHello(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+	}
+
+	/**
+	 * Reads the other end's greeting.
+	 * @throws IOException if it is not speaking this protocol or this version of it
+	 */
+	public static void readHello(DataInputStream in) throws IOException {
+		int magic = in.readInt();
+		if (magic != MAGIC) throw new IOException("Not an upload session: 0x"+Integer.toHexString(magic));
+		byte version = in.readByte();
+		if (version != VERSION) throw new IOException("Unsupported protocol version "+version);
+	}
+}
@@ -0,0 +1,219 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * SQLite queue of the files waiting to be uploaded, and record of those that have been. Every
+ * change of an item's state is written before it is acted on, so the queue carries on where it left
+ * off if the process is killed: items that were being sent at the time are simply sent again, which
+ * costs little since the server keeps the chunks it already has.
+ * <p>
+ * An item that fails is retried after a delay that doubles with each failure, and is given up on
+ * after {@link #MAX_ATTEMPTS} of them. Items are claimed a batch at a time, so draining the queue
+ * holds no more than a batch of them in memory however long it is.
+ *
+ */
+public class UploadQueue extends SQLiteOpenHelper {
+
+    public static final int PENDING = 0; // waiting for its next attempt
+    public static final int IN_FLIGHT = 1; // claimed by an upload session
+    public static final int DONE = 2; // stored by the server
+    public static final int FAILED = 3; // given up on
+
+    public static final int MAX_ATTEMPTS = 10;
+    private static final long FIRST_RETRY_MS = 30 * 1000;
+    private static final long MAX_RETRY_MS = 6 * 60 * 60 * 1000;
+
+    private static final String DATABASE_NAME = "uploads.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "uploads";
+    private static final String ID = "_id";
+    private static final String PATH = "path";
+    private static final String STATE = "state";
+    private static final String ATTEMPTS = "attempts";
+    private static final String NEXT_ATTEMPT = "next_attempt"; // wall-clock ms
+    private static final String LAST_ERROR = "last_error";
+    private static final String ENQUEUED = "enqueued";
+
+    private static UploadQueue instance;
+    private final Random random = new Random();
+
+    private UploadQueue(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    public static synchronized UploadQueue getInstance(Context context) {
+        if (instance == null) instance = new UploadQueue(context.getApplicationContext());
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE "+TABLE+" ("
+                +ID+" INTEGER PRIMARY KEY AUTOINCREMENT, "
+                +PATH+" TEXT NOT NULL UNIQUE, "
+                +STATE+" INTEGER NOT NULL, "
+                +ATTEMPTS+" INTEGER NOT NULL, "
+                +NEXT_ATTEMPT+" INTEGER NOT NULL, "
+                +LAST_ERROR+" TEXT, "
+                +ENQUEUED+" INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX "+TABLE+"_"+STATE+" ON "+TABLE+" ("+STATE+", "+NEXT_ATTEMPT+")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // only one version so far
+    }
+
+    /**
+     * Adds the given files to the queue, due straight away. A file already in the queue is made due
+     * again with its attempts forgotten, unless it is being sent now.
+     */
+    public synchronized void enqueue(String[] paths, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (String path : paths) {
+                values.clear();
+                values.put(STATE, PENDING);
+                values.put(ATTEMPTS, 0);
+                values.put(NEXT_ATTEMPT, now);
+                values.putNull(LAST_ERROR);
+                int updated = db.update(TABLE, values, PATH+" = ? AND "+STATE+" != "+IN_FLIGHT, new String[] { path });
+                if (updated == 0) {
+                    values.put(PATH, path);
+                    values.put(ENQUEUED, now);
+                    db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns up to limit of the items due by the given time, longest due first, marking them as
+     * being sent so that no other session claims them.
+     */
+    public synchronized List<Item> claimDue(long now, int limit) {
+        SQLiteDatabase db = getWritableDatabase();
+        List<Item> items = new ArrayList<Item>();
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(TABLE, new String[] { ID, PATH, ATTEMPTS },
+                    STATE+" = "+PENDING+" AND "+NEXT_ATTEMPT+" <= ?", new String[] { Long.toString(now) },
+                    null, null, NEXT_ATTEMPT+", "+ID, Integer.toString(limit));
+            try {
+                while (cursor.moveToNext()) items.add(new Item(cursor.getLong(0), cursor.getString(1), cursor.getInt(2)));
+            } finally {
+                cursor.close();
+            }
+            ContentValues values = new ContentValues();
+            values.put(STATE, IN_FLIGHT);
+            for (Item item : items) db.update(TABLE, values, ID+" = "+item.id, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return items;
+    }
+
+    /**
+     * Records the outcome of sending a claimed batch, scheduling a retry of each item that was not
+     * stored.
+     * @param report - the report of uploading the batch's files, in the order they were claimed
+     */
+    public synchronized void record(List<Item> items, CaptureUploader.Report report, long now) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < items.size(); i++) {
+                Item item = items.get(i);
+                CaptureUploader.Result result = report.results.get(i);
+                values.clear();
+                if (result.getStatus() == CaptureUploader.Status.STORED) {
+                    values.put(STATE, DONE);
+                    values.putNull(LAST_ERROR);
+                } else {
+                    int attempts = item.attempts + 1;
+                    // a file that has gone is not worth trying again:
+                    boolean giveUp = attempts >= MAX_ATTEMPTS || !new File(item.path).isFile();
+                    values.put(STATE, giveUp ? FAILED : PENDING);
+                    values.put(ATTEMPTS, attempts);
+                    values.put(NEXT_ATTEMPT, now + backoffMillis(attempts, random));
+                    values.put(LAST_ERROR, result.getMessage());
+                }
+                db.update(TABLE, values, ID+" = "+item.id, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns items left being sent by a session that never finished, e.g. because the process was
+     * killed, to the queue. Only to be called while no session is running.
+     */
+    public synchronized void releaseClaims() {
+        ContentValues values = new ContentValues();
+        values.put(STATE, PENDING);
+        getWritableDatabase().update(TABLE, values, STATE+" = "+IN_FLIGHT, null);
+    }
+
+    /**
+     * Returns the time the next pending item is due, or -1 if nothing is pending.
+     */
+    public synchronized long nextDueTime() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT MIN("+NEXT_ATTEMPT+") FROM "+TABLE
+                +" WHERE "+STATE+" = "+PENDING, null);
+        try {
+            return (cursor.moveToFirst() && !cursor.isNull(0)) ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized long count(int state) {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE, STATE+" = "+state);
+    }
+
+    /**
+     * Returns how long to wait before trying an item again after the given number of failed
+     * attempts: a delay that doubles each time up to a limit, of which a random half is taken off so
+     * that items that failed together are not all retried together.
+     */
+    public static long backoffMillis(int attempts, Random random) {
+        long delay = FIRST_RETRY_MS << Math.min(Math.max(attempts - 1, 0), 20);
+        delay = Math.min(delay, MAX_RETRY_MS);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * A file claimed for upload.
+     */
+    public static class Item {
+        public final long id;
+        public final String path;
+        public final int attempts; // failed so far
+
+        Item(long id, String path, int attempts) {
+            this.id = id;
+            this.path = path;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Background service that drains the {@link UploadQueue}, a batch of captures per session with up
+ * to {@link DynamicAudioConfig#UPLOAD_SESSIONS} sessions at once, whenever the {@link UploadPolicy}
+ * allows. Once nothing more is due it sets an alarm to start it again when the next retry is, and
+ * {@link UploadTrigger} starts it when the network or power comes back.
+ *
+ */
+public class UploadService extends IntentService {
+
+	private static final String TAG = "UploadService";
+	private static final String ACTION_ENQUEUE = "uk.co.benjaminelliott.spectrogramandroid.action.ENQUEUE_UPLOADS";
+	private static final String ACTION_DRAIN = "uk.co.benjaminelliott.spectrogramandroid.action.DRAIN_UPLOADS";
+	private static final String EXTRA_PATHS = "paths";
+	private static final long WAKE_LOCK_TIMEOUT_MS = 30 * 60 * 1000; // in case a session hangs
+
+	public UploadService() {
+		super(TAG);
+	}
+
+	/**
+	 * Adds the given files to the upload queue and starts sending them if the policy allows.
+	 */
+	public static void enqueue(Context context, String... paths) {
+		Intent intent = new Intent(context, UploadService.class);
+		intent.setAction(ACTION_ENQUEUE);
+		intent.putExtra(EXTRA_PATHS, paths);
+		context.startService(intent);
+	}
+
+	/**
+	 * Starts sending whatever in the upload queue is due, if the policy allows.
+	 */
+	public static void drain(Context context) {
+		Intent intent = new Intent(context, UploadService.class);
+		intent.setAction(ACTION_DRAIN);
+		context.startService(intent);
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		UploadQueue queue = UploadQueue.getInstance(this);
+		if (ACTION_ENQUEUE.equals(intent.getAction())) {
+			queue.enqueue(intent.getStringArrayExtra(EXTRA_PATHS), System.currentTimeMillis());
+		}
+		DynamicAudioConfig dac = new DynamicAudioConfig(this);
+		if (!UploadPolicy.allowsUpload(this, dac)) {
+			Log.d(TAG, "Uploads waiting for the network or power they are allowed to use");
+			return; // UploadTrigger will start this again when things change
+		}
+		PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+		try {
+			// only this thread drains the queue, so anything still claimed was left by a process that died:
+			queue.releaseClaims();
+			drainQueue(queue, dac);
+		} finally {
+			wakeLock.release();
+		}
+		scheduleNextAttempt(queue.nextDueTime());
+	}
+
+	/**
+	 * Runs upload sessions until nothing more is due or the policy no longer allows them.
+	 */
+	private void drainQueue(final UploadQueue queue, final DynamicAudioConfig dac) {
+		final CaptureUploader uploader = new CaptureUploader(DynamicAudioConfig.UPLOAD_HOST, UploadProtocol.DEFAULT_PORT);
+		Thread[] sessions = new Thread[DynamicAudioConfig.UPLOAD_SESSIONS];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = new Thread("UploadSession-"+i) {
+				@Override
+				public void run() {
+					while (UploadPolicy.allowsUpload(UploadService.this, dac)) {
+						List<UploadQueue.Item> batch = queue.claimDue(System.currentTimeMillis(), DynamicAudioConfig.UPLOAD_BATCH_SIZE);
+						if (batch.isEmpty()) return;
+						List<File> files = new ArrayList<File>(batch.size());
+						for (UploadQueue.Item item : batch) files.add(new File(item.path));
+						CaptureUploader.Report report = uploader.upload(files, null);
+						Log.d(TAG, report.toString());
+						queue.record(batch, report, System.currentTimeMillis());
+					}
+				}
+			};
+			sessions[i].start();
+		}
+		for (Thread session : sessions) {
+			try {
+				session.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		Log.d(TAG, queue.count(UploadQueue.PENDING)+" uploads pending, "+queue.count(UploadQueue.DONE)+" done, "
+				+queue.count(UploadQueue.FAILED)+" given up on");
+	}
+
+	/**
+	 * Sets an alarm to drain the queue when the next retry is due, replacing any set before.
+	 */
+	private void scheduleNextAttempt(long dueTime) {
+		Intent intent = new Intent(this, UploadService.class);
+		intent.setAction(ACTION_DRAIN);
+		PendingIntent pending = PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		AlarmManager am = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+		if (dueTime < 0) am.cancel(pending);
+		else am.set(AlarmManager.RTC_WAKEUP, Math.max(dueTime, System.currentTimeMillis()), pending);
+	}
+}
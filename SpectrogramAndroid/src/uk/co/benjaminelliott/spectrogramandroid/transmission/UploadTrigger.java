@@ -0,0 +1,19 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts the {@link UploadService} when something changes that may let waiting uploads go ahead:
+ * the network connecting or changing, the device being plugged in, or the device starting up, which
+ * forgets the alarm set for the next retry.
+ *
+ */
+public class UploadTrigger extends BroadcastReceiver {
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		UploadService.drain(context);
+	}
+}
@@ -4,6 +4,7 @@ import uk.co.benjaminelliott.spectrogramandroid.preferences.UiConfig;
 import android.os.Handler;
 import android.support.v4.view.MotionEventCompat;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 
 /**
  * Class responsible for interpreting the user's gestures and drawing malleable objects
@@ -16,6 +17,8 @@ public class InteractionHandler {
 	private SpectrogramSurfaceView ssv;
 	private Runnable onLongPress;
 	private Handler handler;
+	private ScaleGestureDetector scaleDetector; // recognises pinches, which zoom the paused spectrogram
+	private float zoomScale; // how far the fingers have spread since the spectrogram was last zoomed
 	
 	private float lastTouchX;
 	private float lastTouchY;
@@ -56,6 +59,26 @@ public class InteractionHandler {
 				ssv.enableCaptureButtonContainer();
 			}
 		};
+		scaleDetector = new ScaleGestureDetector(ssv.getContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			@Override
+			public boolean onScaleBegin(ScaleGestureDetector detector) {
+				if (ssv.selecting) return false;
+				handler.removeCallbacks(onLongPress);
+				zoomScale = 1;
+				return true;
+			}
+
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				zoomScale *= detector.getScaleFactor();
+				// zoom out a level each time the fingers close to half their distance apart, and in as they spread:
+				if (zoomScale <= 0.5f || zoomScale >= 2f) {
+					ssv.zoomBy((zoomScale < 1) ? 1 : -1, detector.getFocusX());
+					zoomScale = 1;
+				}
+				return true;
+			}
+		});
 	}
 
 	/**
@@ -64,6 +87,10 @@ public class InteractionHandler {
 	 */
 	public void handleTouchEvent(MotionEvent ev) {
 		
+		scaleDetector.onTouchEvent(ev);
+		if (scaleDetector.isInProgress()) // don't scroll while pinching
+			return;
+		
 		if (activePointerId != -1 && ev.getPointerId(ev.getActionIndex()) != activePointerId) // ignore other fingers for now
 			return;
 		
@@ -2,29 +2,49 @@ package uk.co.benjaminelliott.spectrogramandroid.ui;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.List;
 
 import uk.co.benjaminelliott.spectrogramandroid.R;
+import uk.co.benjaminelliott.spectrogramandroid.activities.SpectroActivity;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
 import uk.co.benjaminelliott.spectrogramandroid.storage.AudioBitmapConverter;
-import uk.co.benjaminelliott.spectrogramandroid.transmission.ServerSendTask;
+import uk.co.benjaminelliott.spectrogramandroid.storage.CaptureCatalog;
+import uk.co.benjaminelliott.spectrogramandroid.storage.CaptureRecord;
+import uk.co.benjaminelliott.spectrogramandroid.storage.FlacDecoder;
+import uk.co.benjaminelliott.spectrogramandroid.storage.ThumbnailCache;
+import uk.co.benjaminelliott.spectrogramandroid.storage.WAVExplorer;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadQueue;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadService;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.media.ExifInterface;
-import android.media.MediaPlayer;
+import android.location.Location;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
+import android.util.Log;
 import android.support.v4.app.Fragment;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * The Fragment that holds the user's previous captures so they can review them, share them and
@@ -38,90 +58,213 @@ import android.widget.ListView;
  */
 public class LibraryFragment extends Fragment {
 
-	private ArrayList<String> imageFiles = new ArrayList<String>();
+	private static final String TAG = "LibraryFragment";
+	private static final int PAGE_SIZE = 50; // captures loaded from the catalog at a time
+	private static final int PREFETCH_ROWS = 10; // rows beyond the screen whose previews are loaded ahead
+	private static final double NEARBY_RADIUS_METERS = 500; // how close captures listed as "near here" are
+	private ArrayList<CaptureRecord> captures = new ArrayList<CaptureRecord>();
 	private File directory;
-	private String IMAGE_SUFFIX = ".jpg";
-	private String AUDIO_SUFFIX = ".wav";
 	private ListView fileListView;
-	private ArrayAdapter<String> adapter;
-	private MediaPlayer player;
+	private CaptureAdapter adapter;
+	private ThumbnailCache thumbnails;
+	private int lastFirstVisible = 0; // to tell which way the list is scrolling
+	private AudioTrack player;
+	private PlayerTask loadingPlayer; // null if no capture's audio is being decoded
+	private CaptureCatalog catalog;
+	private LoadPageTask loadingPage; // null if no page is being loaded
+	private boolean allLoaded = false; // whether the last page has been loaded
+	private MenuItem nearbyItem; // checked while only captures near here are listed
 
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container,
 			Bundle savedInstanceState) {
 		View rootView = inflater.inflate(R.layout.fragment_library,container, false);
+		setHasOptionsMenu(true);
 		// get directory for spectrogram captures:
 		directory = AudioBitmapConverter.getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
 		// create the directory if necessary:
 		directory.mkdirs();
+		catalog = CaptureCatalog.getInstance(getActivity());
 		fileListView = (ListView) rootView.findViewById(R.id.listview_file_library);
-		// populate the ListView with files found in the captures directory:
-		adapter = new ArrayAdapter<String>(getActivity(),android.R.layout.simple_list_item_1, imageFiles);
+		// show each preview as it loads, if its row is still on screen:
+		thumbnails = new ThumbnailCache(directory, new ThumbnailCache.Listener() {
+			@Override
+			public void onThumbnailLoaded(String imageFile, Bitmap thumbnail) {
+				for (int i = 0; i < fileListView.getChildCount(); i++) {
+					RowViews row = (RowViews) fileListView.getChildAt(i).getTag();
+					if (row != null && imageFile.equals(row.imageFile)) showThumbnail(row, thumbnail);
+				}
+			}
+		});
+		// populate the ListView with captures from the catalog, a page at a time:
+		adapter = new CaptureAdapter();
 		fileListView.setAdapter(adapter);
 		populateFilesList();
+		// load the next page as the user nears the end of the list:
+		fileListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+			@Override
+			public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+
+			@Override
+			public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) loadNextPage();
+				prefetchThumbnails(firstVisibleItem, visibleItemCount, firstVisibleItem >= lastFirstVisible);
+				lastFirstVisible = firstVisibleItem;
+			}
+		});
 		// when a list item is clicked, present it to the user for review:
 		fileListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 			public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
-				viewImage(imageFiles.get(position));
+				viewImage(captures.get(position));
 			}
 		});
 
 		return rootView;
 	}
 
+	@Override
+	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+		inflater.inflate(R.menu.library, menu);
+		nearbyItem = menu.findItem(R.id.action_nearby);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if (item.getItemId() == R.id.action_upload_all) {
+			new UploadAllTask().execute();
+			return true;
+		}
+		if (item.getItemId() != R.id.action_nearby) return super.onOptionsItemSelected(item);
+		if (item.isChecked()) { // back to every capture
+			populateFilesList();
+			return true;
+		}
+		Location here = ((SpectroActivity) getActivity()).getLastLocation();
+		if (here == null) {
+			Toast.makeText(getActivity(), "Location unavailable", Toast.LENGTH_SHORT).show();
+			return true;
+		}
+		item.setChecked(true);
+		showCaptures(here);
+		return true;
+	}
+
+	@Override
+	public void onDestroyView() {
+		super.onDestroyView();
+		thumbnails.close();
+	}
+
 	/**
-	 * Presents the specified spectrogram capture's image and audio for review.
-	 * @param filename - the filename of the capture to review
+	 * Asks for the previews of the rows just beyond the screen in the direction of scrolling.
 	 */
-	private void viewImage(final String filename) {
-		final String filepath = directory.getAbsolutePath()+"/"+filename;
+	private void prefetchThumbnails(int firstVisible, int visibleCount, boolean down) {
+		int from = down ? firstVisible + visibleCount : Math.max(firstVisible - PREFETCH_ROWS, 0);
+		int to = down ? Math.min(from + PREFETCH_ROWS, captures.size()) : firstVisible;
+		// nearest the screen first, as prefetches are loaded in the order asked for:
+		for (int i = 0; i < to - from; i++) {
+			CaptureRecord capture = captures.get(down ? from + i : to - 1 - i);
+			if (capture.imageFile != null) thumbnails.prefetch(capture.imageFile);
+		}
+	}
 
-		//play WAV file simultaneously with showing spectrogram image:
+	/**
+	 * Views of a row of the list, kept as its tag.
+	 */
+	private static class RowViews {
+		ImageView thumbnail;
+		TextView name;
+		String imageFile; // whose preview the row should show
+		Bitmap shown; // the preview it is showing, retained from the cache, or null
+	}
 
-		File audioFile = new File(filepath+AUDIO_SUFFIX);
-		//need to set permissions so that it can be read by the media player
-		audioFile.setReadable(true,false);
+	/**
+	 * Shows the given preview, or none if it is null, in the given row, letting the cache know which
+	 * previews are on screen and so must not be decoded into.
+	 */
+	private void showThumbnail(RowViews row, Bitmap thumbnail) {
+		if (thumbnail == row.shown) return;
+		if (row.shown != null) thumbnails.release(row.shown);
+		if (thumbnail != null) thumbnails.retain(thumbnail);
+		row.shown = thumbnail;
+		row.thumbnail.setImageBitmap(thumbnail);
+	}
 
-		player = new MediaPlayer();
-		try {
-			player.setDataSource(filepath+AUDIO_SUFFIX);
-			player.prepare();
-			player.start();
-		} catch (IllegalArgumentException e) {
-			e.printStackTrace();
-		} catch (SecurityException e) {
-			e.printStackTrace();
-		} catch (IllegalStateException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Shows each capture as its preview beside its name.
+	 */
+	private class CaptureAdapter extends ArrayAdapter<CaptureRecord> {
+
+		CaptureAdapter() {
+			super(getActivity(), R.layout.item_capture, captures);
+		}
+
+		@Override
+		public View getView(int position, View convertView, ViewGroup parent) {
+			View view = convertView;
+			RowViews row;
+			if (view == null) {
+				view = LayoutInflater.from(getContext()).inflate(R.layout.item_capture, parent, false);
+				row = new RowViews();
+				row.thumbnail = (ImageView) view.findViewById(R.id.capture_thumbnail);
+				row.name = (TextView) view.findViewById(R.id.capture_name);
+				view.setTag(row);
+			} else {
+				row = (RowViews) view.getTag();
+			}
+			CaptureRecord capture = getItem(position);
+			row.name.setText(capture.name);
+			row.imageFile = capture.imageFile;
+			Bitmap thumbnail = (capture.imageFile == null) ? null : thumbnails.get(capture.imageFile);
+			showThumbnail(row, thumbnail);
+			if (thumbnail == null && capture.imageFile != null) thumbnails.load(capture.imageFile);
+			return view;
 		}
+	}
+
+	/**
+	 * Presents the specified spectrogram capture's image and audio for review.
+	 * @param capture - the capture to review
+	 */
+	private void viewImage(final CaptureRecord capture) {
+		//play audio simultaneously with showing spectrogram image, once it has been decoded:
+		stopPlayer();
+		loadingPlayer = new PlayerTask(capture);
+		loadingPlayer.execute();
 
 		// present the image using an AlertDialog:
 		AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
 		// ImageView to hold the image:
 		ImageView specImage = new ImageView(getActivity());
 		specImage.setPadding(0, 50, 0, 50);
-		Bitmap imgAsBmp = BitmapFactory.decodeFile(filepath+IMAGE_SUFFIX);
-		specImage.setImageBitmap(imgAsBmp);
+		if (capture.imageFile != null) {
+			// decode no more of the image than the screen can show:
+			DisplayMetrics screen = getResources().getDisplayMetrics();
+			Bitmap imgAsBmp = ThumbnailCache.decodeSampled(new File(directory, capture.imageFile).getAbsolutePath(),
+					screen.widthPixels, screen.heightPixels / 2, null);
+			specImage.setImageBitmap(imgAsBmp);
+		}
 		builder.setView(specImage);
 
-		builder.setTitle(filename);
+		builder.setTitle(capture.name);
 
 		// set AlertDialog to have three buttons: "show on map", "upload" and "dismiss"
 		builder.setPositiveButton("Show on map", new DialogInterface.OnClickListener() { 
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
-				//open Google Maps using an intent to display image's geotag
+				//open Google Maps using an intent to display the capture's location
 
 				// remove dialog and stop audio from playing:
 				dialog.cancel();
-				player.stop();
-				player.release();
+				stopPlayer();
 
-				// get latitude and longitude from EXIF data:
-				double latitude = getConvertedLatitude(filepath+IMAGE_SUFFIX);
-				double longitude = getConvertedLongitude(filepath+IMAGE_SUFFIX);
+				if (!capture.hasLocation()) {
+					Toast.makeText(getActivity(), "This capture has no location", Toast.LENGTH_SHORT).show();
+					return;
+				}
+				double latitude = capture.latitude;
+				double longitude = capture.longitude;
 				// use an intent to open Google Maps (or similar):
 				Uri uri = Uri.parse("geo:"+latitude+","+longitude+"?q="+latitude+","+longitude);
 				Intent intent = new Intent(android.content.Intent.ACTION_VIEW, uri);
@@ -131,8 +274,10 @@ public class LibraryFragment extends Fragment {
 		builder.setNeutralButton("Upload", new DialogInterface.OnClickListener() { 
 			@Override
 			public void onClick(DialogInterface dialog, int which) {
-				// upload the user's capture to the server. TODO - feedback
-				new ServerSendTask().execute(directory.getAbsolutePath(), filename);
+				// queue the user's capture to be uploaded to the server when the upload settings allow:
+				if (capture.cbaFile == null) return;
+				UploadService.enqueue(getActivity(), new File(directory, capture.cbaFile).getAbsolutePath());
+				Toast.makeText(getActivity(), "Queued for upload", Toast.LENGTH_SHORT).show();
 			}
 		});
 		builder.setNegativeButton("Dismiss", new DialogInterface.OnClickListener() { 
@@ -140,84 +285,195 @@ public class LibraryFragment extends Fragment {
 			public void onClick(DialogInterface dialog, int which) {
 				// remove the dialog and stop the audio from playing. TODO - allow deletion
 				dialog.cancel();
-				player.stop();
-				player.release();
+				stopPlayer();
 			}
 		});
 
 		builder.show();
-		player.start();		
 	}
 
 	/**
-	 * Populates the list of files with the files in the captures directory.
+	 * Decodes the audio of the given capture and returns a player loaded with it, or null if the
+	 * audio could not be read. Reads the whole audio file, so must not be called on the UI thread.
 	 */
-	public void populateFilesList() {
-		File[] directoryContents = directory.listFiles();
-		for (int i = 0; i < directoryContents.length; i++) {
-			String name = directoryContents[i].getName();
-			if (name.endsWith(IMAGE_SUFFIX)) {
-				name = name.substring(0, name.length() - IMAGE_SUFFIX.length());
-				if (!imageFiles.contains(name)) imageFiles.add(name);
+	private AudioTrack createPlayer(CaptureRecord capture) {
+		if (capture.audioFile == null) return null;
+		short[] samples;
+		int sampleRate;
+		File audioFile = new File(directory, capture.audioFile);
+		if (!audioFile.exists()) return null;
+		if (capture.audioFile.endsWith(AudioBitmapConverter.AUDIO_EXTENSION)) {
+			try {
+				FlacDecoder decoder = new FlacDecoder(readFile(audioFile));
+				if (decoder.getChannels() != 1) throw new IOException("Expected mono audio");
+				samples = decoder.decodeAll();
+				sampleRate = decoder.getSampleRate();
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to decode "+audioFile.getAbsolutePath(), e);
+				return null;
 			}
+		} else { // a WAV saved before audio was stored as FLAC
+			WAVExplorer wav = new WAVExplorer(audioFile.getAbsolutePath());
+			float[] data = wav.getFirstChannelDataAsFloat();
+			samples = new short[data.length];
+			for (int i = 0; i < data.length; i++) samples[i] = (short) data[i];
+			sampleRate = wav.getSampleRate();
+		}
+		if (samples.length == 0) return null;
+		AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+				AudioFormat.ENCODING_PCM_16BIT, samples.length * 2, AudioTrack.MODE_STATIC);
+		track.write(samples, 0, samples.length);
+		return track;
+	}
+
+	private void stopPlayer() {
+		if (loadingPlayer != null) loadingPlayer.cancel(false);
+		loadingPlayer = null;
+		if (player == null) return;
+		player.stop();
+		player.release();
+		player = null;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[(int) in.length()];
+			in.readFully(data);
+			return data;
+		} finally {
+			in.close();
 		}
+	}
+
+	/**
+	 * Empties the list and loads the newest page of captures from the catalog, e.g. after a capture
+	 * has been added.
+	 */
+	public void populateFilesList() {
+		if (nearbyItem != null) nearbyItem.setChecked(false);
+		showCaptures(null);
+	}
+
+	/**
+	 * Empties the list, then fills it with the captures within NEARBY_RADIUS_METERS of the given
+	 * location, or with the newest page of all captures if it is null.
+	 */
+	private void showCaptures(Location near) {
+		if (loadingPage != null) loadingPage.cancel(false);
+		loadingPage = null;
+		captures.clear();
+		allLoaded = false;
 		adapter.notifyDataSetChanged();
-	}	
+		loadingPage = new LoadPageTask(null, near);
+		loadingPage.execute();
+	}
 
 	/**
-	 * Returns the longitude (in decimal format) from the EXIF data of a JPEG obtained 
-	 * from the provided filepath.
-	 * @param filepath - the filepath of the image file
-	 * @return the longitude in decimal format
+	 * Loads the page of captures after the last one in the list, unless one is already loading.
 	 */
-	private double getConvertedLongitude(String filepath) {
-		ExifInterface exif = null;
-		try {
-			exif = new ExifInterface(filepath);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return convertDMStoDec(exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE), exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF));
+	private void loadNextPage() {
+		if (loadingPage != null || allLoaded) return;
+		CaptureRecord last = captures.isEmpty() ? null : captures.get(captures.size() - 1);
+		loadingPage = new LoadPageTask(last, null);
+		loadingPage.execute();
 	}
 
 	/**
-	 * Returns the latitude (in decimal format) from the EXIF data of a JPEG obtained 
-	 * from the provided filepath.
-	 * @param filepath - the filepath of the image file
-	 * @return the latitude in decimal format
+	 * AsyncTask that reads a page of captures from the catalog, which is built from the captures
+	 * directory first if the catalog is missing, or all those near a location.
 	 */
-	private double getConvertedLatitude(String filepath) {
-		ExifInterface exif = null;
-		try {
-			exif = new ExifInterface(filepath);
-		} catch (IOException e) {
-			e.printStackTrace();
+	private class LoadPageTask extends AsyncTask<Void, Void, List<CaptureRecord>> {
+		private final CaptureRecord after;
+		private final Location near; // null for a page of all captures
+
+		LoadPageTask(CaptureRecord after, Location near) {
+			this.after = after;
+			this.near = near;
+		}
+
+		@Override
+		protected List<CaptureRecord> doInBackground(Void... params) {
+			if (near != null) return catalog.findWithin(near.getLatitude(), near.getLongitude(), NEARBY_RADIUS_METERS);
+			return catalog.getPage(after, PAGE_SIZE);
+		}
+
+		@Override
+		protected void onPostExecute(List<CaptureRecord> page) {
+			if (loadingPage != this) return; // the list was emptied while this page loaded
+			loadingPage = null;
+			if (near != null || page.size() < PAGE_SIZE) allLoaded = true;
+			captures.addAll(page);
+			adapter.notifyDataSetChanged();
 		}
-		return convertDMStoDec(exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE), exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE_REF));
 	}
 
 	/**
-	 * Converts a degrees-minutes-seconds latitude/longitude to decimal format.
-	 * @param dms - the latitude/longitude in degrees-minutes-seconds format
-	 * @param direction - "W", "E", "S" or "N"
-	 * @return a double representing the input in decimal format.
+	 * AsyncTask that decodes the audio of a capture being reviewed and starts playing it, unless the
+	 * review has been dismissed in the meantime.
 	 */
-	private static double convertDMStoDec(String dms, String direction) {
-		// see http://en.wikipedia.org/wiki/Geographic_coordinate_conversion#Conversion_from_DMS_to_Decimal_Degree
+	private class PlayerTask extends AsyncTask<Void, Void, AudioTrack> {
+		private final CaptureRecord capture;
+
+		PlayerTask(CaptureRecord capture) {
+			this.capture = capture;
+		}
+
+		@Override
+		protected AudioTrack doInBackground(Void... params) {
+			return createPlayer(capture);
+		}
 
-		//dms string will be of the form degrees+"/1,"+minutes+"/1,"+seconds+"/1000"
-		String[] splitDMS = dms.split("/1,");
-		if (splitDMS.length != 4)
-			throw new IllegalArgumentException("DMS string did not have hte expected format.");
+		@Override
+		protected void onPostExecute(AudioTrack track) {
+			if (track == null) return;
+			if (loadingPlayer != this) { // dismissed while the audio was decoded
+				track.release();
+				return;
+			}
+			loadingPlayer = null;
+			player = track;
+			player.play();
+		}
 
-		int dec = Integer.parseInt(splitDMS[0]);
-		int min = Integer.parseInt(splitDMS[1]);
-		float sec = Integer.parseInt(splitDMS[2].substring(0, splitDMS[2].length() - 5)) / 1000; //remove "/1000"
+		@Override
+		protected void onCancelled(AudioTrack track) {
+			if (track != null) track.release();
+		}
+	}
 
-		double total = dec + (min * 60 + sec) / 3600;
+	/**
+	 * AsyncTask that adds the .cba file of every capture in the catalog to the upload queue, then
+	 * starts it draining.
+	 */
+	private class UploadAllTask extends AsyncTask<Void, Void, Integer> {
+		private final Context context = getActivity().getApplicationContext();
 
-		if (direction.equals("W") || direction.equals("S")) total = -total;
+		@Override
+		protected Integer doInBackground(Void... params) {
+			List<String> paths = new ArrayList<String>();
+			CaptureRecord after = null;
+			List<CaptureRecord> page;
+			do {
+				page = catalog.getPage(after, PAGE_SIZE);
+				for (CaptureRecord capture : page) {
+					if (capture.cbaFile != null) paths.add(new File(directory, capture.cbaFile).getAbsolutePath());
+				}
+				if (!page.isEmpty()) after = page.get(page.size() - 1);
+			} while (page.size() == PAGE_SIZE);
+			// straight into the queue rather than through the service's intent, which could be too large:
+			UploadQueue.getInstance(context).enqueue(paths.toArray(new String[paths.size()]), System.currentTimeMillis());
+			return paths.size();
+		}
 
-		return total;
+		@Override
+		protected void onPostExecute(Integer queued) {
+			if (queued == 0) {
+				Toast.makeText(context, "No captures to upload", Toast.LENGTH_SHORT).show();
+				return;
+			}
+			UploadService.drain(context);
+			Toast.makeText(context, queued+" captures queued for upload", Toast.LENGTH_SHORT).show();
+		}
 	}
 }
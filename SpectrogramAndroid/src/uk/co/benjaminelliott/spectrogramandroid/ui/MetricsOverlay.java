@@ -0,0 +1,80 @@
+package uk.co.benjaminelliott.spectrogramandroid.ui;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Histogram;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Draws a summary of the pipeline's latency statistics in the top-left corner of the display.
+ * The text is rebuilt in the same buffer every frame, so drawing it does not allocate.
+ *
+ */
+class MetricsOverlay {
+
+    private static final float TEXT_SIZE = 24f;
+    private static final float MARGIN = 8f;
+
+    private PipelineMetrics metrics;
+    private Paint textPaint;
+    private Paint backgroundPaint;
+    private StringBuilder line = new StringBuilder(64); // reused for each line of text
+
+    MetricsOverlay(PipelineMetrics metrics) {
+        this.metrics = metrics;
+        textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(Color.GREEN);
+        textPaint.setTextSize(TEXT_SIZE);
+        backgroundPaint = new Paint();
+        backgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+    }
+
+    /**
+     * Draw the current statistics onto the given canvas.
+     */
+    void draw(Canvas canvas) {
+        canvas.drawRect(0, 0, 20 * TEXT_SIZE, 8 * TEXT_SIZE + 2 * MARGIN, backgroundPaint);
+        float y = MARGIN + TEXT_SIZE;
+        drawLatency(canvas, "mic ", metrics.getMicReadLatency(), y);
+        drawLatency(canvas, "fft ", metrics.getFftLatency(), y += TEXT_SIZE);
+        drawLatency(canvas, "draw ", metrics.getDrawLatency(), y += TEXT_SIZE);
+        drawLatency(canvas, "mic->px ", metrics.getMicToPixelLatency(), y += TEXT_SIZE);
+
+        line.setLength(0);
+        line.append("queue audio ").append(metrics.getAudioQueueDepth().getMax())
+            .append(" bitmap ").append(metrics.getBitmapQueueDepth().getMax()).append(" max");
+        canvas.drawText(line, 0, line.length(), MARGIN, y += TEXT_SIZE, textPaint);
+
+        line.setLength(0);
+        line.append("overrun ").append(metrics.getOverrunWindows())
+            .append(" dropped ").append(metrics.getDroppedWindows());
+        canvas.drawText(line, 0, line.length(), MARGIN, y += TEXT_SIZE, textPaint);
+
+        line.setLength(0);
+        line.append("gaps ").append(metrics.getGaps())
+            .append(" (").append(metrics.getFramesLost()).append(" frames) errors ").append(metrics.getReadErrors());
+        canvas.drawText(line, 0, line.length(), MARGIN, y += TEXT_SIZE, textPaint);
+    }
+
+    private void drawLatency(Canvas canvas, String name, Histogram h, float y) {
+        line.setLength(0);
+        line.append(name).append("p50 ");
+        appendMillis(h.getValueAtPercentile(50));
+        line.append(" p99 ");
+        appendMillis(h.getValueAtPercentile(99));
+        line.append(" max ");
+        appendMillis(h.getMax());
+        line.append(" ms");
+        canvas.drawText(line, 0, line.length(), MARGIN, y, textPaint);
+    }
+
+    /**
+     * Append a duration in nanoseconds as milliseconds to one decimal place, without the
+     * allocation that formatting a floating-point number would cause.
+     */
+    private void appendMillis(long nanos) {
+        long tenths = (nanos + 50000) / 100000;
+        line.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
@@ -214,10 +214,17 @@ public class SpectroFragment extends Fragment {
 		topFreqTextView.setText(bd.floatValue()+" kHz");
 	}
 
+	/**
+	 * Displays the provided frequency as a decimal in the bottom frequency text view.
+	 */
+	public void setBottomFreqText(float freqInKHz) {
+		BigDecimal bd = new BigDecimal(Float.toString(freqInKHz));
+		bd = bd.setScale(2, BigDecimal.ROUND_HALF_UP); //round to 2 dp
+		bottomFreqTextView.setText(bd.floatValue()+" kHz");
+	}
+
 	public void setLocationClient(LocationClient lc) {
 		ssv.setLocationClient(lc); 
 	}
 
-	//Bottom freq is always 0 kHz
-
 }
@@ -1,14 +1,23 @@
 package uk.co.benjaminelliott.spectrogramandroid.ui;
 
+import java.io.File;
+import java.io.IOException;
+
 import uk.co.benjaminelliott.spectrogramandroid.audioproc.BitmapProvider;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.UiConfig;
+import uk.co.benjaminelliott.spectrogramandroid.storage.AudioBitmapConverter;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
 import uk.co.benjaminelliott.spectrogramandroid.ui.bitmaps.ScrollShadowGenerator;
 import uk.co.benjaminelliott.spectrogramandroid.ui.bitmaps.SelectRectGenerator;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
+import android.util.Log;
 import android.view.SurfaceHolder;
 
 /**
@@ -18,6 +27,8 @@ import android.view.SurfaceHolder;
  */
 class SpectrogramDrawer {
 
+    private static final String METRICS_FILE_NAME = "pipeline_metrics.txt";
+
     private DynamicAudioConfig dac;
     private int width; 
     private int height;
@@ -43,6 +54,12 @@ class SpectrogramDrawer {
     private int windowsAvailable = 0;
     private Bitmap unscaledBitmap;
     private int oldestBitmapAvailable;
+    private PipelineMetrics metrics;
+    private MetricsOverlay metricsOverlay; // null unless the user has asked to see pipeline statistics
+    private int zoom = 0; // level of the history's pyramid on screen, each column of pixels covering 2^zoom windows
+    private byte[] zoomLevels; // levels of the pyramid column being drawn
+    private int[] zoomPixels; // colours of the columns on screen when zoomed out, row by row from the top
+    private Bitmap zoomBitmap; // zoomPixels, set into it on every draw and scaled to the screen
 
     //declare reused variables here to reduce GC
     private boolean drawLeftShadow;
@@ -58,6 +75,8 @@ class SpectrogramDrawer {
         this.holder = holder;
 
         bg = new BitmapProvider(dac);
+        metrics = bg.getMetrics();
+        if (dac.DEBUG_OVERLAY) metricsOverlay = new MetricsOverlay(metrics);
         verticalStretch = ((float)height)/((float)dac.NUM_FREQ_BINS); // stretch spectrogram to all of available height
 
         init();
@@ -114,6 +133,7 @@ class SpectrogramDrawer {
      */
     public void scroll() {
         displayCanvas = holder.lockCanvas(null);
+        long drawStart = System.nanoTime();
         try {
             quickProgress(); //update buffer bitmap
             synchronized (holder) {
@@ -121,12 +141,15 @@ class SpectrogramDrawer {
                 displayCanvas.drawBitmap(buffer, 0, 0, null);
                 //draw scrolling shadow bitmaps on top
                 displayCanvas.drawBitmap(leftShadow, 0,  0, null); 
+                if (metricsOverlay != null) metricsOverlay.draw(displayCanvas);
             }
         } finally {
             if (displayCanvas != null) {
                 holder.unlockCanvasAndPost(displayCanvas);
             }
         }
+        long posted = System.nanoTime();
+        metrics.framePresented(posted - drawStart, posted);
     }
 
     /**
@@ -134,7 +157,12 @@ class SpectrogramDrawer {
      * then scrolls the screen so long as the appropriate windows are available.
      */
     public void quickSlide(int offset) {
-        int windowLimit = DynamicAudioConfig.WINDOW_LIMIT;
+        if (zoom > 0) {
+            slideZoomed(offset);
+            return;
+        }
+        Tracer.begin("quickSlide");
+        int windowLimit = bg.getWindowLimit();
         int horizontalStretch = UiConfig.HORIZONTAL_STRETCH_FACTOR;
         if (canScroll) { //only scroll if there are more than a screen's worth of windows
             //stop new windows from coming in immediately
@@ -190,15 +218,127 @@ class SpectrogramDrawer {
                 }
             }
         }
+        Tracer.end();
+    }
+
+
+
+    /**
+     * Zooms the paused spectrogram out by the given number of levels of the history's pyramid, or
+     * back in if negative, keeping the window under the horizontal pixel focusX where it is. Each
+     * level doubles the time each column of pixels covers, and the screen is drawn from the pyramid at
+     * the same cost whatever that time is. Zooming out stops once all the history held fits on screen.
+     */
+    public void zoom(int levels, float focusX) {
+        if (running || !canScroll) return;
+        int newZoom = Math.max(0, Math.min(zoom + levels, bg.getPyramidLevels()));
+        int held = windowsDrawn - bg.getOldestBitmapIndex();
+        while (newZoom > zoom && windowsOnScreen(newZoom - 1) >= held) newZoom--;
+        if (newZoom == zoom) return;
+        Tracer.begin("zoom");
+        int focusWindow = getWindowAtPixel(focusX);
+        zoom = newZoom;
+        leftmostWindow = focusWindow - (int) (focusX / width * windowsOnScreen(zoom));
+        clampLeftmostWindow();
+        if (zoom > 0) {
+            drawZoomed();
+        } else {
+            // back to a column of pixels per window, drawn from the bitmap windows:
+            bufferCanvas.drawColor(Color.BLACK);
+            int windowLimit = bg.getWindowLimit();
+            for (int i = 0; i < width/UiConfig.HORIZONTAL_STRETCH_FACTOR; i++) {
+                drawSingleBitmap((leftmostWindow + i) % windowLimit, i * UiConfig.HORIZONTAL_STRETCH_FACTOR);
+            }
+        }
+        showBuffer();
+        Tracer.end();
+    }
+
+    /**
+     * Zoomed-out version of {@link #quickSlide(int)}, which redraws the whole screen from the pyramid
+     * rather than shifting it.
+     */
+    private void slideZoomed(int offset) {
+        int columns = offset / UiConfig.HORIZONTAL_STRETCH_FACTOR;
+        if (columns == 0) return;
+        Tracer.begin("slideZoomed");
+        leftmostWindow -= columns << zoom;
+        clampLeftmostWindow();
+        drawZoomed();
+        showBuffer();
+        Tracer.end();
+    }
+
+    /**
+     * Keeps the windows on screen within those that have been drawn and are still held, and when
+     * zoomed out, starts the screen at the first window of a column of the pyramid.
+     */
+    private void clampLeftmostWindow() {
+        // first window of a column that is wholly held, so rounding down below cannot go before it:
+        int oldest = ((bg.getOldestBitmapIndex() + (1 << zoom) - 1) >> zoom) << zoom;
+        if (leftmostWindow > windowsDrawn - windowsOnScreen(zoom)) leftmostWindow = windowsDrawn - windowsOnScreen(zoom);
+        if (leftmostWindow < oldest) leftmostWindow = oldest;
+        leftmostWindow = (leftmostWindow >> zoom) << zoom;
+    }
+
+    /**
+     * Draws the screen from the columns of the pyramid level being shown, coloured the way the
+     * bitmap windows are. Columns that are not complete or no longer held are left black.
+     */
+    private void drawZoomed() {
+        int columnsOnScreen = width / UiConfig.HORIZONTAL_STRETCH_FACTOR;
+        int rows = dac.NUM_FREQ_BINS;
+        if (zoomPixels == null) {
+            // the same size at every level, so made once:
+            zoomLevels = new byte[rows];
+            zoomPixels = new int[columnsOnScreen * rows];
+            zoomBitmap = Bitmap.createBitmap(columnsOnScreen, rows, Bitmap.Config.ARGB_8888);
+        }
+        int[] levelColours = bg.getLevelColours();
+        int firstColumn = leftmostWindow >> zoom;
+        for (int c = 0; c < columnsOnScreen; c++) {
+            boolean held = bg.getPyramidColumn(zoom, firstColumn + c, UiConfig.ZOOM_SHOWS_PEAKS, zoomLevels);
+            for (int r = 0; r < rows; r++) {
+                zoomPixels[(rows - r - 1) * columnsOnScreen + c] = held ? levelColours[zoomLevels[r] & 0xFF] : Color.BLACK;
+            }
+        }
+        zoomBitmap.setPixels(zoomPixels, 0, columnsOnScreen, 0, 0, columnsOnScreen, rows);
+        bufferCanvas.drawColor(Color.BLACK);
+        bufferCanvas.drawBitmap(zoomBitmap, scaleMatrix, null);
     }
 
+    /**
+     * Draws the buffer to the display, with the scroll shadows on whichever sides there is more
+     * history to scroll to.
+     */
+    private void showBuffer() {
+        displayCanvas = holder.lockCanvas(null);
+        try {
+            synchronized (holder) {
+                displayCanvas.drawBitmap(buffer, 0, 0, null);
+                if (leftmostWindow > bg.getOldestBitmapIndex()) displayCanvas.drawBitmap(leftShadow, 0,  0, null);
+                if (leftmostWindow + windowsOnScreen(zoom) < windowsDrawn) displayCanvas.drawBitmap(rightShadow, 0,  0, null);
+            }
+        } finally {
+            if (displayCanvas != null) {
+                holder.unlockCanvasAndPost(displayCanvas);
+            }
+        }
+    }
 
+    /**
+     * Returns the number of windows that fit on screen at the given zoom level.
+     */
+    private int windowsOnScreen(int zoom) {
+        return (width / UiConfig.HORIZONTAL_STRETCH_FACTOR) << zoom;
+    }
 
     /**
      * Shifts the bitmap displayed in the previous frame and then draws
      * the new windows on the right hand side.
      */
     private void quickProgress() {
+        Tracer.begin("quickProgress");
         windowsAvailable = bg.getBitmapWindowsAvailable();
 
         if ((windowsDrawn+windowsAvailable) * UiConfig.HORIZONTAL_STRETCH_FACTOR >= width) { 
@@ -216,6 +356,7 @@ class SpectrogramDrawer {
         }
 
         windowsDrawn += windowsAvailable;
+        Tracer.end();
     }
 
     /**
@@ -272,6 +413,22 @@ class SpectrogramDrawer {
         quickSlide(0); //force the shadows to be drawn immediately
     }
 
+    /**
+     * Shrink the audio and bitmap history to the given fraction of its current size (keeping the
+     * newest windows) because the system is running low on memory. While paused, the windows
+     * currently on screen are always kept so that they can still be captured.
+     */
+    public void trimHistory(float fraction) {
+        int windows = (int) (bg.getWindowLimit() * fraction);
+        if (!running) windows = Math.max(windows, windowsDrawn - leftmostWindow + 1);
+        bg.resizeHistory(windows);
+        Log.d("SpectrogramDrawer", "History now holds "+bg.getWindowLimit()+" windows in "+(bg.getHistoryBytes() >> 10)+" KiB");
+        if (!running) {
+            leftmostBitmapAvailable = bg.getLeftmostBitmapIndex();
+            rightmostBitmapAvailable = bg.getRightmostBitmapIndex();
+        }
+    }
+
     /**
      * Returns a matrix for scaling bitmaps from origWidth, origHeight to newWidth, newHeight.
      */
@@ -301,10 +458,10 @@ class SpectrogramDrawer {
      * screen with bitmap windows.
      */
     public float getScreenFillTime() {
-        //no. windows on screen = width/UiConfig.HORIZONTAL_STRETCH_FACTOR,
+        //no. windows on screen = width/UiConfig.HORIZONTAL_STRETCH_FACTOR, doubled for each level zoomed out,
         //no. samples on screen = no. windows * samplesPerWindow
         //time on screen = no. samples / samples per second [sample rate]
-        return ((float)width/(float)UiConfig.HORIZONTAL_STRETCH_FACTOR*(float)dac.SAMPLES_PER_WINDOW)/(float)dac.SAMPLE_RATE;
+        return ((float)width/(float)UiConfig.HORIZONTAL_STRETCH_FACTOR*(1 << zoom)*(float)dac.SAMPLES_PER_WINDOW)/(float)dac.SAMPLE_RATE;
     }
 
     /**
@@ -323,7 +480,10 @@ class SpectrogramDrawer {
         if (pixelOffset < 0) return leftmostWindow;
         if (pixelOffset > width) pixelOffset = width;
         //number of windows that can fit on entire screen
-        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR);
+        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR)*(1 << zoom);
+        //zoomed out, the screen may reach past the oldest window held or the newest drawn
+        if (zoom > 0) return Math.max(bg.getOldestBitmapIndex(), Math.min(windowsDrawn,
+                (int)(leftmostWindow + ((pixelOffset/width) * windowsOnScreen))));
         //screen is filled with samples
         if (canScroll) return (int)(leftmostWindow + ((pixelOffset/width) * windowsOnScreen)); 
         int ret = (int)(windowsDrawn - (windowsOnScreen-(pixelOffset/width) * windowsOnScreen));
@@ -340,26 +500,35 @@ class SpectrogramDrawer {
         if (pixelOffset > width) return width;
         int windowOffset = getWindowAtPixel(pixelOffset)-windowsDrawn;
         //number of windows that can fit on entire screen
-        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR); 
+        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR)*(1 << zoom); 
         //time per window * windows difference
         return (getScreenFillTime()/windowsOnScreen)*(float)windowOffset; 
     }
 
     protected float getTimeFromStartAtPixel(float pixelOffset) {
         //number of windows that can fit on entire screen
-        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR); 
+        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR)*(1 << zoom); 
         return (getScreenFillTime()/windowsOnScreen)*getWindowAtPixel(pixelOffset);
     }
 
     protected float getTimeFromStopAtPixel(float pixelOffset) {
         //number of windows that can fit on entire screen
-        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR); 
+        float windowsOnScreen = ((float)width)/((float)UiConfig.HORIZONTAL_STRETCH_FACTOR)*(1 << zoom); 
         return -(getScreenFillTime()/windowsOnScreen)*(windowsDrawn-getWindowAtPixel(pixelOffset));
     }
 
+    /**
+     * Returns the minimum frequency that can be displayed on the spectrogram, which is above 0 Hz
+     * only on a logarithmic frequency axis.
+     */
+    public float getMinFrequency() {
+        return bg.getFrequencyAxis().getMinFrequency();
+    }
+
     /**
      * Returns the frequency associated with the vertical pixel 
-     * offset provided (pixelOffset = 0 at the top of the spectrogram).
+     * offset provided (pixelOffset = 0 at the top of the spectrogram),
+     * on whichever scale the frequency axis is drawn.
      */
     protected int getFrequencyAtPixel(float pixelOffset) {
         if (pixelOffset < 0) {
@@ -368,7 +537,7 @@ class SpectrogramDrawer {
         if (pixelOffset > height) {
             pixelOffset = height;
         }
-        return (int)(getMaxFrequency() - (pixelOffset/height)*getMaxFrequency());
+        return (int)bg.getFrequencyAxis().getFrequency(1 - pixelOffset/height);
     }
 
     /**
@@ -390,14 +559,14 @@ class SpectrogramDrawer {
 
     /**
      * Converts a description of a section of the spectrogram display (in pixels) to
-     * windows, then requests the appropriate bitmap from the BitmapProvider object.
+     * windows, then requests the spectrogram of that section from the BitmapProvider object.
      * @param x0 - first horizontal point on the display.
      * @param y0 - first vertical point on the display.
      * @param x1 - second horizontal point on the display.
      * @param y1 - second vertical point on the display.
-     * @return a Bitmap object containing the requested subsection of the display bitmap.
+     * @return the levels of the requested subsection of the spectrogram.
      */
-    protected Bitmap getBitmapToStore(float x0, float y0, float x1, float y1) {
+    protected SpectrogramLevels getLevelsToStore(float x0, float y0, float x1, float y1) {
 
         int startWindow;
         int endWindow;
@@ -424,7 +593,7 @@ class SpectrogramDrawer {
         // don't just copy directly from the display canvas since that bitmap 
         // has been stretched depending on device screen size		
 
-        return bg.createEntireBitmap(startWindow, endWindow, bottomFreq, topFreq);
+        return bg.createLevels(startWindow, endWindow, bottomFreq, topFreq);
     }
 
     /**
@@ -460,12 +629,65 @@ class SpectrogramDrawer {
         return bg.getAudioChunk(startWindow, endWindow, bottomFreq, topFreq);
     }
 
+    /**
+     * Returns the spectrogram from startWindow to endWindow and bottomFreq to topFreq (in Hz), e.g.
+     * of a sound found by the event detector rather than selected on the display.
+     */
+    protected SpectrogramLevels getLevelsOfWindows(int startWindow, int endWindow, int bottomFreq, int topFreq) {
+        return bg.createLevels(startWindow, endWindow, bottomFreq, topFreq);
+    }
+
+    /**
+     * Returns the audio from startWindow to endWindow, filtered to between bottomFreq and topFreq (in Hz).
+     */
+    protected short[] getAudioOfWindows(int startWindow, int endWindow, int bottomFreq, int topFreq) {
+        return bg.getAudioChunk(startWindow, endWindow, bottomFreq, topFreq);
+    }
+
+    /**
+     * Returns true if the audio from startWindow to endWindow is not continuous.
+     */
+    protected boolean windowsSpanGap(int startWindow, int endWindow) {
+        return bg.spansGap(startWindow, endWindow);
+    }
+
+    /**
+     * Sets the listener that receives the sounds found standing out from the background as the
+     * audio is processed, on the audio processing thread.
+     */
+    public void setEventListener(EventDetector.Listener listener) {
+        bg.setEventListener(listener);
+    }
+
+    /**
+     * Returns true if the audio between the two horizontal points on the display is not continuous,
+     * e.g. because the microphone's buffer overflowed while it was being recorded.
+     */
+    protected boolean selectionSpansGap(float x0, float x1) {
+        if (x0 < x1) return bg.spansGap(getWindowAtPixel(x0), getWindowAtPixel(x1));
+        return bg.spansGap(getWindowAtPixel(x1), getWindowAtPixel(x0));
+    }
+
     /**
      * Halts the scrolling thread and prevents new audio samples from being processed.
      */
     public void stop() {
         running = false;
         bg.stop();
+        if (metricsOverlay != null) dumpMetrics();
+    }
+
+    /**
+     * Save a report of the pipeline statistics alongside the user's captures.
+     */
+    private void dumpMetrics() {
+        if (!AudioBitmapConverter.isExternalStorageWritable()) return;
+        File dir = AudioBitmapConverter.getAlbumStorageDir(DynamicAudioConfig.STORE_DIR_NAME);
+        try {
+            metrics.dumpToFile(new File(dir, METRICS_FILE_NAME));
+        } catch (IOException e) {
+            Log.e("SpectrogramDrawer", "Unable to save pipeline statistics", e);
+        }
     }
 
     /**
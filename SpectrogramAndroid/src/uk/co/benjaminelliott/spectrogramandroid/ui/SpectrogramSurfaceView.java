@@ -1,15 +1,25 @@
 package uk.co.benjaminelliott.spectrogramandroid.ui;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 import uk.co.benjaminelliott.spectrogramandroid.activities.SpectroActivity;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
 import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
 import uk.co.benjaminelliott.spectrogramandroid.storage.AudioBitmapConverter;
+import uk.co.benjaminelliott.spectrogramandroid.storage.CaptureCatalog;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
 import android.app.AlertDialog;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.os.AsyncTask;
 import android.text.InputType;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -35,6 +45,25 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 	private String filename;
 	private LocationClient lc;
 	private AlertDialog loadingAlert; //used to force user to wait for capture
+	// shrinks the audio and bitmap history when the system asks apps to free memory:
+	private ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+		@Override
+		public void onTrimMemory(int level) {
+			if (sd == null) return;
+			if (level == TRIM_MEMORY_RUNNING_CRITICAL) sd.trimHistory(0.25f);
+			else if (level == TRIM_MEMORY_RUNNING_LOW) sd.trimHistory(0.5f);
+		}
+
+		@Override
+		public void onLowMemory() {
+			if (sd != null) sd.trimHistory(0.25f);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {
+			// nothing to do
+		}
+	};
 
 	public SpectrogramSurfaceView(Context context) {
 		super(context);
@@ -70,12 +99,15 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 	public void surfaceCreated(SurfaceHolder arg0) {
 		// initialise the spectrogram drawer
 		sd = new SpectrogramDrawer(dac, this.getWidth(), this.getHeight(), this.getHolder());
+		captureDetectedEvents(sd);
 		// disable the resume button (as the user has not paused the spectrogram yet):
 		spectroFragment.disableResumeButton();
 		// set the initial values for the axis text views:
 		spectroFragment.setLeftTimeText(-sd.getScreenFillTime());
 		spectroFragment.setRightTimeText(sd.getTimeFromStopAtPixel(getWidth()));
 		spectroFragment.setTopFreqText(sd.getMaxFrequency() / 1000);
+		spectroFragment.setBottomFreqText(sd.getMinFrequency() / 1000);
+		context.registerComponentCallbacks(memoryCallbacks);
 	}
 
 	@Override
@@ -85,6 +117,7 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 
 	@Override
 	public void surfaceDestroyed(SurfaceHolder arg0) {
+		context.unregisterComponentCallbacks(memoryCallbacks);
 		// stop the spectrogram drawer and nullify it
 		if (sd != null) {
 			sd.stop();
@@ -126,6 +159,7 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 		if (selecting)
 			cancelSelection();
 		sd = new SpectrogramDrawer(dac, this.getWidth(), this.getHeight(), this.getHolder());
+		captureDetectedEvents(sd);
 		// disable the resume button once scrolling is resumed
 		spectroFragment.disableResumeButton();
 	}
@@ -159,6 +193,26 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 		builder.show();
 	}
 
+	/**
+	 * If the user has asked for it, saves each sound the given drawer's audio processing finds
+	 * standing out from the background to the library, as if they had selected it themselves.
+	 */
+	private void captureDetectedEvents(final SpectrogramDrawer drawer) {
+		if (!dac.AUTO_CAPTURE) return;
+		drawer.setEventListener(new EventDetector.Listener() {
+			@Override
+			public void eventDetected(final int startWindow, final int endWindow, final float bottomFrequency, final float topFrequency) {
+				// called on the audio processing thread, so start the capture from the UI thread:
+				post(new Runnable() {
+					@Override
+					public void run() {
+						new EventCaptureTask(context, drawer, startWindow, endWindow, (int) bottomFrequency, (int) Math.ceil(topFrequency)).execute();
+					}
+				});
+			}
+		});
+	}
+
 	/**
 	 * If a selection is cancelled, hide the selection rectangle and its associated buttons.
 	 */
@@ -176,6 +230,14 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 		sd.quickSlide(offset);
 	}
 
+	/**
+	 * Demands that the spectrogram drawer zoom the paused spectrogram out by the given number of levels,
+	 * or in if negative, about the given horizontal point.
+	 */
+	protected void zoomBy(int levels, float focusX) {
+		sd.zoom(levels, focusX);
+	}
+
 	/**
 	 * Draw the selection rectangle using the specified bounds and move its capture button
 	 * container accordingly.
@@ -208,6 +270,7 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 	 */
 	private class CaptureTask extends AsyncTask<Void, Void, Void> {
 		private Context context;
+		private boolean spansGap; // whether the captured audio has a gap in it
 		
 		public CaptureTask(Context context) {
 			this.context = context;
@@ -227,15 +290,10 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 		@Override
 		protected Void doInBackground(Void... arg0) {
 			float[] dimens = interactionHandler.getSelectRectDimensions();
-			Bitmap bitmapToStore = sd.getBitmapToStore(dimens[0],dimens[1],dimens[2],dimens[3]);
+			SpectrogramLevels levelsToStore = sd.getLevelsToStore(dimens[0],dimens[1],dimens[2],dimens[3]);
 			short[] audioToStore = sd.getAudioToStore(dimens[0],dimens[1],dimens[2],dimens[3]);
-			AudioBitmapConverter abc;
-			if (lc != null)
-				abc = new AudioBitmapConverter(filename, dac, bitmapToStore,audioToStore,lc.getLastLocation());
-			else
-				abc = new AudioBitmapConverter(filename, dac, bitmapToStore, audioToStore, null);
-			abc.writeThisCbaToFile(filename, DynamicAudioConfig.STORE_DIR_NAME);
-			abc.storeJPEGandWAV();
+			spansGap = sd.selectionSpansGap(dimens[0], dimens[2]);
+			storeCapture(context, filename, levelsToStore, audioToStore, spansGap);
 			return null;
 		}
 		
@@ -244,9 +302,80 @@ public class SpectrogramSurfaceView extends SurfaceView implements SurfaceHolder
 		 */
 		@Override
 		protected void onPostExecute(Void result) {
-			Toast.makeText(context, "Capture completed!", Toast.LENGTH_SHORT).show();
+			if (spansGap)
+				Toast.makeText(context, "Capture completed, but some of its audio is missing", Toast.LENGTH_LONG).show();
+			else
+				Toast.makeText(context, "Capture completed!", Toast.LENGTH_SHORT).show();
 			loadingAlert.dismiss();
 			((SpectroActivity)spectroFragment.getActivity()).updateLibraryFiles();
 		}
 	}
+
+	/**
+	 * Saves a capture's spectrogram and audio to disk and adds it to the library's catalog.
+	 */
+	private void storeCapture(Context context, String name, SpectrogramLevels levels, short[] audio, boolean spansGap) {
+		AudioBitmapConverter abc;
+		if (lc != null)
+			abc = new AudioBitmapConverter(name, dac, levels, audio, lc.getLastLocation(), spansGap);
+		else
+			abc = new AudioBitmapConverter(name, dac, levels, audio, null, spansGap);
+		abc.writeThisCbaToFile(name, DynamicAudioConfig.STORE_DIR_NAME);
+		abc.storeJPEGandFLAC();
+		CaptureCatalog.getInstance(context).add(abc.toCaptureRecord(System.currentTimeMillis()));
+	}
+
+	/**
+	 * AsyncTask that stores a sound found by the event detector to disk, named after the time it was
+	 * found, to the millisecond, and the window it starts at, so no two sounds get the same name
+	 * however close together they are found.
+	 */
+	private class EventCaptureTask extends AsyncTask<Void, Void, Boolean> {
+		private Context context;
+		private SpectrogramDrawer drawer; // drawer whose audio the sound was found in
+		private int startWindow;
+		private int endWindow;
+		private int bottomFreq;
+		private int topFreq;
+		private String name;
+
+		public EventCaptureTask(Context context, SpectrogramDrawer drawer, int startWindow, int endWindow, int bottomFreq, int topFreq) {
+			this.context = context;
+			this.drawer = drawer;
+			this.startWindow = startWindow;
+			this.endWindow = endWindow;
+			this.bottomFreq = bottomFreq;
+			this.topFreq = topFreq;
+			name = "Detected " + new SimpleDateFormat("yyyy-MM-dd HH.mm.ss.SSS", Locale.US).format(new Date()) + " w" + startWindow;
+		}
+
+		/**
+		 * Stores the sound, trimmed to the windows still held. Returns false if the history has moved
+		 * past it, wholly or while it was being read, so that there is nothing consistent to store.
+		 */
+		@Override
+		protected Boolean doInBackground(Void... arg0) {
+			// the levels start at the oldest window held if the sound began before it:
+			SpectrogramLevels levelsToStore = drawer.getLevelsOfWindows(startWindow, endWindow, bottomFreq, topFreq);
+			int start = endWindow - levelsToStore.columns;
+			short[] audioToStore = drawer.getAudioOfWindows(start, endWindow, bottomFreq, topFreq);
+			if (levelsToStore.columns == 0 || audioToStore.length != levelsToStore.columns * levelsToStore.samplesPerWindow) {
+				Log.d("SpectrogramSurfaceView", "Dropped "+name+": its windows are no longer held");
+				return false;
+			}
+			storeCapture(context, name, levelsToStore, audioToStore, drawer.windowsSpanGap(start, endWindow));
+			return true;
+		}
+
+		/**
+		 * Show a brief toast and update the library's files list.
+		 */
+		@Override
+		protected void onPostExecute(Boolean captured) {
+			if (!captured) return;
+			Toast.makeText(context, "Captured "+name, Toast.LENGTH_SHORT).show();
+			if (spectroFragment.getActivity() != null)
+				((SpectroActivity)spectroFragment.getActivity()).updateLibraryFiles();
+		}
+	}
 }
@@ -0,0 +1,12 @@
+package uk.co.benjaminelliott.spectrogramandroid;
+
+/**
+ * Stand-in for the resource class generated by the Android build, holding only the identifiers
+ * referenced by the app sources that are compiled into the benchmarks.
+ */
+public final class R {
+
+    public static final class string {
+        public static final int pref_contrast_default = 0;
+    }
+}
@@ -0,0 +1,81 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+
+/**
+ * Cost of turning one audio window into one bitmap column when it is coloured by loudness, against
+ * colouring it by level above each frequency's background, which also tracks the background, with
+ * and without the event detector running.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DisplayModeBenchmark {
+
+    private static final int NUM_WINDOWS = 64; // distinct windows cycled through, so the input varies
+
+    @Param({"300", "1024", "4096"})
+    public int samplesPerWindow;
+
+    @Param({"false", "true"})
+    public boolean displaySnr;
+
+    @Param({"false", "true"})
+    public boolean detectEvents; // with the bins as rows, an SNR display then shares the detector's floor
+
+    private BitmapCreator bitmapCreator;
+    private short[][] audioWindows;
+    private int[] bitmapWindow;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        int sampleRate = 44100;
+        DynamicAudioConfig dac = new DynamicAudioConfig(sampleRate, samplesPerWindow, 0.5f, 0, false, false, false, displaySnr);
+        SyntheticAudioSource source = new SyntheticAudioSource(sampleRate, 0, false, 1);
+        source.addTone(1000, 4000);
+        source.addChirp(200, sampleRate / 2 - 200, 1.0, 2000);
+        source.addNoise(200);
+        source.start();
+        audioWindows = new short[NUM_WINDOWS][samplesPerWindow];
+        for (short[] window : audioWindows) {
+            source.read(window, 0, samplesPerWindow);
+        }
+        BitmapProvider bp = new BitmapProvider(dac, source);
+        if (detectEvents) {
+            bp.setEventListener(new EventDetector.Listener() {
+                @Override
+                public void eventDetected(int startWindow, int endWindow, float bottomFrequency, float topFrequency) {
+                }
+            });
+        }
+        bitmapCreator = new BitmapCreator(bp);
+        bitmapWindow = new int[dac.NUM_FREQ_BINS];
+    }
+
+    @Benchmark
+    public int[] processAudioWindow() {
+        bitmapCreator.processAudioWindow(audioWindows[next], bitmapWindow);
+        next = (next + 1) % NUM_WINDOWS;
+        return bitmapWindow;
+    }
+}
@@ -0,0 +1,261 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.features.EventDetector;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.WavFileAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import uk.co.benjaminelliott.spectrogramandroid.storage.WavUtils;
+
+/**
+ * Replays an annotated recording through a {@link WavFileAudioSource} and the audio pipeline, as
+ * fast as it can be processed (or in real time if it is longer than the history), and compares the
+ * sounds the event detector finds with the annotations. Annotations are in Audacity's label format:
+ * a line of start and end times in seconds and a label for each sound, optionally followed by a line
+ * of "\", bottom and top frequencies in Hz. Detections and annotations are matched one to one: an
+ * annotation is found by the first unmatched detected box that overlaps it in time, and in frequency
+ * if it has frequencies, and starts within {@link #MAX_ONSET_ERROR_SECONDS} of it, so a box that
+ * merges several sounds finds only one of them. A box that overlaps no annotation is a false alarm,
+ * and one that overlaps only annotations found by other boxes is a duplicate. Exits with status 1 if
+ * the recall is below {@link #MIN_RECALL} or the precision below {@link #MIN_PRECISION}.
+ * <p>
+ * With no arguments, a minute of synthetic recording is written to a temporary file first: calls of
+ * various lengths, bands and loudness over background noise and a constant hum, and a few claps.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar uk.co.benjaminelliott.spectrogramandroid.audioproc.EventDetectionRun \
+ *     [recording.wav labels.txt] [samplesPerWindow]
+ * </pre>
+ */
+public class EventDetectionRun {
+
+    private static final int SYNTHETIC_SAMPLE_RATE = 16000;
+    private static final double SYNTHETIC_SECONDS = 60;
+    private static final double MAX_ONSET_ERROR_SECONDS = 0.5;
+    private static final double MIN_RECALL = 0.8;
+    private static final double MIN_PRECISION = 0.8;
+    private static final List<String> LABELS = new ArrayList<String>(); // label of each annotation, by index
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        File wav;
+        File labels;
+        if (args.length >= 2) {
+            wav = new File(args[0]);
+            labels = new File(args[1]);
+        } else {
+            wav = File.createTempFile("events", ".wav");
+            labels = File.createTempFile("events", ".txt");
+            wav.deleteOnExit();
+            labels.deleteOnExit();
+            writeSyntheticRecording(wav, labels);
+        }
+        int samplesPerWindow = (args.length == 1) ? Integer.parseInt(args[0]) : (args.length > 2) ? Integer.parseInt(args[2]) : 300;
+
+        WavFileAudioSource source = new WavFileAudioSource(wav.getPath(), false, false, true);
+        int sampleRate = source.getSampleRate();
+        float windowSeconds = (float) samplesPerWindow / sampleRate;
+        int windows = source.getNumFrames() / samplesPerWindow;
+        List<float[]> annotations = readLabels(labels);
+        final List<float[]> detections = new ArrayList<float[]>();
+
+        DynamicAudioConfig dac = new DynamicAudioConfig(sampleRate, samplesPerWindow, 0.5f, 0, false, false, false);
+        if (windows > dac.WINDOW_LIMIT) {
+            // played any faster, the audio could overwrite windows in the history before they were processed:
+            source = new WavFileAudioSource(wav.getPath(), true, false, true);
+        }
+        BitmapProvider bp = new BitmapProvider(dac, source);
+        bp.setEventListener(new EventDetector.Listener() {
+            @Override
+            public void eventDetected(int startWindow, int endWindow, float bottomFrequency, float topFrequency) {
+                synchronized (detections) {
+                    detections.add(new float[] { startWindow, endWindow, bottomFrequency, topFrequency });
+                }
+            }
+        });
+        long start = System.nanoTime();
+        bp.start();
+        for (int i = 0; i < windows; i++) bp.getNextBitmap();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        bp.stop();
+        bp.finishEvents();
+
+        PrintWriter out = new PrintWriter(System.out);
+        out.printf("%s: %d windows of %d samples at %d Hz, processed in %.2f s%n", wav.getName(), windows, samplesPerWindow,
+                sampleRate, elapsed);
+        out.println("start\tend\tbottom\ttop\tfound\tonset error (ms)\tlabel");
+        boolean[] matched = new boolean[detections.size()];
+        int found = 0;
+        double onsetError = 0;
+        for (float[] a : annotations) {
+            int match = -1;
+            for (int d = 0; d < detections.size() && match < 0; d++) {
+                float[] box = detections.get(d);
+                if (!matched[d] && overlaps(a, box, windowSeconds)
+                        && Math.abs(box[0] * windowSeconds - a[0]) <= MAX_ONSET_ERROR_SECONDS) {
+                    matched[d] = true;
+                    match = d;
+                }
+            }
+            String error = "";
+            if (match >= 0) {
+                found++;
+                double ms = (detections.get(match)[0] * windowSeconds - a[0]) * 1000;
+                onsetError += Math.abs(ms);
+                error = String.format("%.0f", ms);
+            }
+            out.printf("%.2f\t%.2f\t%s\t%s\t%s\t%s\t%s%n", a[0], a[1], frequency(a[2]), frequency(a[3]), (match >= 0) ? "yes" : "no",
+                    error, labelOf(a));
+        }
+        int falseAlarms = 0;
+        int duplicates = 0;
+        for (int d = 0; d < detections.size(); d++) {
+            if (matched[d]) continue;
+            float[] box = detections.get(d);
+            boolean overlapsAny = false;
+            for (float[] a : annotations) overlapsAny |= overlaps(a, box, windowSeconds);
+            if (overlapsAny) duplicates++;
+            else falseAlarms++;
+            out.printf("%s: %.2f-%.2f s, %.0f-%.0f Hz%n", overlapsAny ? "unmatched" : "false alarm", box[0] * windowSeconds,
+                    box[1] * windowSeconds, box[2], box[3]);
+        }
+        double recall = (double) found / Math.max(annotations.size(), 1);
+        double precision = (double) found / Math.max(detections.size(), 1);
+        out.printf("found %d of %d annotated sounds (recall %.2f), %d detections, %d unmatched, %d false alarms (precision %.2f), "
+                + "mean onset error %.0f ms%n", found, annotations.size(), recall, detections.size(), duplicates, falseAlarms, precision,
+                onsetError / Math.max(found, 1));
+        boolean failed = recall < MIN_RECALL || precision < MIN_PRECISION;
+        if (failed) out.printf("FAILED: recall must be at least %.2f and precision at least %.2f%n", MIN_RECALL, MIN_PRECISION);
+        out.flush();
+        // the processing thread may still be waiting for audio that will never come:
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Returns true if the detected box, in windows and Hz, overlaps the annotation, in seconds and Hz.
+     */
+    private static boolean overlaps(float[] annotation, float[] box, float windowSeconds) {
+        if (box[0] * windowSeconds >= annotation[1] || box[1] * windowSeconds <= annotation[0]) return false;
+        if (Float.isNaN(annotation[2])) return true;
+        return box[2] < annotation[3] && box[3] > annotation[2];
+    }
+
+    private static String frequency(float hz) {
+        return Float.isNaN(hz) ? "-" : String.format("%.0f", hz);
+    }
+
+    private static String labelOf(float[] annotation) {
+        return LABELS.get((int) annotation[4]);
+    }
+
+    /**
+     * Reads annotations in Audacity's label format, each as start and end in seconds, bottom and top
+     * frequency in Hz (NaN if not given) and the index of its label.
+     */
+    private static List<float[]> readLabels(File file) throws IOException {
+        List<float[]> annotations = new ArrayList<float[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\t");
+                if (fields.length < 2) continue;
+                if (fields[0].equals("\\")) {
+                    if (annotations.isEmpty()) continue;
+                    float[] last = annotations.get(annotations.size() - 1);
+                    last[2] = Float.parseFloat(fields[1]);
+                    last[3] = Float.parseFloat(fields[2]);
+                    continue;
+                }
+                LABELS.add((fields.length > 2) ? fields[2] : "");
+                annotations.add(new float[] { Float.parseFloat(fields[0]), Float.parseFloat(fields[1]), Float.NaN, Float.NaN,
+                        LABELS.size() - 1 });
+            }
+        } finally {
+            reader.close();
+        }
+        return annotations;
+    }
+
+    /**
+     * Writes a synthetic recording and its annotations.
+     */
+    private static void writeSyntheticRecording(File wav, File labels) throws IOException {
+        int sampleRate = SYNTHETIC_SAMPLE_RATE;
+        double[] audio = new double[(int) (SYNTHETIC_SECONDS * sampleRate)];
+        Random random = new Random(1);
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = 300 * random.nextGaussian() + 2000 * Math.sin(2 * Math.PI * 120 * i / sampleRate);
+        }
+        PrintWriter out = new PrintWriter(labels);
+        try {
+            double time = 2;
+            int n = 0;
+            while (time < SYNTHETIC_SECONDS - 3) {
+                double length = 0.1 + 1.4 * random.nextDouble();
+                if (n % 7 == 6) {
+                    // a clap, which covers every frequency but only for a moment:
+                    length = 0.02;
+                    addBurst(audio, sampleRate, time, length, 8000, random);
+                    out.printf("%.3f\t%.3f\tclap%n", time, time + length);
+                } else {
+                    double bottom = 500 + 5000 * random.nextDouble();
+                    double top = bottom + ((n % 2 == 0) ? 0 : 200 + 1500 * random.nextDouble());
+                    double amplitude = 300 * Math.pow(10, (3 + 17 * random.nextDouble()) / 20); // 3 to 20 dB above the noise
+                    addCall(audio, sampleRate, time, length, bottom, top, amplitude);
+                    out.printf("%.3f\t%.3f\t%s %.0f dB%n", time, time + length, (bottom == top) ? "whistle" : "sweep",
+                            20 * Math.log10(amplitude / 300));
+                    out.printf("\\\t%.0f\t%.0f%n", bottom - 100, top + 100);
+                }
+                time += length + 0.5 + 2.5 * random.nextDouble();
+                n++;
+            }
+        } finally {
+            out.close();
+        }
+        short[] samples = new short[audio.length];
+        for (int i = 0; i < audio.length; i++) {
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(audio[i])));
+        }
+        FileOutputStream stream = new FileOutputStream(wav);
+        try {
+            stream.write(WavUtils.wavFromAudio(samples, sampleRate));
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Adds a tone sweeping from bottom to top Hz, faded in and out.
+     */
+    private static void addCall(double[] audio, int sampleRate, double start, double length, double bottom, double top,
+            double amplitude) {
+        int first = (int) (start * sampleRate);
+        int count = (int) (length * sampleRate);
+        double phase = 0;
+        for (int i = 0; i < count && first + i < audio.length; i++) {
+            double t = (double) i / count;
+            phase += 2 * Math.PI * (bottom + (top - bottom) * t) / sampleRate;
+            double fade = Math.min(1, Math.min(t, 1 - t) * 10);
+            audio[first + i] += amplitude * fade * Math.sin(phase);
+        }
+    }
+
+    /**
+     * Adds a burst of white noise.
+     */
+    private static void addBurst(double[] audio, int sampleRate, double start, double length, double amplitude, Random random) {
+        int first = (int) (start * sampleRate);
+        int count = (int) (length * sampleRate);
+        for (int i = 0; i < count && first + i < audio.length; i++) {
+            audio[first + i] += amplitude * random.nextGaussian();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.FFTFactory;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.RealFFT;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.windows.HammingWindow;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+
+/**
+ * Checks that the single-precision analysis draws the same spectrogram as the double-precision one.
+ * For every samples-per-window preset, windows of a synthetic signal (a tone and a chirp over noise,
+ * as in {@link ProcessAudioWindowBenchmark}) are windowed, transformed and combined with the previous
+ * window's power spectrum in both precisions, as BitmapCreator does. The float spectrum must be
+ * within {@link #MAX_RELATIVE_ERROR} of the double one, relative to the window's largest bin, and the
+ * colour index and stored level of every bin may differ by at most {@link #MAX_STEP_DIFFERENCE}.
+ * Prints the largest differences for each size and exits with status 1 if any is out of tolerance:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar uk.co.benjaminelliott.spectrogramandroid.audioproc.FloatPrecisionRun [windows]
+ * </pre>
+ */
+public class FloatPrecisionRun {
+
+    private static final int[] SAMPLES_PER_WINDOW = {100, 200, 256, 300, 400, 500, 512, 600, 700, 800, 900, 1000, 1024, 2048, 4096};
+    private static final int SAMPLE_RATE = 44100;
+    private static final double CONTRAST = 0.5; // default contrast preference
+    private static final double MAX_RELATIVE_ERROR = 1e-5;
+    private static final int MAX_STEP_DIFFERENCE = 1; // out of 255
+
+    public static void main(String[] args) {
+        int windows = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        boolean failed = false;
+        System.out.println("samples/window\tmax relative error\tmax colour difference\tmax level difference");
+        for (int samplesPerWindow : SAMPLES_PER_WINDOW) {
+            int numFreqBins = samplesPerWindow / 2;
+            SyntheticAudioSource source = new SyntheticAudioSource(SAMPLE_RATE, 0, false, 1);
+            source.addTone(1000, 4000);
+            source.addChirp(200, SAMPLE_RATE / 2 - 200, 1.0, 2000);
+            source.addNoise(200);
+            source.start();
+            HammingWindow window = new HammingWindow(samplesPerWindow);
+            RealFFT fft = FFTFactory.create(samplesPerWindow);
+            float fullScale = SpectrogramLevels.fullScale(samplesPerWindow);
+            short[] samples = new short[samplesPerWindow];
+            double[] spectrum = new double[samplesPerWindow];
+            float[] spectrumF = new float[samplesPerWindow];
+            double[] previous = new double[numFreqBins];
+            float[] previousF = new float[numFreqBins];
+            double maxAmplitude = 1;
+            double maxError = 0;
+            int maxColourDifference = 0;
+            int maxLevelDifference = 0;
+
+            for (int w = 0; w < windows; w++) {
+                source.read(samples, 0, samplesPerWindow);
+                for (int i = 0; i < samplesPerWindow; i++) {
+                    spectrum[i] = samples[i];
+                    spectrumF[i] = samples[i];
+                }
+                window.applyWindow(spectrum);
+                window.applyWindow(spectrumF);
+                fft.powerSpectrum(spectrum, numFreqBins);
+                fft.powerSpectrum(spectrumF, numFreqBins);
+
+                double peak = 0;
+                for (int i = 0; i < numFreqBins; i++) peak = Math.max(peak, spectrum[i] + previous[i]);
+                for (int i = 0; i < numFreqBins; i++) {
+                    double combined = spectrum[i] + previous[i];
+                    double combinedF = spectrumF[i] + previousF[i];
+                    if (peak > 0) maxError = Math.max(maxError, Math.abs(combinedF - combined) / peak);
+                    maxAmplitude = Math.max(maxAmplitude, combined);
+                    // as BitmapCreator.cappedValue, against the same highest power for both:
+                    int colour = (int) (255 * Math.pow(Math.log1p(combined) / Math.log1p(maxAmplitude), CONTRAST));
+                    int colourF = (int) (255 * Math.pow(Math.log1p(combinedF) / Math.log1p(maxAmplitude), CONTRAST));
+                    maxColourDifference = Math.max(maxColourDifference, Math.abs(Math.min(colourF, 255) - colour));
+                    int level = SpectrogramLevels.toLevel(combined, fullScale);
+                    int levelF = SpectrogramLevels.toLevel(combinedF, fullScale);
+                    maxLevelDifference = Math.max(maxLevelDifference, Math.abs(levelF - level));
+                }
+                System.arraycopy(spectrum, 0, previous, 0, numFreqBins);
+                System.arraycopy(spectrumF, 0, previousF, 0, numFreqBins);
+            }
+            source.stop();
+
+            System.out.printf("%d\t%.2e\t%d\t%d%n", samplesPerWindow, maxError, maxColourDifference, maxLevelDifference);
+            if (maxError > MAX_RELATIVE_ERROR || maxColourDifference > MAX_STEP_DIFFERENCE || maxLevelDifference > MAX_STEP_DIFFERENCE) {
+                System.out.println("FAILED: out of tolerance at "+samplesPerWindow+" samples per window");
+                failed = true;
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+}
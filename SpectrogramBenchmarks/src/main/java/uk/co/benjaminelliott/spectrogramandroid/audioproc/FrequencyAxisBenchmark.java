@@ -0,0 +1,55 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of mapping one window's power spectrum onto the rows of each frequency axis the display
+ * offers, which is done once as each bitmap window is made.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrequencyAxisBenchmark {
+
+    @Param({"300", "1024", "4096"})
+    public int samplesPerWindow;
+
+    @Param({"0", "1", "2"})
+    public int scale;
+
+    private FrequencyAxis axis;
+    private double[] power;
+    private double[] rows;
+
+    @Setup
+    public void setUp() {
+        int numFreqBins = samplesPerWindow / 2;
+        axis = new FrequencyAxis(scale, 44100, samplesPerWindow, numFreqBins, numFreqBins);
+        Random random = new Random(1);
+        power = new double[numFreqBins];
+        for (int i = 0; i < numFreqBins; i++) power[i] = random.nextDouble() * 1e9;
+        rows = new double[numFreqBins];
+    }
+
+    @Benchmark
+    public double[] remap() {
+        axis.remap(power, rows);
+        return rows;
+    }
+}
@@ -0,0 +1,67 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.io.PrintWriter;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.JfrTraceBackend;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.PipelineMetrics;
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Tracer;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+
+/**
+ * Runs the audio pipeline in real time on a synthetic signal with trace sections sent to the flight
+ * recorder, standing in for the display by taking bitmaps at about 60 frames per second and saving
+ * a capture's audio every second. Prints the pipeline metrics when it finishes. For example:
+ *
+ * <pre>
+ * java -XX:StartFlightRecording=filename=pipeline.jfr -cp target/benchmarks.jar \
+ *     uk.co.benjaminelliott.spectrogramandroid.audioproc.PipelineTraceRun [seconds] [sampleRate] [samplesPerWindow]
+ * </pre>
+ */
+public class PipelineTraceRun {
+
+    private static final long FRAME_MILLIS = 16;
+    private static final int CAPTURE_WINDOWS = 100; // length of the audio saved each second
+
+    public static void main(String[] args) throws InterruptedException {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 10;
+        int sampleRate = (args.length > 1) ? Integer.parseInt(args[1]) : 16000;
+        int samplesPerWindow = (args.length > 2) ? Integer.parseInt(args[2]) : 300;
+
+        Tracer.setBackend(new JfrTraceBackend());
+
+        DynamicAudioConfig dac = new DynamicAudioConfig(sampleRate, samplesPerWindow, 0.5f, 0, false, false, false);
+        SyntheticAudioSource source = new SyntheticAudioSource(sampleRate, seconds, true, 1);
+        source.addChirp(100, sampleRate / 2 - 100, 2.0, 0.3);
+        source.addTone(1000, 0.1);
+        source.addNoise(0.02);
+        BitmapProvider bp = new BitmapProvider(dac, source);
+        PipelineMetrics metrics = bp.getMetrics();
+        bp.start();
+
+        int windowsTaken = 0;
+        long nextCapture = System.currentTimeMillis() + 1000;
+        while (!bp.isAudioSourceExhausted() || bp.getBitmapWindowsAvailable() > 0) {
+            long frameStart = System.nanoTime();
+            int available = bp.getBitmapWindowsAvailable();
+            for (int i = 0; i < available; i++) bp.getNextBitmap();
+            windowsTaken += available;
+            long posted = System.nanoTime();
+            metrics.framePresented(posted - frameStart, posted);
+
+            if (System.currentTimeMillis() >= nextCapture && windowsTaken > CAPTURE_WINDOWS) {
+                bp.getAudioChunk(windowsTaken - CAPTURE_WINDOWS, windowsTaken, 500, sampleRate / 4);
+                nextCapture += 1000;
+            }
+            Thread.sleep(FRAME_MILLIS);
+        }
+        bp.stop();
+
+        PrintWriter out = new PrintWriter(System.out);
+        out.println("windows drawn\t"+windowsTaken);
+        metrics.writeReport(out);
+        out.flush();
+        // the processing thread may still be waiting for audio that will never come:
+        System.exit(0);
+    }
+}
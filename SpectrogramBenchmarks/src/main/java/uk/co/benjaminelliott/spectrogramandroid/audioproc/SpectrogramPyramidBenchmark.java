@@ -0,0 +1,101 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.benjaminelliott.spectrogramandroid.preferences.HeatMap;
+import uk.co.benjaminelliott.spectrogramandroid.storage.SpectrogramLevels;
+
+/**
+ * Cost of colouring a screenful of zoomed-out columns (540, as on a 1080 pixel wide screen) from the
+ * history's pyramid, against pooling every window behind them, at each zoom level; and of adding a
+ * window to the pyramid, which keeps it up to date as the spectrogram is analysed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpectrogramPyramidBenchmark {
+
+    private static final int ROWS = 150; // frequency bins of 300-sample windows
+    private static final int SCREEN_COLUMNS = 540;
+    private static final int WINDOWS = SCREEN_COLUMNS << 6; // enough for a screenful at the highest zoom
+
+    @Param({"1", "2", "4", "6"})
+    public int zoom;
+
+    private SpectrogramPyramid pyramid;
+    private byte[][] windowLevels; // the levels of every window, as pooling without the pyramid would need them
+    private int[] levelColours;
+    private byte[] levels = new byte[ROWS];
+    private byte[] pooled = new byte[ROWS];
+    private int[] pixels = new int[SCREEN_COLUMNS * ROWS];
+    private SpectrogramPyramid growing; // added to by addWindow, replaced when it has had a history's worth
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        pyramid = new SpectrogramPyramid(WINDOWS, ROWS);
+        windowLevels = new byte[WINDOWS][ROWS];
+        for (byte[] window : windowLevels) {
+            for (int r = 0; r < ROWS; r++) window[r] = (byte) (64 + random.nextInt(64));
+            pyramid.add(window);
+        }
+        levelColours = SpectrogramLevels.levelColours(HeatMap.fromPreference(0), SpectrogramLevels.fullScale(300), 20f, 2.5f);
+        growing = new SpectrogramPyramid(WINDOWS, ROWS);
+    }
+
+    @Benchmark
+    public int[] fromPyramid() {
+        for (int c = 0; c < SCREEN_COLUMNS; c++) {
+            pyramid.getColumn(zoom, c, true, levels);
+            colour(levels, c);
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public int[] fromEveryWindow() {
+        int windowsPerColumn = 1 << zoom;
+        for (int c = 0; c < SCREEN_COLUMNS; c++) {
+            System.arraycopy(windowLevels[c * windowsPerColumn], 0, pooled, 0, ROWS);
+            for (int w = c * windowsPerColumn + 1; w < (c + 1) * windowsPerColumn; w++) {
+                byte[] window = windowLevels[w];
+                for (int r = 0; r < ROWS; r++) {
+                    if ((window[r] & 0xFF) > (pooled[r] & 0xFF)) pooled[r] = window[r];
+                }
+            }
+            colour(pooled, c);
+        }
+        return pixels;
+    }
+
+    @Benchmark
+    public SpectrogramPyramid addWindow() {
+        if (growing.getWindowsAdded() == WINDOWS) growing = new SpectrogramPyramid(WINDOWS, ROWS);
+        growing.add(windowLevels[next]);
+        next = (next + 1) % WINDOWS;
+        return growing;
+    }
+
+    private void colour(byte[] column, int c) {
+        for (int r = 0; r < ROWS; r++) {
+            pixels[(ROWS - r - 1) * SCREEN_COLUMNS + c] = levelColours[column[r] & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.codec;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+
+/**
+ * Cost of compressing and decompressing one window of the audio history at 44.1 kHz. To keep up in
+ * real time a window must be encoded in well under samplesPerWindow / 44100 seconds, e.g. 6.8 ms
+ * for 300 samples. The compression ratio achieved on the test signal is printed at the end of
+ * each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LosslessBlockCodecBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int NUM_WINDOWS = 64; // distinct windows cycled through, so the input varies
+
+    @Param({"300", "1024", "4096"})
+    public int samplesPerWindow;
+
+    private LosslessBlockCodec codec;
+    private short[][] audioWindows;
+    private byte[][] encodedWindows;
+    private short[] decoded;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        SyntheticAudioSource source = new SyntheticAudioSource(SAMPLE_RATE, 0, false, 1);
+        source.addTone(1000, 2000);
+        source.addChirp(200, 8000, 1.0, 1000);
+        source.addNoise(50);
+        source.start();
+        codec = new LosslessBlockCodec(samplesPerWindow);
+        audioWindows = new short[NUM_WINDOWS][samplesPerWindow];
+        encodedWindows = new byte[NUM_WINDOWS][];
+        for (int i = 0; i < NUM_WINDOWS; i++) {
+            source.read(audioWindows[i], 0, samplesPerWindow);
+            int length = codec.encode(audioWindows[i]);
+            encodedWindows[i] = new byte[length];
+            System.arraycopy(codec.getEncoded(), 0, encodedWindows[i], 0, length);
+        }
+        decoded = new short[samplesPerWindow];
+    }
+
+    @TearDown
+    public void printCompressionRatio() {
+        long encodedBytes = 0;
+        for (byte[] block : encodedWindows) encodedBytes += block.length;
+        System.out.printf("%ncompressed to %.3f of raw size%n", encodedBytes / (2.0 * NUM_WINDOWS * samplesPerWindow));
+    }
+
+    @Benchmark
+    public int encode() {
+        int length = codec.encode(audioWindows[next]);
+        next = (next + 1) % NUM_WINDOWS;
+        return length;
+    }
+
+    @Benchmark
+    public short[] decode() {
+        codec.decode(encodedWindows[next], 0, decoded);
+        next = (next + 1) % NUM_WINDOWS;
+        return decoded;
+    }
+}
@@ -0,0 +1,72 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of updating the noise floor and looking for events in one window's power spectrum, which is
+ * done for every window while events are being detected. The spectra are background noise with a
+ * tone that comes and goes, so events start and end as they would in a recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDetectorBenchmark {
+
+    private static final int SPECTRA = 1024; // windows of test signal, cycled through
+    private static final int TONE_PERIOD = 256; // windows between the starts of the tone, which lasts half of them
+
+    @Param({"300", "1024", "4096"})
+    public int samplesPerWindow;
+
+    private EventDetector detector;
+    private double[][] spectra;
+    private int window = 0;
+
+    @Setup
+    public void setUp() {
+        int numFreqBins = samplesPerWindow / 2;
+        detector = new EventDetector(44100, samplesPerWindow, numFreqBins, new EventDetector.Listener() {
+            @Override
+            public void eventDetected(int startWindow, int endWindow, float bottomFrequency, float topFrequency) {
+                // nothing to do
+            }
+        });
+        Random random = new Random(1);
+        spectra = new double[SPECTRA][numFreqBins];
+        for (int w = 0; w < SPECTRA; w++) {
+            for (int b = 0; b < numFreqBins; b++) {
+                double re = random.nextGaussian();
+                double im = random.nextGaussian();
+                spectra[w][b] = (re * re + im * im) * 1e6;
+            }
+            if (w % TONE_PERIOD < TONE_PERIOD / 2) {
+                int bin = numFreqBins / 3;
+                spectra[w][bin] += 1e8;
+                spectra[w][bin + 1] += 1e8;
+            }
+        }
+    }
+
+    @Benchmark
+    public EventDetector process() {
+        detector.process(window, spectra[window % SPECTRA]);
+        window++;
+        return detector;
+    }
+}
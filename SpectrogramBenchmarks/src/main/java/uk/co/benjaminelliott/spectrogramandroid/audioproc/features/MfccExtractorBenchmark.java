@@ -0,0 +1,59 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.features;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of extracting the mel band levels and MFCCs of one window's power spectrum, which is done for
+ * every window as it is analysed for display.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MfccExtractorBenchmark {
+
+    @Param({"300", "1024", "4096"})
+    public int samplesPerWindow;
+
+    @Param({"false", "true"})
+    public boolean floatPrecision;
+
+    private MfccExtractor extractor;
+    private double[] power;
+    private float[] powerF;
+
+    @Setup
+    public void setUp() {
+        int numFreqBins = samplesPerWindow / 2;
+        extractor = new MfccExtractor(44100, samplesPerWindow, numFreqBins);
+        Random random = new Random(1);
+        power = new double[numFreqBins];
+        powerF = new float[numFreqBins];
+        for (int i = 0; i < numFreqBins; i++) {
+            power[i] = random.nextDouble() * 1e9;
+            powerF[i] = (float) power[i];
+        }
+    }
+
+    @Benchmark
+    public float[] extract() {
+        if (floatPrecision) extractor.extract(powerF);
+        else extractor.extract(power);
+        return extractor.getMfccs();
+    }
+}
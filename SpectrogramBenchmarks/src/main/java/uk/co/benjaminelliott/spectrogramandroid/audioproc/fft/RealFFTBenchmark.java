@@ -0,0 +1,68 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the in-house split-radix FFT with JTransforms on the power-of-two window sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RealFFTBenchmark {
+
+    @Param({"256", "512", "1024", "2048", "4096"})
+    public int size;
+
+    @Param({"splitRadix", "jtransforms"})
+    public String engine;
+
+    private RealFFT fft;
+    private double[] input;
+    private double[] samples;
+    private float[] inputF;
+    private float[] samplesF;
+
+    @Setup
+    public void setUp() {
+        fft = engine.equals("splitRadix") ? new SplitRadixFFT(size) : new JTransformsFFT(size);
+        Random random = new Random(1);
+        input = new double[size];
+        inputF = new float[size];
+        for (int i = 0; i < size; i++) {
+            input[i] = (short) (random.nextGaussian() * 4000);
+            inputF[i] = (float) input[i];
+        }
+        samples = new double[size];
+        samplesF = new float[size];
+    }
+
+    @Benchmark
+    public double[] powerSpectrum() {
+        System.arraycopy(input, 0, samples, 0, size);
+        fft.powerSpectrum(samples, size / 2);
+        return samples;
+    }
+
+    @Benchmark
+    public float[] powerSpectrumFloat() {
+        System.arraycopy(inputF, 0, samplesF, 0, size);
+        fft.powerSpectrum(samplesF, size / 2);
+        return samplesF;
+    }
+}
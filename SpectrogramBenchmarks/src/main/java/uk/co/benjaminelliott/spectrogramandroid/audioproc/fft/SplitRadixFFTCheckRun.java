@@ -0,0 +1,98 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.fft;
+
+import java.util.Random;
+
+/**
+ * Checks the in-house split-radix FFT against JTransforms, which it is a drop-in replacement for.
+ * For every power-of-two size from 8 (the straight-line kernels) to 65536, random 16-bit windows are
+ * transformed by {@link SplitRadixFFT} and by JTransforms in double precision, which is taken as the
+ * reference. The packed output of realForward and the full and partial power spectra, in both
+ * precisions, must be within {@link #MAX_ERROR} or {@link #MAX_ERROR_FLOAT} of the reference,
+ * relative to its largest component. Prints the largest errors for each size and exits with status 1
+ * if any is out of tolerance:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar uk.co.benjaminelliott.spectrogramandroid.audioproc.fft.SplitRadixFFTCheckRun [windows]
+ * </pre>
+ */
+public class SplitRadixFFTCheckRun {
+
+    private static final int MIN_SIZE = 8;
+    private static final int MAX_SIZE = 65536;
+    private static final double MAX_ERROR = 1e-13;
+    private static final double MAX_ERROR_FLOAT = 2e-6;
+
+    public static void main(String[] args) {
+        int windows = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        Random random = new Random(1);
+        boolean failed = false;
+        System.out.println("size\tpacked\tpower\tpacked (float)\tpower (float)");
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size *= 2) {
+            SplitRadixFFT fft = new SplitRadixFFT(size);
+            JTransformsFFT reference = new JTransformsFFT(size);
+            double[] input = new double[size];
+            double[] expected = new double[size];
+            double[] expectedPower = new double[size];
+            double[] actual = new double[size];
+            float[] actualF = new float[size];
+            double[] errors = new double[4];
+
+            for (int w = 0; w < windows; w++) {
+                for (int i = 0; i < size; i++) input[i] = (short) (random.nextGaussian() * 4000);
+                // half the windows ask for fewer bins than the transform gives, as the display can:
+                int numBins = (w % 2 == 0) ? size / 2 : 1 + random.nextInt(size / 2);
+
+                System.arraycopy(input, 0, expected, 0, size);
+                reference.realForward(expected);
+                System.arraycopy(input, 0, expectedPower, 0, size);
+                reference.powerSpectrum(expectedPower, numBins);
+
+                System.arraycopy(input, 0, actual, 0, size);
+                fft.realForward(actual);
+                errors[0] = Math.max(errors[0], relativeError(expected, actual, size));
+
+                System.arraycopy(input, 0, actual, 0, size);
+                fft.powerSpectrum(actual, numBins);
+                errors[1] = Math.max(errors[1], relativeError(expectedPower, actual, numBins));
+
+                copy(input, actualF, size);
+                fft.realForward(actualF);
+                errors[2] = Math.max(errors[2], relativeError(expected, toDouble(actualF, actual, size), size));
+
+                copy(input, actualF, size);
+                fft.powerSpectrum(actualF, numBins);
+                errors[3] = Math.max(errors[3], relativeError(expectedPower, toDouble(actualF, actual, numBins), numBins));
+            }
+
+            System.out.printf("%d\t%.1e\t%.1e\t%.1e\t%.1e%n", size, errors[0], errors[1], errors[2], errors[3]);
+            if (errors[0] > MAX_ERROR || errors[1] > MAX_ERROR || errors[2] > MAX_ERROR_FLOAT || errors[3] > MAX_ERROR_FLOAT) {
+                System.out.println("FAILED: out of tolerance at size "+size);
+                failed = true;
+            }
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Returns the largest difference between the first length elements of the two arrays, relative
+     * to the largest of the expected ones.
+     */
+    private static double relativeError(double[] expected, double[] actual, int length) {
+        double largest = 0;
+        double error = 0;
+        for (int i = 0; i < length; i++) {
+            largest = Math.max(largest, Math.abs(expected[i]));
+            error = Math.max(error, Math.abs(actual[i] - expected[i]));
+        }
+        return (largest > 0) ? error / largest : error;
+    }
+
+    private static void copy(double[] from, float[] to, int length) {
+        for (int i = 0; i < length; i++) to[i] = (float) from[i];
+    }
+
+    private static double[] toDouble(float[] from, double[] to, int length) {
+        for (int i = 0; i < length; i++) to[i] = from[i];
+        return to;
+    }
+}
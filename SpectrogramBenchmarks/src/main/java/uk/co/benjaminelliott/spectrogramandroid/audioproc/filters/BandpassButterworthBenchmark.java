@@ -0,0 +1,61 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.filters;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of band-pass filtering a capture as {@code BitmapProvider.getAudioChunk} does (8th order,
+ * constructed per capture), across capture lengths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandpassButterworthBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Param({"1", "5", "30"})
+    public int captureSeconds;
+
+    private short[] original;
+    private short[] samples;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        original = new short[captureSeconds * SAMPLE_RATE];
+        for (int i = 0; i < original.length; i++) {
+            original[i] = (short) (random.nextGaussian() * 4000);
+        }
+        samples = new short[original.length];
+    }
+
+    @Setup(Level.Invocation)
+    public void resetSamples() {
+        // the filter works in place, so start from the unfiltered capture every time:
+        System.arraycopy(original, 0, samples, 0, original.length);
+    }
+
+    @Benchmark
+    public short[] applyFilter() {
+        BandpassButterworth butter = new BandpassButterworth(SAMPLE_RATE, 8, 1000, 4000, 1.0);
+        butter.applyFilter(samples);
+        return samples;
+    }
+}
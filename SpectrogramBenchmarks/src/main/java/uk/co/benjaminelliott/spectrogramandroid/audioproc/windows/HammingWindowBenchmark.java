@@ -0,0 +1,58 @@
+package uk.co.benjaminelliott.spectrogramandroid.audioproc.windows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of applying the Hamming window to one audio window at each samples-per-window preset.
+ * The window is applied repeatedly to the same array, so the values decay, but the cost of a
+ * multiplication does not depend on its operands.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HammingWindowBenchmark {
+
+    @Param({"100", "200", "256", "300", "400", "500", "512", "600", "700", "800", "900", "1000", "1024", "2048", "4096"})
+    public int windowSize;
+
+    private HammingWindow window;
+    private double[] samples;
+    private float[] samplesF;
+
+    @Setup
+    public void setUp() {
+        window = new HammingWindow(windowSize);
+        samples = new double[windowSize];
+        samplesF = new float[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            samples[i] = samplesF[i] = 1000;
+        }
+    }
+
+    @Benchmark
+    public double[] applyWindow() {
+        window.applyWindow(samples);
+        return samples;
+    }
+
+    @Benchmark
+    public float[] applyWindowFloat() {
+        window.applyWindow(samplesF);
+        return samplesF;
+    }
+}
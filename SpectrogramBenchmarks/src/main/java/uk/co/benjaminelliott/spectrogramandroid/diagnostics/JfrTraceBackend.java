@@ -0,0 +1,44 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+import java.util.ArrayDeque;
+
+import jdk.jfr.EventType;
+
+/**
+ * Sends trace sections to the JDK flight recorder as {@link TraceSectionEvent}s, so headless runs
+ * of the pipeline can be lined up with the recorder's garbage collection, lock and I/O events. The
+ * sections are only recorded while a recording is running, e.g. one started with
+ * {@code -XX:StartFlightRecording}; otherwise no events are created.
+ */
+public class JfrTraceBackend implements TraceBackend {
+
+    private static final EventType TYPE = EventType.getEventType(TraceSectionEvent.class);
+    // stands in for a section begun while no recording was running, so begin and end still pair up:
+    private static final TraceSectionEvent NOT_RECORDED = new TraceSectionEvent();
+
+    // sections begun but not yet ended on each thread, innermost last:
+    private final ThreadLocal<ArrayDeque<TraceSectionEvent>> open = new ThreadLocal<ArrayDeque<TraceSectionEvent>>() {
+        @Override
+        protected ArrayDeque<TraceSectionEvent> initialValue() {
+            return new ArrayDeque<TraceSectionEvent>();
+        }
+    };
+
+    @Override
+    public void beginSection(String name) {
+        if (!TYPE.isEnabled()) {
+            open.get().addLast(NOT_RECORDED);
+            return;
+        }
+        TraceSectionEvent event = new TraceSectionEvent();
+        event.name = name;
+        event.begin();
+        open.get().addLast(event);
+    }
+
+    @Override
+    public void endSection() {
+        TraceSectionEvent event = open.get().pollLast();
+        if (event != null && event != NOT_RECORDED) event.commit();
+    }
+}
@@ -0,0 +1,20 @@
+package uk.co.benjaminelliott.spectrogramandroid.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event for one {@link Tracer} section.
+ */
+@Name("uk.co.benjaminelliott.spectrogramandroid.TraceSection")
+@Label("Trace Section")
+@Category("Spectrogram")
+@Description("A named section of work on one of the pipeline's threads")
+class TraceSectionEvent extends Event {
+
+    @Label("Name")
+    String name;
+}
@@ -0,0 +1,37 @@
+package uk.co.benjaminelliott.spectrogramandroid.preferences;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of generating each of the colour tables selectable in the settings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeatMapBenchmark {
+
+    @Benchmark
+    public int[] greys() {
+        return HeatMap.Greys_ColorBrewer();
+    }
+
+    @Benchmark
+    public int[] yellowOrangeRed() {
+        return HeatMap.YlOrRd_ColorBrewer();
+    }
+
+    @Benchmark
+    public int[] purpleOrange() {
+        return HeatMap.PuOr_Backwards_ColorBrewer();
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.HeatMap;
+
+/**
+ * Cost of serializing and deserializing a capture as it is written to disk and sent to the
+ * server, and of rendering its spectrogram, across capture lengths. Captures are sized as the app
+ * would make them at the default 16 kHz and 300 samples per window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapturedBitmapAudioBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLES_PER_WINDOW = 300;
+
+    @Param({"1", "5", "30"})
+    public int captureSeconds;
+
+    private CapturedBitmapAudio capture;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        int columns = captureSeconds * SAMPLE_RATE / SAMPLES_PER_WINDOW;
+        int rows = SAMPLES_PER_WINDOW / 2;
+        byte[] levels = new byte[columns * rows];
+        for (int c = 0; c < columns; c++) {
+            for (int r = 0; r < rows; r++) { // a noisy floor with a tone sweeping across it
+                int level = 100 + random.nextInt(24) + ((Math.abs(r - c % rows) < 3) ? 80 : 0);
+                levels[c * rows + r] = (byte) level;
+            }
+        }
+        float fullScale = SpectrogramLevels.fullScale(SAMPLES_PER_WINDOW);
+        SpectrogramLevels spectrogram = new SpectrogramLevels(levels, columns, rows, 0, SAMPLE_RATE, SAMPLES_PER_WINDOW,
+                fullScale, fullScale * 0.75f, 2f, 0);
+        byte[] flac = new byte[captureSeconds * SAMPLE_RATE]; // FLAC typically halves the 16-bit audio
+        random.nextBytes(flac);
+        capture = new CapturedBitmapAudio("capture", spectrogram, flac, 52.2, 0.12, false);
+        serialized = serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(capture);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public int[] render() {
+        return capture.spectrogram.render(HeatMap.Greys_ColorBrewer(), capture.spectrogram.contrast,
+                DynamicAudioConfig.BITMAP_STORE_WIDTH_ADJ, DynamicAudioConfig.BITMAP_STORE_HEIGHT_ADJ);
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
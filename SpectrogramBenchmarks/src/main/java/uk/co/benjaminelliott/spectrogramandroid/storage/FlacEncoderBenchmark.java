@@ -0,0 +1,75 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+
+/**
+ * Cost of encoding a 30 second capture at the default 16 kHz to FLAC, as is done when it is saved,
+ * and of decoding it again for playback, across block sizes, LPC orders (0 meaning fixed
+ * predictors only) and encoder threads. The compression ratio is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlacEncoderBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CAPTURE_SECONDS = 30;
+
+    @Param({"1152", "4096"})
+    public int blockSize;
+
+    @Param({"0", "8", "12"})
+    public int maxLpcOrder;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private short[] samples;
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        SyntheticAudioSource source = new SyntheticAudioSource(SAMPLE_RATE, 0, false, 1);
+        source.addTone(1000, 2000);
+        source.addChirp(200, 6000, 1.0, 1000);
+        source.addNoise(50);
+        source.start();
+        samples = new short[CAPTURE_SECONDS * SAMPLE_RATE];
+        source.read(samples, 0, samples.length);
+        encoded = encode();
+    }
+
+    @TearDown
+    public void printCompressionRatio() {
+        System.out.printf("%ncompressed to %.3f of raw size%n", encoded.length / (2.0 * samples.length));
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return FlacEncoder.encode(samples, SAMPLE_RATE, blockSize, maxLpcOrder, threads);
+    }
+
+    @Benchmark
+    public short[] decode() throws IOException {
+        return new FlacDecoder(encoded).decodeAll();
+    }
+}
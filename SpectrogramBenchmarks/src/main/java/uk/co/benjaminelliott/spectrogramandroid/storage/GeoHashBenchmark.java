@@ -0,0 +1,113 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the captures within 500 m of a point, by range scans over a sorted index of
+ * geohashes as the capture catalog does, against checking the distance to every capture. Captures
+ * are spread over an area the size of Great Britain.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GeoHashBenchmark {
+
+    private static final double RADIUS_METERS = 500;
+    private static final int MAX_QUERY_CELLS = 16;
+    private static final int QUERIES = 64; // query points cycled through
+
+    @Param({"1000", "10000", "100000"})
+    public int captures;
+
+    private String[] geohashes; // sorted, as in the catalog's index
+    private double[] latitudes; // of the capture with each geohash
+    private double[] longitudes;
+    private double[][] queries;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        final String[] unsorted = new String[captures];
+        double[] lats = new double[captures];
+        double[] lons = new double[captures];
+        Integer[] order = new Integer[captures];
+        for (int i = 0; i < captures; i++) {
+            lats[i] = 50 + random.nextDouble() * 8;
+            lons[i] = -6 + random.nextDouble() * 8;
+            unsorted[i] = GeoHash.encode(lats[i], lons[i], GeoHash.MAX_PRECISION);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return unsorted[a].compareTo(unsorted[b]);
+            }
+        });
+        geohashes = new String[captures];
+        latitudes = new double[captures];
+        longitudes = new double[captures];
+        for (int i = 0; i < captures; i++) {
+            geohashes[i] = unsorted[order[i]];
+            latitudes[i] = lats[order[i]];
+            longitudes[i] = lons[order[i]];
+        }
+        queries = new double[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            int i = random.nextInt(captures);
+            queries[q] = new double[] { latitudes[i], longitudes[i] };
+        }
+    }
+
+    @Benchmark
+    public int indexed() {
+        double[] query = queries[next++ % QUERIES];
+        double[] box = GeoHash.boundingBox(query[0], query[1], RADIUS_METERS);
+        List<String> cells = GeoHash.cover(box, MAX_QUERY_CELLS);
+        int found = 0;
+        for (String cell : cells) {
+            int from = lowerBound(cell);
+            int to = lowerBound(GeoHash.upperBound(cell));
+            for (int i = from; i < to; i++) {
+                if (GeoHash.distanceMeters(query[0], query[1], latitudes[i], longitudes[i]) <= RADIUS_METERS) found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    public int scan() {
+        double[] query = queries[next++ % QUERIES];
+        int found = 0;
+        for (int i = 0; i < captures; i++) {
+            if (GeoHash.distanceMeters(query[0], query[1], latitudes[i], longitudes[i]) <= RADIUS_METERS) found++;
+        }
+        return found;
+    }
+
+    private int lowerBound(String key) {
+        int i = Arrays.binarySearch(geohashes, key);
+        if (i < 0) return -i - 1;
+        while (i > 0 && geohashes[i - 1].equals(key)) i--;
+        return i;
+    }
+}
@@ -0,0 +1,65 @@
+package uk.co.benjaminelliott.spectrogramandroid.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of opening and decoding a 16-bit mono WAV capture, across capture lengths.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WAVExplorerBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Param({"1", "5", "30"})
+    public int captureSeconds;
+
+    private File wavFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        short[] samples = new short[captureSeconds * SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (random.nextGaussian() * 4000);
+        }
+        wavFile = File.createTempFile("benchmark", ".wav");
+        FileOutputStream out = new FileOutputStream(wavFile);
+        try {
+            out.write(WavUtils.wavFromAudio(samples, SAMPLE_RATE));
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        wavFile.delete();
+    }
+
+    @Benchmark
+    public float[] decode() {
+        return new WAVExplorer(wavFile.getPath()).getFirstChannelDataAsFloat();
+    }
+}
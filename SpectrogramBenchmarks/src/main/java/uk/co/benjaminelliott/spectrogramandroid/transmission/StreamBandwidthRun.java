@@ -0,0 +1,139 @@
+package uk.co.benjaminelliott.spectrogramandroid.transmission;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.BitmapProvider;
+import uk.co.benjaminelliott.spectrogramandroid.audioproc.sources.SyntheticAudioSource;
+import uk.co.benjaminelliott.spectrogramandroid.preferences.DynamicAudioConfig;
+
+/**
+ * Runs the audio pipeline in real time on a synthetic signal while streaming its spectrogram to a
+ * stand-in viewer on the loopback interface, with each of a few decimations and level depths, and
+ * then once more to a viewer that reads far slower than the stream. Prints the bandwidth of each
+ * stream against what raw ARGB columns would take, and checks that every column sent was decoded
+ * and that a slow viewer makes the stream drop columns rather than hold up the analysis thread,
+ * exiting with status 1 if not. For example:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar uk.co.benjaminelliott.spectrogramandroid.transmission.StreamBandwidthRun [seconds] [sampleRate] [samplesPerWindow]
+ * </pre>
+ */
+public class StreamBandwidthRun {
+
+    private static final int SLOW_VIEWER_BYTES_PER_SECOND = 1000;
+    private static final int SLOW_VIEWER_RECEIVE_BUFFER = 4096; // so the backlog is not hidden in the loopback socket
+    private static final int MAX_LAG_WINDOWS = 16; // the analysis thread falls this far behind only if it is held up
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 5;
+        int sampleRate = (args.length > 1) ? Integer.parseInt(args[1]) : 16000;
+        int samplesPerWindow = (args.length > 2) ? Integer.parseInt(args[2]) : 300;
+
+        System.out.println("decimation\tlevel bits\tcolumns/s\tbytes/column\tbits/level\tkbit/s\tARGB kbit/s\tsent\tdropped\tmax lag");
+        int[][] configs = { {1, 0}, {1, 2}, {2, 2}, {4, 2} };
+        for (int[] config : configs) {
+            Result result = run(seconds, sampleRate, samplesPerWindow, config[0], config[1], false);
+            check("every column sent was decoded", result.columnsRead == result.columnsSent && result.columnsSent > 0);
+        }
+        System.out.println("slow viewer, "+SLOW_VIEWER_BYTES_PER_SECOND+" bytes/s:");
+        Result result = run(seconds, sampleRate, samplesPerWindow, 1, 0, true);
+        check("columns dropped, and the viewer told", result.columnsDropped > 0 && result.columnsSkipped > 0);
+        check("analysis not held up", result.maxLagWindows <= MAX_LAG_WINDOWS);
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static class Result {
+        long columnsSent;
+        long columnsRead;
+        long columnsDropped;
+        long columnsSkipped; // as told to the viewer
+        int maxLagWindows;
+    }
+
+    private static Result run(double seconds, int sampleRate, int samplesPerWindow, int decimation, int levelShift,
+            boolean slow) throws IOException, InterruptedException {
+        final AtomicBoolean throttled = new AtomicBoolean(slow);
+        final ServerSocket serverSocket = new ServerSocket();
+        if (slow) serverSocket.setReceiveBufferSize(SLOW_VIEWER_RECEIVE_BUFFER);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final SpectrogramStreamReader[] reader = new SpectrogramStreamReader[1];
+        Thread viewer = new Thread("StreamViewer") {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    reader[0] = new SpectrogramStreamReader(new BufferedInputStream(socket.getInputStream()));
+                    byte[] column = new byte[reader[0].getHeader().rows];
+                    long start = System.nanoTime();
+                    while (reader[0].readColumn(column) >= 0) {
+                        if (!throttled.get()) continue;
+                        long due = start + reader[0].getBytesRead() * 1000000000L / SLOW_VIEWER_BYTES_PER_SECOND;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                } catch (IOException e) {
+                    // the stream was stopped part way through a column
+                } catch (InterruptedException e) {
+                    // not interrupted
+                }
+            }
+        };
+        viewer.start();
+
+        DynamicAudioConfig dac = new DynamicAudioConfig(sampleRate, samplesPerWindow, 0.5f, 0, false, false, false);
+        SyntheticAudioSource source = new SyntheticAudioSource(sampleRate, seconds, true, 1);
+        // a sweeping call and a steady hum over background noise, at levels a microphone outdoors might give:
+        source.addChirp(100, sampleRate / 2 - 100, 2.0, 8000);
+        source.addTone(1000, 2000);
+        source.addNoise(300);
+        BitmapProvider bp = new BitmapProvider(dac, source);
+        SpectrogramStreamer streamer = new SpectrogramStreamer(serverSocket.getInetAddress().getHostAddress(),
+                serverSocket.getLocalPort(), "loopback", sampleRate, samplesPerWindow, dac.NUM_FREQ_BINS, decimation,
+                levelShift, DynamicAudioConfig.STREAM_QUEUE_COLUMNS);
+        bp.setStreamer(streamer);
+        bp.start();
+        while (!bp.isAudioSourceExhausted() || bp.getBitmapWindowsAvailable() > 0) {
+            // stand in for the display, which takes the bitmaps as they are made:
+            int available = bp.getBitmapWindowsAvailable();
+            for (int i = 0; i < available; i++) bp.getNextBitmap();
+            Thread.sleep(16);
+        }
+        Thread.sleep(500); // for the last columns to arrive
+        Result result = new Result();
+        result.columnsSent = streamer.getColumnsSent();
+        result.columnsDropped = streamer.getColumnsDropped();
+        result.maxLagWindows = bp.getMaxLagWindows();
+        bp.stop();
+        // let a slow viewer catch up with what reached it, to see what it was told it missed:
+        throttled.set(false);
+        viewer.join();
+        serverSocket.close();
+        SpectrogramStreamReader r = reader[0];
+        result.columnsRead = (r == null) ? 0 : r.getColumnsRead();
+        result.columnsSkipped = (r == null) ? 0 : r.getColumnsSkipped();
+
+        StreamProtocol.Header header = streamer.getHeader();
+        long bytes = (r == null) ? 0 : r.getBytesRead();
+        double columnsPerSecond = header.getColumnsPerSecond();
+        double bytesPerColumn = (result.columnsRead == 0) ? 0 : (double) bytes / result.columnsRead;
+        System.out.println(decimation+"\t\t"+(8 - levelShift)+"\t\t"+String.format("%.1f", columnsPerSecond)+"\t\t"
+                +String.format("%.1f", bytesPerColumn)+"\t\t"+String.format("%.2f", bytesPerColumn * 8 / header.rows)+"\t\t"
+                +String.format("%.2f", bytesPerColumn * columnsPerSecond * 8 / 1e3)+"\t"
+                +String.format("%.0f", (double) header.rows * 4 * sampleRate / samplesPerWindow * 8 / 1e3)+"\t\t"
+                +result.columnsSent+"\t"+result.columnsDropped+"\t"+result.maxLagWindows);
+        return result;
+    }
+
+    private static void check(String what, boolean ok) {
+        System.out.println("\t"+(ok ? "ok" : "FAILED")+": "+what);
+        if (!ok) failed = true;
+    }
+}
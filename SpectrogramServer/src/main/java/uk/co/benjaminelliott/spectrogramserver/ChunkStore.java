@@ -0,0 +1,157 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import uk.co.benjaminelliott.spectrogramandroid.transmission.ChunkManifest;
+
+/**
+ * The server's store on disk: chunks in one directory, each named by its hash, and committed files
+ * in another, put together from their chunks. Chunks are written under a temporary name and only
+ * given their real one once their contents are known to match it, so the store never holds a
+ * chunk that is partial or wrong, and any number of connections can use it at once.
+ */
+public class ChunkStore {
+
+    private final Path chunkDir;
+    private final Path fileDir;
+    private final Path partialDir;
+
+    public ChunkStore(Path storeDir) throws IOException {
+        chunkDir = Files.createDirectories(storeDir.resolve("chunks"));
+        fileDir = Files.createDirectories(storeDir.resolve("files"));
+        partialDir = Files.createDirectories(storeDir.resolve("partial"));
+        // anything left here was being received when the server last stopped:
+        try (DirectoryStream<Path> partials = Files.newDirectoryStream(partialDir)) {
+            for (Path partial : partials) Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Returns the indices of the chunks of the manifest not in the store, giving each missing hash
+     * once however many times it appears.
+     */
+    public int[] findMissing(ChunkManifest manifest) {
+        int[] missing = new int[manifest.getChunkCount()];
+        int count = 0;
+        Set<String> asked = new HashSet<>();
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            String hex = ChunkManifest.toHex(manifest.getHash(i));
+            if (!Files.exists(chunkDir.resolve(hex)) && asked.add(hex)) missing[count++] = i;
+        }
+        return Arrays.copyOf(missing, count);
+    }
+
+    /**
+     * Returns a new file to receive a chunk into.
+     */
+    public Path newPartial() throws IOException {
+        return Files.createTempFile(partialDir, "chunk", ".part");
+    }
+
+    /**
+     * Checks the chunk received into the given partial file against its hash and, if it matches,
+     * moves it into the store; otherwise deletes it.
+     * @param channel - open on the partial file, and closed here
+     * @param scratch - a buffer to read the chunk back into, at least as large as it
+     * @return whether it matched
+     */
+    public boolean commitChunk(Path partial, FileChannel channel, int length, byte[] hash, ByteBuffer scratch,
+            MessageDigest digest) throws IOException {
+        long position = 0;
+        try {
+            scratch.clear().limit(length);
+            while (scratch.hasRemaining()) {
+                int n = channel.read(scratch, position);
+                if (n < 0) break;
+                position += n;
+            }
+        } finally {
+            channel.close();
+        }
+        scratch.flip();
+        digest.reset();
+        digest.update(scratch);
+        if (position != length || !Arrays.equals(hash, digest.digest())) {
+            Files.deleteIfExists(partial);
+            return false;
+        }
+        // another connection may have stored the same chunk meanwhile, with the same contents:
+        Files.move(partial, chunkPath(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Puts the file described by the manifest together from its chunks, copying each within the
+     * kernel, and stores it under the manifest's name.
+     * @return false if a chunk is missing or the name is not allowed
+     */
+    public boolean assemble(ChunkManifest manifest) throws IOException {
+        Path name = fileName(manifest.name);
+        if (name == null || findMissing(manifest).length > 0) return false;
+        Path partial = Files.createTempFile(partialDir, "file", ".part");
+        try {
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (int i = 0; i < manifest.getChunkCount(); i++) {
+                    int size = manifest.getChunkSize(i);
+                    try (FileChannel in = FileChannel.open(chunkPath(manifest.getHash(i)), StandardOpenOption.READ)) {
+                        if (in.size() != size) return false;
+                        long copied = 0;
+                        while (copied < size) {
+                            long n = in.transferTo(copied, size - copied, out);
+                            if (n <= 0) return false;
+                            copied += n;
+                        }
+                    }
+                    position += size;
+                }
+                if (position != manifest.length) return false;
+            }
+            Files.move(partial, fileDir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Returns where the file committed with the given name is kept.
+     */
+    public Path getFile(String name) {
+        return fileDir.resolve(name);
+    }
+
+    /**
+     * Returns the name a committed file is kept under, or null if the name given could lead outside
+     * the store.
+     */
+    private static Path fileName(String name) {
+        if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) return null;
+        return Paths.get(name);
+    }
+
+    private Path chunkPath(byte[] hash) {
+        return chunkDir.resolve(ChunkManifest.toHex(hash));
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
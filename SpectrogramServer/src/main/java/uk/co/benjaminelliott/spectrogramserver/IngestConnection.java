@@ -0,0 +1,441 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import uk.co.benjaminelliott.spectrogramandroid.transmission.ChunkManifest;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadProtocol;
+
+/**
+ * One upload session on an {@link IngestServer} reactor, driven by its selector. Frames are parsed
+ * out of a buffer as soon as all of each has arrived, and replies queued in order and written as
+ * the socket takes them; while some are waiting, nothing more is read, so a client that does not
+ * read its replies is not able to make the server buffer without limit. The bytes of a chunk go
+ * from the socket to a file under the store without being parsed, and are read back once to check
+ * their hash before the chunk is kept. That, and putting a file together when it is committed, is
+ * done on one of the server's workers; meanwhile nothing more is read from the connection, so its
+ * frames are still handled in the order they were sent, and the result is handed back to the
+ * reactor, which carries on from where it left off.
+ */
+class IngestConnection {
+
+    private static final int HELLO_BYTES = 5; // magic (int), version (byte)
+    private static final int CHUNK_HEADER_BYTES = 1 + ChunkManifest.HASH_BYTES + 4; // frame, hash, length
+    private static final int INITIAL_BUFFER_BYTES = 64 * 1024; // grown to fit a large manifest
+    private static final int READ_BUDGET = 256 * 1024; // bytes taken per wakeup, so one busy client cannot starve the rest
+
+    // for each worker, a buffer outside the heap to read chunks back into, and a digest to check them with:
+    private static final ThreadLocal<ByteBuffer> SCRATCH = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(UploadProtocol.MAX_CHUNK_BYTES);
+        }
+    };
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return ChunkStore.newDigest();
+        }
+    };
+
+    private enum State { HELLO, FRAMES, CHUNK, WAITING, CLOSING, CLOSED } // WAITING: for a worker
+
+    /**
+     * File work done on a worker.
+     */
+    private interface Work<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * What is done on the reactor with the result of some {@link Work}.
+     */
+    private interface Then<T> {
+        void accept(T result) throws IOException;
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final IngestServer server;
+    private final Executor reactor; // runs what workers hand back
+    private final Map<String, ChunkManifest> offered = new HashMap<>();
+    private final Map<String, Long> queriedAt = new HashMap<>();
+    private final ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+    private final DataOutputStream replies = new DataOutputStream(replyBytes);
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_BYTES); // received and not yet parsed
+    private ByteBuffer out = ByteBuffer.allocate(1024); // replies not yet written
+    private State state = State.HELLO;
+    private long lastActive = System.nanoTime();
+
+    // the chunk being received:
+    private final byte[] chunkHash = new byte[ChunkManifest.HASH_BYTES];
+    private int chunkLength;
+    private long chunkReceived;
+    private long chunkStartedAt;
+    private Path partial;
+    private FileChannel partialChannel;
+
+    IngestConnection(SocketChannel channel, SelectionKey key, IngestServer server, Executor reactor) {
+        this.channel = channel;
+        this.key = key;
+        this.server = server;
+        this.reactor = reactor;
+        server.getMetrics().connectionOpened();
+    }
+
+    long getLastActive() {
+        return lastActive;
+    }
+
+    /**
+     * Returns whether the connection is waiting for a worker, and so is not idle however long it
+     * has been since the client was heard from.
+     */
+    boolean isWaiting() {
+        return state == State.WAITING;
+    }
+
+    /**
+     * Handles the socket being ready, closing the connection if the client went away or broke the
+     * protocol.
+     */
+    void onReady() {
+        try {
+            if (key.isWritable()) writeReplies();
+            if (isReading() && key.isValid() && key.isReadable()) {
+                readFrames();
+                writeReplies();
+            }
+        } catch (IOException e) {
+            // the client went away or sent something it should not have; it will offer whatever was not confirmed again
+            close();
+        }
+    }
+
+    /**
+     * Returns whether frames are being read, rather than waiting for a worker or finished with.
+     */
+    private boolean isReading() {
+        return state == State.HELLO || state == State.FRAMES || state == State.CHUNK;
+    }
+
+    private void readFrames() throws IOException {
+        int budget = READ_BUDGET;
+        while (budget > 0 && isReading()) {
+            if (state == State.CHUNK && in.position() == 0) {
+                // straight from the socket to the file, without passing through the parse buffer:
+                long n = partialChannel.transferFrom(channel, chunkReceived, Math.min(chunkLength - chunkReceived, budget));
+                if (n > 0) {
+                    lastActive = System.nanoTime();
+                    budget -= n;
+                    chunkReceived += n;
+                    if (chunkArrived()) continue;
+                    return;
+                }
+                // nothing came, which is also what transferFrom says at the end of the stream, so read to find out which
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n == 0) return;
+            lastActive = System.nanoTime();
+            budget -= n;
+            parse();
+        }
+    }
+
+    /**
+     * Handles everything whole in the parse buffer, leaving any partial frame in it.
+     */
+    private void parse() throws IOException {
+        in.flip();
+        int needed = 0;
+        while (isReading()) {
+            if (state == State.CHUNK) {
+                if (!in.hasRemaining()) break;
+                int n = (int) Math.min(in.remaining(), chunkLength - chunkReceived);
+                ByteBuffer body = in.duplicate();
+                body.limit(in.position() + n);
+                while (body.hasRemaining()) chunkReceived += partialChannel.write(body, chunkReceived);
+                in.position(in.position() + n);
+                if (!chunkArrived()) break;
+            } else {
+                needed = parseFrame();
+                if (needed > 0) break;
+            }
+        }
+        if (state == State.CLOSED) return;
+        in.compact();
+        if (needed > in.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+    }
+
+    /**
+     * Handles the frame at the start of the parse buffer if all of it has arrived.
+     * @return 0 if it was handled, otherwise the number of bytes that must arrive before it can be
+     */
+    private int parseFrame() throws IOException {
+        int start = in.position();
+        int available = in.remaining();
+        if (state == State.HELLO) {
+            if (available < HELLO_BYTES) return HELLO_BYTES;
+            UploadProtocol.readHello(take(HELLO_BYTES));
+            UploadProtocol.writeHello(replies);
+            state = State.FRAMES;
+            return 0;
+        }
+        if (available < 1) return 1;
+        byte frame = in.get(start);
+        if (frame == UploadProtocol.BYE) {
+            in.position(start + 1);
+            state = State.CLOSING;
+            return 0;
+        }
+        if (frame == UploadProtocol.QUERY) {
+            if (available < 3) return 3;
+            int nameBytes = in.getShort(start + 1) & 0xffff;
+            int fixed = 3 + nameBytes + 8 + 4; // frame, name, length, chunk size
+            if (available < fixed) return fixed;
+            long length = in.getLong(start + 3 + nameBytes);
+            int chunkBytes = in.getInt(start + 3 + nameBytes + 8);
+            // refused before the hashes are buffered, so a bad manifest cannot make the buffer grow:
+            ChunkManifest.checkSizes(length, chunkBytes);
+            int frameBytes = fixed + ChunkManifest.chunkCount(length, chunkBytes) * ChunkManifest.HASH_BYTES;
+            if (available < frameBytes) return frameBytes;
+            DataInputStream manifestIn = take(frameBytes);
+            manifestIn.readByte();
+            query(ChunkManifest.read(manifestIn));
+            return 0;
+        }
+        if (frame == UploadProtocol.CHUNK) {
+            if (available < CHUNK_HEADER_BYTES) return CHUNK_HEADER_BYTES;
+            DataInputStream header = take(CHUNK_HEADER_BYTES);
+            header.readByte();
+            header.readFully(chunkHash);
+            int length = header.readInt();
+            if (length < 0 || length > UploadProtocol.MAX_CHUNK_BYTES) throw new IOException("Bad chunk length "+length);
+            startChunk(length);
+            return 0;
+        }
+        if (frame == UploadProtocol.COMMIT) {
+            if (available < 3) return 3;
+            int frameBytes = 3 + (in.getShort(start + 1) & 0xffff);
+            if (available < frameBytes) return frameBytes;
+            DataInputStream commitIn = take(frameBytes);
+            commitIn.readByte();
+            commit(commitIn.readUTF());
+            return 0;
+        }
+        throw new IOException("Unknown frame "+frame);
+    }
+
+    /**
+     * Returns a stream over the next given number of bytes of the parse buffer, which are taken
+     * out of it.
+     */
+    private DataInputStream take(int length) {
+        DataInputStream stream = new DataInputStream(
+                new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length));
+        in.position(in.position() + length);
+        return stream;
+    }
+
+    private void query(ChunkManifest manifest) throws IOException {
+        offered.put(manifest.name, manifest);
+        queriedAt.put(manifest.name, System.nanoTime());
+        int[] missing = server.getStore().findMissing(manifest);
+        replies.writeInt(missing.length);
+        for (int chunk : missing) replies.writeInt(chunk);
+    }
+
+    private void commit(final String name) throws IOException {
+        final ChunkManifest manifest = offered.remove(name);
+        final Long started = queriedAt.remove(name);
+        if (manifest == null) {
+            replies.writeByte(UploadProtocol.REJECTED);
+            replies.writeUTF(name+" was not offered");
+            server.getMetrics().commit(false, 0);
+            return;
+        }
+        // the whole file is copied, which may take a while for a long capture:
+        offload(new Work<String>() {
+            @Override
+            public String run() throws IOException {
+                int missing = server.getStore().findMissing(manifest).length;
+                if (missing == 0 && server.getStore().assemble(manifest)) return null;
+                return missing+" of "+manifest.getChunkCount()+" chunks of "+name+" missing";
+            }
+        }, new Then<String>() {
+            @Override
+            public void accept(String rejection) throws IOException {
+                if (rejection == null) {
+                    replies.writeByte(UploadProtocol.STORED);
+                    replies.writeUTF(name);
+                    server.getMetrics().commit(true, System.nanoTime() - started);
+                } else {
+                    replies.writeByte(UploadProtocol.REJECTED);
+                    replies.writeUTF(rejection);
+                    server.getMetrics().commit(false, 0);
+                }
+            }
+        });
+    }
+
+    private void startChunk(int length) throws IOException {
+        chunkLength = length;
+        chunkReceived = 0;
+        chunkStartedAt = System.nanoTime();
+        partial = server.getStore().newPartial();
+        partialChannel = FileChannel.open(partial, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        state = State.CHUNK;
+        chunkArrived(); // in case it is empty
+    }
+
+    /**
+     * Has the chunk being received checked and kept by a worker if all of it has arrived.
+     * @return whether the connection can go on to the next frame straight away, which it never can
+     * as it must wait for the worker
+     */
+    private boolean chunkArrived() throws IOException {
+        if (chunkReceived < chunkLength) return false;
+        final FileChannel file = partialChannel;
+        final Path path = partial;
+        final int length = chunkLength;
+        final long startedAt = chunkStartedAt;
+        partialChannel = null;
+        partial = null;
+        // one that does not match is dropped, and its file's commit will say so:
+        offload(new Work<Boolean>() {
+            @Override
+            public Boolean run() throws IOException {
+                return server.getStore().commitChunk(path, file, length, chunkHash, SCRATCH.get(), DIGEST.get());
+            }
+        }, new Then<Boolean>() {
+            @Override
+            public void accept(Boolean kept) {
+                server.getMetrics().chunk(kept, length, System.nanoTime() - startedAt);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Has the given work done on one of the server's workers, reading nothing more until it is
+     * done. Then, back on the reactor, hands its result on and carries on with the frames that
+     * arrived behind it, or closes the connection if it failed.
+     */
+    private <T> void offload(final Work<T> work, final Then<T> then) throws IOException {
+        state = State.WAITING;
+        try {
+            server.getWorkers().execute(new Runnable() {
+                @Override
+                public void run() {
+                    T result = null;
+                    Exception failure = null;
+                    try {
+                        result = work.run();
+                    } catch (IOException | RuntimeException e) {
+                        failure = e;
+                    }
+                    final T finalResult = result;
+                    final Exception finalFailure = failure;
+                    reactor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resume(then, finalResult, finalFailure);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Server is closing");
+        }
+    }
+
+    private <T> void resume(Then<T> then, T result, Exception failure) {
+        if (state == State.CLOSED) return; // timed out or the server closed meanwhile
+        try {
+            if (failure != null) throw new IOException("File work failed", failure);
+            state = State.FRAMES;
+            lastActive = System.nanoTime();
+            then.accept(result);
+            parse();
+            writeReplies();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as many of the queued replies as the socket will take, reading no more frames until
+     * it has taken them all.
+     */
+    private void writeReplies() throws IOException {
+        if (state == State.CLOSED) return;
+        if (replyBytes.size() > 0) {
+            if (out.remaining() < replyBytes.size()) {
+                ByteBuffer larger = ByteBuffer.allocate(out.position() + replyBytes.size());
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(replyBytes.toByteArray());
+            replyBytes.reset();
+        }
+        out.flip();
+        channel.write(out);
+        out.compact();
+        if (out.position() > 0) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        } else if (state == State.CLOSING) {
+            close();
+        } else if (state == State.WAITING) {
+            key.interestOps(0); // until the worker is done
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+            lastActive = System.nanoTime();
+        }
+    }
+
+    void close() {
+        if (state == State.CLOSED) return;
+        state = State.CLOSED;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more can be done with it
+        }
+        if (partialChannel != null) {
+            try {
+                partialChannel.close();
+                Files.deleteIfExists(partial);
+            } catch (IOException e) {
+                // left for the store to clear when it next starts
+            }
+        }
+        server.getMetrics().connectionClosed();
+    }
+}
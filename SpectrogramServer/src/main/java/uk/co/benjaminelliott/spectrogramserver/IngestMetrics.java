@@ -0,0 +1,103 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Histogram;
+
+/**
+ * What the {@link IngestServer} has taken in: running totals, the rates since the last report, and
+ * how long files took from being queried to being stored and chunks from their first byte to being
+ * kept. Connections on every reactor record into the same instance without locking.
+ */
+public class IngestMetrics {
+
+    private final AtomicInteger connectionsOpen = new AtomicInteger();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong filesStored = new AtomicLong();
+    private final AtomicLong filesRejected = new AtomicLong();
+    private final AtomicLong chunksStored = new AtomicLong();
+    private final AtomicLong chunksRejected = new AtomicLong();
+    private final AtomicLong chunkBytes = new AtomicLong();
+    private final Histogram commitLatency = new Histogram(); // QUERY read to STORED written, in ns
+    private final Histogram chunkLatency = new Histogram(); // first byte to kept, in ns
+
+    private long lastReportAt = System.nanoTime();
+    private long lastFilesStored = 0;
+    private long lastChunkBytes = 0;
+
+    void connectionOpened() {
+        connectionsOpen.incrementAndGet();
+        connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        connectionsOpen.decrementAndGet();
+    }
+
+    void chunk(boolean kept, int length, long nanos) {
+        if (!kept) {
+            chunksRejected.incrementAndGet();
+            return;
+        }
+        chunksStored.incrementAndGet();
+        chunkBytes.addAndGet(length);
+        chunkLatency.record(nanos);
+    }
+
+    void commit(boolean stored, long nanos) {
+        if (!stored) {
+            filesRejected.incrementAndGet();
+            return;
+        }
+        filesStored.incrementAndGet();
+        commitLatency.record(nanos);
+    }
+
+    public int getConnectionsOpen() {
+        return connectionsOpen.get();
+    }
+
+    public long getFilesStored() {
+        return filesStored.get();
+    }
+
+    public long getChunkBytes() {
+        return chunkBytes.get();
+    }
+
+    /**
+     * Writes the totals, the rates since the last report and the latency percentiles, in ms, as
+     * tab-separated rows, then starts the rates afresh.
+     */
+    public synchronized void writeReport(PrintWriter out) {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportAt) / 1e9;
+        long files = filesStored.get();
+        long bytes = chunkBytes.get();
+        out.println("connections\t"+connectionsOpen.get()+" open\t"+connections.get()+" total");
+        out.println("files\t"+files+" stored\t"+filesRejected.get()+" rejected\t"
+                +String.format("%.1f", (files - lastFilesStored) / seconds)+" /s");
+        out.println("chunks\t"+chunksStored.get()+" kept\t"+chunksRejected.get()+" rejected\t"
+                +String.format("%.2f", (bytes - lastChunkBytes) / seconds / 1e6)+" MB/s");
+        out.println("latency\tcount\tmean\tp50\tp90\tp99\tp99.9\tmax");
+        writeRow(out, "commit", commitLatency);
+        writeRow(out, "chunk", chunkLatency);
+        out.flush();
+        lastReportAt = now;
+        lastFilesStored = files;
+        lastChunkBytes = bytes;
+    }
+
+    private static void writeRow(PrintWriter out, String name, Histogram histogram) {
+        out.println(name+"\t"+histogram.getTotalCount()+"\t"+ms(histogram.getMean())+"\t"
+                +ms(histogram.getValueAtPercentile(50))+"\t"+ms(histogram.getValueAtPercentile(90))+"\t"
+                +ms(histogram.getValueAtPercentile(99))+"\t"+ms(histogram.getValueAtPercentile(99.9))+"\t"
+                +ms(histogram.getMax()));
+    }
+
+    private static String ms(double nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
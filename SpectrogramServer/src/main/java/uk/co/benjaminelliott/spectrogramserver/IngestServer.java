@@ -0,0 +1,235 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadProtocol;
+
+/**
+ * Reference server for the app's {@link UploadProtocol}, to test the upload client against and to
+ * put load on. Connections are accepted on one thread and shared out in turn between a few reactor
+ * threads, each of which serves all of its connections from one selector, so thousands of devices
+ * can be uploading at once without a thread each. Chunks and committed files are kept in a
+ * {@link ChunkStore}, and what has been taken in is counted in {@link IngestMetrics}. Checking a
+ * chunk against its hash and putting a committed file together read and write whole files, so they
+ * are handed to a pool of worker threads rather than holding up every other connection on the
+ * reactor.
+ * <p>
+ * Run on its own, it prints its metrics every ten seconds:
+ * <pre>
+ * java -jar target/ingest-server.jar [port] [storeDir] [reactors]
+ * </pre>
+ */
+public class IngestServer {
+
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long REPORT_INTERVAL_MILLIS = 10000;
+    private static final long WORKER_SHUTDOWN_SECONDS = 30; // a file being put together is given this long to finish
+
+    private final ServerSocketChannel serverChannel;
+    private final ChunkStore store;
+    private final IngestMetrics metrics = new IngestMetrics();
+    private final List<Reactor> reactors = new ArrayList<>();
+    private final ExecutorService workers;
+    private final Thread acceptor;
+    private volatile boolean running = true;
+
+    /**
+     * @param address - where to listen
+     * @param storeDir - where chunks and committed files are kept
+     * @param reactorCount - the number of threads serving connections, and of workers doing their
+     * file work
+     */
+    public IngestServer(InetSocketAddress address, Path storeDir, int reactorCount) throws IOException {
+        store = new ChunkStore(storeDir);
+        workers = Executors.newFixedThreadPool(reactorCount, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable work) {
+                Thread worker = new Thread(work, "IngestWorker-"+count.getAndIncrement());
+                worker.setDaemon(true);
+                return worker;
+            }
+        });
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+        for (int i = 0; i < reactorCount; i++) {
+            Reactor reactor = new Reactor("IngestReactor-"+i);
+            reactors.add(reactor);
+            reactor.start();
+        }
+        acceptor = new Thread("IngestAcceptor") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptor.start();
+    }
+
+    /**
+     * Starts a server on the loopback interface on a port of the system's choosing.
+     */
+    public static IngestServer onLoopback(Path storeDir, int reactorCount) throws IOException {
+        return new IngestServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), storeDir, reactorCount);
+    }
+
+    public String getHost() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getAddress().getHostAddress();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+    }
+
+    public ChunkStore getStore() {
+        return store;
+    }
+
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the threads that connections hand file work to that would block their reactor.
+     */
+    Executor getWorkers() {
+        return workers;
+    }
+
+    public void close() throws IOException {
+        running = false;
+        serverChannel.close();
+        for (Reactor reactor : reactors) reactor.selector.wakeup();
+        try {
+            acceptor.join();
+            for (Reactor reactor : reactors) reactor.join();
+            workers.shutdown();
+            workers.awaitTermination(WORKER_SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Reactor reactor = reactors.get(next);
+                next = (next + 1) % reactors.size();
+                reactor.accepted.add(channel);
+                reactor.selector.wakeup();
+            } catch (IOException e) {
+                if (!running) return; // closed
+                System.err.println("Accept failed: "+e);
+            }
+        }
+    }
+
+    /**
+     * A thread serving its share of the connections from one selector. As an {@link Executor} it
+     * runs what it is given between selects, which is how workers hand back the results of their
+     * file work, so each connection is only ever touched by its own reactor.
+     */
+    private class Reactor extends Thread implements Executor {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Reactor(String name) throws IOException {
+            super(name);
+            selector = Selector.open();
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.nanoTime();
+            try {
+                while (running) {
+                    selector.select(1000);
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new IngestConnection(channel, key, IngestServer.this, this));
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) task.run();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid()) ((IngestConnection) key.attachment()).onReady();
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck > TimeUnit.SECONDS.toNanos(1)) {
+                        // a device that vanished without closing its connection is let go of:
+                        for (SelectionKey key : selector.keys()) {
+                            IngestConnection connection = (IngestConnection) key.attachment();
+                            if (connection != null && !connection.isWaiting() && now - connection.getLastActive() > IDLE_TIMEOUT_NANOS) {
+                                connection.close();
+                            }
+                        }
+                        lastIdleCheck = now;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println(getName()+" stopped: "+e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    IngestConnection connection = (IngestConnection) key.attachment();
+                    if (connection != null) connection.close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // nothing more can be done with it
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : UploadProtocol.DEFAULT_PORT;
+        Path storeDir = Paths.get((args.length > 1) ? args[1] : "ingest-store");
+        int reactorCount = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        IngestServer server = new IngestServer(new InetSocketAddress(port), storeDir, reactorCount);
+        System.out.println("Listening on port "+server.getPort()+" with "+reactorCount+" reactor(s), storing in "
+                +storeDir.toAbsolutePath());
+        PrintWriter out = new PrintWriter(System.out);
+        while (true) {
+            Thread.sleep(REPORT_INTERVAL_MILLIS);
+            server.getMetrics().writeReport(out);
+            out.println();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.co.benjaminelliott.spectrogramandroid.diagnostics.Histogram;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.CaptureUploader;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadProtocol;
+
+/**
+ * Puts load on an ingest server: each of the given number of simulated devices has its own
+ * captures and uploads them all at once, a batch per session with the app's {@link CaptureUploader},
+ * as a device does when it comes back into range. Prints the overall throughput and how long each
+ * capture took from being offered to being stored, and, if no server is given, starts an
+ * {@link IngestServer} in the same process and prints its metrics too. For example:
+ *
+ * <pre>
+ * java -cp target/ingest-server.jar uk.co.benjaminelliott.spectrogramserver.LoadGenerator [devices] [captures] [kilobytes] [batch] [host[:port]]
+ * </pre>
+ *
+ * Captures are random bytes, so no two share a chunk and every byte of them is sent; the time
+ * taken to write them out beforehand is not counted.
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int devices = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        int captures = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        int kilobytes = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        final int batch = (args.length > 3) ? Integer.parseInt(args[3]) : 20;
+
+        File dir = File.createTempFile("load", "");
+        if (!dir.delete() || !dir.mkdirs()) throw new IOException("Unable to create "+dir);
+        IngestServer server = null;
+        try {
+            String host;
+            int port;
+            if (args.length > 4) {
+                String[] hostPort = args[4].split(":");
+                host = hostPort[0];
+                port = (hostPort.length > 1) ? Integer.parseInt(hostPort[1]) : UploadProtocol.DEFAULT_PORT;
+            } else {
+                server = IngestServer.onLoopback(new File(dir, "store").toPath(), Runtime.getRuntime().availableProcessors());
+                host = server.getHost();
+                port = server.getPort();
+            }
+            System.out.println(devices+" devices, each uploading "+captures+" captures of "+kilobytes+" KB in batches of "
+                    +batch+" to "+host+":"+port);
+
+            final List<List<File>> deviceCaptures = new ArrayList<List<File>>(devices);
+            byte[] contents = new byte[kilobytes * 1024];
+            Random random = new Random(42);
+            for (int d = 0; d < devices; d++) {
+                File deviceDir = new File(dir, "device-"+d);
+                deviceDir.mkdirs();
+                List<File> files = new ArrayList<File>(captures);
+                for (int i = 0; i < captures; i++) {
+                    random.nextBytes(contents);
+                    File file = new File(deviceDir, "device-"+d+"-capture-"+i+".cba");
+                    FileOutputStream fos = new FileOutputStream(file);
+                    try {
+                        fos.write(contents);
+                    } finally {
+                        fos.close();
+                    }
+                    files.add(file);
+                }
+                deviceCaptures.add(files);
+            }
+
+            final CaptureUploader uploader = new CaptureUploader(host, port);
+            final Histogram captureLatency = new Histogram();
+            final AtomicInteger stored = new AtomicInteger();
+            final AtomicInteger notStored = new AtomicInteger();
+            final AtomicLong bytesSent = new AtomicLong();
+            final AtomicInteger connections = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>(devices);
+            for (int d = 0; d < devices; d++) {
+                final List<File> files = deviceCaptures.get(d);
+                threads.add(new Thread("device-"+d) {
+                    @Override
+                    public void run() {
+                        for (int from = 0; from < files.size(); from += batch) {
+                            CaptureUploader.Report report = uploader.upload(files.subList(from, Math.min(from + batch, files.size())), null);
+                            for (CaptureUploader.Result result : report.results) {
+                                if (result.getStatus() == CaptureUploader.Status.STORED) {
+                                    stored.incrementAndGet();
+                                    captureLatency.record(result.getNanos());
+                                } else {
+                                    notStored.incrementAndGet();
+                                }
+                            }
+                            bytesSent.addAndGet(report.bytesSent);
+                            connections.addAndGet(report.connections);
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+            long elapsed = System.nanoTime() - start;
+
+            System.out.println(stored.get()+" stored, "+notStored.get()+" not stored; "+bytesSent.get()+" bytes sent in "
+                    +(elapsed / 1000000)+" ms over "+connections.get()+" connection(s)");
+            System.out.println(String.format("%.1f", stored.get() * 1e9 / elapsed)+" captures/s, "
+                    +String.format("%.2f", bytesSent.get() * 1e3 / elapsed)+" MB/s");
+            System.out.println("capture latency (ms)\tmean\tp50\tp90\tp99\tmax");
+            System.out.println("\t\t\t"+ms(captureLatency.getMean())+"\t"+ms(captureLatency.getValueAtPercentile(50))+"\t"
+                    +ms(captureLatency.getValueAtPercentile(90))+"\t"+ms(captureLatency.getValueAtPercentile(99))+"\t"
+                    +ms(captureLatency.getMax()));
+            if (server != null) {
+                System.out.println();
+                System.out.println("server:");
+                server.getMetrics().writeReport(new PrintWriter(System.out));
+            }
+        } finally {
+            if (server != null) server.close();
+            deleteAll(dir);
+        }
+        System.exit(0);
+    }
+
+    private static String ms(double nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteAll(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,127 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import uk.co.benjaminelliott.spectrogramandroid.transmission.SpectrogramStreamReader;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.StreamProtocol;
+
+/**
+ * Stand-in for the desktop viewer that devices stream their live spectrograms to over the
+ * {@link StreamProtocol}. Accepts any number of streams, a thread each, decodes every column, and
+ * every few seconds prints for each stream the bandwidth it is using, the columns it has delivered
+ * and dropped, and what it would have cost as raw ARGB pixels. For example:
+ *
+ * <pre>
+ * java -cp target/ingest-server.jar uk.co.benjaminelliott.spectrogramserver.StreamViewer [port]
+ * </pre>
+ */
+public class StreamViewer {
+
+    private static final long REPORT_INTERVAL_MILLIS = 5000;
+
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+
+    /**
+     * One device's stream, read on its own thread.
+     */
+    private class Stream extends Thread {
+
+        private final Socket socket;
+        private volatile SpectrogramStreamReader reader;
+        private final long startedAt = System.nanoTime();
+        private long lastBytes = 0;
+        private long lastColumns = 0;
+        private long lastReportAt = startedAt;
+
+        Stream(Socket socket) {
+            super("Stream "+socket.getRemoteSocketAddress());
+            this.socket = socket;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                reader = new SpectrogramStreamReader(new BufferedInputStream(socket.getInputStream()));
+                StreamProtocol.Header header = reader.getHeader();
+                System.out.println(header.name+" ("+socket.getRemoteSocketAddress()+") connected: "+header.rows+" rows, "
+                        +String.format("%.1f", header.getColumnsPerSecond())+" columns/s, "+(8 - header.levelShift)+"-bit levels");
+                byte[] column = new byte[header.rows];
+                while (reader.readColumn(column) >= 0) {
+                    // a real viewer would draw the column here
+                }
+                System.out.println(header.name+" disconnected");
+            } catch (IOException e) {
+                System.out.println(getName()+" failed: "+e.getMessage());
+            } finally {
+                streams.remove(this);
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing more can be done with it
+                }
+            }
+        }
+
+        /**
+         * Prints the stream's rates since it was last reported.
+         */
+        void report(long now) {
+            SpectrogramStreamReader r = reader;
+            if (r == null) return;
+            StreamProtocol.Header header = r.getHeader();
+            double seconds = (now - lastReportAt) / 1e9;
+            long bytes = r.getBytesRead();
+            long columns = r.getColumnsRead();
+            double argbKbits = header.getColumnsPerSecond() * header.rows * 4 * 8 / 1e3;
+            double kbits = (bytes - lastBytes) * 8 / seconds / 1e3;
+            System.out.println(header.name+"\t"+String.format("%.1f", (columns - lastColumns) / seconds)+" columns/s\t"
+                    +String.format("%.2f", kbits)+" kbit/s\t"
+                    +String.format("%.1f", (columns == lastColumns) ? 0 : (bytes - lastBytes) * 8.0 / ((columns - lastColumns) * header.rows))+" bits/level\t"
+                    +r.getColumnsSkipped()+" dropped\t"
+                    +String.format("%.0f", argbKbits)+" kbit/s as ARGB\t"
+                    +String.format("%.0f", (now - startedAt) / 1e9)+" s");
+            lastBytes = bytes;
+            lastColumns = columns;
+            lastReportAt = now;
+        }
+    }
+
+    private void accept(ServerSocket serverSocket) throws IOException {
+        while (true) {
+            Socket socket = serverSocket.accept();
+            Stream stream = new Stream(socket);
+            streams.add(stream);
+            stream.start();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : StreamProtocol.DEFAULT_PORT;
+        final StreamViewer viewer = new StreamViewer();
+        Thread reporter = new Thread("StreamViewerReport") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(REPORT_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    for (Stream stream : viewer.streams) stream.report(now);
+                }
+            }
+        };
+        reporter.setDaemon(true);
+        reporter.start();
+        ServerSocket serverSocket = new ServerSocket(port);
+        System.out.println("Waiting for streams on port "+serverSocket.getLocalPort());
+        viewer.accept(serverSocket);
+    }
+}
@@ -0,0 +1,295 @@
+package uk.co.benjaminelliott.spectrogramserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import uk.co.benjaminelliott.spectrogramandroid.transmission.CaptureUploader;
+import uk.co.benjaminelliott.spectrogramandroid.transmission.UploadProtocol;
+
+/**
+ * Uploads a day's worth of stand-in captures to a {@link IngestServer} on the loopback interface: with a new
+ * connection for each capture as the app used to, all in one session, the same again, in one session
+ * whose connection is cut twice, and a single long capture whose connection is cut five times. The
+ * connections are cut by a {@link CuttingProxy} between the uploader and the server, as a flaky link
+ * would, part way through a chunk.
+ * Prints the throughput and bytes sent for each, checks that every capture arrived intact and that
+ * the server never received a chunk it already had, and exits with status 1 if not. For example:
+ *
+ * <pre>
+ * java -cp target/ingest-server.jar uk.co.benjaminelliott.spectrogramserver.UploadLoopbackRun [captures] [kilobytes]
+ * </pre>
+ */
+public class UploadLoopbackRun {
+
+    private static boolean failed = false;
+
+    public static void main(String[] args) throws IOException {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+        int kilobytes = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+        File dir = createTempDir("uploads");
+        List<File> files = writeCaptures(new File(dir, "captures"), "capture-", count, kilobytes * 1024);
+        long totalBytes = (long) count * kilobytes * 1024;
+        try {
+            IngestServer server = IngestServer.onLoopback(new File(dir, "server-1").toPath(), 1);
+            CaptureUploader uploader = new CaptureUploader(server.getHost(), server.getPort());
+            long start = System.nanoTime();
+            long bytes = 0;
+            int stored = 0;
+            for (File file : files) {
+                CaptureUploader.Report report = uploader.upload(Collections.singletonList(file), null);
+                bytes += report.bytesSent;
+                stored += report.count(CaptureUploader.Status.STORED);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println("connection per capture\t"+count+" files: "+stored+" stored; "+bytes+" bytes sent in "
+                    +(elapsed / 1000000)+" ms ("+String.format("%.1f", bytes * 1e3 / elapsed)+" MB/s) over "+count+" connection(s)");
+            server.close();
+
+            server = IngestServer.onLoopback(new File(dir, "server-2").toPath(), 1);
+            uploader = new CaptureUploader(server.getHost(), server.getPort());
+            CaptureUploader.Report report = uploader.upload(files, null);
+            System.out.println("one session\t\t"+report);
+            check("all stored, each chunk sent once", report.count(CaptureUploader.Status.STORED) == count && report.bytesSent == totalBytes);
+
+            report = uploader.upload(files, null);
+            System.out.println("same again\t\t"+report);
+            check("all stored, no chunks sent", report.count(CaptureUploader.Status.STORED) == count && report.bytesSent == 0);
+            server.close();
+
+            server = IngestServer.onLoopback(new File(dir, "server-3").toPath(), 1);
+            CuttingProxy proxy = new CuttingProxy(server.getHost(), server.getPort());
+            uploader = new CaptureUploader(server.getHost(), proxy.getPort());
+            int chunksPerFile = (kilobytes * 1024 + UploadProtocol.CHUNK_BYTES - 1) / UploadProtocol.CHUNK_BYTES;
+            proxy.cutConnections(2, count * chunksPerFile / 3);
+            report = uploader.upload(files, null);
+            System.out.println("two cut connections\t"+report);
+            printAttempts(report);
+            check("all stored intact", report.count(CaptureUploader.Status.STORED) == count && allIntact(files, server));
+            check("no chunk received twice", server.getMetrics().getChunkBytes() == totalBytes);
+            proxy.close();
+            server.close();
+
+            File long_ = writeCaptures(new File(dir, "long"), "long-capture-", 1, 32 << 20).get(0);
+            server = IngestServer.onLoopback(new File(dir, "server-4").toPath(), 1);
+            proxy = new CuttingProxy(server.getHost(), server.getPort());
+            uploader = new CaptureUploader(server.getHost(), proxy.getPort());
+            proxy.cutConnections(5, 50);
+            report = uploader.upload(Collections.singletonList(long_), null);
+            System.out.println("long capture, 5 cuts\t"+report);
+            printAttempts(report);
+            // each attempt gets more of it there, so it is not given up on:
+            check("stored intact", report.count(CaptureUploader.Status.STORED) == 1 && allIntact(Collections.singletonList(long_), server));
+            check("no chunk received twice", server.getMetrics().getChunkBytes() == long_.length());
+            proxy.close();
+            server.close();
+        } finally {
+            deleteAll(dir);
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static void check(String what, boolean ok) {
+        System.out.println("\t"+(ok ? "ok" : "FAILED")+": "+what);
+        if (!ok) failed = true;
+    }
+
+    private static void printAttempts(CaptureUploader.Report report) {
+        int[] byAttempts = new int[4];
+        for (CaptureUploader.Result result : report.results) {
+            if (result.getStatus() == CaptureUploader.Status.STORED) byAttempts[Math.min(result.getAttempts(), 3)]++;
+            else System.out.println("\t"+result.file.getName()+"\t"+result.getStatus()+": "+result.getMessage());
+        }
+        System.out.println("\tstored after 1, 2, 3 or more attempts: "+byAttempts[1]+", "+byAttempts[2]+", "+byAttempts[3]);
+    }
+
+    /**
+     * Forwards connections on the loopback interface to a server, cutting the next few of them once
+     * the client has sent a given number of chunks and half of the next, as near as the frames
+     * around them allow. The server is given the end of the stream first, and the client is only cut
+     * off once the server has closed its end, so the server has dealt with everything that reached
+     * it before the client can come back and ask what is missing.
+     */
+    private static class CuttingProxy implements Closeable {
+
+        private final ServerSocket listener;
+        private final InetSocketAddress target;
+        private int cutsLeft = 0;
+        private long cutAfterBytes;
+
+        CuttingProxy(String host, int port) throws IOException {
+            target = new InetSocketAddress(host, port);
+            listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread("CuttingProxy") {
+                @Override
+                public void run() {
+                    accept();
+                }
+            };
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        synchronized void cutConnections(int count, int afterChunks) {
+            cutsLeft = count;
+            cutAfterBytes = (long) afterChunks * UploadProtocol.CHUNK_BYTES + UploadProtocol.CHUNK_BYTES / 2;
+        }
+
+        /**
+         * Returns the number of bytes from the client after which the next connection is cut, or -1
+         * if it is not to be.
+         */
+        private synchronized long takeCut() {
+            if (cutsLeft == 0) return -1;
+            cutsLeft--;
+            return cutAfterBytes;
+        }
+
+        private void accept() {
+            while (true) {
+                Socket client;
+                try {
+                    client = listener.accept();
+                } catch (IOException e) {
+                    return; // closed
+                }
+                try {
+                    Socket server = new Socket();
+                    server.connect(target);
+                    client.setTcpNoDelay(true);
+                    server.setTcpNoDelay(true);
+                    forward(client, server, takeCut());
+                    forward(server, client, -1);
+                } catch (IOException e) {
+                    closeQuietly(client);
+                }
+            }
+        }
+
+        /**
+         * Copies from one socket to the other on a new thread until either end closes, then closes
+         * both; or, if the limit is not -1, until that many bytes have been copied, then ends the
+         * stream to the other socket, leaving the copy the other way to close both once it ends.
+         */
+        private static void forward(final Socket from, final Socket to, final long limit) {
+            Thread forwarder = new Thread("CuttingProxyForwarder") {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[64 * 1024];
+                    long copied = 0;
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        while (limit < 0 || copied < limit) {
+                            int n = in.read(buffer, 0, (int) ((limit < 0) ? buffer.length : Math.min(buffer.length, limit - copied)));
+                            if (n < 0) break;
+                            out.write(buffer, 0, n);
+                            copied += n;
+                        }
+                        if (limit >= 0 && copied == limit) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                    } catch (IOException e) {
+                        // the other direction was closed
+                    }
+                    closeQuietly(from);
+                    closeQuietly(to);
+                }
+            };
+            forwarder.setDaemon(true);
+            forwarder.start();
+        }
+
+        private static void closeQuietly(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more can be done with it
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+
+    private static boolean allIntact(List<File> files, IngestServer server) throws IOException {
+        for (File file : files) {
+            if (!Arrays.equals(readAll(file), readAll(server.getStore().getFile(file.getName()).toFile()))) return false;
+        }
+        return true;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                int n = fis.read(contents, read, contents.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        } finally {
+            fis.close();
+        }
+        return contents;
+    }
+
+    /**
+     * Writes captures of random bytes, which is near enough what compressed audio and levels look
+     * like to the connection.
+     */
+    private static List<File> writeCaptures(File dir, String prefix, int count, int bytes) throws IOException {
+        dir.mkdirs();
+        Random random = new Random(prefix.hashCode());
+        byte[] contents = new byte[bytes];
+        List<File> files = new ArrayList<File>(count);
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(contents);
+            File file = new File(dir, prefix+i+".cba");
+            FileOutputStream fos = new FileOutputStream(file);
+            try {
+                fos.write(contents);
+            } finally {
+                fos.close();
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdirs()) throw new IOException("Unable to create "+dir);
+        return dir;
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteAll(child);
+        }
+        file.delete();
+    }
+}